@@ -25,8 +25,12 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.http.HttpClientConnection;
@@ -41,6 +45,9 @@ import us.pserver.revok.http.HttpConsts;
  * It has utility methods for <code>Socket</code>,
  * <code>ServerSocket</code>, <code>InetAddress</code>
  * and <code>HttpClientConnection</code> creation.
+ * The address may also be an Unix domain socket file
+ * (<code>unix:/path/to/file.sock</code>, Java 16+), for
+ * clients running on the same host.
  * 
  * @author Juno Roesler - juno@pserver.com
  * @version 1.1 - 201506
@@ -63,6 +70,14 @@ public class HttpConnector {
    */
   public static final int HTTP_CONN_BUFFER_SIZE = 8*1024;
   
+  /**
+   * <code>
+   *  UNIX_PREFIX = "unix:"
+   * </code><br>
+   * Address prefix of Unix domain socket files.
+   */
+  public static final String UNIX_PREFIX = "unix:";
+  
   
   private String address;
   
@@ -80,6 +95,12 @@ public class HttpConnector {
   
   private Base64StringCoder cdr;
   
+  private SocketOptions sockopts;
+  
+  private TlsOptions tls;
+  
+  private String unix;
+  
   
   /**
    * Default no arguments constructor,
@@ -94,6 +115,9 @@ public class HttpConnector {
     proxyPort = 0;
     proxyAuth = null;
     cdr = new Base64StringCoder();
+    sockopts = new SocketOptions();
+    tls = null;
+    unix = null;
   }
   
   
@@ -111,10 +135,82 @@ public class HttpConnector {
     proxyPort = 0;
     proxyAuth = null;
     cdr = new Base64StringCoder();
-    this.setAddress(address);
+    parseAddress(address);
+  }
+  
+
+  /**
+   * Get the socket options profile, applied on the 
+   * sockets created with this HttpConnector.
+   * @return The <code>SocketOptions</code> profile.
+   */
+  public SocketOptions getSocketOptions() {
+    return sockopts;
+  }
+  
+  
+  /**
+   * Set the socket options profile, applied on the 
+   * sockets created with this HttpConnector, and on 
+   * the server sockets accepted on it.
+   * @param opts The <code>SocketOptions</code> profile.
+   * @return This modified <code>HttpConnector</code> instance.
+   * @see us.pserver.revok.SocketOptions#lowLatency()
+   * @see us.pserver.revok.SocketOptions#bulkTransfer()
+   */
+  public HttpConnector setSocketOptions(SocketOptions opts) {
+    if(opts == null)
+      throw new IllegalArgumentException(
+          "[HttpConnector.setSocketOptions( SocketOptions )] "
+              + "Invalid SocketOptions {"+ opts+ "}");
+    sockopts = opts;
+    return this;
   }
   
 
+  /**
+   * Get the TLS options profile, applied on the 
+   * sockets created and accepted with this HttpConnector.
+   * @return The <code>TlsOptions</code> profile or 
+   * <code>null</code> if TLS is disabled.
+   */
+  public TlsOptions getTlsOptions() {
+    return tls;
+  }
+  
+  
+  /**
+   * Set the TLS options profile, applied on the sockets 
+   * created and accepted with this HttpConnector. The 
+   * protocol of the address is changed to <code>https://</code>.
+   * @param opts The <code>TlsOptions</code> profile
+   * or <code>null</code> to disable TLS.
+   * @return This modified <code>HttpConnector</code> instance.
+   */
+  public HttpConnector setTlsOptions(TlsOptions opts) {
+    if(opts != null && unix != null)
+      throw new IllegalStateException(
+          "[HttpConnector.setTlsOptions( TlsOptions )] "
+              + "TLS not supported on Unix domain sockets {"+ this+ "}");
+    tls = opts;
+    if(tls != null && HttpConsts.HTTP.equals(proto))
+      proto = HttpConsts.HTTPS;
+    else if(tls == null && HttpConsts.HTTPS.equals(proto))
+      proto = HttpConsts.HTTP;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if TLS is enabled on this HttpConnector.
+   * @return <code>true</code> if TLS is enabled,
+   * <code>false</code> otherwise.
+   */
+  public boolean isTlsEnabled() {
+    return tls != null;
+  }
+  
+  
   /**
    * Creates an <code>InetSocketAddress</code>
    * from this HttpConnector informations.
@@ -131,16 +227,44 @@ public class HttpConnector {
   
   
   /**
-   * Set network address and port <code>&lt;address&gt;:&lt;port&gt;</code>.
+   * Set network address and port <code>&lt;address&gt;:&lt;port&gt;</code>,
+   * or an Unix domain socket file <code>unix:&lt;path&gt;</code>.
    * @param addr <code>String</code>.
    * @return This modified <code>HttpConnector</code> instance.
    */
   public HttpConnector setAddress(String addr) {
+    parseAddress(addr);
+    return this;
+  }
+  
+  
+  /**
+   * Parse and set the network address and port, or 
+   * the Unix domain socket file.
+   * @param addr <code>String</code>.
+   */
+  private void parseAddress(String addr) {
     if(addr == null) 
       throw new IllegalArgumentException(
           "[HttpConnector.setAddress( String )] "
               + "Invalid address ["+ addr+ "]");
     
+    unix = null;
+    if(addr.startsWith(UNIX_PREFIX)) {
+      String file = addr.substring(UNIX_PREFIX.length());
+      if(file.startsWith("//")) 
+        file = file.substring(2);
+      if(file.trim().isEmpty() || tls != null)
+        throw new IllegalArgumentException(
+            "[HttpConnector.setAddress( String )] "
+                + "Invalid Unix domain socket ["+ addr+ "]");
+      unix = file;
+      // Used on the HTTP request line and Host header
+      address = "localhost";
+      proto = HttpConsts.HTTP;
+      return;
+    }
+    
     Pattern pt = Pattern.compile("[\\w]+://");
     Matcher m = pt.matcher(addr);
     if(m.find()) {
@@ -166,7 +290,38 @@ public class HttpConnector {
     }
     
     address = addr;
-    return this;
+  }
+
+
+  /**
+   * Verifies if this HttpConnector points 
+   * to an Unix domain socket file.
+   * @return <code>true</code> if it is an Unix domain 
+   * socket address, <code>false</code> otherwise.
+   */
+  public boolean isUnixDomain() {
+    return unix != null;
+  }
+  
+  
+  /**
+   * Return the Unix domain socket file path.
+   * @return The socket file path or <code>null</code>
+   * if it is not an Unix domain socket address.
+   */
+  public String getUnixPath() {
+    return unix;
+  }
+  
+  
+  /**
+   * Verifies if Unix domain sockets are supported 
+   * by the JVM and platform (Java 16+).
+   * @return <code>true</code> if supported,
+   * <code>false</code> otherwise.
+   */
+  public static boolean isUnixDomainSupported() {
+    return UnixSocket.isSupported();
   }
 
 
@@ -321,12 +476,88 @@ public class HttpConnector {
    * @throws IOException In case of creation error.
    */
   public ServerSocket connectServerSocket() throws IOException {
-    ServerSocket sc = new ServerSocket();
-    sc.bind(this.createSocketAddress());
+    if(unix != null)
+      return UnixServerSocket.bind(unix, sockopts.getBacklog());
+    ServerSocket sc = sockopts.apply(new ServerSocket());
+    sc.bind(this.createSocketAddress(), sockopts.getBacklog());
+    return sc;
+  }
+  
+  
+  /**
+   * Create a bounded <code>ServerSocketChannel</code> 
+   * with this HttpConnector informations. The returned
+   * channel is in blocking mode, as returned by 
+   * <code>ServerSocketChannel.open()</code>.
+   * @return <code>ServerSocketChannel</code>.
+   * @throws IOException In case of creation error.
+   */
+  public ServerSocketChannel connectServerChannel() throws IOException {
+    return connectServerChannel(false);
+  }
+  
+  
+  /**
+   * Create a bounded <code>ServerSocketChannel</code> 
+   * with this HttpConnector informations, optionally with
+   * the <code>SO_REUSEPORT</code> option, so many channels
+   * may listen on the same port and the kernel spreads the
+   * incoming connections across them.
+   * @param reuseport <code>true</code> for enabling 
+   * <code>SO_REUSEPORT</code>, if supported.
+   * @return <code>ServerSocketChannel</code>.
+   * @throws IOException In case of creation error.
+   * @see #isReusePortSupported()
+   */
+  public ServerSocketChannel connectServerChannel(boolean reuseport) throws IOException {
+    if(unix != null)
+      return UnixServerSocket.bindChannel(unix, sockopts.getBacklog());
+    ServerSocketChannel sc = sockopts.apply(ServerSocketChannel.open());
+    SocketOption<Boolean> opt = reusePortOption();
+    if(reuseport && opt != null 
+        && sc.supportedOptions().contains(opt)) {
+      sc.setOption(opt, true);
+    }
+    sc.bind(this.createSocketAddress(), sockopts.getBacklog());
     return sc;
   }
   
   
+  /**
+   * Verifies if the <code>SO_REUSEPORT</code> socket
+   * option is supported by the JVM and platform (Java 9+).
+   * @return <code>true</code> if supported,
+   * <code>false</code> otherwise.
+   */
+  public static boolean isReusePortSupported() {
+    SocketOption<Boolean> opt = reusePortOption();
+    if(opt == null) return false;
+    try(ServerSocketChannel sc = ServerSocketChannel.open()) {
+      return sc.supportedOptions().contains(opt);
+    } catch(IOException e) {
+      return false;
+    }
+  }
+  
+  
+  /**
+   * Get the <code>StandardSocketOptions.SO_REUSEPORT</code>
+   * option by reflection, for compatibility with Java 8.
+   * @return The <code>SO_REUSEPORT</code> option,
+   * or <code>null</code> if not available.
+   */
+  // SO_REUSEPORT is declared as SocketOption<Boolean>
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> reusePortOption() {
+    try {
+      return (SocketOption<Boolean>) StandardSocketOptions.class
+          .getField("SO_REUSEPORT").get(null);
+    } catch(ReflectiveOperationException e) {
+      return null;
+    }
+  }
+  
+  
   /**
    * Create a bounded network <code>Socket</code> 
    * with this HttpConnector informations.
@@ -334,18 +565,56 @@ public class HttpConnector {
    * @throws IOException In case of creation error.
    */
   public Socket connectSocket() throws IOException {
-    Socket sc = new Socket();
+    if(unix != null)
+      return sockopts.apply(UnixSocket.connect(unix));
+    Socket sc = sockopts.apply(new Socket());
     String addr = (address == null ? "127.0.0.1" : address);
     int prt = port;
     if(proxyAddr != null && proxyPort > 0) {
       addr = proxyAddr;
       prt = proxyPort;
     }
-    sc.connect(new InetSocketAddress(addr, prt));
+    sc.connect(new InetSocketAddress(addr, prt), 
+        sockopts.getConnectTimeout());
+    if(tls != null) 
+      return tls.apply(sc, addr, prt);
     return sc;
   }
   
   
+  /**
+   * Apply the socket options and the TLS options 
+   * (if enabled) on an accepted server <code>Socket</code>.
+   * @param sock The accepted <code>Socket</code>.
+   * @return The <code>Socket</code> to be used by the server,
+   * a server <code>SSLSocket</code> if TLS is enabled.
+   * @throws IOException In case of error setting the options.
+   */
+  public Socket acceptSocket(Socket sock) throws IOException {
+    sockopts.apply(sock);
+    if(tls != null && sock != null)
+      return tls.apply(sock);
+    return sock;
+  }
+  
+  
+  /**
+   * Apply the socket options and the TLS options 
+   * (if enabled) on an accepted <code>SocketChannel</code>,
+   * returning it as a <code>Socket</code>. Unix domain 
+   * channels are adapted, since they do not support
+   * <code>SocketChannel.socket()</code>.
+   * @param sc The accepted <code>SocketChannel</code>.
+   * @return The <code>Socket</code> to be used by the server.
+   * @throws IOException In case of error setting the options.
+   */
+  public Socket acceptChannel(SocketChannel sc) throws IOException {
+    if(unix != null)
+      return acceptSocket(new UnixSocket(sc, unix));
+    return acceptSocket(sc.socket());
+  }
+  
+  
   /**
    * Create a bounded <code>HttpClientConnection</code> 
    * with this HttpConnector informations.
@@ -364,6 +633,8 @@ public class HttpConnector {
   
   @Override
   public String toString() {
+    if(unix != null)
+      return "HttpConnector{ "+ UNIX_PREFIX+ unix+ " }";
     return "HttpConnector{ " + 
         (address == null ? "*" : address) 
         + ":" + port + " }";
@@ -24,7 +24,16 @@ package us.pserver.revok;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import us.pserver.revok.channel.Channel;
+import us.pserver.revok.channel.Http2RequestChannel;
+import us.pserver.revok.channel.HttpRequestChannel;
+import us.pserver.revok.channel.MultiplexChannel;
+import us.pserver.revok.channel.PipelineChannel;
+import us.pserver.revok.channel.TcpRequestChannel;
 import us.pserver.revok.protocol.Transport;
 import us.pserver.revok.container.Credentials;
 import us.pserver.revok.factory.ChannelFactory;
@@ -42,6 +51,16 @@ import us.pserver.revok.protocol.FakeInputStreamRef;
  */
 public class RemoteObject {
   
+  /**
+   * <code>
+   *  PIPELINE_DEPTH = 16
+   * </code><br>
+   * Default maximum number of requests sent
+   * ahead of the responses by <code>invokeAll</code>.
+   */
+  public static final int PIPELINE_DEPTH = 16;
+  
+  
   private HttpConnector net;
   
   private ChannelFactory<HttpConnector> factory;
@@ -52,6 +71,12 @@ public class RemoteObject {
   
   private ObjectSerializer serial;
   
+  private Boolean compress;
+  
+  private int depth;
+  
+  private boolean multiplex;
+  
   
   /**
    * Default constructor without arguments,
@@ -66,6 +91,9 @@ public class RemoteObject {
     channel = null;
     cred = null;
     serial = new JsonSerializer();
+    compress = null;
+    depth = PIPELINE_DEPTH;
+    multiplex = false;
   }
   
   
@@ -184,6 +212,94 @@ public class RemoteObject {
   }
   
   
+  /**
+   * Enable or disable the compression of the next calls, 
+   * overriding the channel factory configuration. The server 
+   * answers compressed only if the request accepts it, so 
+   * calls on loopback or fast links may disable compression 
+   * without reconfiguring the server.
+   * @param enabled <code>true</code> for enable compression, 
+   * <code>false</code> to disable it, or <code>null</code> to
+   * use the channel factory configuration.
+   * @return This modified <code>RemoteObject</code> instance.
+   */
+  public RemoteObject setCompressionEnabled(Boolean enabled) {
+    compress = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Get the compression of the calls, overriding 
+   * the channel factory configuration.
+   * @return <code>true</code> if compression is enabled, 
+   * <code>false</code> if disabled, or <code>null</code> if 
+   * the channel factory configuration is used.
+   */
+  public Boolean getCompressionEnabled() {
+    return compress;
+  }
+  
+  
+  /**
+   * Set the maximum number of requests sent ahead 
+   * of the responses by <code>invokeAll</code>.
+   * A very deep pipeline of large requests may fill
+   * the socket buffers of both sides.
+   * @param depth The pipeline depth (&gt; 0).
+   * @return This modified <code>RemoteObject</code> instance.
+   */
+  public RemoteObject setPipelineDepth(int depth) {
+    if(depth < 1)
+      throw new IllegalArgumentException(
+          "[RemoteObject.setPipelineDepth( int )] "
+              + "Invalid pipeline depth {"+ depth+ "}");
+    this.depth = depth;
+    return this;
+  }
+  
+  
+  /**
+   * Get the maximum number of requests sent ahead 
+   * of the responses by <code>invokeAll</code>.
+   * @return The pipeline depth.
+   */
+  public int getPipelineDepth() {
+    return depth;
+  }
+  
+  
+  /**
+   * Enable the multiplexed channel mode (see <code>MultiplexChannel</code>).
+   * Many threads may invoke methods concurrently over a single 
+   * connection, and the server answers as the invocations 
+   * finish, without head of line blocking. Only for HTTP 
+   * and TCP request channels. The current connection is closed if
+   * the mode changes.
+   * @param enabled <code>true</code> for enable the multiplexed 
+   * mode, <code>false</code> to disable it.
+   * @return This modified <code>RemoteObject</code> instance.
+   */
+  public synchronized RemoteObject setMultiplexEnabled(boolean enabled) {
+    if(enabled != multiplex && channel != null) {
+      channel.close();
+      channel = null;
+    }
+    multiplex = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the multiplexed channel mode is enabled.
+   * @return <code>true</code> if the multiplexed mode is
+   * enabled, <code>false</code> otherwise.
+   */
+  public boolean isMultiplexEnabled() {
+    return multiplex;
+  }
+  
+  
   /**
    * Get the current network channel in use.
    * @return <code>Channel</code>
@@ -197,16 +313,36 @@ public class RemoteObject {
    * Create a network channel.
    * @return <code>Channel</code>.
    */
-  private Channel channel() {
+  private synchronized Channel channel() {
     if(channel != null && channel.isValid())
-      return channel;
+      return compression(channel);
     
     if(net == null) throw new IllegalStateException(
         "Cannot create Channel. Invalid NetConnector ["+ net+ "]");
     if(factory == null) throw new IllegalStateException(
         "Invalid ChannelFactory ["+ factory+ "]");
     channel = factory.createChannel(net, serial);
-    return channel;
+    if(multiplex && channel instanceof PipelineChannel)
+      channel = new MultiplexChannel((PipelineChannel) channel);
+    return compression(channel);
+  }
+  
+  
+  /**
+   * Apply the compression of the calls to the channel, if set.
+   * @param ch The network channel.
+   * @return The network channel.
+   */
+  private Channel compression(Channel ch) {
+    Channel hc = (ch instanceof MultiplexChannel 
+        ? ((MultiplexChannel) ch).getChannel() : ch);
+    if(compress != null && hc instanceof HttpRequestChannel)
+      ((HttpRequestChannel) hc).setGZipCompressionEnabled(compress);
+    else if(compress != null && hc instanceof TcpRequestChannel)
+      ((TcpRequestChannel) hc).setGZipCompressionEnabled(compress);
+    else if(compress != null && hc instanceof Http2RequestChannel)
+      ((Http2RequestChannel) hc).setGZipCompressionEnabled(compress);
+    return ch;
   }
   
   
@@ -214,7 +350,7 @@ public class RemoteObject {
    * Create a new Channel instance.
    * @return The created Channel.
    */
-  private Channel newChannel() {
+  private synchronized Channel newChannel() {
     channel.close();
     channel = null;
     return channel();
@@ -225,7 +361,7 @@ public class RemoteObject {
    * Close any current open connections.
    * @return This instance of RemoteObject
    */
-  public RemoteObject close() {
+  public synchronized RemoteObject close() {
     if(channel != null)
       channel.close();
     return this;
@@ -289,28 +425,13 @@ public class RemoteObject {
    * @return Remote method return value or <code>null</code>.
    */
   public OpResult invokeSafe(RemoteMethod rmt) {
-    OpResult res = new OpResult();
+    OpResult res;
     try {
-      if(cred != null) rmt.setCredentials(cred);
-      Transport trp = new Transport();
-      this.checkInputStreamRef(trp, rmt);
-      trp.setObject(rmt);
-      trp = this.sendTransport(trp).read();
-      if(trp == null || trp.getObject() == null) {
-        res.setSuccessOperation(false);
-        res.setError(new IllegalStateException(
-            "Cannot read object from channel"));
-      }
-      else {
-        res = trp.castObject();
-        if(trp.hasContentEmbedded())
-          res.setReturn(trp.getInputStream());
-      }
+      res = result(this.sendTransport(request(rmt)).read());
     } 
     catch(IOException ex) {
       ex.printStackTrace();
-      res.setError(ex);
-      res.setSuccessOperation(false);
+      res = failure(ex);
     }
     
     if(channel != null && !channel.isValid())
@@ -320,6 +441,182 @@ public class RemoteObject {
   }
   
   
+  /**
+   * Invoke the remote methods pipelined on the same connection.
+   * The requests are sent back to back, up to the pipeline depth
+   * (see <code>setPipelineDepth(int)</code>), without waiting for 
+   * each response, saving a round trip per call on high latency 
+   * links. If the channel does not support pipelining, the 
+   * methods are invoked one at a time.
+   * @param rmts Remote methods information <code>RemoteMethod</code>.
+   * @return The operation results, in the same order of the methods.
+   */
+  public List<OpResult> invokeAll(RemoteMethod ... rmts) {
+    if(rmts == null) throw new 
+        IllegalArgumentException(
+        "Invalid Null RemoteMethod");
+    return invokeAll(Arrays.asList(rmts));
+  }
+  
+  
+  /**
+   * Invoke the remote methods pipelined on the same connection.
+   * The requests are sent back to back, up to the pipeline depth
+   * (see <code>setPipelineDepth(int)</code>), without waiting for 
+   * each response, saving a round trip per call on high latency 
+   * links. If the channel does not support pipelining, the 
+   * methods are invoked one at a time.
+   * @param rmts Remote methods information <code>RemoteMethod</code>.
+   * @return The operation results, in the same order of the methods.
+   */
+  public List<OpResult> invokeAll(List<RemoteMethod> rmts) {
+    if(rmts == null || rmts.contains(null)) throw new 
+        IllegalArgumentException(
+        "Invalid Null RemoteMethod");
+    List<OpResult> res = new ArrayList<>(rmts.size());
+    if(rmts.isEmpty()) return res;
+    
+    Channel ch;
+    try {
+      ch = this.channel();
+    } catch(RuntimeException e) {
+      IOException err = new IOException(e.toString(), e);
+      while(res.size() < rmts.size()) res.add(failure(err));
+      return res;
+    }
+    if(ch instanceof MultiplexChannel) {
+      multiplex((MultiplexChannel) ch, rmts, res);
+      return res;
+    }
+    if(!(ch instanceof PipelineChannel)) {
+      for(RemoteMethod rmt : rmts)
+        res.add(invokeSafe(rmt));
+      return res;
+    }
+    
+    PipelineChannel pch = (PipelineChannel) ch;
+    try {
+      Transport first = request(rmts.get(0));
+      try {
+        pch.send(first);
+      } catch(IOException e) {
+        // a stale connection fails on the first write, before 
+        // any request was sent, so try once again on a new 
+        // connection. Later failures are reported, since the
+        // requests sent may have been invoked by the server.
+        try {
+          pch = (PipelineChannel) newChannel();
+        } catch(RuntimeException ex) {
+          throw new IOException(ex.toString(), ex);
+        }
+        pch.send(first);
+      }
+      pipeline(pch, rmts, 1, res);
+    }
+    catch(IOException e) {
+      while(res.size() < rmts.size()) res.add(failure(e));
+      channel.close();
+    }
+    
+    if(channel != null && !channel.isValid())
+        channel.close();
+    
+    return res;
+  }
+  
+  
+  /**
+   * Send the requests pipelined on the channel, 
+   * adding the responses to the results list.
+   * @param ch The network channel.
+   * @param rmts Remote methods to invoke.
+   * @param sent The number of requests already sent.
+   * @param res The results list.
+   * @throws IOException In case of error on the connection.
+   */
+  private void pipeline(PipelineChannel ch, List<RemoteMethod> rmts, int sent, List<OpResult> res) throws IOException {
+    while(res.size() < rmts.size()) {
+      while(sent < rmts.size() && sent - res.size() < depth) {
+        ch.send(request(rmts.get(sent++)));
+      }
+      res.add(result(ch.receive()));
+    }
+  }
+  
+  
+  /**
+   * Send the requests on the multiplexed channel, up to the 
+   * pipeline depth, adding the responses to the results list.
+   * @param ch The multiplexed network channel.
+   * @param rmts Remote methods to invoke.
+   * @param res The results list.
+   */
+  private void multiplex(MultiplexChannel ch, List<RemoteMethod> rmts, List<OpResult> res) {
+    List<CompletableFuture<Transport>> calls = new ArrayList<>(rmts.size());
+    while(res.size() < rmts.size()) {
+      while(calls.size() < rmts.size() && calls.size() - res.size() < depth) {
+        CompletableFuture<Transport> call;
+        try {
+          call = ch.submit(request(rmts.get(calls.size())));
+        } catch(IOException e) {
+          call = new CompletableFuture<>();
+          call.completeExceptionally(e);
+        }
+        calls.add(call);
+      }
+      try {
+        res.add(result(MultiplexChannel.await(calls.get(res.size()))));
+      } catch(IOException e) {
+        res.add(failure(e));
+      }
+    }
+  }
+  
+  
+  /**
+   * Create the request <code>Transport</code> of the remote method.
+   * @param rmt Remote method information <code>RemoteMethod</code>.
+   * @return The request <code>Transport</code>.
+   */
+  private Transport request(RemoteMethod rmt) {
+    if(cred != null) rmt.setCredentials(cred);
+    Transport trp = new Transport();
+    this.checkInputStreamRef(trp, rmt);
+    trp.setObject(rmt);
+    return trp;
+  }
+  
+  
+  /**
+   * Get the operation result of the response <code>Transport</code>.
+   * @param trp The response <code>Transport</code>.
+   * @return The operation result.
+   */
+  private OpResult result(Transport trp) {
+    if(trp == null || trp.getObject() == null) {
+      return failure(new IllegalStateException(
+          "Cannot read object from channel"));
+    }
+    OpResult res = trp.castObject();
+    if(trp.hasContentEmbedded())
+      res.setReturn(trp.getInputStream());
+    return res;
+  }
+  
+  
+  /**
+   * Create a failed operation result.
+   * @param e The error occurred.
+   * @return The operation result.
+   */
+  private OpResult failure(Exception e) {
+    OpResult res = new OpResult();
+    res.setError(e);
+    res.setSuccessOperation(false);
+    return res;
+  }
+  
+  
   /**
    * Invoke the remote method chain.
    * @param chain Remote method chain information <code>MethodChain</code>.
@@ -436,18 +733,20 @@ public class RemoteObject {
         IllegalStateException(
         "Invalid Null NetConnector");
     
+    Channel ch;
     try {
-      this.channel();
+      ch = this.channel();
     } catch(RuntimeException e) {
       throw new IOException(e.toString(), e);
     }
     
     try {
-      channel.write(trp);
+      ch.write(trp);
     } catch(IOException e) {
-      newChannel().write(trp);
+      ch = newChannel();
+      ch.write(trp);
     }
-    return channel;
+    return ch;
   }
   
 }
@@ -0,0 +1,363 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+
+/**
+ * Profile of TCP socket options, applied by <code>HttpConnector</code>
+ * on client sockets, listening sockets and accepted server sockets.
+ * Options not set (<code>null</code> or <code>0</code>) keep the
+ * platform defaults. There are two presets: <code>lowLatency()</code>
+ * for small request/response RPCs and <code>bulkTransfer()</code>
+ * for large stream transfers.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class SocketOptions {
+  
+  private int backlog;
+  
+  private Boolean tcpNoDelay;
+  
+  private Boolean keepAlive;
+  
+  private Boolean reuseAddress;
+  
+  private int receiveBufferSize;
+  
+  private int sendBufferSize;
+  
+  private int connectTimeout;
+  
+  private int soTimeout;
+  
+  
+  /**
+   * Default constructor without arguments, 
+   * keeping all the platform defaults.
+   */
+  public SocketOptions() {
+    backlog = 0;
+    tcpNoDelay = null;
+    keepAlive = null;
+    reuseAddress = null;
+    receiveBufferSize = 0;
+    sendBufferSize = 0;
+    connectTimeout = 0;
+    soTimeout = 0;
+  }
+  
+  
+  /**
+   * Create a profile for small request/response RPCs. Nagle's 
+   * algorithm is disabled (<code>TCP_NODELAY</code>), so a small
+   * segment is not delayed waiting for the ACK of the previous one
+   * (which the peer may delay, waiting for the response), as in the 
+   * HTTP header-then-entity writes. Dead peers are detected with 
+   * <code>SO_KEEPALIVE</code> and connecting fails fast.
+   * @return A new low latency <code>SocketOptions</code>.
+   */
+  public static SocketOptions lowLatency() {
+    return new SocketOptions()
+        .setTcpNoDelay(true)
+        .setKeepAlive(true)
+        .setReuseAddress(true)
+        .setBacklog(1024)
+        .setConnectTimeout(3000);
+  }
+  
+  
+  /**
+   * Create a profile for large stream transfers. Nagle's 
+   * algorithm stays enabled, coalescing small writes in full
+   * segments, and large socket buffers allow a large TCP window 
+   * on high bandwidth-delay networks.
+   * @return A new bulk transfer <code>SocketOptions</code>.
+   */
+  public static SocketOptions bulkTransfer() {
+    return new SocketOptions()
+        .setTcpNoDelay(false)
+        .setKeepAlive(true)
+        .setReuseAddress(true)
+        .setReceiveBufferSize(1024*1024)
+        .setSendBufferSize(1024*1024)
+        .setConnectTimeout(10000);
+  }
+  
+  
+  /**
+   * Get the listening socket backlog.
+   * @return The backlog, or <code>0</code> for the default.
+   */
+  public int getBacklog() {
+    return backlog;
+  }
+  
+  
+  /**
+   * Set the listening socket backlog, the maximum 
+   * queue length of incoming connections.
+   * @param backlog The backlog, or <code>0</code> for the default.
+   * @return This modified <code>SocketOptions</code> instance.
+   */
+  public SocketOptions setBacklog(int backlog) {
+    if(backlog < 0)
+      throw new IllegalArgumentException(
+          "[SocketOptions.setBacklog( int )] "
+              + "Invalid backlog {"+ backlog+ "}");
+    this.backlog = backlog;
+    return this;
+  }
+  
+  
+  /**
+   * Get the <code>TCP_NODELAY</code> option.
+   * @return The option value, or <code>null</code> for the default.
+   */
+  public Boolean getTcpNoDelay() {
+    return tcpNoDelay;
+  }
+  
+  
+  /**
+   * Set the <code>TCP_NODELAY</code> option 
+   * (<code>true</code> disables Nagle's algorithm).
+   * @param bool The option value, or <code>null</code> for the default.
+   * @return This modified <code>SocketOptions</code> instance.
+   */
+  public SocketOptions setTcpNoDelay(Boolean bool) {
+    this.tcpNoDelay = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Get the <code>SO_KEEPALIVE</code> option.
+   * @return The option value, or <code>null</code> for the default.
+   */
+  public Boolean getKeepAlive() {
+    return keepAlive;
+  }
+  
+  
+  /**
+   * Set the <code>SO_KEEPALIVE</code> option.
+   * @param bool The option value, or <code>null</code> for the default.
+   * @return This modified <code>SocketOptions</code> instance.
+   */
+  public SocketOptions setKeepAlive(Boolean bool) {
+    this.keepAlive = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Get the <code>SO_REUSEADDR</code> option of listening sockets.
+   * @return The option value, or <code>null</code> for the default.
+   */
+  public Boolean getReuseAddress() {
+    return reuseAddress;
+  }
+  
+  
+  /**
+   * Set the <code>SO_REUSEADDR</code> option of listening sockets.
+   * @param bool The option value, or <code>null</code> for the default.
+   * @return This modified <code>SocketOptions</code> instance.
+   */
+  public SocketOptions setReuseAddress(Boolean bool) {
+    this.reuseAddress = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Get the <code>SO_RCVBUF</code> option.
+   * @return The buffer size, or <code>0</code> for the default.
+   */
+  public int getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+  
+  
+  /**
+   * Set the <code>SO_RCVBUF</code> option. On listening 
+   * sockets it is set before binding, so it is inherited
+   * by the accepted sockets with a TCP window scale.
+   * @param size The buffer size, or <code>0</code> for the default.
+   * @return This modified <code>SocketOptions</code> instance.
+   */
+  public SocketOptions setReceiveBufferSize(int size) {
+    if(size < 0)
+      throw new IllegalArgumentException(
+          "[SocketOptions.setReceiveBufferSize( int )] "
+              + "Invalid size {"+ size+ "}");
+    this.receiveBufferSize = size;
+    return this;
+  }
+  
+  
+  /**
+   * Get the <code>SO_SNDBUF</code> option.
+   * @return The buffer size, or <code>0</code> for the default.
+   */
+  public int getSendBufferSize() {
+    return sendBufferSize;
+  }
+  
+  
+  /**
+   * Set the <code>SO_SNDBUF</code> option.
+   * @param size The buffer size, or <code>0</code> for the default.
+   * @return This modified <code>SocketOptions</code> instance.
+   */
+  public SocketOptions setSendBufferSize(int size) {
+    if(size < 0)
+      throw new IllegalArgumentException(
+          "[SocketOptions.setSendBufferSize( int )] "
+              + "Invalid size {"+ size+ "}");
+    this.sendBufferSize = size;
+    return this;
+  }
+  
+  
+  /**
+   * Get the client connect timeout.
+   * @return The timeout in milliseconds, or <code>0</code> for infinite.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+  
+  
+  /**
+   * Set the client connect timeout.
+   * @param millis The timeout in milliseconds, or <code>0</code> for infinite.
+   * @return This modified <code>SocketOptions</code> instance.
+   */
+  public SocketOptions setConnectTimeout(int millis) {
+    if(millis < 0)
+      throw new IllegalArgumentException(
+          "[SocketOptions.setConnectTimeout( int )] "
+              + "Invalid millis {"+ millis+ "}");
+    this.connectTimeout = millis;
+    return this;
+  }
+  
+  
+  /**
+   * Get the <code>SO_TIMEOUT</code> option (read timeout).
+   * @return The timeout in milliseconds, or <code>0</code> for infinite.
+   */
+  public int getSoTimeout() {
+    return soTimeout;
+  }
+  
+  
+  /**
+   * Set the <code>SO_TIMEOUT</code> option (read timeout). 
+   * On accepted server sockets, it closes connections idle
+   * for longer than the timeout.
+   * @param millis The timeout in milliseconds, or <code>0</code> for infinite.
+   * @return This modified <code>SocketOptions</code> instance.
+   */
+  public SocketOptions setSoTimeout(int millis) {
+    if(millis < 0)
+      throw new IllegalArgumentException(
+          "[SocketOptions.setSoTimeout( int )] "
+              + "Invalid millis {"+ millis+ "}");
+    this.soTimeout = millis;
+    return this;
+  }
+  
+  
+  /**
+   * Apply the options on a connected or accepted <code>Socket</code>.
+   * The socket buffer sizes should be applied before connecting,
+   * for affecting the TCP window scale.
+   * @param sock The <code>Socket</code>.
+   * @return The same <code>Socket</code>.
+   * @throws IOException In case of error setting the options.
+   */
+  public Socket apply(Socket sock) throws IOException {
+    if(sock == null) return sock;
+    if(tcpNoDelay != null) sock.setTcpNoDelay(tcpNoDelay);
+    if(keepAlive != null) sock.setKeepAlive(keepAlive);
+    if(receiveBufferSize > 0) sock.setReceiveBufferSize(receiveBufferSize);
+    if(sendBufferSize > 0) sock.setSendBufferSize(sendBufferSize);
+    if(soTimeout > 0) sock.setSoTimeout(soTimeout);
+    return sock;
+  }
+  
+  
+  /**
+   * Apply the options on a listening <code>ServerSocket</code>,
+   * before binding it.
+   * @param sock The <code>ServerSocket</code>.
+   * @return The same <code>ServerSocket</code>.
+   * @throws IOException In case of error setting the options.
+   */
+  public ServerSocket apply(ServerSocket sock) throws IOException {
+    if(sock == null) return sock;
+    if(reuseAddress != null) sock.setReuseAddress(reuseAddress);
+    if(receiveBufferSize > 0) sock.setReceiveBufferSize(receiveBufferSize);
+    return sock;
+  }
+  
+  
+  /**
+   * Apply the options on a listening <code>ServerSocketChannel</code>,
+   * before binding it.
+   * @param ssc The <code>ServerSocketChannel</code>.
+   * @return The same <code>ServerSocketChannel</code>.
+   * @throws IOException In case of error setting the options.
+   */
+  public ServerSocketChannel apply(ServerSocketChannel ssc) throws IOException {
+    if(ssc == null) return ssc;
+    if(reuseAddress != null) 
+      ssc.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+    if(receiveBufferSize > 0) 
+      ssc.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+    return ssc;
+  }
+  
+  
+  @Override
+  public String toString() {
+    return "SocketOptions{backlog="+ backlog
+        + ", tcpNoDelay="+ tcpNoDelay
+        + ", keepAlive="+ keepAlive
+        + ", reuseAddress="+ reuseAddress
+        + ", rcvbuf="+ receiveBufferSize
+        + ", sndbuf="+ sendBufferSize
+        + ", connectTimeout="+ connectTimeout
+        + ", soTimeout="+ soTimeout+ "}";
+  }
+  
+}
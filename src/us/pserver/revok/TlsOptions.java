@@ -0,0 +1,314 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Comparator;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+
+/**
+ * Profile of TLS options, applied by <code>HttpConnector</code>
+ * on client sockets and accepted server sockets. The HTTP framing 
+ * is unchanged, running over <code>SSLSocket</code>'s created on
+ * top of the plain TCP sockets. By default only AES-GCM cipher 
+ * suites are enabled (hardware accelerated by the JVM AES/GHASH 
+ * intrinsics), on TLSv1.3 and TLSv1.2. The sessions are cached 
+ * by the <code>SSLContext</code>, so new connections to the same 
+ * server resume the session with an abbreviated handshake, 
+ * as long as the same <code>TlsOptions</code> instance is used.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class TlsOptions {
+  
+  /**
+   * <code>
+   *  PROTOCOLS = { "TLSv1.3", "TLSv1.2" }
+   * </code><br>
+   * Enabled TLS protocols, if supported by the JVM.
+   */
+  public static final String[] PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+  
+  /**
+   * <code>
+   *  SESSION_TIMEOUT = 24*60*60
+   * </code><br>
+   * Default timeout in seconds of cached TLS sessions.
+   */
+  public static final int SESSION_TIMEOUT = 24*60*60;
+  
+  /**
+   * <code>
+   *  SESSION_CACHE_SIZE = 1024
+   * </code><br>
+   * Default maximum number of cached TLS sessions.
+   */
+  public static final int SESSION_CACHE_SIZE = 1024;
+  
+  
+  private final SSLContext context;
+  
+  private String[] protocols;
+  
+  private String[] suites;
+  
+  
+  /**
+   * Constructor which receives the <code>SSLContext</code>
+   * with the key and trust managers.
+   * @param ctx The <code>SSLContext</code>.
+   */
+  public TlsOptions(SSLContext ctx) {
+    if(ctx == null)
+      throw new IllegalArgumentException(
+          "[TlsOptions( SSLContext )] "
+              + "Invalid SSLContext {"+ ctx+ "}");
+    context = ctx;
+    SSLParameters sup = ctx.getSupportedSSLParameters();
+    protocols = Arrays.stream(PROTOCOLS)
+        .filter(p->Arrays.asList(sup.getProtocols()).contains(p))
+        .toArray(String[]::new);
+    suites = gcmSuites(ctx.getDefaultSSLParameters().getCipherSuites());
+    ctx.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+    ctx.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+    ctx.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+    ctx.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+  }
+  
+  
+  /**
+   * Create a <code>TlsOptions</code> with a <code>SSLContext</code>
+   * using the same key store for keys and trusted certificates
+   * (i.e: a self-signed certificate shared by client and server).
+   * @param file The key store file (PKCS12 or JKS).
+   * @param pass The key store password.
+   * @return The <code>TlsOptions</code> created.
+   * @throws IOException In case of error loading the key store.
+   */
+  public static TlsOptions fromKeyStore(String file, char[] pass) throws IOException {
+    if(file == null)
+      throw new IllegalArgumentException(
+          "[TlsOptions.fromKeyStore( String, char[] )] "
+              + "Invalid file {"+ file+ "}");
+    try(InputStream in = new FileInputStream(file)) {
+      return fromKeyStore(in, pass);
+    }
+  }
+  
+  
+  /**
+   * Create a <code>TlsOptions</code> with a <code>SSLContext</code>
+   * using the same key store for keys and trusted certificates
+   * (i.e: a self-signed certificate shared by client and server).
+   * @param in The key store <code>InputStream</code> (PKCS12 or JKS).
+   * @param pass The key store password.
+   * @return The <code>TlsOptions</code> created.
+   * @throws IOException In case of error loading the key store.
+   */
+  public static TlsOptions fromKeyStore(InputStream in, char[] pass) throws IOException {
+    if(in == null)
+      throw new IllegalArgumentException(
+          "[TlsOptions.fromKeyStore( InputStream, char[] )] "
+              + "Invalid InputStream {"+ in+ "}");
+    try {
+      KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+      ks.load(in, pass);
+      KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+          KeyManagerFactory.getDefaultAlgorithm());
+      kmf.init(ks, pass);
+      TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+          TrustManagerFactory.getDefaultAlgorithm());
+      tmf.init(ks);
+      SSLContext ctx = SSLContext.getInstance("TLS");
+      ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+      return new TlsOptions(ctx);
+    } catch(GeneralSecurityException e) {
+      throw new IOException("Error loading key store: "+ e.getMessage(), e);
+    }
+  }
+  
+  
+  /**
+   * Select the AES-GCM suites from the cipher suites informed,
+   * preferring the AES-128 ones (fewer rounds than AES-256), 
+   * then keeping the informed order of preference.
+   * @param available The available cipher suites.
+   * @return The AES-GCM cipher suites.
+   */
+  public static String[] gcmSuites(String[] available) {
+    return Arrays.stream(available)
+        .filter(s->s.contains("_AES_") && s.contains("_GCM_"))
+        .sorted(Comparator.comparing(s->!s.contains("_AES_128_")))
+        .toArray(String[]::new);
+  }
+  
+  
+  /**
+   * Get the <code>SSLContext</code>.
+   * @return The <code>SSLContext</code>.
+   */
+  public SSLContext getContext() {
+    return context;
+  }
+  
+  
+  /**
+   * Get the enabled TLS protocols.
+   * @return The enabled TLS protocols.
+   */
+  public String[] getProtocols() {
+    return protocols;
+  }
+  
+  
+  /**
+   * Set the enabled TLS protocols.
+   * @param protocols The enabled TLS protocols.
+   * @return This modified <code>TlsOptions</code> instance.
+   */
+  public TlsOptions setProtocols(String ... protocols) {
+    if(protocols == null || protocols.length == 0)
+      throw new IllegalArgumentException(
+          "[TlsOptions.setProtocols( String[] )] "
+              + "Invalid protocols {"+ Arrays.toString(protocols)+ "}");
+    this.protocols = protocols;
+    return this;
+  }
+  
+  
+  /**
+   * Get the enabled cipher suites.
+   * @return The enabled cipher suites.
+   */
+  public String[] getCipherSuites() {
+    return suites;
+  }
+  
+  
+  /**
+   * Set the enabled cipher suites.
+   * @param suites The enabled cipher suites.
+   * @return This modified <code>TlsOptions</code> instance.
+   */
+  public TlsOptions setCipherSuites(String ... suites) {
+    if(suites == null || suites.length == 0)
+      throw new IllegalArgumentException(
+          "[TlsOptions.setCipherSuites( String[] )] "
+              + "Invalid cipher suites {"+ Arrays.toString(suites)+ "}");
+    this.suites = suites;
+    return this;
+  }
+  
+  
+  /**
+   * Set the timeout of cached sessions, on client and server side.
+   * @param seconds The session timeout in seconds 
+   * (<code>0</code> for no timeout).
+   * @return This modified <code>TlsOptions</code> instance.
+   */
+  public TlsOptions setSessionTimeout(int seconds) {
+    if(seconds < 0)
+      throw new IllegalArgumentException(
+          "[TlsOptions.setSessionTimeout( int )] "
+              + "Invalid timeout {"+ seconds+ "}");
+    context.getClientSessionContext().setSessionTimeout(seconds);
+    context.getServerSessionContext().setSessionTimeout(seconds);
+    return this;
+  }
+  
+  
+  /**
+   * Set the maximum number of cached sessions, on client and server side.
+   * @param size The session cache size (<code>0</code> for no limit).
+   * @return This modified <code>TlsOptions</code> instance.
+   */
+  public TlsOptions setSessionCacheSize(int size) {
+    if(size < 0)
+      throw new IllegalArgumentException(
+          "[TlsOptions.setSessionCacheSize( int )] "
+              + "Invalid size {"+ size+ "}");
+    context.getClientSessionContext().setSessionCacheSize(size);
+    context.getServerSessionContext().setSessionCacheSize(size);
+    return this;
+  }
+  
+  
+  /**
+   * Create a client <code>SSLSocket</code> on top of the connected
+   * socket. The host and port identify the cached session to resume.
+   * The handshake is done on the first read or write.
+   * @param sock The connected <code>Socket</code>.
+   * @param host The server host name.
+   * @param port The server port.
+   * @return The client <code>SSLSocket</code>.
+   * @throws IOException In case of error creating the socket.
+   */
+  public SSLSocket apply(Socket sock, String host, int port) throws IOException {
+    SSLSocket ssl = (SSLSocket) context.getSocketFactory()
+        .createSocket(sock, host, port, true);
+    ssl.setUseClientMode(true);
+    return configure(ssl);
+  }
+  
+  
+  /**
+   * Create a server <code>SSLSocket</code> on top of the accepted
+   * socket. The handshake is done on the first read or write,
+   * so it does not block the accepting thread.
+   * @param sock The accepted <code>Socket</code>.
+   * @return The server <code>SSLSocket</code>.
+   * @throws IOException In case of error creating the socket.
+   */
+  public SSLSocket apply(Socket sock) throws IOException {
+    SSLSocket ssl = (SSLSocket) context.getSocketFactory()
+        .createSocket(sock, null, true);
+    ssl.setUseClientMode(false);
+    return configure(ssl);
+  }
+  
+  
+  private SSLSocket configure(SSLSocket ssl) {
+    ssl.setEnabledProtocols(protocols);
+    ssl.setEnabledCipherSuites(suites);
+    return ssl;
+  }
+  
+  
+  @Override
+  public String toString() {
+    return "TlsOptions{protocols="+ Arrays.toString(protocols)
+        + ", suites="+ Arrays.toString(suites)+ "}";
+  }
+  
+}
@@ -0,0 +1,216 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+
+/**
+ * A <code>ServerSocket</code> adapter for an Unix domain 
+ * <code>ServerSocketChannel</code> (Java 16+), since the channel 
+ * does not support <code>ServerSocketChannel.socket()</code>.
+ * The <code>SO_TIMEOUT</code> is honored on <code>accept()</code>,
+ * so the blocking acceptor may poll the server running state.
+ * The socket file is deleted on close.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+class UnixServerSocket extends ServerSocket {
+  
+  private final ServerSocketChannel channel;
+  
+  private final String path;
+  
+  private final Selector selector;
+  
+  private int timeout;
+  
+  
+  /**
+   * Constructor which receives the bounded channel
+   * and the socket file path.
+   * @param ssc The bounded Unix domain <code>ServerSocketChannel</code>.
+   * @param path The socket file path.
+   * @throws IOException In case of error registering the channel.
+   */
+  UnixServerSocket(ServerSocketChannel ssc, String path) throws IOException {
+    super();
+    if(ssc == null)
+      throw new IllegalArgumentException(
+          "[UnixServerSocket( ServerSocketChannel, String )] "
+              + "Invalid ServerSocketChannel {"+ ssc+ "}");
+    this.channel = ssc;
+    this.path = path;
+    this.timeout = 0;
+    this.selector = Selector.open();
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_ACCEPT);
+  }
+  
+  
+  /**
+   * Bind an Unix domain <code>ServerSocketChannel</code>
+   * on the socket file. A stale socket file, left by a 
+   * previous server, is deleted before binding.
+   * @param path The socket file path.
+   * @param backlog The listen backlog.
+   * @return The bounded <code>ServerSocketChannel</code>,
+   * in blocking mode.
+   * @throws IOException In case of error binding or if Unix 
+   * domain sockets are not supported (Java 16+).
+   */
+  static ServerSocketChannel bindChannel(String path, int backlog) throws IOException {
+    ServerSocketChannel ssc = (ServerSocketChannel) UnixSocket.invoke(
+        ServerSocketChannel.class, "open", 
+        ProtocolFamily.class, UnixSocket.unixFamily());
+    try {
+      Files.deleteIfExists(Paths.get(path));
+      ssc.bind(UnixSocket.address(path), backlog);
+      return ssc;
+    } catch(IOException e) {
+      ssc.close();
+      throw e;
+    }
+  }
+  
+  
+  /**
+   * Bind an <code>UnixServerSocket</code> on the socket file.
+   * @param path The socket file path.
+   * @param backlog The listen backlog.
+   * @return The bounded <code>UnixServerSocket</code>.
+   * @throws IOException In case of error binding or if Unix 
+   * domain sockets are not supported (Java 16+).
+   */
+  static UnixServerSocket bind(String path, int backlog) throws IOException {
+    return new UnixServerSocket(bindChannel(path, backlog), path);
+  }
+  
+  
+  /**
+   * Get the Unix domain socket file path.
+   * @return The socket file path.
+   */
+  public String getPath() {
+    return path;
+  }
+  
+  
+  @Override
+  public Socket accept() throws IOException {
+    if(isClosed()) throw new SocketException("Socket is closed");
+    SocketChannel sc = channel.accept();
+    while(sc == null) {
+      if(selector.select(timeout) == 0 && timeout > 0)
+        throw new SocketTimeoutException("Accept timed out");
+      selector.selectedKeys().clear();
+      if(isClosed()) throw new SocketException("Socket is closed");
+      sc = channel.accept();
+    }
+    sc.configureBlocking(true);
+    return new UnixSocket(sc, path);
+  }
+  
+  
+  @Override
+  public ServerSocketChannel getChannel() {
+    return channel;
+  }
+  
+  
+  @Override
+  public SocketAddress getLocalSocketAddress() {
+    try { return channel.getLocalAddress(); }
+    catch(IOException e) { return null; }
+  }
+  
+  
+  @Override
+  public int getLocalPort() {
+    return -1;
+  }
+  
+  
+  @Override
+  public boolean isBound() {
+    return true;
+  }
+  
+  
+  @Override
+  public boolean isClosed() {
+    return !channel.isOpen();
+  }
+  
+  
+  @Override
+  public void setSoTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+  
+  
+  @Override
+  public int getSoTimeout() {
+    return timeout;
+  }
+  
+  
+  @Override
+  public void setReuseAddress(boolean on) {}
+  
+  
+  @Override
+  public void setReceiveBufferSize(int size) {}
+  
+  
+  @Override
+  public void close() throws IOException {
+    if(isClosed()) return;
+    try {
+      selector.close();
+      channel.close();
+    } finally {
+      Files.deleteIfExists(Paths.get(path));
+      super.close();
+    }
+  }
+  
+  
+  @Override
+  public String toString() {
+    return "UnixServerSocket{ unix:"+ path+ " }";
+  }
+  
+}
@@ -0,0 +1,419 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A <code>Socket</code> adapter for an Unix domain 
+ * <code>SocketChannel</code> (Java 16+), since the channel 
+ * does not support <code>SocketChannel.socket()</code>. 
+ * The streams read and write directly on the channel,
+ * so the input and output can be used concurrently.
+ * TCP specific options are ignored and the 
+ * <code>SO_TIMEOUT</code> is not enforced on reads.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+class UnixSocket extends Socket {
+  
+  private final SocketChannel channel;
+  
+  private final String path;
+  
+  private final InputStream input;
+  
+  private final OutputStream output;
+  
+  private int timeout;
+  
+  private volatile boolean inShut;
+  
+  private volatile boolean outShut;
+  
+  
+  /**
+   * Constructor which receives the connected channel
+   * and the socket file path.
+   * @param sc The connected Unix domain <code>SocketChannel</code>.
+   * @param path The socket file path.
+   * @throws SocketException Never thrown, required by <code>Socket</code>.
+   */
+  UnixSocket(SocketChannel sc, String path) throws SocketException {
+    super((SocketImpl) null);
+    if(sc == null)
+      throw new IllegalArgumentException(
+          "[UnixSocket( SocketChannel, String )] "
+              + "Invalid SocketChannel {"+ sc+ "}");
+    this.channel = sc;
+    this.path = path;
+    this.timeout = 0;
+    this.input = new ChannelInput();
+    this.output = new ChannelOutput();
+  }
+  
+  
+  /**
+   * Connect to the Unix domain socket file.
+   * @param path The socket file path.
+   * @return The connected <code>UnixSocket</code>.
+   * @throws IOException In case of connection error or 
+   * if Unix domain sockets are not supported (Java 16+).
+   */
+  static UnixSocket connect(String path) throws IOException {
+    SocketChannel sc = (SocketChannel) invoke(SocketChannel.class, 
+        "open", ProtocolFamily.class, unixFamily());
+    try {
+      sc.connect(address(path));
+      return new UnixSocket(sc, path);
+    } catch(IOException e) {
+      sc.close();
+      throw e;
+    }
+  }
+  
+  
+  /**
+   * Verifies if Unix domain sockets are supported 
+   * by the JVM (Java 16+).
+   * @return <code>true</code> if supported,
+   * <code>false</code> otherwise.
+   */
+  static boolean isSupported() {
+    try {
+      unixFamily();
+      Class.forName("java.net.UnixDomainSocketAddress");
+      return true;
+    } catch(IOException | ClassNotFoundException e) {
+      return false;
+    }
+  }
+  
+  
+  /**
+   * Get the <code>StandardProtocolFamily.UNIX</code>
+   * by name, for compatibility with Java 8.
+   * @return The <code>UNIX</code> protocol family.
+   * @throws IOException If not supported by the JVM.
+   */
+  static ProtocolFamily unixFamily() throws IOException {
+    try {
+      return StandardProtocolFamily.valueOf("UNIX");
+    } catch(IllegalArgumentException e) {
+      throw new IOException("Unix domain sockets not supported (Java 16+)");
+    }
+  }
+  
+  
+  /**
+   * Create an <code>UnixDomainSocketAddress</code> by 
+   * reflection, for compatibility with Java 8.
+   * @param path The socket file path.
+   * @return The <code>UnixDomainSocketAddress</code>.
+   * @throws IOException If not supported by the JVM.
+   */
+  static SocketAddress address(String path) throws IOException {
+    try {
+      return (SocketAddress) invoke(Class.forName(
+          "java.net.UnixDomainSocketAddress"), 
+          "of", String.class, path);
+    } catch(ClassNotFoundException e) {
+      throw new IOException("Unix domain sockets not supported (Java 16+)");
+    }
+  }
+  
+  
+  /**
+   * Invoke a static method by reflection, unwrapping 
+   * the <code>IOException</code>'s thrown by it.
+   * @param cls The method class.
+   * @param name The method name.
+   * @param type The method argument type.
+   * @param arg The method argument.
+   * @return The method return.
+   * @throws IOException In case of error invoking the method.
+   */
+  static Object invoke(Class cls, String name, Class type, Object arg) throws IOException {
+    try {
+      return cls.getMethod(name, type).invoke(null, arg);
+    } catch(ReflectiveOperationException e) {
+      Throwable th = e.getCause();
+      if(th instanceof IOException)
+        throw (IOException) th;
+      throw new IOException("Unix domain sockets not supported (Java 16+)", 
+          th != null ? th : e);
+    }
+  }
+  
+  
+  /**
+   * Get the Unix domain socket file path.
+   * @return The socket file path.
+   */
+  public String getPath() {
+    return path;
+  }
+  
+  
+  @Override
+  public SocketChannel getChannel() {
+    return channel;
+  }
+  
+  
+  @Override
+  public InputStream getInputStream() throws IOException {
+    if(isClosed()) throw new SocketException("Socket is closed");
+    return input;
+  }
+  
+  
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    if(isClosed()) throw new SocketException("Socket is closed");
+    return output;
+  }
+  
+  
+  @Override
+  public SocketAddress getRemoteSocketAddress() {
+    try { return channel.getRemoteAddress(); }
+    catch(IOException e) { return null; }
+  }
+  
+  
+  @Override
+  public SocketAddress getLocalSocketAddress() {
+    try { return channel.getLocalAddress(); }
+    catch(IOException e) { return null; }
+  }
+  
+  
+  @Override
+  public int getPort() {
+    return 0;
+  }
+  
+  
+  @Override
+  public int getLocalPort() {
+    return -1;
+  }
+  
+  
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+  
+  
+  @Override
+  public boolean isBound() {
+    return true;
+  }
+  
+  
+  @Override
+  public boolean isClosed() {
+    return !channel.isOpen();
+  }
+  
+  
+  @Override
+  public boolean isInputShutdown() {
+    return inShut;
+  }
+  
+  
+  @Override
+  public boolean isOutputShutdown() {
+    return outShut;
+  }
+  
+  
+  @Override
+  public void shutdownInput() throws IOException {
+    channel.shutdownInput();
+    inShut = true;
+  }
+  
+  
+  @Override
+  public void shutdownOutput() throws IOException {
+    channel.shutdownOutput();
+    outShut = true;
+  }
+  
+  
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+  
+  
+  @Override
+  public void setTcpNoDelay(boolean on) {}
+  
+  
+  @Override
+  public boolean getTcpNoDelay() {
+    return false;
+  }
+  
+  
+  @Override
+  public void setKeepAlive(boolean on) {}
+  
+  
+  @Override
+  public boolean getKeepAlive() {
+    return false;
+  }
+  
+  
+  @Override
+  public void setSoLinger(boolean on, int linger) {}
+  
+  
+  @Override
+  public int getSoLinger() {
+    return -1;
+  }
+  
+  
+  @Override
+  public void setSoTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+  
+  
+  @Override
+  public int getSoTimeout() {
+    return timeout;
+  }
+  
+  
+  @Override
+  public void setReceiveBufferSize(int size) throws SocketException {
+    try { channel.setOption(StandardSocketOptions.SO_RCVBUF, size); }
+    catch(IOException e) { throw new SocketException(e.toString()); }
+  }
+  
+  
+  @Override
+  public int getReceiveBufferSize() throws SocketException {
+    try { return channel.getOption(StandardSocketOptions.SO_RCVBUF); }
+    catch(IOException e) { throw new SocketException(e.toString()); }
+  }
+  
+  
+  @Override
+  public void setSendBufferSize(int size) throws SocketException {
+    try { channel.setOption(StandardSocketOptions.SO_SNDBUF, size); }
+    catch(IOException e) { throw new SocketException(e.toString()); }
+  }
+  
+  
+  @Override
+  public int getSendBufferSize() throws SocketException {
+    try { return channel.getOption(StandardSocketOptions.SO_SNDBUF); }
+    catch(IOException e) { throw new SocketException(e.toString()); }
+  }
+  
+  
+  @Override
+  public String toString() {
+    return "UnixSocket{ unix:"+ path+ " }";
+  }
+  
+  
+  /**
+   * Reads directly from the channel. Unlike 
+   * <code>Channels.newInputStream()</code>, it does not 
+   * hold the channel blocking lock while reading, which
+   * would block the concurrent writes.
+   */
+  private class ChannelInput extends InputStream {
+    
+    @Override
+    public int read() throws IOException {
+      byte[] bs = new byte[1];
+      int read = read(bs, 0, 1);
+      return (read < 0 ? -1 : bs[0] & 0xFF);
+    }
+    
+    @Override
+    public int read(byte[] bs, int off, int len) throws IOException {
+      if(len == 0) return 0;
+      int read = channel.read(ByteBuffer.wrap(bs, off, len));
+      if(read == 0) throw new IllegalBlockingModeException();
+      return read;
+    }
+    
+    @Override
+    public void close() throws IOException {
+      UnixSocket.this.close();
+    }
+  }
+  
+  
+  /**
+   * Writes directly to the channel, without 
+   * holding the channel blocking lock.
+   */
+  private class ChannelOutput extends OutputStream {
+    
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{ (byte) b }, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] bs, int off, int len) throws IOException {
+      ByteBuffer buf = ByteBuffer.wrap(bs, off, len);
+      while(buf.hasRemaining()) {
+        if(channel.write(buf) == 0 && !channel.isBlocking())
+          throw new IllegalBlockingModeException();
+      }
+    }
+    
+    @Override
+    public void close() throws IOException {
+      UnixSocket.this.close();
+    }
+  }
+  
+}
@@ -0,0 +1,481 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import org.apache.http.HttpEntity;
+import us.pserver.cdr.crypt.CryptKey;
+import us.pserver.revok.MethodInvocationException;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.http.ContentCoding;
+import us.pserver.revok.http.HttpConsts;
+import us.pserver.revok.http.HttpEntityFactory;
+import us.pserver.revok.http.HttpEntityParser;
+import us.pserver.revok.http.NioHttpRequestDecoder;
+import us.pserver.revok.http.SessionCipher;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.ObjectSerializer;
+import us.pserver.revok.protocol.Transport;
+
+/**
+ * Server side channel over the content of an HTTP request
+ * already received, buffering the HTTP response in memory.
+ * Used by non-blocking servers, where the network I/O is
+ * done by event loop threads, and the channel only decodes 
+ * the request and encodes the response, with the same 
+ * content format of <code>HttpResponseChannel</code>.
+ * The encoded response, including any embedded 
+ * <code>InputStream</code>, is limited to 
+ * <code>getMaxResponseSize()</code> bytes. Bigger responses
+ * are replaced by a failed <code>OpResult</code>.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BufferedResponseChannel implements Channel {
+  
+  /**
+   * <code>
+   *  DEFAULT_MAX_RESPONSE = NioHttpRequestDecoder.DEFAULT_MAX_CONTENT
+   * </code><br>
+   * Default maximum encoded response content size.
+   */
+  public static final int DEFAULT_MAX_RESPONSE = 
+      NioHttpRequestDecoder.DEFAULT_MAX_CONTENT;
+  
+  
+  private final byte[] content;
+  
+  private CryptKey key;
+  
+  private boolean gzip;
+  
+  private String contenc;
+  
+  private String accenc;
+  
+  private boolean legacy;
+  
+  private SessionCipher session;
+  
+  private boolean insession;
+  
+  private boolean keepAlive;
+  
+  private ObjectSerializer serial;
+  
+  private int maxResponse;
+  
+  private byte[] head;
+  
+  private ResponseBuffer body;
+  
+  private byte[] bodyArray;
+  
+  private String ctype;
+  
+  private boolean zipped;
+  
+  
+  /**
+   * Constructor which receives the received request
+   * content and the <code>ObjectSerializer</code>.
+   * @param content The request content.
+   * @param os <code>ObjectSerializer</code> for object serialization.
+   */
+  public BufferedResponseChannel(byte[] content, ObjectSerializer os) {
+    if(content == null)
+      throw new IllegalArgumentException(
+          "[BufferedResponseChannel( byte[], ObjectSerializer )] "
+          + "Invalid content {"+ content+ "}");
+    this.content = content;
+    key = null;
+    gzip = true;
+    contenc = null;
+    accenc = null;
+    legacy = false;
+    session = null;
+    insession = false;
+    keepAlive = true;
+    serial = (os != null ? os : new JsonSerializer());
+    maxResponse = DEFAULT_MAX_RESPONSE;
+    head = null;
+    body = null;
+    bodyArray = null;
+    ctype = null;
+    zipped = false;
+  }
+  
+  
+  /**
+   * Enable GZIP compression of the data transmitted on the channel.
+   * @param bool <code>true</code> for enable GZIP compression, <code>false</code> to disable it.
+   * @return This modified <code>BufferedResponseChannel</code> instance.
+   */
+  public BufferedResponseChannel setGZipCompressionEnabled(boolean bool) {
+    gzip = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Set the <code>Content-Encoding</code> and <code>Accept-Encoding</code>
+   * headers of the request. The request is decoded as described
+   * by its <code>Content-Encoding</code>, and the response is 
+   * compressed only if accepted (see <code>ContentCoding</code>).
+   * @param contenc The request <code>Content-Encoding</code> 
+   * header value, or <code>null</code> if not present.
+   * @param accenc The request <code>Accept-Encoding</code> 
+   * header value, or <code>null</code> if not present.
+   * @return This modified <code>BufferedResponseChannel</code> instance.
+   */
+  public BufferedResponseChannel setRequestEncoding(String contenc, String accenc) {
+    this.contenc = contenc;
+    this.accenc = accenc;
+    return this;
+  }
+  
+  
+  /**
+   * Set if the response keeps the connection open.
+   * If <code>false</code>, the response is sent with 
+   * the <code>Connection: close</code> header.
+   * @param bool <code>true</code> for a persistent connection.
+   * @return This modified <code>BufferedResponseChannel</code> instance.
+   */
+  public BufferedResponseChannel setKeepAlive(boolean bool) {
+    keepAlive = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Set the session cipher of the connection, kept 
+   * by the server between the connection requests.
+   * @param session The session cipher of the connection.
+   * @return This modified <code>BufferedResponseChannel</code> instance.
+   */
+  public BufferedResponseChannel setSessionCipher(SessionCipher session) {
+    this.session = session;
+    return this;
+  }
+  
+  
+  /**
+   * Get the session cipher of the connection, 
+   * which may be started by the request.
+   * @return The session cipher of the connection, 
+   * or <code>null</code> if there is no session.
+   */
+  public SessionCipher getSessionCipher() {
+    return session;
+  }
+  
+  
+  /**
+   * Get the criptography key.
+   * @return criptography key.
+   */
+  public CryptKey getCryptKey() {
+    return key;
+  }
+  
+  
+  /**
+   * Get the maximum encoded response content size.
+   * @return The maximum response content size in bytes.
+   */
+  public int getMaxResponseSize() {
+    return maxResponse;
+  }
+  
+  
+  /**
+   * Set the maximum encoded response content size, including 
+   * any embedded <code>InputStream</code>. Bigger responses are
+   * replaced by a failed <code>OpResult</code>.
+   * @param size The maximum response content size in bytes.
+   * @return This modified <code>BufferedResponseChannel</code> instance.
+   */
+  public BufferedResponseChannel setMaxResponseSize(int size) {
+    if(size < 1)
+      throw new IllegalArgumentException(
+          "[BufferedResponseChannel.setMaxResponseSize( int )] "
+              + "Invalid size {"+ size+ "}");
+    maxResponse = size;
+    return this;
+  }
+  
+  
+  /**
+   * Get the encoded HTTP response, with status line and 
+   * headers in the first buffer and the content in the second,
+   * for a gathering write without copying the content.
+   * @return The HTTP response buffers, or <code>null</code>
+   * if no response was written.
+   */
+  public ByteBuffer[] getResponse() {
+    if(head == null) return null;
+    return new ByteBuffer[] {
+      ByteBuffer.wrap(head), body.buffer() 
+    };
+  }
+  
+  
+  /**
+   * Get the encoded response content, without the HTTP head,
+   * for protocols with their own message framing (HTTP/2).
+   * @return The response content, or <code>null</code>
+   * if no response was written.
+   */
+  public byte[] getResponseContent() {
+    if(body == null) return null;
+    if(bodyArray == null) 
+      bodyArray = body.toByteArray();
+    return bodyArray;
+  }
+  
+  
+  /**
+   * Get the <code>Content-Type</code> of the response content.
+   * @return The <code>Content-Type</code> header value, or 
+   * <code>null</code> if not defined.
+   */
+  public String getResponseContentType() {
+    return ctype;
+  }
+  
+  
+  /**
+   * Get the <code>Content-Encoding</code> of the response content.
+   * @return The <code>Content-Encoding</code> header value.
+   */
+  public String getResponseContentEncoding() {
+    return ContentCoding.contentEncoding(zipped);
+  }
+  
+  
+  @Override
+  public Transport read() throws IOException {
+    if(content.length == 0) return null;
+    HttpEntityParser par = HttpEntityParser.instance(serial);
+    if(ContentCoding.isGZip(contenc)) par.enableGZipCoder();
+    // content already in memory, decode the stream on demand
+    par.enableLazyStream();
+    par.setSessionCipher(session);
+    par.parse(new ByteArrayInputStream(content));
+    session = par.getSessionCipher();
+    insession = par.isSessionEncrypted();
+    key = par.getCryptKey();
+    legacy = par.isLegacyFormat();
+    Transport t = (Transport) par.getObject();
+    if(par.getInputStream() != null)
+      t.setInputStream(par.getInputStream());
+    return t;
+  }
+  
+  
+  @Override
+  public void write(Transport trp) throws IOException {
+    if(trp == null) return;
+    // answer as accepted by the request
+    boolean zip = gzip && ContentCoding.acceptsGZip(accenc, contenc);
+    HttpEntity entity = entity(trp, zip);
+    body = new ResponseBuffer(maxResponse);
+    try {
+      entity.writeTo(body);
+    } catch(ResponseTooLargeException e) {
+      // the session cipher starts each message with a new IV,
+      // so the error response may be encoded again
+      entity = entity(tooLarge(trp), zip);
+      body = new ResponseBuffer(maxResponse);
+      entity.writeTo(body);
+    }
+    bodyArray = null;
+    ctype = (entity.getContentType() != null 
+        ? entity.getContentType().getValue() : null);
+    zipped = zip;
+    
+    StringBuilder head = new StringBuilder()
+        .append("HTTP/1.1 ").append(HttpConsts.STATUS_200)
+        .append(HttpConsts.SP).append(HttpConsts.STATUS_OK)
+        .append(HttpConsts.CRLF);
+    header(head, HttpConsts.HD_CONT_ENCODING, 
+        ContentCoding.contentEncoding(zip));
+    if(entity.getContentType() != null)
+      header(head, entity.getContentType().getName(), 
+          entity.getContentType().getValue());
+    header(head, HttpConsts.HD_CONT_LENGTH, String.valueOf(body.size()));
+    header(head, "Server", HttpConsts.HD_VAL_SERVER);
+    header(head, "Date", DateTimeFormatter.RFC_1123_DATE_TIME
+        .format(ZonedDateTime.now(ZoneOffset.UTC)));
+    if(!keepAlive)
+      header(head, HttpConsts.HD_CONNECTION, HttpConsts.HD_VAL_CLOSE);
+    head.append(HttpConsts.CRLF);
+    this.head = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+  
+  
+  /**
+   * Create the response entity, encoded as the request.
+   * @param trp The response <code>Transport</code>.
+   * @param zip If the content is GZIP compressed.
+   * @return The response <code>HttpEntity</code>.
+   * @throws IOException In case of error creating the entity.
+   */
+  private HttpEntity entity(Transport trp, boolean zip) throws IOException {
+    HttpEntityFactory fac = HttpEntityFactory.instance(serial);
+    if(zip) fac.enableGZipCoder();
+    if(insession) fac.enableSessionCipher(session, false);
+    else if(key != null) fac.enableCryptCoder(key);
+    // answer in the same format received
+    if(legacy) fac.enableLegacyFormat();
+    fac.put(trp.createWriteVersion());
+    if(trp.getInputStream() != null) {
+      fac.put(trp.getInputStream());
+    }
+    return fac.create();
+  }
+  
+  
+  /**
+   * Create the failed response sent in place 
+   * of a response bigger than the maximum size.
+   * @param trp The response <code>Transport</code>.
+   * @return The failed response <code>Transport</code>.
+   */
+  private Transport tooLarge(Transport trp) {
+    OpResult op = new OpResult();
+    op.setSuccessOperation(false);
+    op.setError(new MethodInvocationException(
+        "[BufferedResponseChannel.write( Transport )] "
+            + "Response Too Large {max="+ maxResponse+ "}"));
+    return new Transport(op).setRequestId(trp.getRequestId());
+  }
+  
+  
+  /**
+   * Append a header line.
+   * @param sb The response head.
+   * @param name The header name.
+   * @param value The header value.
+   */
+  private void header(StringBuilder sb, String name, String value) {
+    sb.append(name).append(HttpConsts.COLON)
+        .append(HttpConsts.SP).append(value)
+        .append(HttpConsts.CRLF);
+  }
+  
+  
+  /**
+   * Always <code>false</code>, since each channel
+   * instance handles only one request.
+   * @return <code>false</code>.
+   */
+  @Override
+  public boolean isValid() {
+    return false;
+  }
+  
+  
+  @Override
+  public void close() {}
+  
+  
+  
+  /**
+   * Thrown when the response exceeds the maximum size.
+   */
+  private static class ResponseTooLargeException extends IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    ResponseTooLargeException(int max) {
+      super("Response Too Large {max="+ max+ "}");
+    }
+    
+  }
+  
+  
+  
+  /**
+   * <code>OutputStream</code> buffering up to a maximum 
+   * size, which exposes its buffer without copying.
+   */
+  private static class ResponseBuffer extends OutputStream {
+    
+    private final int max;
+    
+    private byte[] buf;
+    
+    private int count;
+    
+    ResponseBuffer(int max) {
+      this.max = max;
+      buf = new byte[Math.min(8192, max)];
+      count = 0;
+    }
+    
+    private void ensure(int len) throws IOException {
+      if(len > max - count) 
+        throw new ResponseTooLargeException(max);
+      if(count + len > buf.length)
+        buf = Arrays.copyOf(buf, (int) Math.min(max, 
+            Math.max(count + len, buf.length * 2L)));
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+      ensure(1);
+      buf[count++] = (byte) b;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ensure(len);
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+    
+    int size() {
+      return count;
+    }
+    
+    byte[] toByteArray() {
+      return (count == buf.length ? buf : Arrays.copyOf(buf, count));
+    }
+    
+    ByteBuffer buffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+    
+  }
+  
+}
\ No newline at end of file
@@ -0,0 +1,367 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.http.HttpEntity;
+import us.pserver.cdr.crypt.CryptAlgorithm;
+import us.pserver.cdr.crypt.CryptKey;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.http.ContentCoding;
+import us.pserver.revok.http.Http2Connection;
+import us.pserver.revok.http.HttpConsts;
+import us.pserver.revok.http.HttpEntityFactory;
+import us.pserver.revok.http.HttpEntityParser;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.ObjectSerializer;
+import us.pserver.revok.protocol.Transport;
+
+
+/**
+ * HTTP/2 cleartext (h2c) communication channel, client side.
+ * Each request is sent on its own stream of a single 
+ * <code>Http2Connection</code>, so many threads may make 
+ * concurrent calls over one connection, with the responses 
+ * received as the invocations finish (see 
+ * <code>Http2RevokServer</code>). The content format is the 
+ * same of <code>HttpRequestChannel</code>. The streams are 
+ * independent, so the cryptography key is created and sent 
+ * on every request, without the connection session key.
+ * <br>The <code>write</code> and <code>read</code> methods 
+ * are paired by thread, so each thread reads the response 
+ * of its own last request.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class Http2RequestChannel implements Channel {
+  
+  private final HttpConnector netc;
+  
+  private final ThreadLocal<Http2Connection.Stream> last;
+  
+  private boolean crypt, gzip, lzma;
+  
+  private CryptAlgorithm algo;
+  
+  private ObjectSerializer serial;
+  
+  private Http2Connection conn;
+  
+  private boolean closed;
+  
+  
+  /**
+   * Default constructor receives the network 
+   * information <code>HttpConnector</code> object.
+   * @param conn Network information 
+   * <code>HttpConnector</code> object.
+   */
+  public Http2RequestChannel(HttpConnector conn) {
+    if(conn == null)
+      throw new IllegalArgumentException(
+          "[Http2RequestChannel( HttpConnector )] "
+              + "Invalid HttpConnector {"+ conn+ "}");
+    if(conn.isTlsEnabled())
+      throw new IllegalArgumentException(
+          "[Http2RequestChannel( HttpConnector )] "
+              + "TLS is not supported by h2c {"+ conn+ "}");
+    netc = conn;
+    last = new ThreadLocal<>();
+    crypt = true;
+    gzip = true;
+    lzma = false;
+    algo = CryptAlgorithm.AES_CBC_PKCS5;
+    serial = new JsonSerializer();
+    this.conn = null;
+    closed = false;
+  }
+  
+  
+  /**
+   * Constructor which receives the network information
+   * <code>HttpConnector</code> and the object serializer.
+   * @param conn Network information 
+   * <code>HttpConnector</code> object.
+   * @param serializer The object serializer.
+   */
+  public Http2RequestChannel(HttpConnector conn, ObjectSerializer serializer) {
+    this(conn);
+    if(serializer != null) serial = serializer;
+  }
+  
+  
+  /**
+   * Get the <code>ObjectSerializer</code> for objects serialization.
+   * @return <code>ObjectSerializer</code> for objects serialization.
+   */
+  public ObjectSerializer getObjectSerializer() {
+    return serial;
+  }
+  
+  
+  /**
+   * Set the <code>ObjectSerializer</code> for objects serialization.
+   * @param serializer <code>ObjectSerializer</code> for objects serialization.
+   * @return This modified <code>Http2RequestChannel</code> instance.
+   */
+  public Http2RequestChannel setObjectSerializer(ObjectSerializer serializer) {
+    if(serializer != null) serial = serializer;
+    return this;
+  }
+  
+  
+  /**
+   * Get the network information object <code>HttpConnector</code>.
+   * @return The network information object <code>HttpConnector</code>.
+   */
+  public HttpConnector getHttpConnector() {
+    return netc;
+  }
+  
+  
+  /**
+   * Get the HTTP/2 connection in use.
+   * @return The <code>Http2Connection</code>, or 
+   * <code>null</code> if not connected yet.
+   */
+  public Http2Connection getConnection() {
+    return conn;
+  }
+  
+  
+  /**
+   * Enable cryptography of the data transmitted on the channel.
+   * @param enabled <code>true</code> for enable cryptography, <code>false</code> to disable it.
+   * @return This modified <code>Http2RequestChannel</code> instance.
+   */
+  public Http2RequestChannel setEncryptionEnabled(boolean enabled) {
+    crypt = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if cryptography is enabled.
+   * @return <code>true</code> if cryptography is enabled, <code>false</code> otherwise.
+   */
+  public boolean isEncryptionEnabled() {
+    return crypt;
+  }
+  
+  
+  /**
+   * Enable GZIP compression of the data transmitted on the channel.
+   * @param enabled <code>true</code> for enable GZIP compression, <code>false</code> to disable it.
+   * @return This modified <code>Http2RequestChannel</code> instance.
+   */
+  public Http2RequestChannel setGZipCompressionEnabled(boolean enabled) {
+    gzip = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if GZIP compression is enabled.
+   * @return <code>true</code> if GZIP compression is enabled, <code>false</code> otherwise.
+   */
+  public boolean isGZipCompressionEnabled() {
+    return gzip;
+  }
+  
+  
+  /**
+   * Enable the LZMA codec for large content, in addition 
+   * to GZIP compression (see <code>HttpEntityFactory</code>).
+   * @param enabled <code>true</code> for enable the LZMA codec, <code>false</code> to disable it.
+   * @return This modified <code>Http2RequestChannel</code> instance.
+   */
+  public Http2RequestChannel setLzmaCompressionEnabled(boolean enabled) {
+    lzma = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the LZMA codec is enabled.
+   * @return <code>true</code> if the LZMA codec is enabled, <code>false</code> otherwise.
+   */
+  public boolean isLzmaCompressionEnabled() {
+    return lzma;
+  }
+  
+  
+  /**
+   * Set the cryptography algorithm.
+   * @param ca The cryptography algorithm.
+   * @return This modified <code>Http2RequestChannel</code> instance.
+   */
+  public Http2RequestChannel setCryptAlgorithm(CryptAlgorithm ca) {
+    if(ca != null) algo = ca;
+    return this;
+  }
+  
+  
+  /**
+   * Get the cryptography algorithm.
+   * @return The cryptography algorithm.
+   */
+  public CryptAlgorithm getCryptAlgorithm() {
+    return algo;
+  }
+  
+  
+  /**
+   * Get the HTTP/2 connection, connecting if needed,
+   * or if the last connection was closed or finished.
+   * @return The <code>Http2Connection</code>.
+   * @throws IOException In case of error connecting.
+   */
+  private synchronized Http2Connection connection() throws IOException {
+    if(conn == null || !conn.isOpen()) {
+      conn = new Http2Connection(netc.connectSocket(), true).start();
+    }
+    return conn;
+  }
+  
+  
+  /**
+   * Encode the <code>Transport</code> object, cryptography 
+   * key and eventual stream content in the request content.
+   * @param trp The <code>Transport</code> object.
+   * @param headers The request headers, where the 
+   * content headers are set.
+   * @return The request content.
+   * @throws IOException In case of error encoding the content.
+   */
+  private byte[] createContent(Transport trp, Map<String,String> headers) throws IOException {
+    HttpEntityFactory fac = HttpEntityFactory.instance(serial);
+    if(gzip) fac.enableGZipCoder();
+    if(lzma) fac.enableLzmaCoder();
+    if(crypt) fac.enableCryptCoder(CryptKey.createRandomKey(algo));
+    fac.put(trp.createWriteVersion());
+    if(trp.hasContentEmbedded())
+      fac.put(trp.getInputStream());
+    HttpEntity entity = fac.create();
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    entity.writeTo(content);
+    
+    if(entity.getContentType() != null)
+      header(headers, entity.getContentType().getName(), 
+          entity.getContentType().getValue());
+    header(headers, HttpConsts.HD_CONT_ENCODING, 
+        ContentCoding.contentEncoding(gzip));
+    // the server compresses the response only if accepted
+    header(headers, HttpConsts.HD_ACCEPT_ENCODING, 
+        ContentCoding.acceptEncoding(gzip));
+    header(headers, HttpConsts.HD_ACCEPT, HttpConsts.HD_VAL_ACCEPT);
+    return content.toByteArray();
+  }
+  
+  
+  /**
+   * Put a header field, with the name in lower case 
+   * as required by HTTP/2.
+   */
+  private static void header(Map<String,String> headers, String name, String value) {
+    headers.put(name.toLowerCase(Locale.ENGLISH), value);
+  }
+  
+  
+  /**
+   * Send the request on a new stream. The response 
+   * is read by the same thread with <code>read()</code>.
+   * @param trp The request <code>Transport</code> object.
+   * @throws IOException In case of error sending the request.
+   */
+  @Override
+  public void write(Transport trp) throws IOException {
+    if(trp == null) return;
+    Map<String,String> headers = new LinkedHashMap<>();
+    headers.put(":method", HttpConsts.POST);
+    headers.put(":scheme", "http");
+    headers.put(":authority", (netc.getAddress() != null 
+        ? netc.getAddress() : "127.0.0.1")+ HttpConsts.COLON+ netc.getPort());
+    headers.put(":path", (netc.getPath() != null 
+        && !netc.getPath().isEmpty() ? netc.getPath() : HttpConsts.SLASH));
+    byte[] content = createContent(trp, headers);
+    if(netc.getProxyAuthorization() != null) {
+      header(headers, HttpConsts.HD_PROXY_AUTH, 
+          netc.getProxyAuthorization());
+    }
+    last.set(connection().request(headers, content));
+  }
+  
+  
+  /**
+   * Wait for the response of the last request 
+   * sent by the current thread.
+   * @return The response <code>Transport</code> object,
+   * or <code>null</code> if no request was sent.
+   * @throws IOException In case of error receiving the response.
+   */
+  @Override
+  public Transport read() throws IOException {
+    Http2Connection.Stream s = last.get();
+    if(s == null) return null;
+    last.remove();
+    s.await();
+    String status = s.getHeader(":status");
+    if(!String.valueOf(HttpConsts.STATUS_200).equals(status))
+      throw new IOException(
+          "Invalid response from server: "+ status);
+    HttpEntityParser par = HttpEntityParser.instance(serial);
+    String contenc = s.getHeader(HttpConsts.HD_CONT_ENCODING.toLowerCase(Locale.ENGLISH));
+    if(contenc != null ? ContentCoding.isGZip(contenc) : gzip) 
+      par.enableGZipCoder();
+    // content already in memory, decode the stream on demand
+    par.enableLazyStream();
+    par.parse(new ByteArrayInputStream(s.getContent()));
+    Transport t = (Transport) par.getObject();
+    if(par.getInputStream() != null)
+      t.setInputStream(par.getInputStream());
+    return t;
+  }
+  
+  
+  /**
+   * The channel reconnects when the connection is 
+   * closed, so it remains valid until closed.
+   */
+  @Override
+  public synchronized boolean isValid() {
+    return !closed;
+  }
+  
+  
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if(conn != null) conn.close();
+  }
+  
+}
@@ -24,6 +24,8 @@ package us.pserver.revok.channel;
 import us.pserver.revok.protocol.Transport;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
@@ -42,9 +44,13 @@ import us.pserver.cdr.crypt.CryptAlgorithm;
 import us.pserver.cdr.crypt.CryptKey;
 import static us.pserver.chk.Checker.nullarg;
 import us.pserver.revok.HttpConnector;
+import us.pserver.revok.http.ContentCoding;
+import us.pserver.revok.http.HttpContentFactory;
 import us.pserver.revok.http.HttpEntityFactory;
 import us.pserver.revok.http.HttpEntityParser;
+import us.pserver.revok.http.DeflateDictionary;
 import us.pserver.revok.http.HttpConsts;
+import us.pserver.revok.http.SessionCipher;
 import us.pserver.revok.protocol.JsonSerializer;
 import us.pserver.revok.protocol.ObjectSerializer;
 
@@ -60,7 +66,7 @@ import us.pserver.revok.protocol.ObjectSerializer;
  * @author Juno Roesler - juno@pserver.com
  * @version 1.1 - 201506
  */
-public class HttpRequestChannel implements Channel {
+public class HttpRequestChannel implements PipelineChannel {
   
   /**
    * <code>
@@ -73,7 +79,21 @@ public class HttpRequestChannel implements Channel {
   
   private Socket sock;
   
-  private boolean crypt, gzip;
+  private boolean crypt, gzip, lzma;
+  
+  private DeflateDictionary dict;
+  
+  private boolean legacy;
+  
+  private boolean direct;
+  
+  private boolean sessionEnabled;
+  
+  private CryptKey sessionKey;
+  
+  private SessionCipher session;
+  
+  private boolean keySent;
   
   private boolean valid;
   
@@ -89,6 +109,8 @@ public class HttpRequestChannel implements Channel {
   
   private HttpResponse response;
   
+  private final AtomicInteger pipelined;
+  
   private HttpProcessor processor;
   
   private HttpCoreContext context;
@@ -109,11 +131,20 @@ public class HttpRequestChannel implements Channel {
     netc = conn;
     crypt = true;
     gzip = true;
+    lzma = false;
+    dict = null;
+    legacy = false;
+    direct = false;
+    sessionEnabled = false;
+    sessionKey = null;
+    session = null;
+    keySent = false;
     sock = null;
     valid = true;
     this.conn = null;
     key = null;
     response = null;
+    pipelined = new AtomicInteger(0);
     serial = new JsonSerializer();
     init();
   }
@@ -214,6 +245,9 @@ public class HttpRequestChannel implements Channel {
   
   /**
    * Enable GZIP compression of the data transmitted on the channel.
+   * The server is informed by the <code>Accept-Encoding</code> 
+   * header whether to compress the response, so compression 
+   * may be changed on each request.
    * @param enabled <code>true</code> for enable GZIP compression, <code>false</code> to disable it.
    * @return This instance of HttpRequestChannel.
    */
@@ -232,6 +266,150 @@ public class HttpRequestChannel implements Channel {
   }
   
   
+  /**
+   * Enable the LZMA codec for large content of the adaptive 
+   * compression, if GZIP compression is enabled. LZMA compresses 
+   * better, but is much slower, paying off only on slow links.
+   * @param enabled <code>true</code> for enable the LZMA codec, <code>false</code> to disable it.
+   * @return This modified <code>HttpRequestChannel</code> instance.
+   */
+  public HttpRequestChannel setLzmaCompressionEnabled(boolean enabled) {
+    lzma = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the LZMA codec is enabled.
+   * @return <code>true</code> if the LZMA codec is enabled, <code>false</code> otherwise.
+   */
+  public boolean isLzmaCompressionEnabled() {
+    return lzma;
+  }
+  
+  
+  /**
+   * Set the preset dictionary for compression of small messages,
+   * if GZIP compression is enabled (see <code>DeflateDictionary</code>).
+   * The dictionary is registered for decoding received messages, 
+   * so both sides of the connection must set the same dictionary.
+   * @param dict The preset dictionary or <code>null</code> to disable it.
+   * @return This modified <code>HttpRequestChannel</code> instance.
+   */
+  public HttpRequestChannel setDeflateDictionary(DeflateDictionary dict) {
+    if(dict != null) DeflateDictionary.register(dict);
+    this.dict = dict;
+    return this;
+  }
+  
+  
+  /**
+   * Get the preset dictionary for compression of small messages.
+   * @return The preset dictionary or <code>null</code> if not set.
+   */
+  public DeflateDictionary getDeflateDictionary() {
+    return dict;
+  }
+  
+  
+  /**
+   * Enable the legacy <code>&lt;xml&gt;</code> token format 
+   * of the request content, for servers which does not 
+   * understand the binary envelope (default).
+   * @param enabled <code>true</code> for enable the legacy format, <code>false</code> to disable it.
+   * @return This instance of HttpRequestChannel.
+   */
+  public HttpRequestChannel setLegacyFormatEnabled(boolean enabled) {
+    legacy = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the legacy <code>&lt;xml&gt;</code> token format is enabled.
+   * @return <code>true</code> if the legacy format is enabled, <code>false</code> otherwise.
+   */
+  public boolean isLegacyFormatEnabled() {
+    return legacy;
+  }
+  
+  
+  /**
+   * Enable the direct content encoder <code>HttpContentFactory</code>,
+   * which writes the binary envelope straight into the connection 
+   * with pooled buffers, instead of <code>HttpEntityFactory</code>.
+   * Not used for the legacy <code>&lt;xml&gt;</code> format.
+   * @param enabled <code>true</code> for enable the direct encoder, <code>false</code> to disable it.
+   * @return This instance of HttpRequestChannel.
+   */
+  public HttpRequestChannel setDirectEncoderEnabled(boolean enabled) {
+    direct = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the direct content encoder is enabled.
+   * @return <code>true</code> if the direct encoder is enabled, <code>false</code> otherwise.
+   */
+  public boolean isDirectEncoderEnabled() {
+    return direct;
+  }
+  
+  
+  /**
+   * Enable the session key of the connection (disabled by default). The
+   * cryptography key is sent once, on the first request of the
+   * connection, and the ciphers are reused by the next requests.
+   * If disabled, a new random key is created and sent on every 
+   * request, what is required by servers without connection 
+   * state, like <code>RevokServlet</code>, which fail to decode
+   * the next requests of a session. Sessions are not used 
+   * with the legacy <code>&lt;xml&gt;</code> format.
+   * @param enabled <code>true</code> for enable the session key, <code>false</code> to disable it.
+   * @return This instance of HttpRequestChannel.
+   */
+  public HttpRequestChannel setSessionKeyEnabled(boolean enabled) {
+    sessionEnabled = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the session key of the connection is enabled.
+   * @return <code>true</code> if the session key is enabled, <code>false</code> otherwise.
+   */
+  public boolean isSessionKeyEnabled() {
+    return sessionEnabled;
+  }
+  
+  
+  /**
+   * Set the session key of the connection, allowing a 
+   * key to be reused (resumed) across connections.
+   * Must be set before the first request.
+   * @param key The session key.
+   * @return This instance of HttpRequestChannel.
+   */
+  public HttpRequestChannel setSessionKey(CryptKey key) {
+    nullarg(CryptKey.class, key);
+    sessionKey = key;
+    session = null;
+    keySent = false;
+    return this;
+  }
+  
+  
+  /**
+   * Get the session key of the connection.
+   * @return The session key, or <code>null</code> 
+   * if there is no session yet.
+   */
+  public CryptKey getSessionKey() {
+    return sessionKey;
+  }
+  
+  
   /**
    * Define the cryptography algorithm utilized.
    * The default cryptography algorithm is AES CBC PKCS5 padded.
@@ -266,34 +444,82 @@ public class HttpRequestChannel implements Channel {
     BasicHttpEntityEnclosingRequest request = 
         new BasicHttpEntityEnclosingRequest(HttpConsts.POST, netc.getURIString());
     
-    HttpEntityFactory fac = HttpEntityFactory.instance(serial);
-    String contenc = HttpConsts.HD_VAL_DEF_ENCODING;
-    if(gzip) {
-      contenc = HttpConsts.HD_VAL_GZIP_ENCODING;
-      fac.enableGZipCoder();
+    String contenc = ContentCoding.contentEncoding(gzip);
+    boolean insession = crypt && sessionEnabled && !legacy;
+    if(insession && session == null) {
+      if(sessionKey == null)
+        sessionKey = CryptKey.createRandomKey(algo);
+      session = new SessionCipher(sessionKey);
     }
-    if(crypt) {
-      key = CryptKey.createRandomKey(algo);
-      fac.enableCryptCoder(key);
+    if(insession) key = sessionKey;
+    else if(crypt) key = CryptKey.createRandomKey(algo);
+    
+    HttpEntity entity;
+    if(direct && !legacy) {
+      HttpContentFactory fac = HttpContentFactory.instance(serial);
+      if(gzip) fac.enableGZipCoder();
+      if(lzma) fac.enableLzmaCoder();
+      if(dict != null) fac.enableDictionaryCoder(dict);
+      if(insession) fac.enableSessionCipher(session, !keySent);
+      else if(crypt) fac.enableCryptCoder(key);
+      fac.put(trp.createWriteVersion());
+      if(trp.hasContentEmbedded())
+        fac.put(trp.getInputStream());
+      entity = fac.create();
     }
-    fac.put(trp.createWriteVersion());
-    if(trp.hasContentEmbedded())
-      fac.put(trp.getInputStream());
+    else {
+      HttpEntityFactory fac = HttpEntityFactory.instance(serial);
+      if(gzip) fac.enableGZipCoder();
+      if(lzma) fac.enableLzmaCoder();
+      if(dict != null) fac.enableDictionaryCoder(dict);
+      if(insession) fac.enableSessionCipher(session, !keySent);
+      else if(crypt) fac.enableCryptCoder(key);
+      if(legacy) fac.enableLegacyFormat();
+      fac.put(trp.createWriteVersion());
+      if(trp.hasContentEmbedded())
+        fac.put(trp.getInputStream());
+      entity = fac.create();
+    }
+    if(insession) keySent = true;
     
     request.addHeader(HttpConsts.HD_CONT_ENCODING, contenc);
+    // the server compresses the response only if accepted
+    request.addHeader(HttpConsts.HD_ACCEPT_ENCODING, 
+        ContentCoding.acceptEncoding(gzip));
     request.addHeader(HttpConsts.HD_ACCEPT, HttpConsts.HD_VAL_ACCEPT);
     if(netc.getProxyAuthorization() != null) {
       request.addHeader(HttpConsts.HD_PROXY_AUTH,
           netc.getProxyAuthorization());
     }
     
-    request.setEntity(fac.create());
+    request.setEntity(entity);
     return request;
   }
   
   
   @Override
   public void write(Transport trp) throws IOException {
+    this.send(trp);
+    try {
+      this.verifyResponse();
+    }
+    catch(HttpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+  
+  
+  /**
+   * Send the request without waiting for the response 
+   * (HTTP/1.1 pipelining). Many requests may be sent back
+   * to back, and the responses must be received with 
+   * <code>receive()</code>, in the same order. One thread
+   * may send while another one receives the responses.
+   * @param trp The <code>Transport</code> object to send.
+   * @throws IOException In case of error sending the request.
+   */
+  @Override
+  public void send(Transport trp) throws IOException {
     if(conn == null) {
       conn = new DefaultBHttpClientConnection(HTTP_CONN_BUFFER_SIZE);
       if(sock == null)
@@ -305,11 +531,42 @@ public class HttpRequestChannel implements Channel {
       processor.process(request, context);
       conn.sendRequestHeader(request);
       conn.sendRequestEntity(request);
+      pipelined.incrementAndGet();
+    }
+    catch(HttpException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+  
+  
+  /**
+   * Receive the response of the oldest request 
+   * sent with <code>send(Transport)</code>.
+   * @return The <code>Transport</code> object received.
+   * @throws IOException In case of error receiving the response.
+   */
+  @Override
+  public Transport receive() throws IOException {
+    if(pipelined.get() < 1) throw new IOException(
+        "[HttpRequestChannel.receive()] No request pending response");
+    try {
       this.verifyResponse();
     }
     catch(HttpException e) {
       throw new IOException(e.toString(), e);
     }
+    return this.read();
+  }
+  
+  
+  /**
+   * Get the number of requests sent and 
+   * waiting for the response.
+   * @return The number of pending responses.
+   */
+  @Override
+  public int getPendingResponses() {
+    return pipelined.get();
   }
   
   
@@ -321,6 +578,7 @@ public class HttpRequestChannel implements Channel {
    * @throws HttpException in case of error reading the response.
    */
   private void verifyResponse() throws IOException, HttpException {
+    pipelined.decrementAndGet();
     response = conn.receiveResponseHeader();
     if(response == null || response
         .getStatusLine().getStatusCode() != 200) {
@@ -339,7 +597,10 @@ public class HttpRequestChannel implements Channel {
       HttpEntity content = response.getEntity();
       if(content == null) return null;
       HttpEntityParser par = HttpEntityParser.instance(serial);
-      if(gzip) par.enableGZipCoder();
+      Header contenc = response.getFirstHeader(HttpConsts.HD_CONT_ENCODING);
+      if(contenc != null ? ContentCoding.isGZip(contenc.getValue()) : gzip) 
+        par.enableGZipCoder();
+      par.setSessionCipher(session);
       
       par.parse(content);
       Transport t = (Transport) par.getObject();
@@ -23,7 +23,17 @@ package us.pserver.revok.channel;
 
 import us.pserver.revok.protocol.Transport;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
@@ -39,10 +49,16 @@ import org.apache.http.protocol.ResponseConnControl;
 import org.apache.http.protocol.ResponseContent;
 import org.apache.http.protocol.ResponseDate;
 import org.apache.http.protocol.ResponseServer;
+import org.apache.http.util.EntityUtils;
 import us.pserver.cdr.crypt.CryptKey;
+import us.pserver.revok.http.ContentCoding;
+import us.pserver.revok.http.HttpContentFactory;
 import us.pserver.revok.http.HttpEntityFactory;
 import us.pserver.revok.http.HttpEntityParser;
+import us.pserver.revok.http.DeflateDictionary;
 import us.pserver.revok.http.HttpConsts;
+import us.pserver.revok.http.ServerHttpConnection;
+import us.pserver.revok.http.SessionCipher;
 import us.pserver.revok.protocol.JsonSerializer;
 import us.pserver.revok.protocol.ObjectSerializer;
 
@@ -61,11 +77,29 @@ import us.pserver.revok.protocol.ObjectSerializer;
  */
 public class HttpResponseChannel implements Channel {
   
-  private CryptKey key;
+  private volatile boolean valid;
   
-  private boolean valid;
+  private volatile boolean closing;
   
-  private boolean gzip;
+  private boolean gzip, lzma;
+  
+  private DeflateDictionary dict;
+  
+  private boolean direct;
+  
+  private SessionCipher session;
+  
+  private volatile Received current;
+  
+  private final Map<Integer, Received> answering;
+  
+  private final ReentrantLock writing;
+  
+  private boolean readAhead;
+  
+  private ExecutorService readers;
+  
+  private Future<Received> ahead;
   
   private HttpServerConnection conn;
   
@@ -89,9 +123,21 @@ public class HttpResponseChannel implements Channel {
           + "Invalid Connection {"+ hsc+ "}");
     
     conn = hsc;
-    key = null;
     valid = true;
+    closing = false;
     gzip = true;
+    lzma = false;
+    dict = null;
+    direct = false;
+    session = null;
+    current = new Received();
+    answering = new ConcurrentHashMap<>();
+    // a lock, not a monitor, is held while writing, 
+    // so blocked virtual threads do not pin the carrier
+    writing = new ReentrantLock();
+    readAhead = true;
+    readers = null;
+    ahead = null;
     serial = new JsonSerializer();
     init();
   }
@@ -159,6 +205,9 @@ public class HttpResponseChannel implements Channel {
   
   /**
    * Enable GZIP compression of the data transmitted on the channel.
+   * Responses are compressed only if the request accepts it
+   * (see <code>ContentCoding</code>), while requests are always
+   * decoded as described by their <code>Content-Encoding</code>.
    * @param bool <code>true</code> for enable GZIP compression, <code>false</code> to disable it.
    * @return This modified <code>HttpResponseChannel</code> instance.
    */
@@ -168,6 +217,29 @@ public class HttpResponseChannel implements Channel {
   }
   
   
+  /**
+   * Enable the direct content encoder <code>HttpContentFactory</code>,
+   * which writes the binary envelope straight into the connection 
+   * with pooled buffers, instead of <code>HttpEntityFactory</code>.
+   * Not used for the legacy <code>&lt;xml&gt;</code> format.
+   * @param bool <code>true</code> for enable the direct encoder, <code>false</code> to disable it.
+   * @return This modified <code>HttpResponseChannel</code> instance.
+   */
+  public HttpResponseChannel setDirectEncoderEnabled(boolean bool) {
+    direct = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the direct content encoder is enabled.
+   * @return <code>true</code> if the direct encoder is enabled, <code>false</code> otherwise.
+   */
+  public boolean isDirectEncoderEnabled() {
+    return direct;
+  }
+  
+  
   /**
    * Verifies if GZIP compression is enalbed.
    * @return <code>true</code> if GZIP compression is enabled, <code>false</code> otherwise.
@@ -177,12 +249,132 @@ public class HttpResponseChannel implements Channel {
   }
   
   
+  /**
+   * Enable the LZMA codec for large content of the adaptive 
+   * compression, if GZIP compression is enabled. LZMA compresses 
+   * better, but is much slower, paying off only on slow links.
+   * @param bool <code>true</code> for enable the LZMA codec, <code>false</code> to disable it.
+   * @return This modified <code>HttpResponseChannel</code> instance.
+   */
+  public HttpResponseChannel setLzmaCompressionEnabled(boolean bool) {
+    lzma = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the LZMA codec is enabled.
+   * @return <code>true</code> if the LZMA codec is enabled, <code>false</code> otherwise.
+   */
+  public boolean isLzmaCompressionEnabled() {
+    return lzma;
+  }
+  
+  
+  /**
+   * Set the preset dictionary for compression of small messages,
+   * if GZIP compression is enabled (see <code>DeflateDictionary</code>).
+   * The dictionary is registered for decoding received messages, 
+   * so both sides of the connection must set the same dictionary.
+   * @param dict The preset dictionary or <code>null</code> to disable it.
+   * @return This modified <code>HttpResponseChannel</code> instance.
+   */
+  public HttpResponseChannel setDeflateDictionary(DeflateDictionary dict) {
+    if(dict != null) DeflateDictionary.register(dict);
+    this.dict = dict;
+    return this;
+  }
+  
+  
+  /**
+   * Get the preset dictionary for compression of small messages.
+   * @return The preset dictionary or <code>null</code> if not set.
+   */
+  public DeflateDictionary getDeflateDictionary() {
+    return dict;
+  }
+  
+  
+  /**
+   * Enable the read ahead of pipelined requests (default).
+   * When the next request was already sent by the client,
+   * it is read and decoded by another thread while the 
+   * current one is being invoked. Requests with lazy stream 
+   * content are never read ahead. Requires the executor set 
+   * with <code>setReadAheadExecutor(ExecutorService)</code>.
+   * @param bool <code>true</code> for enable read ahead, <code>false</code> to disable it.
+   * @return This modified <code>HttpResponseChannel</code> instance.
+   */
+  public HttpResponseChannel setReadAheadEnabled(boolean bool) {
+    readAhead = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Set the <code>ExecutorService</code> which reads ahead the
+   * pipelined requests, owned by the server. Without executor,
+   * or when it refuses the task, the next request is read only 
+   * after the current one is answered.
+   * @param exec The read ahead <code>ExecutorService</code>,
+   * or <code>null</code> to not read ahead.
+   * @return This modified <code>HttpResponseChannel</code> instance.
+   */
+  public HttpResponseChannel setReadAheadExecutor(ExecutorService exec) {
+    readers = exec;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if read ahead of pipelined requests is enabled.
+   * @return <code>true</code> if read ahead is enabled, <code>false</code> otherwise.
+   */
+  public boolean isReadAheadEnabled() {
+    return readAhead;
+  }
+  
+  
+  /**
+   * Verifies if the next pipelined request is being read ahead,
+   * so the connection must not be parked waiting for input.
+   * @return <code>true</code> if the next request is being 
+   * read ahead, <code>false</code> otherwise.
+   */
+  public boolean hasReadAhead() {
+    return ahead != null;
+  }
+  
+  
+  /**
+   * Disable the connection persistence. The next response 
+   * is sent with the <code>Connection: close</code> header,
+   * and the channel becomes invalid after it.
+   * @return This modified <code>HttpResponseChannel</code> instance.
+   */
+  public HttpResponseChannel closeAfterResponse() {
+    closing = true;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the connection persistence was disabled
+   * with <code>closeAfterResponse()</code>.
+   * @return <code>true</code> if the next response
+   * closes the connection, <code>false</code> otherwise.
+   */
+  public boolean isClosingAfterResponse() {
+    return closing;
+  }
+  
+  
   /**
    * Get the criptography key.
    * @return criptography key.
    */
   public CryptKey getCryptKey() {
-    return key;
+    return current.key;
   }
   
   
@@ -192,23 +384,43 @@ public class HttpResponseChannel implements Channel {
    * and eventual stream content in the Http 
    * response body.
    * @param trp <code>Transport</code> object.
+   * @param rec The answered request.
    * @return <code>HttpResponse</code>.
    * @throws IOException In case of error creating the response.
    */
-  private HttpResponse createResponse(Transport trp) throws IOException {
+  private HttpResponse createResponse(Transport trp, Received rec) throws IOException {
     if(trp == null) return null;
     HttpResponse response = new BasicHttpResponse(
         HttpVersion.HTTP_1_1, 
         HttpConsts.STATUS_200, 
         HttpConsts.STATUS_OK);
     
-    String contenc = HttpConsts.HD_VAL_DEF_ENCODING;
-    if(gzip) contenc = HttpConsts.HD_VAL_GZIP_ENCODING;
-    response.addHeader(HttpConsts.HD_CONT_ENCODING, contenc);
+    response.addHeader(HttpConsts.HD_CONT_ENCODING, 
+        ContentCoding.contentEncoding(rec.gzipReply));
+    
+    if(direct && !rec.legacy) {
+      HttpContentFactory fac = HttpContentFactory.instance(serial);
+      if(rec.gzipReply) fac.enableGZipCoder();
+      if(lzma) fac.enableLzmaCoder();
+      if(dict != null) fac.enableDictionaryCoder(dict);
+      if(rec.insession) fac.enableSessionCipher(session, false);
+      else if(rec.key != null) fac.enableCryptCoder(rec.key);
+      fac.put(trp.createWriteVersion());
+      if(trp.getInputStream() != null) {
+        fac.put(trp.getInputStream());
+      }
+      response.setEntity(fac.create());
+      return response;
+    }
     
     HttpEntityFactory fac = HttpEntityFactory.instance(serial);
-    if(gzip) fac.enableGZipCoder();
-    if(key != null) fac.enableCryptCoder(key);
+    if(rec.gzipReply) fac.enableGZipCoder();
+    if(lzma) fac.enableLzmaCoder();
+    if(dict != null) fac.enableDictionaryCoder(dict);
+    if(rec.insession) fac.enableSessionCipher(session, false);
+    else if(rec.key != null) fac.enableCryptCoder(rec.key);
+    // answer in the same format received
+    if(rec.legacy) fac.enableLegacyFormat();
     fac.put(trp.createWriteVersion());
     if(trp.getInputStream() != null) {
       fac.put(trp.getInputStream());
@@ -218,26 +430,156 @@ public class HttpResponseChannel implements Channel {
   }
   
   
+  /**
+   * Get the value of the request header.
+   * @param request The HTTP request.
+   * @param name The header name.
+   * @return The header value or <code>null</code> if not present.
+   */
+  private String header(HttpRequest request, String name) {
+    Header hd = request.getFirstHeader(name);
+    return (hd != null ? hd.getValue() : null);
+  }
+  
+  
+  /**
+   * Consume the remaining content of the request,
+   * if its stream was read lazily, keeping the connection 
+   * in sync for the next request.
+   * @param rec The received request.
+   * @throws IOException In case of error reading.
+   */
+  private void consumePending(Received rec) throws IOException {
+    if(rec.pending == null) return;
+    HttpEntity entity = rec.pending;
+    rec.pending = null;
+    rec.upload = null;
+    EntityUtils.consume(entity);
+  }
+  
+  
+  /**
+   * Write the response of the last request read, or of the 
+   * request with the same ID, for multiplexed requests 
+   * (see <code>Transport.getRequestId()</code>). Multiplexed 
+   * requests may be answered out of order, by many threads.
+   * @param trp The response <code>Transport</code> object.
+   * @throws IOException In case of error writing the response.
+   */
   @Override
   public void write(Transport trp) throws IOException {
-    HttpResponse response = createResponse(trp);
-    if(response == null) return;
+    writing.lock();
     try {
+      Received rec = current;
+      if(trp != null && trp.getRequestId() != 0) {
+        Received req = answering.remove(trp.getRequestId());
+        if(req != null) rec = req;
+      }
+      // close only after answering all multiplexed requests
+      boolean last = closing && answering.isEmpty();
+      // The request stream must be consumed before answering,
+      // unless it is echoed back in the response itself.
+      if(trp == null || trp.getInputStream() != rec.upload)
+        consumePending(rec);
+      HttpResponse response = createResponse(trp, rec);
+      if(response == null) return;
+      if(last) response.addHeader(
+          HttpConsts.HD_CONNECTION, HttpConsts.HD_VAL_CLOSE);
       processor.process(response, context);
       conn.sendResponseHeader(response);
       conn.sendResponseEntity(response);
       conn.flush();
+      consumePending(rec);
+      if(last) valid = false;
     }
     catch(HttpException e) {
       throw new IOException(e.toString(), e);
     }
+    finally {
+      writing.unlock();
+    }
   }
   
   
   @Override
   public Transport read() throws IOException {
-    if(conn == null || !conn.isOpen())
-      return null;
+    Received rec;
+    if(ahead != null) {
+      rec = awaitAhead();
+    }
+    else {
+      if(conn == null || !conn.isOpen())
+        return null;
+      consumePending(current);
+      rec = receive();
+    }
+    if(rec == null) return null;
+    
+    current = rec;
+    session = rec.session;
+    int id = rec.transport.getRequestId();
+    if(id != 0) answering.put(id, rec);
+    // the next request is decoded while this one is invoked,
+    // unless multiplexed, when invoked by another thread.
+    ExecutorService rds = readers;
+    if(readAhead && rds != null && id == 0 
+        && rec.pending == null && hasBufferedInput()) {
+      try {
+        ahead = rds.submit(this::receive);
+      } catch(RejectedExecutionException e) {
+        ahead = null;
+      }
+    }
+    return rec.transport;
+  }
+  
+  
+  /**
+   * Verifies if there are input bytes already readed
+   * from the socket (i.e: a pipelined request).
+   * @return <code>true</code> if there are buffered input bytes,
+   * <code>false</code> otherwise.
+   */
+  private boolean hasBufferedInput() {
+    return conn instanceof ServerHttpConnection 
+        && ((ServerHttpConnection) conn).hasBufferedInput();
+  }
+  
+  
+  /**
+   * Wait for the request being read ahead.
+   * @return The received request or <code>null</code> 
+   * if the connection was closed.
+   * @throws IOException In case of error reading the request.
+   */
+  private Received awaitAhead() throws IOException {
+    Future<Received> f = ahead;
+    ahead = null;
+    try {
+      return f.get();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.toString());
+    }
+    catch(ExecutionException e) {
+      if(e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause().toString(), e.getCause());
+    }
+  }
+  
+  
+  /**
+   * Read and decode the next request from the connection.
+   * The state of the request is returned instead of set 
+   * on this channel, so it may be read ahead while the 
+   * current request is answered.
+   * @return The received request or <code>null</code> 
+   * if the connection was closed.
+   * @throws IOException In case of error reading the request.
+   */
+  private Received receive() throws IOException {
     try {
       HttpRequest basereq = conn.receiveRequestHeader();
       if(basereq == null 
@@ -252,14 +594,31 @@ public class HttpResponseChannel implements Channel {
       HttpEntity content = request.getEntity();
       if(content == null) return null;
       
+      Received rec = new Received();
+      // decode as sent, answer as accepted
+      String contenc = header(request, HttpConsts.HD_CONT_ENCODING);
+      rec.gzipReply = gzip && ContentCoding.acceptsGZip(
+          header(request, HttpConsts.HD_ACCEPT_ENCODING), contenc);
       HttpEntityParser par = HttpEntityParser.instance(serial);
-      if(gzip) par.enableGZipCoder();
+      if(ContentCoding.isGZip(contenc)) par.enableGZipCoder();
+      // the stream section is read straight from the 
+      // connection, while the method is invoked.
+      par.enableLazyStream();
+      // the session key is received once per connection
+      par.setSessionCipher(session);
       par.parse(content);
-      key = par.getCryptKey();
-      Transport t = (Transport) par.getObject();
+      rec.session = par.getSessionCipher();
+      rec.insession = par.isSessionEncrypted();
+      if(par.hasLazyStream()) {
+        rec.pending = content;
+        rec.upload = par.getInputStream();
+      }
+      rec.key = par.getCryptKey();
+      rec.legacy = par.isLegacyFormat();
+      rec.transport = (Transport) par.getObject();
       if(par.getInputStream() != null)
-        t.setInputStream(par.getInputStream());
-      return t;
+        rec.transport.setInputStream(par.getInputStream());
+      return rec;
     }
     catch(ConnectionClosedException e) {
       return null;
@@ -285,4 +644,28 @@ public class HttpResponseChannel implements Channel {
     } catch(IOException e) {}
   }
   
+  
+  /**
+   * A decoded request and the state needed to answer it.
+   */
+  private static class Received {
+    
+    private Transport transport;
+    
+    private CryptKey key;
+    
+    private boolean legacy;
+    
+    private boolean gzipReply = true;
+    
+    private SessionCipher session;
+    
+    private boolean insession;
+    
+    private HttpEntity pending;
+    
+    private InputStream upload;
+    
+  }
+  
 }
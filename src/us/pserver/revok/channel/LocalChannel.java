@@ -0,0 +1,232 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.channel;
+
+import java.io.IOException;
+import us.pserver.revok.MethodInvocationException;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.ObjectSerializer;
+import us.pserver.revok.protocol.RunnableConnectionHandler;
+import us.pserver.revok.protocol.Transport;
+
+
+/**
+ * In-process communication channel, for a <code>RemoteObject</code>
+ * and an <code>ObjectContainer</code> living in the same JVM. The 
+ * written <code>Transport</code> objects are handed directly to 
+ * <code>RunnableConnectionHandler.handleInvoke</code>, without 
+ * serialization, compression, cryptography or sockets, so the 
+ * services may start co-located and be moved to a remote 
+ * server later, just switching the channel factory 
+ * (see <code>ChannelFactoryBuilder.createLocalChannelFactory</code>).
+ * <br>Without serialization, the arguments and the returned 
+ * objects are shared by the caller and the invoked object. 
+ * The defensive copy mode copies them through the 
+ * <code>ObjectSerializer</code>, keeping the remote call semantics
+ * (the <code>InputStream</code> content is not copied).
+ * <br>The <code>write</code> and <code>read</code> methods 
+ * are paired by thread, so each thread reads the response 
+ * of its own last request.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public final class LocalChannel implements Channel {
+  
+  private final RunnableConnectionHandler handler;
+  
+  private final ThreadLocal<Transport> last;
+  
+  private ObjectSerializer serial;
+  
+  private boolean copy;
+  
+  private volatile boolean closed;
+  
+  
+  /**
+   * Default constructor receives the 
+   * <code>ObjectContainer</code> with the invoked objects.
+   * @param cont The <code>ObjectContainer</code>.
+   */
+  public LocalChannel(ObjectContainer cont) {
+    if(cont == null)
+      throw new IllegalArgumentException(
+          "[LocalChannel( ObjectContainer )] "
+              + "Invalid ObjectContainer {"+ cont+ "}");
+    handler = new RunnableConnectionHandler(this, cont);
+    last = new ThreadLocal<>();
+    serial = new JsonSerializer();
+    copy = false;
+    closed = false;
+  }
+  
+  
+  /**
+   * Constructor which receives the <code>ObjectContainer</code>
+   * and the <code>ObjectSerializer</code> for the defensive copies.
+   * @param cont The <code>ObjectContainer</code>.
+   * @param serializer <code>ObjectSerializer</code> for the defensive copies.
+   */
+  public LocalChannel(ObjectContainer cont, ObjectSerializer serializer) {
+    this(cont);
+    if(serializer != null)
+      serial = serializer;
+  }
+  
+  
+  /**
+   * Get the handler which invokes the requests. The concurrency 
+   * limiter and the bulkheads may be set on it, as on the server.
+   * @return The <code>RunnableConnectionHandler</code>.
+   */
+  public RunnableConnectionHandler getHandler() {
+    return handler;
+  }
+  
+  
+  /**
+   * Get the <code>ObjectSerializer</code> for the defensive copies.
+   * @return <code>ObjectSerializer</code> for the defensive copies.
+   */
+  public ObjectSerializer getObjectSerializer() {
+    return serial;
+  }
+  
+  
+  /**
+   * Set the <code>ObjectSerializer</code> for the defensive copies.
+   * @param serializer <code>ObjectSerializer</code> for the defensive copies.
+   * @return This modified <code>LocalChannel</code> instance.
+   */
+  public LocalChannel setObjectSerializer(ObjectSerializer serializer) {
+    if(serializer != null) {
+      serial = serializer;
+    }
+    return this;
+  }
+  
+  
+  /**
+   * Enable/Disable the defensive copy of the request
+   * and response objects (disabled by default).
+   * @param enabled <code>true</code> for copying the objects 
+   * through the <code>ObjectSerializer</code>, <code>false</code>
+   * for sharing them.
+   * @return This modified <code>LocalChannel</code> instance.
+   */
+  public LocalChannel setDefensiveCopyEnabled(boolean enabled) {
+    copy = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the defensive copy of the 
+   * request and response objects is enabled.
+   * @return <code>true</code> if the defensive copy
+   * is enabled, <code>false</code> otherwise.
+   */
+  public boolean isDefensiveCopyEnabled() {
+    return copy;
+  }
+  
+  
+  /**
+   * Copy the <code>Transport</code> object through the 
+   * <code>ObjectSerializer</code>, if the defensive copy 
+   * is enabled. The <code>InputStream</code> content is 
+   * not copied.
+   * @param trp The <code>Transport</code> object.
+   * @return The copied or the same <code>Transport</code> object.
+   * @throws IOException In case of error serializing the object.
+   */
+  private Transport copy(Transport trp) throws IOException {
+    if(!copy || trp == null || trp.getObject() == null)
+      return trp;
+    Object obj = serial.fromBytes(serial.toBytes(trp.getObject()));
+    return new Transport(obj, trp.getInputStream())
+        .setRequestId(trp.getRequestId());
+  }
+  
+  
+  /**
+   * Invoke the request and keep the response 
+   * for the <code>read</code> of the current thread.
+   * An error copying the response is returned as the 
+   * operation result, since the method was already invoked
+   * and should not be invoked again.
+   * @param trp The request <code>Transport</code>.
+   * @throws IOException If the channel is closed or 
+   * in case of error copying the request objects.
+   */
+  @Override
+  public void write(Transport trp) throws IOException {
+    if(trp == null) return;
+    if(closed) throw new IOException(
+        "[LocalChannel.write( Transport )] Channel closed");
+    Transport res = handler.handleInvoke(copy(trp));
+    try {
+      res = copy(res);
+    } catch(IOException e) {
+      OpResult op = new OpResult();
+      op.setSuccessOperation(false);
+      op.setError(new MethodInvocationException(
+          "[LocalChannel.write( Transport )] "
+              + "Error copying the response: "+ e.getMessage(), e));
+      res = new Transport(op).setRequestId(res.getRequestId());
+    }
+    last.set(res);
+  }
+  
+  
+  /**
+   * Return the response of the last request 
+   * written by the current thread.
+   * @return The response <code>Transport</code> or 
+   * <code>null</code> if no request was written.
+   */
+  @Override
+  public Transport read() throws IOException {
+    Transport trp = last.get();
+    last.remove();
+    return trp;
+  }
+  
+  
+  /**
+   * The channel remains valid until closed.
+   */
+  @Override
+  public boolean isValid() {
+    return !closed;
+  }
+  
+  
+  @Override
+  public void close() {
+    closed = true;
+  }
+  
+}
@@ -0,0 +1,327 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.channel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import us.pserver.revok.protocol.Transport;
+
+
+/**
+ * Multiplexed communication channel, allowing many threads 
+ * to make concurrent calls over one <code>PipelineChannel</code>
+ * connection. Each request carries a request ID (see 
+ * <code>Transport.getRequestId()</code>), and the server may 
+ * answer out of order, as the invocations finish. A single 
+ * reader thread receives the responses and hands them to the 
+ * waiting callers by the request ID. Responses without the 
+ * request ID, from servers not supporting multiplexed requests,
+ * are received in order and handed to the oldest caller, 
+ * in the send order.
+ * <br>The <code>write</code> and <code>read</code> methods 
+ * are paired by thread, so each thread reads the response 
+ * of its own last request.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class MultiplexChannel implements Channel {
+  
+  private final PipelineChannel channel;
+  
+  private final Map<Integer, CompletableFuture<Transport>> calls;
+  
+  private final ThreadLocal<CompletableFuture<Transport>> last;
+  
+  private final Semaphore responses;
+  
+  private final AtomicInteger ids;
+  
+  private final ReentrantLock sending;
+  
+  private volatile IOException error;
+  
+  private Thread reader;
+  
+  
+  /**
+   * Default constructor which receives the 
+   * multiplexed <code>PipelineChannel</code>.
+   * @param ch The multiplexed <code>PipelineChannel</code>.
+   */
+  public MultiplexChannel(PipelineChannel ch) {
+    if(ch == null)
+      throw new IllegalArgumentException(
+          "[MultiplexChannel( PipelineChannel )] "
+          + "Invalid PipelineChannel {"+ ch+ "}");
+    channel = ch;
+    // guarded by itself, in the send order
+    calls = new LinkedHashMap<>();
+    last = new ThreadLocal<>();
+    responses = new Semaphore(0);
+    ids = new AtomicInteger(0);
+    // held during the send, which may block on the socket
+    sending = new ReentrantLock();
+    error = null;
+    reader = null;
+  }
+  
+  
+  /**
+   * Get the multiplexed <code>PipelineChannel</code>.
+   * @return The multiplexed <code>PipelineChannel</code>.
+   */
+  public PipelineChannel getChannel() {
+    return channel;
+  }
+  
+  
+  /**
+   * Get the number of requests waiting for the response.
+   * @return The number of pending responses.
+   */
+  public int getPendingResponses() {
+    synchronized(calls) {
+      return calls.size();
+    }
+  }
+  
+  
+  /**
+   * Send the request, returning without waiting for the response.
+   * @param trp The request <code>Transport</code> object.
+   * @return The future response <code>Transport</code> object.
+   * @throws IOException In case of error sending the request.
+   */
+  public CompletableFuture<Transport> submit(Transport trp) throws IOException {
+    if(trp == null)
+      throw new IllegalArgumentException(
+          "[MultiplexChannel.submit( Transport )] "
+          + "Invalid Transport {"+ trp+ "}");
+    checkError();
+    CompletableFuture<Transport> call = new CompletableFuture<>();
+    int id = 0;
+    try {
+      sending.lock();
+      try {
+        checkError();
+        // The ID and the call registration follow the send 
+        // order, so responses without the request ID are 
+        // handed to the oldest call.
+        id = nextId();
+        trp.setRequestId(id);
+        synchronized(calls) {
+          calls.put(id, call);
+        }
+        channel.send(trp);
+        if(reader == null) startReader();
+      }
+      finally {
+        sending.unlock();
+      }
+    }
+    catch(IOException e) {
+      take(id);
+      fail(e);
+      throw e;
+    }
+    responses.release();
+    return call;
+  }
+  
+  
+  /**
+   * Wait for the future response.
+   * @param call The future response <code>Transport</code> object.
+   * @return The response <code>Transport</code> object.
+   * @throws IOException In case of error receiving the response.
+   */
+  public static Transport await(CompletableFuture<Transport> call) throws IOException {
+    try {
+      return call.get();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.toString());
+    }
+    catch(ExecutionException e) {
+      if(e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause().toString(), e.getCause());
+    }
+  }
+  
+  
+  /**
+   * Get the next request ID, never <code>0</code>.
+   * @return The next request ID.
+   */
+  private int nextId() {
+    int id = ids.incrementAndGet();
+    while(id == 0) id = ids.incrementAndGet();
+    return id;
+  }
+  
+  
+  /**
+   * Remove the waiting call of the request ID.
+   * @param id The request ID.
+   * @return The waiting call or <code>null</code>.
+   */
+  private CompletableFuture<Transport> take(int id) {
+    synchronized(calls) {
+      return calls.remove(id);
+    }
+  }
+  
+  
+  /**
+   * Remove the oldest waiting call, in the send order.
+   * @return The oldest waiting call or <code>null</code>.
+   */
+  private CompletableFuture<Transport> takeOldest() {
+    synchronized(calls) {
+      Iterator<CompletableFuture<Transport>> it = calls.values().iterator();
+      if(!it.hasNext()) return null;
+      CompletableFuture<Transport> call = it.next();
+      it.remove();
+      return call;
+    }
+  }
+  
+  
+  /**
+   * Throw the error which invalidated the channel, if any.
+   * @throws IOException The error which invalidated the channel.
+   */
+  private void checkError() throws IOException {
+    IOException e = error;
+    if(e != null) throw new IOException(
+        "[MultiplexChannel] Invalid channel: "+ e.getMessage(), e);
+  }
+  
+  
+  /**
+   * Start the reader thread of the responses.
+   */
+  private void startReader() {
+    reader = new Thread(this::receive, "MultiplexChannel-Reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+  
+  
+  /**
+   * Receive the responses while the channel is valid,
+   * completing the waiting calls by the request ID.
+   */
+  private void receive() {
+    try {
+      while(true) {
+        responses.acquire();
+        if(error != null) return;
+        Transport trp = channel.receive();
+        if(trp == null) throw new IOException(
+            "[MultiplexChannel] Connection closed by server");
+        CompletableFuture<Transport> call = (trp.getRequestId() != 0 
+            ? take(trp.getRequestId()) : takeOldest());
+        if(call != null) call.complete(trp);
+      }
+    }
+    catch(IOException e) {
+      fail(e);
+    }
+    catch(InterruptedException e) {
+      fail(new InterruptedIOException(e.toString()));
+    }
+  }
+  
+  
+  /**
+   * Invalidate the channel, failing all waiting calls.
+   * @param e The error occurred.
+   */
+  private void fail(IOException e) {
+    if(error == null) error = e;
+    channel.close();
+    // wake up the reader, if waiting
+    responses.release();
+    List<CompletableFuture<Transport>> failed;
+    synchronized(calls) {
+      failed = new ArrayList<>(calls.values());
+      calls.clear();
+    }
+    failed.forEach(call->call.completeExceptionally(e));
+  }
+  
+  
+  /**
+   * Send the request. The response is read 
+   * by the same thread with <code>read()</code>.
+   * @param trp The request <code>Transport</code> object.
+   * @throws IOException In case of error sending the request.
+   */
+  @Override
+  public void write(Transport trp) throws IOException {
+    last.set(submit(trp));
+  }
+  
+  
+  /**
+   * Wait for the response of the last request 
+   * sent by the current thread.
+   * @return The response <code>Transport</code> object,
+   * or <code>null</code> if no request was sent.
+   * @throws IOException In case of error receiving the response.
+   */
+  @Override
+  public Transport read() throws IOException {
+    CompletableFuture<Transport> call = last.get();
+    if(call == null) return null;
+    last.remove();
+    return await(call);
+  }
+  
+  
+  @Override
+  public boolean isValid() {
+    return error == null 
+        && (reader == null || channel.isValid());
+  }
+  
+  
+  @Override
+  public void close() {
+    fail(new IOException("[MultiplexChannel] Channel closed"));
+  }
+  
+}
@@ -0,0 +1,65 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.channel;
+
+import us.pserver.revok.protocol.Transport;
+import java.io.IOException;
+
+
+/**
+ * Client channel supporting pipelined requests: many 
+ * requests may be sent back to back, without waiting 
+ * for the responses, which are received in the same order.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public interface PipelineChannel extends Channel {
+  
+  
+  /**
+   * Send the request without waiting for the response.
+   * One thread may send while another one receives 
+   * the responses.
+   * @param trp The <code>Transport</code> object to send.
+   * @throws IOException In case of error sending the request.
+   */
+  public void send(Transport trp) throws IOException;
+  
+  
+  /**
+   * Receive the response of the oldest request 
+   * sent with <code>send(Transport)</code>.
+   * @return The <code>Transport</code> object received.
+   * @throws IOException In case of error receiving the response.
+   */
+  public Transport receive() throws IOException;
+  
+  
+  /**
+   * Get the number of requests sent and 
+   * waiting for the response.
+   * @return The number of pending responses.
+   */
+  public int getPendingResponses();
+  
+}
@@ -22,18 +22,20 @@
 package us.pserver.revok.channel;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.apache.http.HttpEntity;
 import us.pserver.cdr.crypt.CryptKey;
+import us.pserver.revok.http.ContentCoding;
 import us.pserver.revok.http.HttpConsts;
+import us.pserver.revok.http.HttpContentFactory;
 import us.pserver.revok.http.HttpEntityFactory;
 import us.pserver.revok.http.HttpEntityParser;
+import us.pserver.revok.http.SessionCipher;
 import us.pserver.revok.protocol.ObjectSerializer;
 import us.pserver.revok.protocol.Transport;
-import us.pserver.streams.IO;
 
 /**
  * Network channel for communication throught 
@@ -56,6 +58,12 @@ public class ServletChannel implements Channel {
   
   private boolean gzip;
   
+  private boolean legacy;
+  
+  private boolean direct;
+  
+  private SessionCipher session;
+  
   private boolean valid;
   
   
@@ -80,27 +88,68 @@ public class ServletChannel implements Channel {
     valid = true;
     key = null;
     gzip = false;
+    legacy = false;
+    direct = false;
+    session = null;
+  }
+  
+  
+  /**
+   * Enable the direct content encoder <code>HttpContentFactory</code>,
+   * which writes the binary envelope straight into the servlet 
+   * output with pooled buffers, instead of <code>HttpEntityFactory</code>.
+   * Not used for the legacy <code>&lt;xml&gt;</code> format.
+   * @param bool <code>true</code> for enable the direct encoder, <code>false</code> to disable it.
+   * @return This modified <code>ServletChannel</code> instance.
+   */
+  public ServletChannel setDirectEncoderEnabled(boolean bool) {
+    direct = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the direct content encoder is enabled.
+   * @return <code>true</code> if the direct encoder is enabled, <code>false</code> otherwise.
+   */
+  public boolean isDirectEncoderEnabled() {
+    return direct;
   }
 
 
   @Override
   public void write(Transport trp) throws IOException {
-    HttpEntityFactory fact = HttpEntityFactory.instance(serial);
-    if(gzip) {
-      fact.enableGZipCoder();
-      response.addHeader(HttpConsts.HD_CONT_ENCODING, 
-          HttpConsts.HD_VAL_GZIP_ENCODING);
-    } else {
-      response.addHeader(HttpConsts.HD_CONT_ENCODING, 
-          HttpConsts.HD_VAL_DEF_ENCODING);
+    response.addHeader(HttpConsts.HD_CONT_ENCODING, 
+        ContentCoding.contentEncoding(gzip));
+    if(direct && !legacy) {
+      HttpContentFactory fact = HttpContentFactory.instance(serial);
+      if(gzip) fact.enableGZipCoder();
+      if(session != null) fact.enableSessionCipher(session, false);
+      else if(key != null) fact.enableCryptCoder(key);
+      if(trp.hasContentEmbedded())
+        fact.put(trp.getInputStream());
+      fact.put(trp.createWriteVersion());
+      output = response.getOutputStream();
+      fact.writeTo(output);
+      output.close();
+      valid = false;
+      return;
     }
-    if(key != null) fact.enableCryptCoder(key);
+    
+    HttpEntityFactory fact = HttpEntityFactory.instance(serial);
+    if(gzip) fact.enableGZipCoder();
+    if(session != null) fact.enableSessionCipher(session, false);
+    else if(key != null) fact.enableCryptCoder(key);
+    // answer in the same format received
+    if(legacy) fact.enableLegacyFormat();
     if(trp.hasContentEmbedded())
       fact.put(trp.getInputStream());
     fact.put(trp.createWriteVersion());
-    InputStream inresp = fact.createStream();
+    HttpEntity entity = fact.create();
     output = response.getOutputStream();
-    IO.tc(inresp, output);
+    // encoded on the fly to the servlet output
+    entity.writeTo(output);
+    output.close();
     valid = false;
   }
 
@@ -108,11 +157,19 @@ public class ServletChannel implements Channel {
   @Override
   public Transport read() throws IOException {
     HttpEntityParser parser = HttpEntityParser.instance(serial);
+    // decode as sent, answer as accepted
     String enc = request.getHeader(HttpConsts.HD_CONT_ENCODING);
-    gzip = HttpConsts.HD_VAL_GZIP_ENCODING.equals(enc);
-    if(gzip) parser.enableGZipCoder();
-    
+    gzip = ContentCoding.acceptsGZip(
+        request.getHeader(HttpConsts.HD_ACCEPT_ENCODING), enc);
+    if(ContentCoding.isGZip(enc)) parser.enableGZipCoder();
+    // the stream section is read straight from the request
+    parser.enableLazyStream();
     parser.parse(request.getInputStream());
+    legacy = parser.isLegacyFormat();
+    // servlets have no connection state, a session 
+    // only lasts while answering the request starting it
+    if(parser.isSessionEncrypted())
+      session = parser.getSessionCipher();
     if(parser.getObject() == null) {
       throw new IOException("Invalid request. No object readed");
     }
@@ -0,0 +1,365 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.channel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * Compact binary framing of the raw TCP channels 
+ * (see <code>TcpRequestChannel</code> and <code>TcpResponseChannel</code>).
+ * Each message is a flags byte, followed by the content in 
+ * length prefixed chunks and an empty chunk at the end:
+ * <pre>
+ *   message := flags chunk* end
+ *   chunk   := length(int32, &gt; 0) bytes
+ *   end     := length(int32 = 0)
+ * </pre>
+ * The content is the same binary envelope of the HTTP channels,
+ * so the coders (GZIP, LZMA, preset dictionary and cryptography)
+ * are the same, replacing the HTTP request line and headers with 
+ * a single byte. The chunks let the stream content be sent and 
+ * received without buffering the whole message.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public abstract class TcpFrame {
+  
+  /**
+   * <code>
+   *  MARKER = 0xA0
+   * </code><br>
+   * High bits of the flags byte, identifying a frame.
+   */
+  public static final int MARKER = 0xA0;
+  
+  /**
+   * <code>
+   *  FLAG_GZIP = 0x01
+   * </code><br>
+   * The content is encoded with the GZIP coder.
+   */
+  public static final int FLAG_GZIP = 0x01;
+  
+  /**
+   * <code>
+   *  FLAG_ACCEPT_GZIP = 0x02
+   * </code><br>
+   * The client accepts a response encoded with the GZIP coder.
+   */
+  public static final int FLAG_ACCEPT_GZIP = 0x02;
+  
+  /**
+   * <code>
+   *  FLAG_CLOSE = 0x04
+   * </code><br>
+   * The server closes the connection after this response.
+   */
+  public static final int FLAG_CLOSE = 0x04;
+  
+  /**
+   * <code>
+   *  FLAG_UNAVAILABLE = 0x08
+   * </code><br>
+   * The server refused the connection, without content.
+   */
+  public static final int FLAG_UNAVAILABLE = 0x08;
+  
+  /**
+   * <code>
+   *  CHUNK_SIZE = 8*1024
+   * </code><br>
+   * Size of the chunks written.
+   */
+  public static final int CHUNK_SIZE = 8*1024;
+  
+  /**
+   * <code>
+   *  MAX_CHUNK_SIZE = 1024*1024
+   * </code><br>
+   * Maximum size of the chunks received.
+   */
+  public static final int MAX_CHUNK_SIZE = 1024*1024;
+  
+  
+  /**
+   * Read the flags byte of the next message.
+   * @param in The connection <code>InputStream</code>.
+   * @return The message flags, or <code>-1</code> if the 
+   * connection was closed before the message.
+   * @throws IOException In case of error reading, or
+   * if the message is not a frame.
+   */
+  public static int readFlags(InputStream in) throws IOException {
+    int b = in.read();
+    if(b < 0) return -1;
+    if((b & 0xF0) != MARKER)
+      throw new IOException("[TcpFrame.readFlags( InputStream )] "
+          + "Invalid frame {flags="+ Integer.toHexString(b)+ "}");
+    return b & 0x0F;
+  }
+  
+  
+  /**
+   * Write a message without content.
+   * @param out The connection <code>OutputStream</code>.
+   * @param flags The message flags.
+   * @throws IOException In case of error writing.
+   */
+  public static void writeEmpty(OutputStream out, int flags) throws IOException {
+    out.write(MARKER | (flags & 0x0F));
+    writeInt(out, 0);
+    out.flush();
+  }
+  
+  
+  private static void writeInt(OutputStream out, int i) throws IOException {
+    out.write((i >>> 24) & 0xFF);
+    out.write((i >>> 16) & 0xFF);
+    out.write((i >>>  8) & 0xFF);
+    out.write(i & 0xFF);
+  }
+  
+  
+  private static int readInt(InputStream in) throws IOException {
+    int b1 = in.read(), b2 = in.read(), b3 = in.read(), b4 = in.read();
+    if((b1 | b2 | b3 | b4) < 0) throw new EOFException(
+        "[TcpFrame.readInt( InputStream )] Connection closed in frame");
+    return (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
+  }
+  
+  
+  
+  /**
+   * Write the content of a message in chunks.
+   * Closing this stream ends the message and flushes
+   * the connection, without closing it.
+   */
+  public static class Output extends OutputStream {
+    
+    private final OutputStream out;
+    
+    private final byte[] buffer;
+    
+    private int count;
+    
+    private boolean closed;
+    
+    
+    /**
+     * Start a message, writing the flags byte.
+     * @param out The connection <code>OutputStream</code>,
+     * usually buffered.
+     * @param flags The message flags.
+     * @throws IOException In case of error writing.
+     */
+    public Output(OutputStream out, int flags) throws IOException {
+      if(out == null)
+        throw new IllegalArgumentException(
+            "[TcpFrame.Output( OutputStream, int )] "
+                + "Invalid OutputStream {"+ out+ "}");
+      this.out = out;
+      buffer = new byte[CHUNK_SIZE];
+      count = 0;
+      closed = false;
+      out.write(MARKER | (flags & 0x0F));
+    }
+    
+    
+    private void chunk(byte[] bs, int off, int len) throws IOException {
+      if(len < 1) return;
+      writeInt(out, len);
+      out.write(bs, off, len);
+    }
+    
+    
+    @Override
+    public void write(int b) throws IOException {
+      if(count == buffer.length) flushBuffer();
+      buffer[count++] = (byte) b;
+    }
+    
+    
+    @Override
+    public void write(byte[] bs, int off, int len) throws IOException {
+      if(len >= buffer.length) {
+        // big writes go straight, without copying
+        flushBuffer();
+        while(len > 0) {
+          int n = Math.min(len, MAX_CHUNK_SIZE);
+          chunk(bs, off, n);
+          off += n;
+          len -= n;
+        }
+        return;
+      }
+      if(len > buffer.length - count) flushBuffer();
+      System.arraycopy(bs, off, buffer, count, len);
+      count += len;
+    }
+    
+    
+    private void flushBuffer() throws IOException {
+      chunk(buffer, 0, count);
+      count = 0;
+    }
+    
+    
+    @Override
+    public void flush() throws IOException {
+      flushBuffer();
+      out.flush();
+    }
+    
+    
+    /**
+     * End the message and flush the connection.
+     * @throws IOException In case of error writing.
+     */
+    @Override
+    public void close() throws IOException {
+      if(closed) return;
+      closed = true;
+      flushBuffer();
+      writeInt(out, 0);
+      out.flush();
+    }
+    
+  }
+  
+  
+  
+  /**
+   * Read the content of a message, from the chunks 
+   * following the flags byte, until the end of the message.
+   * Closing this stream consumes the remaining content, 
+   * without closing the connection.
+   */
+  public static class Input extends InputStream {
+    
+    private final InputStream in;
+    
+    private int remaining;
+    
+    private boolean end;
+    
+    
+    /**
+     * Read the content after the flags byte.
+     * @param in The connection <code>InputStream</code>,
+     * usually buffered.
+     */
+    public Input(InputStream in) {
+      if(in == null)
+        throw new IllegalArgumentException(
+            "[TcpFrame.Input( InputStream )] "
+                + "Invalid InputStream {"+ in+ "}");
+      this.in = in;
+      remaining = 0;
+      end = false;
+    }
+    
+    
+    /**
+     * Read the next chunk length, if the current one is over.
+     * @return <code>true</code> if there is content to read,
+     * <code>false</code> at the end of the message.
+     */
+    private boolean next() throws IOException {
+      if(end) return false;
+      if(remaining > 0) return true;
+      remaining = readInt(in);
+      if(remaining < 0 || remaining > MAX_CHUNK_SIZE)
+        throw new IOException("[TcpFrame.Input.next()] "
+            + "Invalid chunk length {"+ remaining+ "}");
+      end = remaining == 0;
+      return !end;
+    }
+    
+    
+    @Override
+    public int read() throws IOException {
+      if(!next()) return -1;
+      int b = in.read();
+      if(b < 0) throw new EOFException(
+          "[TcpFrame.Input.read()] Connection closed in frame");
+      remaining--;
+      return b;
+    }
+    
+    
+    @Override
+    public int read(byte[] bs, int off, int len) throws IOException {
+      if(len == 0) return 0;
+      if(!next()) return -1;
+      int n = in.read(bs, off, Math.min(len, remaining));
+      if(n < 0) throw new EOFException(
+          "[TcpFrame.Input.read( byte[], int, int )] "
+              + "Connection closed in frame");
+      remaining -= n;
+      return n;
+    }
+    
+    
+    @Override
+    public int available() throws IOException {
+      return (end ? 0 : Math.min(remaining, in.available()));
+    }
+    
+    
+    /**
+     * Verifies if the whole message was read.
+     * @return <code>true</code> if the end of the 
+     * message was read, <code>false</code> otherwise.
+     */
+    public boolean isEnd() {
+      return end;
+    }
+    
+    
+    /**
+     * Consume the remaining content until the end 
+     * of the message, keeping the connection in 
+     * sync for the next message.
+     * @throws IOException In case of error reading.
+     */
+    @Override
+    public void close() throws IOException {
+      while(next()) {
+        // skips at most remaining bytes, fitting an int
+        int n = (int) in.skip(remaining);
+        if(n <= 0) {
+          if(in.read() < 0) throw new EOFException(
+              "[TcpFrame.Input.close()] Connection closed in frame");
+          n = 1;
+        }
+        remaining -= n;
+      }
+    }
+    
+  }
+  
+}
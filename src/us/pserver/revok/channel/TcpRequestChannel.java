@@ -0,0 +1,532 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.channel;
+
+import us.pserver.revok.protocol.Transport;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpEntity;
+import us.pserver.cdr.crypt.CryptAlgorithm;
+import us.pserver.cdr.crypt.CryptKey;
+import static us.pserver.chk.Checker.nullarg;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.http.DeflateDictionary;
+import us.pserver.revok.http.HttpContentFactory;
+import us.pserver.revok.http.HttpEntityFactory;
+import us.pserver.revok.http.HttpEntityParser;
+import us.pserver.revok.http.SessionCipher;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.ObjectSerializer;
+
+
+/**
+ * Raw TCP communication channel, client side.
+ * The messages are sent in the compact binary framing of 
+ * <code>TcpFrame</code>, without the HTTP request line, headers 
+ * and processing, to a <code>RevokServer</code> with the TCP 
+ * protocol enabled (see <code>RevokServer.enableTcpProtocol()</code>).
+ * The content and the coders are the same of 
+ * <code>HttpRequestChannel</code>, and so are the persistent 
+ * connection, the session key and the pipelined requests. 
+ * TLS is applied by the <code>HttpConnector</code>, if enabled.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class TcpRequestChannel implements PipelineChannel {
+  
+  /**
+   * <code>
+   *  TCP_CONN_BUFFER_SIZE = 8*1024
+   * </code><br>
+   * Default buffer size.
+   */
+  public static final int TCP_CONN_BUFFER_SIZE = 8*1024;
+
+  
+  private Socket sock;
+  
+  private InputStream input;
+  
+  private OutputStream output;
+  
+  private boolean crypt, gzip, lzma;
+  
+  private DeflateDictionary dict;
+  
+  private boolean direct;
+  
+  private boolean sessionEnabled;
+  
+  private CryptKey sessionKey;
+  
+  private SessionCipher session;
+  
+  private boolean keySent;
+  
+  private boolean valid;
+  
+  private CryptAlgorithm algo;
+  
+  private ObjectSerializer serial;
+  
+  private HttpConnector netc;
+  
+  private int flags;
+  
+  private final AtomicInteger pipelined;
+  
+  
+  /**
+   * Default constructor receives the network 
+   * information <code>HttpConnector</code> object.
+   * @param conn Network information 
+   * <code>HttpConnector</code> object.
+   */
+  public TcpRequestChannel(HttpConnector conn) {
+    if(conn == null)
+      throw new IllegalArgumentException(
+          "[TcpRequestChannel( HttpConnector )] "
+              + "Invalid HttpConnector {"+ conn+ "}");
+    netc = conn;
+    crypt = true;
+    gzip = true;
+    lzma = false;
+    dict = null;
+    direct = false;
+    sessionEnabled = false;
+    sessionKey = null;
+    session = null;
+    keySent = false;
+    sock = null;
+    input = null;
+    output = null;
+    valid = true;
+    flags = -1;
+    pipelined = new AtomicInteger(0);
+    algo = CryptAlgorithm.AES_CBC_PKCS5;
+    serial = new JsonSerializer();
+  }
+  
+  
+  /**
+   * Constructor which receives the <code>HttpConnector</code>
+   * and the <code>ObjectSerializer</code> objects.
+   * @param conn Network information 
+   * <code>HttpConnector</code> object.
+   * @param serializer <code>ObjectSerializer</code> for objects serialization.
+   */
+  public TcpRequestChannel(HttpConnector conn, ObjectSerializer serializer) {
+    this(conn);
+    if(serializer == null)
+      serializer = new JsonSerializer();
+    serial = serializer;
+  }
+  
+  
+  /**
+   * Get the <code>ObjectSerializer</code> for objects serialization.
+   * @return <code>ObjectSerializer</code> for objects serialization.
+   */
+  public ObjectSerializer getObjectSerializer() {
+    return serial;
+  }
+  
+  
+  /**
+   * Set the <code>ObjectSerializer</code> for objects serialization.
+   * @param serializer <code>ObjectSerializer</code> for objects serialization.
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setObjectSerializer(ObjectSerializer serializer) {
+    if(serializer != null) {
+      serial = serializer;
+    }
+    return this;
+  }
+  
+  
+  /**
+   * Get the network information <code>HttpConnector</code> object.
+   * @return Network information <code>HttpConnector</code> object.
+   */
+  public HttpConnector getHttpConnector() {
+    return netc;
+  }
+  
+  
+  /**
+   * Enable cryptography of data transmitted on the channel.
+   * The default cryptography algorithm is AES/CBC/PKCS5 padded.
+   * @param enabled <code>true</code> for enable criptography, <code>false</code> to disable it.
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setEncryptionEnabled(boolean enabled) {
+    crypt = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if cryptography is enalbed.
+   * @return <code>true</code> if cryptography is enabled, <code>false</code> otherwise.
+   */
+  public boolean isEncryptionEnabled() {
+    return crypt;
+  }
+  
+  
+  /**
+   * Enable GZIP compression of the data transmitted on the channel.
+   * The server is informed by the <code>TcpFrame.FLAG_ACCEPT_GZIP</code> 
+   * flag whether to compress the response, so compression 
+   * may be changed on each request.
+   * @param enabled <code>true</code> for enable GZIP compression, <code>false</code> to disable it.
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setGZipCompressionEnabled(boolean enabled) {
+    gzip = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if GZIP compression is enalbed.
+   * @return <code>true</code> if GZIP compression is enabled, <code>false</code> otherwise.
+   */
+  public boolean isGZipCompressionEnabled() {
+    return gzip;
+  }
+  
+  
+  /**
+   * Enable the LZMA codec for large content of the adaptive 
+   * compression, if GZIP compression is enabled.
+   * @param enabled <code>true</code> for enable the LZMA codec, <code>false</code> to disable it.
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setLzmaCompressionEnabled(boolean enabled) {
+    lzma = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the LZMA codec is enabled.
+   * @return <code>true</code> if the LZMA codec is enabled, <code>false</code> otherwise.
+   */
+  public boolean isLzmaCompressionEnabled() {
+    return lzma;
+  }
+  
+  
+  /**
+   * Set the preset dictionary for compression of small messages,
+   * if GZIP compression is enabled (see <code>DeflateDictionary</code>).
+   * Both sides of the connection must set the same dictionary.
+   * @param dict The preset dictionary or <code>null</code> to disable it.
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setDeflateDictionary(DeflateDictionary dict) {
+    if(dict != null) DeflateDictionary.register(dict);
+    this.dict = dict;
+    return this;
+  }
+  
+  
+  /**
+   * Get the preset dictionary for compression of small messages.
+   * @return The preset dictionary or <code>null</code> if not set.
+   */
+  public DeflateDictionary getDeflateDictionary() {
+    return dict;
+  }
+  
+  
+  /**
+   * Enable the direct content encoder <code>HttpContentFactory</code>,
+   * which writes the binary envelope with pooled buffers, 
+   * instead of <code>HttpEntityFactory</code>.
+   * @param enabled <code>true</code> for enable the direct encoder, <code>false</code> to disable it.
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setDirectEncoderEnabled(boolean enabled) {
+    direct = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the direct content encoder is enabled.
+   * @return <code>true</code> if the direct encoder is enabled, <code>false</code> otherwise.
+   */
+  public boolean isDirectEncoderEnabled() {
+    return direct;
+  }
+  
+  
+  /**
+   * Enable the session key of the connection (disabled by default). The
+   * cryptography key is sent once, on the first request of the
+   * connection, and the ciphers are reused by the next requests.
+   * If disabled, a new random key is created and sent on every 
+   * request.
+   * @param enabled <code>true</code> for enable the session key, <code>false</code> to disable it.
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setSessionKeyEnabled(boolean enabled) {
+    sessionEnabled = enabled;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the session key of the connection is enabled.
+   * @return <code>true</code> if the session key is enabled, <code>false</code> otherwise.
+   */
+  public boolean isSessionKeyEnabled() {
+    return sessionEnabled;
+  }
+  
+  
+  /**
+   * Set the session key of the connection, allowing a 
+   * key to be reused (resumed) across connections.
+   * Must be set before the first request.
+   * @param key The session key.
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setSessionKey(CryptKey key) {
+    nullarg(CryptKey.class, key);
+    sessionKey = key;
+    session = null;
+    keySent = false;
+    return this;
+  }
+  
+  
+  /**
+   * Get the session key of the connection.
+   * @return The session key, or <code>null</code> 
+   * if there is no session yet.
+   */
+  public CryptKey getSessionKey() {
+    return sessionKey;
+  }
+  
+  
+  /**
+   * Define the cryptography algorithm utilized.
+   * The default cryptography algorithm is AES CBC PKCS5 padded.
+   * @param ca CryptAlgorithm
+   * @return This modified <code>TcpRequestChannel</code> instance.
+   */
+  public TcpRequestChannel setCryptAlgorithm(CryptAlgorithm ca) {
+    nullarg(CryptAlgorithm.class, ca);
+    algo = ca;
+    return this;
+  }
+  
+  
+  /**
+   * Return the cryptography algorithm utilized.
+   * The default cryptography algorithm is AES CBC PKCS5 padded.
+   * @return The cryptography algorithm utilized.
+   */
+  public CryptAlgorithm getCryptAlgorithm() {
+    return algo;
+  }
+  
+  
+  /**
+   * Create the request content entity, encoding the 
+   * <code>Transport</code> object, cryptography key
+   * and eventual stream content.
+   * @param trp The <code>Transport</code> object.
+   * @return The request content entity.
+   * @throws IOException In case of error encoding the content.
+   */
+  private HttpEntity createContent(Transport trp) throws IOException {
+    boolean insession = crypt && sessionEnabled;
+    if(insession && session == null) {
+      if(sessionKey == null)
+        sessionKey = CryptKey.createRandomKey(algo);
+      session = new SessionCipher(sessionKey);
+    }
+    CryptKey key = null;
+    if(insession) key = sessionKey;
+    else if(crypt) key = CryptKey.createRandomKey(algo);
+    
+    HttpEntity entity;
+    if(direct) {
+      HttpContentFactory fac = HttpContentFactory.instance(serial);
+      if(gzip) fac.enableGZipCoder();
+      if(lzma) fac.enableLzmaCoder();
+      if(dict != null) fac.enableDictionaryCoder(dict);
+      if(insession) fac.enableSessionCipher(session, !keySent);
+      else if(crypt) fac.enableCryptCoder(key);
+      fac.put(trp.createWriteVersion());
+      if(trp.hasContentEmbedded())
+        fac.put(trp.getInputStream());
+      entity = fac.create();
+    }
+    else {
+      HttpEntityFactory fac = HttpEntityFactory.instance(serial);
+      if(gzip) fac.enableGZipCoder();
+      if(lzma) fac.enableLzmaCoder();
+      if(dict != null) fac.enableDictionaryCoder(dict);
+      if(insession) fac.enableSessionCipher(session, !keySent);
+      else if(crypt) fac.enableCryptCoder(key);
+      fac.put(trp.createWriteVersion());
+      if(trp.hasContentEmbedded())
+        fac.put(trp.getInputStream());
+      entity = fac.create();
+    }
+    if(insession) keySent = true;
+    return entity;
+  }
+  
+  
+  @Override
+  public void write(Transport trp) throws IOException {
+    this.send(trp);
+    this.verifyResponse();
+  }
+  
+  
+  /**
+   * Send the request without waiting for the response.
+   * Many requests may be sent back to back, and the responses
+   * must be received with <code>receive()</code>, in the same 
+   * order. One thread may send while another one receives 
+   * the responses.
+   * @param trp The <code>Transport</code> object to send.
+   * @throws IOException In case of error sending the request.
+   */
+  @Override
+  public void send(Transport trp) throws IOException {
+    if(trp == null) return;
+    if(sock == null) {
+      sock = netc.connectSocket();
+      input = new BufferedInputStream(
+          sock.getInputStream(), TCP_CONN_BUFFER_SIZE);
+      output = new BufferedOutputStream(
+          sock.getOutputStream(), TCP_CONN_BUFFER_SIZE);
+    }
+    HttpEntity entity = createContent(trp);
+    // the server compresses the response only if accepted
+    int fl = (gzip ? TcpFrame.FLAG_GZIP | TcpFrame.FLAG_ACCEPT_GZIP : 0);
+    try(TcpFrame.Output out = new TcpFrame.Output(output, fl)) {
+      entity.writeTo(out);
+    }
+    pipelined.incrementAndGet();
+  }
+  
+  
+  /**
+   * Receive the response of the oldest request 
+   * sent with <code>send(Transport)</code>.
+   * @return The <code>Transport</code> object received.
+   * @throws IOException In case of error receiving the response.
+   */
+  @Override
+  public Transport receive() throws IOException {
+    if(pipelined.get() < 1) throw new IOException(
+        "[TcpRequestChannel.receive()] No request pending response");
+    this.verifyResponse();
+    return this.read();
+  }
+  
+  
+  @Override
+  public int getPendingResponses() {
+    return pipelined.get();
+  }
+  
+  
+  /**
+   * Read the flags of the response from server, 
+   * throwing an exception if the response is not expected.
+   * @throws IOException in case of error reading the response.
+   */
+  private void verifyResponse() throws IOException {
+    pipelined.decrementAndGet();
+    flags = TcpFrame.readFlags(input);
+    if(flags < 0) {
+      valid = false;
+      throw new IOException(
+          "[TcpRequestChannel.verifyResponse()] "
+              + "Connection closed by server");
+    }
+    if((flags & TcpFrame.FLAG_UNAVAILABLE) != 0) {
+      valid = false;
+      new TcpFrame.Input(input).close();
+      throw new IOException(
+          "[TcpRequestChannel.verifyResponse()] "
+              + "Server unavailable, connection refused");
+    }
+    if((flags & TcpFrame.FLAG_CLOSE) != 0)
+      valid = false;
+  }
+  
+  
+  @Override
+  public Transport read() throws IOException {
+    int fl = flags;
+    if(fl < 0) return null;
+    flags = -1;
+    TcpFrame.Input content = new TcpFrame.Input(input);
+    HttpEntityParser par = HttpEntityParser.instance(serial);
+    if((fl & TcpFrame.FLAG_GZIP) != 0) 
+      par.enableGZipCoder();
+    par.setSessionCipher(session);
+    par.parse(content);
+    content.close();
+    Transport t = (Transport) par.getObject();
+    if(par.getInputStream() != null)
+      t.setInputStream(par.getInputStream());
+    return t;
+  }
+  
+  
+  @Override
+  public boolean isValid() {
+    return valid && sock != null && sock.isConnected() 
+        && !sock.isClosed() && !sock.isOutputShutdown();
+  }
+  
+  
+  @Override
+  public void close() {
+    try {
+      if(sock != null)
+        sock.close(); 
+    }
+    catch(IOException e) {}
+  }
+  
+}
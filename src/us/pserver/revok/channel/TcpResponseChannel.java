@@ -0,0 +1,609 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.channel;
+
+import us.pserver.revok.protocol.Transport;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import us.pserver.cdr.crypt.CryptKey;
+import us.pserver.revok.http.HttpContentFactory;
+import us.pserver.revok.http.HttpEntityFactory;
+import us.pserver.revok.http.HttpEntityParser;
+import us.pserver.revok.http.DeflateDictionary;
+import us.pserver.revok.http.SessionCipher;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.ObjectSerializer;
+
+
+/**
+ * Raw TCP communication channel, server side.
+ * Receives the requests of <code>TcpRequestChannel</code>
+ * in the compact binary framing of <code>TcpFrame</code>.
+ * Supports the same coders, persistent connections, 
+ * pipelined requests (with read ahead) and multiplexed 
+ * requests of <code>HttpResponseChannel</code>.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class TcpResponseChannel implements Channel {
+  
+  private volatile boolean valid;
+  
+  private volatile boolean closing;
+  
+  private boolean gzip, lzma;
+  
+  private DeflateDictionary dict;
+  
+  private boolean direct;
+  
+  private SessionCipher session;
+  
+  private volatile Received current;
+  
+  private final Map<Integer, Received> answering;
+  
+  private final ReentrantLock writing;
+  
+  private boolean readAhead;
+  
+  private ExecutorService readers;
+  
+  private Future<Received> ahead;
+  
+  private final Socket sock;
+  
+  private final InputStream input;
+  
+  private final OutputStream output;
+  
+  private ObjectSerializer serial;
+  
+  
+  /**
+   * Default constructor which receives the 
+   * connected <code>Socket</code>.
+   * @param sock The connected <code>Socket</code>.
+   * @throws IOException In case of error getting 
+   * the socket streams.
+   */
+  public TcpResponseChannel(Socket sock) throws IOException {
+    if(sock == null || !sock.isConnected() || sock.isClosed())
+      throw new IllegalArgumentException(
+          "[TcpResponseChannel( Socket )] "
+          + "Invalid Socket {"+ sock+ "}");
+    this.sock = sock;
+    input = new BufferedInputStream(
+        sock.getInputStream(), TcpRequestChannel.TCP_CONN_BUFFER_SIZE);
+    output = new BufferedOutputStream(
+        sock.getOutputStream(), TcpRequestChannel.TCP_CONN_BUFFER_SIZE);
+    valid = true;
+    closing = false;
+    gzip = true;
+    lzma = false;
+    dict = null;
+    direct = false;
+    session = null;
+    current = new Received();
+    answering = new ConcurrentHashMap<>();
+    // frames of many threads never interleave; unlike
+    // a monitor, it does not pin a blocked virtual thread
+    writing = new ReentrantLock();
+    readAhead = true;
+    readers = null;
+    ahead = null;
+    serial = new JsonSerializer();
+  }
+  
+  
+  /**
+   * Constructor which receives the connected 
+   * <code>Socket</code> and <code>ObjectSerializer</code>.
+   * @param sock The connected <code>Socket</code>.
+   * @param os <code>ObjectSerializer</code> for object serialization.
+   * @throws IOException In case of error getting 
+   * the socket streams.
+   */
+  public TcpResponseChannel(Socket sock, ObjectSerializer os) throws IOException {
+    this(sock);
+    if(os == null) os = new JsonSerializer();
+    serial = os;
+  }
+  
+  
+  /**
+   * Get the <code>ObjectSerializer</code> for objects serialization.
+   * @return <code>ObjectSerializer</code> for objects serialization.
+   */
+  public ObjectSerializer getObjectSerializer() {
+    return serial;
+  }
+  
+  
+  /**
+   * Set the <code>ObjectSerializer</code> for objects serialization.
+   * @param serializer <code>ObjectSerializer</code> for objects serialization.
+   * @return This modified <code>TcpResponseChannel</code> instance.
+   */
+  public TcpResponseChannel setObjectSerializer(ObjectSerializer serializer) {
+    if(serializer != null) {
+      serial = serializer;
+    }
+    return this;
+  }
+  
+  
+  /**
+   * Get the connection <code>Socket</code>.
+   * @return The connection <code>Socket</code>.
+   */
+  public Socket getSocket() {
+    return sock;
+  }
+  
+  
+  /**
+   * Enable GZIP compression of the data transmitted on the channel.
+   * Responses are compressed only if the request accepts it
+   * (<code>TcpFrame.FLAG_ACCEPT_GZIP</code>), while requests 
+   * are always decoded as described by their flags.
+   * @param bool <code>true</code> for enable GZIP compression, <code>false</code> to disable it.
+   * @return This modified <code>TcpResponseChannel</code> instance.
+   */
+  public TcpResponseChannel setGZipCompressionEnabled(boolean bool) {
+    gzip = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if GZIP compression is enalbed.
+   * @return <code>true</code> if GZIP compression is enabled, <code>false</code> otherwise.
+   */
+  public boolean isGZipCompressionEnabled() {
+    return gzip;
+  }
+  
+  
+  /**
+   * Enable the direct content encoder <code>HttpContentFactory</code>,
+   * which writes the binary envelope with pooled buffers,
+   * instead of <code>HttpEntityFactory</code>.
+   * @param bool <code>true</code> for enable the direct encoder, <code>false</code> to disable it.
+   * @return This modified <code>TcpResponseChannel</code> instance.
+   */
+  public TcpResponseChannel setDirectEncoderEnabled(boolean bool) {
+    direct = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the direct content encoder is enabled.
+   * @return <code>true</code> if the direct encoder is enabled, <code>false</code> otherwise.
+   */
+  public boolean isDirectEncoderEnabled() {
+    return direct;
+  }
+  
+  
+  /**
+   * Enable the LZMA codec for large content of the adaptive 
+   * compression, if GZIP compression is enabled.
+   * @param bool <code>true</code> for enable the LZMA codec, <code>false</code> to disable it.
+   * @return This modified <code>TcpResponseChannel</code> instance.
+   */
+  public TcpResponseChannel setLzmaCompressionEnabled(boolean bool) {
+    lzma = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the LZMA codec is enabled.
+   * @return <code>true</code> if the LZMA codec is enabled, <code>false</code> otherwise.
+   */
+  public boolean isLzmaCompressionEnabled() {
+    return lzma;
+  }
+  
+  
+  /**
+   * Set the preset dictionary for compression of small messages,
+   * if GZIP compression is enabled (see <code>DeflateDictionary</code>).
+   * Both sides of the connection must set the same dictionary.
+   * @param dict The preset dictionary or <code>null</code> to disable it.
+   * @return This modified <code>TcpResponseChannel</code> instance.
+   */
+  public TcpResponseChannel setDeflateDictionary(DeflateDictionary dict) {
+    if(dict != null) DeflateDictionary.register(dict);
+    this.dict = dict;
+    return this;
+  }
+  
+  
+  /**
+   * Get the preset dictionary for compression of small messages.
+   * @return The preset dictionary or <code>null</code> if not set.
+   */
+  public DeflateDictionary getDeflateDictionary() {
+    return dict;
+  }
+  
+  
+  /**
+   * Enable the read ahead of pipelined requests (default).
+   * When the next request was already sent by the client,
+   * it is read and decoded by another thread while the 
+   * current one is being invoked. Requests with lazy stream 
+   * content are never read ahead. Requires the executor set 
+   * with <code>setReadAheadExecutor(ExecutorService)</code>.
+   * @param bool <code>true</code> for enable read ahead, <code>false</code> to disable it.
+   * @return This modified <code>TcpResponseChannel</code> instance.
+   */
+  public TcpResponseChannel setReadAheadEnabled(boolean bool) {
+    readAhead = bool;
+    return this;
+  }
+  
+  
+  /**
+   * Set the <code>ExecutorService</code> which reads ahead the
+   * pipelined requests, owned by the server. Without executor,
+   * or when it refuses the task, the next request is read only 
+   * after the current one is answered.
+   * @param exec The read ahead <code>ExecutorService</code>,
+   * or <code>null</code> to not read ahead.
+   * @return This modified <code>TcpResponseChannel</code> instance.
+   */
+  public TcpResponseChannel setReadAheadExecutor(ExecutorService exec) {
+    readers = exec;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if read ahead of pipelined requests is enabled.
+   * @return <code>true</code> if read ahead is enabled, <code>false</code> otherwise.
+   */
+  public boolean isReadAheadEnabled() {
+    return readAhead;
+  }
+  
+  
+  /**
+   * Verifies if the next pipelined request is being read ahead,
+   * so the connection must not be parked waiting for input.
+   * @return <code>true</code> if the next request is being 
+   * read ahead, <code>false</code> otherwise.
+   */
+  public boolean hasReadAhead() {
+    return ahead != null;
+  }
+  
+  
+  /**
+   * Verifies if there are input bytes already readed
+   * from the socket (i.e: a pipelined request).
+   * This method never blocks.
+   * @return <code>true</code> if there are buffered input bytes,
+   * <code>false</code> otherwise.
+   */
+  public boolean hasBufferedInput() {
+    try {
+      return input.available() > 0;
+    } catch(IOException e) {
+      return false;
+    }
+  }
+  
+  
+  /**
+   * Disable the connection persistence. The next response 
+   * is sent with the <code>TcpFrame.FLAG_CLOSE</code> flag,
+   * and the channel becomes invalid after it.
+   * @return This modified <code>TcpResponseChannel</code> instance.
+   */
+  public TcpResponseChannel closeAfterResponse() {
+    closing = true;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the connection persistence was disabled
+   * with <code>closeAfterResponse()</code>.
+   * @return <code>true</code> if the next response
+   * closes the connection, <code>false</code> otherwise.
+   */
+  public boolean isClosingAfterResponse() {
+    return closing;
+  }
+  
+  
+  /**
+   * Get the criptography key.
+   * @return criptography key.
+   */
+  public CryptKey getCryptKey() {
+    return current.key;
+  }
+  
+  
+  /**
+   * Refuse the connection, sending an empty response with 
+   * the <code>TcpFrame.FLAG_UNAVAILABLE</code> flag, so the 
+   * client fails without waiting. The channel becomes invalid.
+   * @throws IOException In case of error writing the response.
+   */
+  public void refuse() throws IOException {
+    writing.lock();
+    try {
+      valid = false;
+      TcpFrame.writeEmpty(output, TcpFrame.FLAG_UNAVAILABLE);
+    }
+    finally {
+      writing.unlock();
+    }
+  }
+  
+  
+  /**
+   * Encode the response content, with the 
+   * <code>Transport</code> object, cryptography key
+   * and eventual stream content.
+   * @param trp <code>Transport</code> object.
+   * @param rec The answered request.
+   * @param out The response frame.
+   * @throws IOException In case of error writing the response.
+   */
+  private void writeContent(Transport trp, Received rec, OutputStream out) throws IOException {
+    if(direct) {
+      HttpContentFactory fac = HttpContentFactory.instance(serial);
+      if(rec.gzipReply) fac.enableGZipCoder();
+      if(lzma) fac.enableLzmaCoder();
+      if(dict != null) fac.enableDictionaryCoder(dict);
+      if(rec.insession) fac.enableSessionCipher(session, false);
+      else if(rec.key != null) fac.enableCryptCoder(rec.key);
+      fac.put(trp.createWriteVersion());
+      if(trp.getInputStream() != null) {
+        fac.put(trp.getInputStream());
+      }
+      fac.create().writeTo(out);
+      return;
+    }
+    
+    HttpEntityFactory fac = HttpEntityFactory.instance(serial);
+    if(rec.gzipReply) fac.enableGZipCoder();
+    if(lzma) fac.enableLzmaCoder();
+    if(dict != null) fac.enableDictionaryCoder(dict);
+    if(rec.insession) fac.enableSessionCipher(session, false);
+    else if(rec.key != null) fac.enableCryptCoder(rec.key);
+    fac.put(trp.createWriteVersion());
+    if(trp.getInputStream() != null) {
+      fac.put(trp.getInputStream());
+    }
+    fac.create().writeTo(out);
+  }
+  
+  
+  /**
+   * Consume the remaining content of the request,
+   * if its stream was read lazily, keeping the connection 
+   * in sync for the next request.
+   * @param rec The received request.
+   * @throws IOException In case of error reading.
+   */
+  private void consumePending(Received rec) throws IOException {
+    if(rec.pending == null) return;
+    TcpFrame.Input content = rec.pending;
+    rec.pending = null;
+    rec.upload = null;
+    content.close();
+  }
+  
+  
+  /**
+   * Write the response of the last request read, or of the 
+   * request with the same ID, for multiplexed requests 
+   * (see <code>Transport.getRequestId()</code>). Multiplexed 
+   * requests may be answered out of order, by many threads.
+   * @param trp The response <code>Transport</code> object.
+   * @throws IOException In case of error writing the response.
+   */
+  @Override
+  public void write(Transport trp) throws IOException {
+    if(trp == null) return;
+    writing.lock();
+    try {
+      Received rec = current;
+      if(trp.getRequestId() != 0) {
+        Received req = answering.remove(trp.getRequestId());
+        if(req != null) rec = req;
+      }
+      // close only after answering all multiplexed requests
+      boolean last = closing && answering.isEmpty();
+      // The request stream must be consumed before answering,
+      // unless it is echoed back in the response itself.
+      if(trp.getInputStream() != rec.upload)
+        consumePending(rec);
+      int flags = (rec.gzipReply ? TcpFrame.FLAG_GZIP : 0)
+          | (last ? TcpFrame.FLAG_CLOSE : 0);
+      try(TcpFrame.Output out = new TcpFrame.Output(output, flags)) {
+        writeContent(trp, rec, out);
+      }
+      consumePending(rec);
+      if(last) valid = false;
+    }
+    finally {
+      writing.unlock();
+    }
+  }
+  
+  
+  @Override
+  public Transport read() throws IOException {
+    Received rec;
+    if(ahead != null) {
+      rec = awaitAhead();
+    }
+    else {
+      if(sock.isClosed()) return null;
+      consumePending(current);
+      rec = receive();
+    }
+    if(rec == null) return null;
+    
+    current = rec;
+    session = rec.session;
+    int id = rec.transport.getRequestId();
+    if(id != 0) answering.put(id, rec);
+    // the next request is decoded while this one is invoked,
+    // unless multiplexed, when invoked by another thread.
+    ExecutorService rds = readers;
+    if(readAhead && rds != null && id == 0 
+        && rec.pending == null && hasBufferedInput()) {
+      try {
+        ahead = rds.submit(this::receive);
+      } catch(RejectedExecutionException e) {
+        ahead = null;
+      }
+    }
+    return rec.transport;
+  }
+  
+  
+  /**
+   * Wait for the request being read ahead.
+   * @return The received request or <code>null</code> 
+   * if the connection was closed.
+   * @throws IOException In case of error reading the request.
+   */
+  private Received awaitAhead() throws IOException {
+    Future<Received> f = ahead;
+    ahead = null;
+    try {
+      return f.get();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.toString());
+    }
+    catch(ExecutionException e) {
+      if(e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause().toString(), e.getCause());
+    }
+  }
+  
+  
+  /**
+   * Read and decode the next request from the connection.
+   * The state of the request is returned instead of set 
+   * on this channel, so it may be read ahead while the 
+   * current request is answered.
+   * @return The received request or <code>null</code> 
+   * if the connection was closed.
+   * @throws IOException In case of error reading the request.
+   */
+  private Received receive() throws IOException {
+    int flags = TcpFrame.readFlags(input);
+    if(flags < 0) return null;
+    
+    Received rec = new Received();
+    // decode as sent, answer as accepted
+    rec.gzipReply = gzip && (flags & TcpFrame.FLAG_ACCEPT_GZIP) != 0;
+    TcpFrame.Input content = new TcpFrame.Input(input);
+    HttpEntityParser par = HttpEntityParser.instance(serial);
+    if((flags & TcpFrame.FLAG_GZIP) != 0) par.enableGZipCoder();
+    // the stream section is read straight from the 
+    // connection, while the method is invoked.
+    par.enableLazyStream();
+    // the session key is received once per connection
+    par.setSessionCipher(session);
+    par.parse(content);
+    rec.session = par.getSessionCipher();
+    rec.insession = par.isSessionEncrypted();
+    if(par.hasLazyStream()) {
+      rec.pending = content;
+      rec.upload = par.getInputStream();
+    }
+    else {
+      content.close();
+    }
+    rec.key = par.getCryptKey();
+    rec.transport = (Transport) par.getObject();
+    if(par.getInputStream() != null)
+      rec.transport.setInputStream(par.getInputStream());
+    return rec;
+  }
+  
+  
+  @Override
+  public boolean isValid() {
+    return valid;
+  }
+  
+  
+  @Override
+  public void close() {
+    try {
+      sock.close();
+    } catch(IOException e) {}
+  }
+  
+  
+  /**
+   * A decoded request and the state needed to answer it.
+   */
+  private static class Received {
+    
+    private Transport transport;
+    
+    private CryptKey key;
+    
+    private boolean gzipReply = true;
+    
+    private SessionCipher session;
+    
+    private boolean insession;
+    
+    private TcpFrame.Input pending;
+    
+    private InputStream upload;
+    
+  }
+  
+}
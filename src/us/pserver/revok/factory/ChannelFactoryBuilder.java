@@ -21,11 +21,21 @@
 
 package us.pserver.revok.factory;
 
+import java.io.IOException;
+import java.net.Socket;
 import org.apache.http.HttpServerConnection;
 import us.pserver.cdr.crypt.CryptAlgorithm;
+import us.pserver.cdr.crypt.CryptKey;
 import us.pserver.revok.HttpConnector;
+import us.pserver.revok.TlsOptions;
+import us.pserver.revok.channel.Http2RequestChannel;
 import us.pserver.revok.channel.HttpRequestChannel;
 import us.pserver.revok.channel.HttpResponseChannel;
+import us.pserver.revok.channel.LocalChannel;
+import us.pserver.revok.channel.TcpRequestChannel;
+import us.pserver.revok.channel.TcpResponseChannel;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.http.DeflateDictionary;
 import us.pserver.revok.protocol.ObjectSerializer;
 
 
@@ -37,17 +47,31 @@ import us.pserver.revok.protocol.ObjectSerializer;
  */
 public class ChannelFactoryBuilder {
   
-  private boolean gzip, crypt;
+  private boolean gzip, lzma, crypt, session;
+  
+  private boolean readAhead;
+  
+  private boolean copy;
   
   private CryptAlgorithm algo;
   
+  private TlsOptions tls;
+  
+  private DeflateDictionary dict;
+  
   
   /**
    * Default constructor without arguments.
    */
   public ChannelFactoryBuilder() {
     gzip = false; crypt = false;
+    lzma = false;
+    session = false;
+    readAhead = true;
+    copy = false;
     algo = CryptAlgorithm.AES_CBC_PKCS5;
+    tls = null;
+    dict = null;
   }
   
   
@@ -71,6 +95,58 @@ public class ChannelFactoryBuilder {
   }
   
   
+  /**
+   * Configure the LZMA codec for large content on the factory,
+   * in addition to GZIP compression, which chooses the codec 
+   * of each message section by its size and content.
+   * @return This instance of HttpFactoryProvider.
+   */
+  public ChannelFactoryBuilder enableLzmaCompression() {
+    gzip = true;
+    lzma = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the LZMA codec on the factory.
+   * @return This instance of HttpFactoryProvider.
+   */
+  public ChannelFactoryBuilder disableLzmaCompression() {
+    lzma = false;
+    return this;
+  }
+  
+  
+  /**
+   * Configure the preset dictionary for compression of small 
+   * messages on the factory, in addition to GZIP compression
+   * (see <code>DeflateDictionary</code>). Client and server
+   * factories must be configured with the same dictionary.
+   * @param dict The preset dictionary.
+   * @return This instance of HttpFactoryProvider.
+   */
+  public ChannelFactoryBuilder enableDictionary(DeflateDictionary dict) {
+    if(dict == null)
+      throw new IllegalArgumentException(
+          "[ChannelFactoryBuilder.enableDictionary( DeflateDictionary )] "
+          + "Invalid DeflateDictionary {"+ dict+ "}");
+    gzip = true;
+    this.dict = dict;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the preset dictionary on the factory.
+   * @return This instance of HttpFactoryProvider.
+   */
+  public ChannelFactoryBuilder disableDictionary() {
+    dict = null;
+    return this;
+  }
+  
+  
   /**
    * Configure cryptography on the factory.
    * @return This instance of HttpFactoryProvider.
@@ -103,6 +179,109 @@ public class ChannelFactoryBuilder {
   }
   
   
+  /**
+   * Enable the session key of the connection. 
+   * All channels created by the factory share a key, 
+   * created once and sent once per connection. Requires a 
+   * server which keeps the connection state, like 
+   * <code>RevokServer</code>; <code>RevokServlet</code> 
+   * does not support it.
+   * @return This modified <code>ChannelFactoryBuilder</code> instance.
+   */
+  public ChannelFactoryBuilder enableSessionKey() {
+    session = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the session key of the connection (default), creating 
+   * and sending a new cryptography key on every request,
+   * as required by servers without connection state.
+   * @return This modified <code>ChannelFactoryBuilder</code> instance.
+   */
+  public ChannelFactoryBuilder disableSessionKey() {
+    session = false;
+    return this;
+  }
+  
+  
+  /**
+   * Configure TLS on the request channels, applying the 
+   * <code>TlsOptions</code> on the <code>HttpConnector</code>
+   * of created channels. The cryptography coder is disabled,
+   * since the TLS record layer already encrypts the content.
+   * On the server side, the same <code>TlsOptions</code> must 
+   * be set on the listening <code>HttpConnector</code>.
+   * @param opts The <code>TlsOptions</code> profile.
+   * @return This modified <code>ChannelFactoryBuilder</code> instance.
+   */
+  public ChannelFactoryBuilder enableTls(TlsOptions opts) {
+    if(opts == null)
+      throw new IllegalArgumentException(
+          "[ChannelFactoryBuilder.enableTls( TlsOptions )] "
+              + "Invalid TlsOptions {"+ opts+ "}");
+    tls = opts;
+    crypt = false;
+    return this;
+  }
+  
+  
+  /**
+   * Disable TLS on the request channels.
+   * @return This modified <code>ChannelFactoryBuilder</code> instance.
+   */
+  public ChannelFactoryBuilder disableTls() {
+    tls = null;
+    return this;
+  }
+  
+  
+  /**
+   * Configure the read ahead of pipelined requests 
+   * on the response channels (default).
+   * @return This modified <code>ChannelFactoryBuilder</code> instance.
+   */
+  public ChannelFactoryBuilder enableReadAhead() {
+    readAhead = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the read ahead of pipelined requests 
+   * on the response channels.
+   * @return This modified <code>ChannelFactoryBuilder</code> instance.
+   */
+  public ChannelFactoryBuilder disableReadAhead() {
+    readAhead = false;
+    return this;
+  }
+  
+  
+  /**
+   * Configure the defensive copy of the request and
+   * response objects on the local channels.
+   * @return This modified <code>ChannelFactoryBuilder</code> instance.
+   * @see us.pserver.revok.channel.LocalChannel
+   */
+  public ChannelFactoryBuilder enableDefensiveCopy() {
+    copy = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the defensive copy of the request and
+   * response objects on the local channels (default).
+   * @return This modified <code>ChannelFactoryBuilder</code> instance.
+   */
+  public ChannelFactoryBuilder disableDefensiveCopy() {
+    copy = false;
+    return this;
+  }
+  
+  
   /**
    * Return a new instance of HttpFactoryBuilder.
    * @return A new instance of HttpFactoryBuilder.
@@ -118,6 +297,17 @@ public class ChannelFactoryBuilder {
    */
   public ChannelFactory<HttpConnector> createHttpRequestChannelFactory() {
     return new ChannelFactory<HttpConnector>() {
+      private CryptKey key = null;
+      private synchronized HttpRequestChannel session(HttpRequestChannel channel) {
+        channel.setSessionKeyEnabled(session);
+        if(!crypt || !session) return channel;
+        // resume the same session key on new connections
+        if(key == null) key = CryptKey.createRandomKey(algo);
+        return channel.setSessionKey(key);
+      }
+      private HttpConnector secure(HttpConnector conn) {
+        return (tls != null ? conn.setTlsOptions(tls) : conn);
+      }
       @Override
       public HttpRequestChannel createChannel(HttpConnector conn) {
         if(conn == null) {
@@ -125,10 +315,12 @@ public class ChannelFactoryBuilder {
               "[ChannelFactory.createChannel( NetConnector )] "
                   + "Invalid NetConnector {conn="+ conn+ "}");
         }
-        return new HttpRequestChannel(conn)
+        return session(new HttpRequestChannel(secure(conn))
             .setCryptAlgorithm(algo)
             .setEncryptionEnabled(crypt)
-            .setGZipCompressionEnabled(gzip);
+            .setGZipCompressionEnabled(gzip)
+            .setLzmaCompressionEnabled(lzma)
+            .setDeflateDictionary(dict));
       }
       @Override
       public HttpRequestChannel createChannel(HttpConnector conn, ObjectSerializer serial) {
@@ -137,10 +329,134 @@ public class ChannelFactoryBuilder {
               "[ChannelFactory.createChannel( NetConnector )] "
                   + "Invalid NetConnector {conn="+ conn+ "}");
         }
-        return new HttpRequestChannel(conn, serial)
+        return session(new HttpRequestChannel(secure(conn), serial)
+            .setCryptAlgorithm(algo)
+            .setEncryptionEnabled(crypt)
+            .setGZipCompressionEnabled(gzip)
+            .setLzmaCompressionEnabled(lzma)
+            .setDeflateDictionary(dict));
+      }
+    };
+  }
+  
+  
+  /**
+   * Create a raw TCP request channel factory 
+   * (see <code>TcpRequestChannel</code>), for servers 
+   * with the TCP protocol enabled.
+   * @return ChannelFactory&lt;HttpConnector&gt;
+   */
+  public ChannelFactory<HttpConnector> createTcpRequestChannelFactory() {
+    return new ChannelFactory<HttpConnector>() {
+      private CryptKey key = null;
+      private synchronized TcpRequestChannel session(TcpRequestChannel channel) {
+        channel.setSessionKeyEnabled(session);
+        if(!crypt || !session) return channel;
+        // resume the same session key on new connections
+        if(key == null) key = CryptKey.createRandomKey(algo);
+        return channel.setSessionKey(key);
+      }
+      private HttpConnector secure(HttpConnector conn) {
+        return (tls != null ? conn.setTlsOptions(tls) : conn);
+      }
+      @Override
+      public TcpRequestChannel createChannel(HttpConnector conn) {
+        if(conn == null) {
+          throw new IllegalArgumentException(
+              "[ChannelFactory.createChannel( NetConnector )] "
+                  + "Invalid NetConnector {conn="+ conn+ "}");
+        }
+        return session(new TcpRequestChannel(secure(conn))
+            .setCryptAlgorithm(algo)
+            .setEncryptionEnabled(crypt)
+            .setGZipCompressionEnabled(gzip)
+            .setLzmaCompressionEnabled(lzma)
+            .setDeflateDictionary(dict));
+      }
+      @Override
+      public TcpRequestChannel createChannel(HttpConnector conn, ObjectSerializer serial) {
+        if(conn == null) {
+          throw new IllegalArgumentException(
+              "[ChannelFactory.createChannel( NetConnector )] "
+                  + "Invalid NetConnector {conn="+ conn+ "}");
+        }
+        return session(new TcpRequestChannel(secure(conn), serial)
+            .setCryptAlgorithm(algo)
+            .setEncryptionEnabled(crypt)
+            .setGZipCompressionEnabled(gzip)
+            .setLzmaCompressionEnabled(lzma)
+            .setDeflateDictionary(dict));
+      }
+    };
+  }
+  
+  
+  /**
+   * Create a HTTP/2 cleartext (h2c) request channel factory
+   * (see <code>Http2RequestChannel</code>). Each channel keeps 
+   * one connection, shared by the concurrent calls. The session 
+   * key, the preset dictionary and TLS are not supported by 
+   * the h2c channels, so the cryptography key is sent on 
+   * every request.
+   * @return ChannelFactory&lt;HttpConnector&gt;
+   */
+  public ChannelFactory<HttpConnector> createHttp2RequestChannelFactory() {
+    return new ChannelFactory<HttpConnector>() {
+      @Override
+      public Http2RequestChannel createChannel(HttpConnector conn) {
+        if(conn == null) {
+          throw new IllegalArgumentException(
+              "[ChannelFactory.createChannel( NetConnector )] "
+                  + "Invalid NetConnector {conn="+ conn+ "}");
+        }
+        return new Http2RequestChannel(conn)
             .setCryptAlgorithm(algo)
             .setEncryptionEnabled(crypt)
-            .setGZipCompressionEnabled(gzip);
+            .setGZipCompressionEnabled(gzip)
+            .setLzmaCompressionEnabled(lzma);
+      }
+      @Override
+      public Http2RequestChannel createChannel(HttpConnector conn, ObjectSerializer serial) {
+        if(conn == null) {
+          throw new IllegalArgumentException(
+              "[ChannelFactory.createChannel( NetConnector )] "
+                  + "Invalid NetConnector {conn="+ conn+ "}");
+        }
+        return new Http2RequestChannel(conn, serial)
+            .setCryptAlgorithm(algo)
+            .setEncryptionEnabled(crypt)
+            .setGZipCompressionEnabled(gzip)
+            .setLzmaCompressionEnabled(lzma);
+      }
+    };
+  }
+  
+  
+  /**
+   * Create an in-process channel factory (see <code>LocalChannel</code>),
+   * which invokes the methods directly on the objects of the
+   * <code>ObjectContainer</code>, without serialization. The 
+   * <code>HttpConnector</code> argument is ignored, so a 
+   * <code>RemoteObject</code> may switch between the local and 
+   * the network channel factories without other changes.
+   * @param cont The <code>ObjectContainer</code> with the invoked objects.
+   * @return ChannelFactory&lt;HttpConnector&gt;
+   */
+  public ChannelFactory<HttpConnector> createLocalChannelFactory(ObjectContainer cont) {
+    if(cont == null) {
+      throw new IllegalArgumentException(
+          "[ChannelFactoryBuilder.createLocalChannelFactory( ObjectContainer )] "
+              + "Invalid ObjectContainer {"+ cont+ "}");
+    }
+    return new ChannelFactory<HttpConnector>() {
+      @Override
+      public LocalChannel createChannel(HttpConnector conn) {
+        return createChannel(conn, null);
+      }
+      @Override
+      public LocalChannel createChannel(HttpConnector conn, ObjectSerializer serial) {
+        return new LocalChannel(cont, serial)
+            .setDefensiveCopyEnabled(copy);
       }
     };
   }
@@ -159,7 +475,10 @@ public class ChannelFactoryBuilder {
               "[ChannelFactory.createChannel( HttpServerConnection )] "
               + "Invalid HttpServerConnection {conn="+ conn+ "}");
         }
-        return new HttpResponseChannel(conn);
+        return new HttpResponseChannel(conn)
+            .setLzmaCompressionEnabled(lzma)
+            .setDeflateDictionary(dict)
+            .setReadAheadEnabled(readAhead);
       }
       @Override
       public HttpResponseChannel createChannel(HttpServerConnection conn, ObjectSerializer serial) {
@@ -168,7 +487,43 @@ public class ChannelFactoryBuilder {
               "[ChannelFactory.createChannel( HttpServerConnection )] "
               + "Invalid HttpServerConnection {conn="+ conn+ "}");
         }
-        return new HttpResponseChannel(conn, serial);
+        return new HttpResponseChannel(conn, serial)
+            .setLzmaCompressionEnabled(lzma)
+            .setDeflateDictionary(dict)
+            .setReadAheadEnabled(readAhead);
+      }
+    };
+  }
+  
+  
+  /**
+   * Create a raw TCP response channel factory
+   * (see <code>TcpResponseChannel</code>).
+   * @return ChannelFactory&lt;Socket&gt;
+   */
+  public ChannelFactory<Socket> createTcpResponseChannelFactory() {
+    return new ChannelFactory<Socket>() {
+      @Override
+      public TcpResponseChannel createChannel(Socket sock) {
+        return createChannel(sock, null);
+      }
+      @Override
+      public TcpResponseChannel createChannel(Socket sock, ObjectSerializer serial) {
+        if(sock == null || sock.isClosed()) {
+          throw new IllegalArgumentException(
+              "[ChannelFactory.createChannel( Socket )] "
+              + "Invalid Socket {sock="+ sock+ "}");
+        }
+        try {
+          return new TcpResponseChannel(sock, serial)
+              .setLzmaCompressionEnabled(lzma)
+              .setDeflateDictionary(dict)
+              .setReadAheadEnabled(readAhead);
+        } catch(IOException e) {
+          throw new IllegalArgumentException(
+              "[ChannelFactory.createChannel( Socket )] "
+              + "Invalid Socket {sock="+ sock+ "}", e);
+        }
       }
     };
   }
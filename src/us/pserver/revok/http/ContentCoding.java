@@ -0,0 +1,116 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+/**
+ * Negotiation of the content compression of each HTTP message,
+ * by the <code>Content-Encoding</code> and <code>Accept-Encoding</code>
+ * headers. The request is decoded as described by its own
+ * <code>Content-Encoding</code>, and the response is compressed 
+ * only if the client accepts it, so clients may disable compression 
+ * without reconfiguring the server. Requests without 
+ * <code>Accept-Encoding</code> are answered with the same 
+ * encoding received, as older clients expect.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public abstract class ContentCoding {
+  
+  
+  /**
+   * Get the <code>Content-Encoding</code> header value.
+   * @param gzip <code>true</code> if the content is compressed.
+   * @return The <code>Content-Encoding</code> header value.
+   */
+  public static String contentEncoding(boolean gzip) {
+    return (gzip ? HttpConsts.HD_VAL_GZIP_ENCODING 
+        : HttpConsts.HD_VAL_DEF_ENCODING);
+  }
+  
+  
+  /**
+   * Get the <code>Accept-Encoding</code> header value.
+   * @param gzip <code>true</code> if compressed content is accepted.
+   * @return The <code>Accept-Encoding</code> header value.
+   */
+  public static String acceptEncoding(boolean gzip) {
+    return (gzip ? HttpConsts.HD_VAL_GZIP_ENCODING 
+        + ", "+ HttpConsts.HD_VAL_DEF_ENCODING
+        : HttpConsts.HD_VAL_DEF_ENCODING);
+  }
+  
+  
+  /**
+   * Verify if the <code>Content-Encoding</code> header
+   * value describes compressed content.
+   * @param contenc The <code>Content-Encoding</code> header value.
+   * @return <code>true</code> if the content is compressed.
+   */
+  public static boolean isGZip(String contenc) {
+    return contenc != null && HttpConsts.HD_VAL_GZIP_ENCODING
+        .equalsIgnoreCase(contenc.trim());
+  }
+  
+  
+  /**
+   * Verify if a compressed response is accepted.
+   * @param accenc The request <code>Accept-Encoding</code> 
+   * header value, or <code>null</code> if not present.
+   * @param contenc The request <code>Content-Encoding</code> 
+   * header value, used if <code>Accept-Encoding</code> is not present.
+   * @return <code>true</code> if a compressed response is accepted.
+   */
+  public static boolean acceptsGZip(String accenc, String contenc) {
+    if(accenc == null) return isGZip(contenc);
+    boolean any = false;
+    for(String tk : accenc.split(",")) {
+      String[] parts = tk.split(";");
+      String name = parts[0].trim();
+      boolean accept = quality(parts) > 0;
+      if(HttpConsts.HD_VAL_GZIP_ENCODING.equalsIgnoreCase(name)
+          || "x-gzip".equalsIgnoreCase(name))
+        return accept;
+      if("*".equals(name)) any = accept;
+    }
+    return any;
+  }
+  
+  
+  /**
+   * Get the quality value (<code>q=</code>) of an 
+   * <code>Accept-Encoding</code> element, 1 by default.
+   */
+  private static double quality(String[] parts) {
+    for(int i = 1; i < parts.length; i++) {
+      String p = parts[i].trim();
+      if(!p.startsWith("q=")) continue;
+      try {
+        return Double.parseDouble(p.substring(2).trim());
+      } catch(NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 1;
+  }
+  
+}
@@ -0,0 +1,499 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Adler32;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.RemoteMethod;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.protocol.ObjectSerializer;
+import us.pserver.revok.protocol.Transport;
+
+/**
+ * Preset dictionary of the deflate section codec
+ * (see <code>EnvelopeConsts.CODEC_DEFLATE</code>).
+ * Small RPC messages are too short for the compressor to 
+ * find repetitions, but they repeat the same class names, 
+ * field names and namespaces between them; priming the 
+ * compressor with a dictionary of this content makes 
+ * small messages compress many times better, at lower 
+ * CPU cost than GZip. The dictionary is trained from 
+ * sample messages (captured traffic or messages built 
+ * from the objects of an <code>ObjectContainer</code>). 
+ * Client and server must register the same dictionary, 
+ * which is identified in the encoded content by its 
+ * Adler-32 checksum.
+ * <br>Usage of the generator tool: 
+ * <code>DeflateDictionary &lt;dictionary file&gt; &lt;sample file or dir&gt;...</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class DeflateDictionary {
+  
+  /**
+   * <code>
+   *  MAX_SIZE = 32*1024
+   * </code><br>
+   * Max dictionary size, the deflate window size.
+   */
+  public static final int MAX_SIZE = 32*1024;
+  
+  /**
+   * <code>
+   *  DEFAULT_SIZE = 4*1024
+   * </code><br>
+   * Default size of trained dictionaries.
+   */
+  public static final int DEFAULT_SIZE = 4*1024;
+  
+  /**
+   * <code>
+   *  SEGMENT_SIZE = 48
+   * </code><br>
+   * Size of the content segments selected for the dictionary.
+   */
+  public static final int SEGMENT_SIZE = 48;
+  
+  /**
+   * <code>
+   *  DMER_SIZE = 8
+   * </code><br>
+   * Size of the sequences counted in the samples.
+   */
+  public static final int DMER_SIZE = 8;
+  
+  
+  private static final Map<Integer, DeflateDictionary> 
+      REGISTRY = new ConcurrentHashMap<>();
+  
+  
+  private final byte[] bytes;
+  
+  private final int id;
+  
+  
+  /**
+   * Constructor which receives the dictionary content.
+   * Content longer than <code>MAX_SIZE</code> is truncated 
+   * to the last <code>MAX_SIZE</code> bytes, which are the 
+   * ones reachable by the compressor.
+   * @param bs The dictionary content.
+   */
+  public DeflateDictionary(byte[] bs) {
+    if(bs == null || bs.length == 0)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary( byte[] )] Invalid dictionary {"+ bs+ "}");
+    int off = Math.max(0, bs.length - MAX_SIZE);
+    bytes = new byte[bs.length - off];
+    System.arraycopy(bs, off, bytes, 0, bytes.length);
+    Adler32 adler = new Adler32();
+    adler.update(bytes);
+    id = (int) adler.getValue();
+  }
+  
+  
+  /**
+   * Get the dictionary id, the Adler-32 checksum 
+   * of its content, as recorded by deflate.
+   * @return The dictionary id.
+   */
+  public int getId() {
+    return id;
+  }
+  
+  
+  /**
+   * Get the dictionary content.
+   * The returned array must not be modified.
+   * @return The dictionary content.
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+  
+  
+  /**
+   * Get the dictionary size in bytes.
+   * @return The dictionary size.
+   */
+  public int size() {
+    return bytes.length;
+  }
+  
+  
+  /**
+   * Register the dictionary for decoding received content.
+   * @param dict The dictionary.
+   * @return The registered dictionary.
+   */
+  public static DeflateDictionary register(DeflateDictionary dict) {
+    if(dict == null)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.register( DeflateDictionary )] "
+          + "Invalid DeflateDictionary {"+ dict+ "}");
+    REGISTRY.put(dict.getId(), dict);
+    return dict;
+  }
+  
+  
+  /**
+   * Get the registered dictionary with the specified id.
+   * @param id The dictionary id.
+   * @return The registered dictionary or 
+   * <code>null</code> if not registered.
+   */
+  public static DeflateDictionary lookup(int id) {
+    return REGISTRY.get(id);
+  }
+  
+  
+  /**
+   * Read a dictionary from the <code>InputStream</code>.
+   * The stream is not closed.
+   * @param in The <code>InputStream</code> to read.
+   * @return The dictionary read.
+   * @throws IOException In case of error reading.
+   */
+  public static DeflateDictionary read(InputStream in) throws IOException {
+    if(in == null)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.read( InputStream )] "
+          + "Invalid InputStream {"+ in+ "}");
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buf = new byte[EnvelopeConsts.STREAM_CHUNK_SIZE];
+    int read;
+    while((read = in.read(buf)) != -1) {
+      bos.write(buf, 0, read);
+    }
+    return new DeflateDictionary(bos.toByteArray());
+  }
+  
+  
+  /**
+   * Read a dictionary from a file.
+   * @param path The dictionary file.
+   * @return The dictionary read.
+   * @throws IOException In case of error reading.
+   */
+  public static DeflateDictionary read(Path path) throws IOException {
+    if(path == null)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.read( Path )] Invalid Path {"+ path+ "}");
+    return new DeflateDictionary(Files.readAllBytes(path));
+  }
+  
+  
+  /**
+   * Write the dictionary content in the <code>OutputStream</code>.
+   * The stream is not closed.
+   * @param out The <code>OutputStream</code> to write.
+   * @throws IOException In case of error writing.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    if(out == null)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.writeTo( OutputStream )] "
+          + "Invalid OutputStream {"+ out+ "}");
+    out.write(bytes);
+  }
+  
+  
+  /**
+   * Train a dictionary from the sample messages.
+   * The samples are scanned for sequences repeated between
+   * messages, then the content segments with the most 
+   * repeated sequences are selected, the best ones placed 
+   * at the end of the dictionary, closer to the content.
+   * @param samples The sample messages.
+   * @param size The max dictionary size.
+   * @return The trained dictionary.
+   */
+  public static DeflateDictionary train(List<byte[]> samples, int size) {
+    if(samples == null || samples.isEmpty())
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.train( List, int )] "
+          + "Invalid samples {"+ samples+ "}");
+    if(size <= 0 || size > MAX_SIZE)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.train( List, int )] "
+          + "Invalid size {"+ size+ "}");
+    // number of samples containing each sequence
+    List<long[]> dmers = new ArrayList<>(samples.size());
+    Map<Long, Integer> freq = new HashMap<>();
+    for(byte[] sample : samples) {
+      long[] ds = dmers(sample);
+      dmers.add(ds);
+      Set<Long> seen = new HashSet<>();
+      for(long d : ds) {
+        if(seen.add(d)) freq.merge(d, 1, Integer::sum);
+      }
+    }
+    LinkedList<byte[]> segments = new LinkedList<>();
+    int total = 0;
+    while(total < size) {
+      int best = 0, bestSample = -1, bestPos = 0;
+      for(int i = 0; i < samples.size(); i++) {
+        long[] ds = dmers.get(i);
+        int window = Math.min(ds.length, SEGMENT_SIZE - DMER_SIZE + 1);
+        int score = 0;
+        for(int p = 0; p < ds.length; p++) {
+          score += score(freq, ds[p]);
+          if(p >= window) score -= score(freq, ds[p - window]);
+          if(p >= window - 1 && score > best) {
+            best = score;
+            bestSample = i;
+            bestPos = p - window + 1;
+          }
+        }
+      }
+      if(bestSample < 0) break;
+      byte[] sample = samples.get(bestSample);
+      int len = Math.min(Math.min(SEGMENT_SIZE, 
+          sample.length - bestPos), size - total);
+      byte[] seg = new byte[len];
+      System.arraycopy(sample, bestPos, seg, 0, len);
+      // selected sequences do not score again
+      long[] ds = dmers.get(bestSample);
+      for(int p = bestPos; p < Math.min(ds.length, bestPos + len); p++) {
+        freq.remove(ds[p]);
+      }
+      // best segments at the end
+      segments.addFirst(seg);
+      total += len;
+    }
+    if(total == 0) {
+      // no repetition between samples
+      byte[] sample = samples.get(samples.size() -1);
+      return new DeflateDictionary(sample);
+    }
+    byte[] bs = new byte[total];
+    int off = 0;
+    for(byte[] seg : segments) {
+      System.arraycopy(seg, 0, bs, off, seg.length);
+      off += seg.length;
+    }
+    return new DeflateDictionary(bs);
+  }
+  
+  
+  /**
+   * Score of a sequence, the number of samples 
+   * containing it, if repeated between samples.
+   */
+  private static int score(Map<Long, Integer> freq, long dmer) {
+    Integer f = freq.get(dmer);
+    return (f != null && f > 1 ? f : 0);
+  }
+  
+  
+  /**
+   * Get the sequences of <code>DMER_SIZE</code> bytes 
+   * of the sample, packed in <code>long</code> values.
+   */
+  private static long[] dmers(byte[] sample) {
+    int len = Math.max(0, sample.length - DMER_SIZE + 1);
+    long[] ds = new long[len];
+    long d = 0;
+    for(int i = 0; i < sample.length; i++) {
+      d = (d << 8) | (sample[i] & 0xff);
+      if(i >= DMER_SIZE - 1) ds[i - DMER_SIZE + 1] = d;
+    }
+    return ds;
+  }
+  
+  
+  /**
+   * Build sample messages for the objects stored in the 
+   * <code>ObjectContainer</code>: a <code>RemoteMethod</code>
+   * request and <code>OpResult</code> responses for each
+   * public method, serialized as transmitted.
+   * @param cont The <code>ObjectContainer</code>.
+   * @param serial The <code>ObjectSerializer</code> of the messages.
+   * @return The sample messages.
+   * @throws IOException In case of error serializing.
+   */
+  public static List<byte[]> samples(ObjectContainer cont, ObjectSerializer serial) throws IOException {
+    if(cont == null)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.samples( ObjectContainer, ObjectSerializer )] "
+          + "Invalid ObjectContainer {"+ cont+ "}");
+    if(serial == null)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.samples( ObjectContainer, ObjectSerializer )] "
+          + "Invalid ObjectSerializer {"+ serial+ "}");
+    List<byte[]> samples = new LinkedList<>();
+    for(String ns : cont.namespaces()) {
+      for(String name : cont.objects(ns)) {
+        String objname = ns + "." + name;
+        for(String sig : cont.listMethods(objname)) {
+          RemoteMethod rm = method(objname, sig);
+          if(rm != null) samples.add(serial.toBytes(
+              new Transport(rm).createWriteVersion()));
+        }
+      }
+    }
+    OpResult res = new OpResult();
+    res.setSuccessOperation(true);
+    samples.add(serial.toBytes(new Transport(res).createWriteVersion()));
+    res.setReturn(Boolean.TRUE);
+    samples.add(serial.toBytes(new Transport(res).createWriteVersion()));
+    res.setReturn("");
+    samples.add(serial.toBytes(new Transport(res).createWriteVersion()));
+    return samples;
+  }
+  
+  
+  /**
+   * Create a <code>RemoteMethod</code> from the method 
+   * signature listed by <code>ObjectContainer</code>,
+   * like <code>public double pkg.Class.sum(double,double)</code>.
+   * @return The <code>RemoteMethod</code> or <code>null</code>
+   * if the signature can not be parsed.
+   */
+  private static RemoteMethod method(String objname, String sig) {
+    int ip = sig.indexOf('(');
+    int ep = sig.indexOf(')', ip);
+    if(ip < 0 || ep < 0) return null;
+    String prefix = sig.substring(0, ip);
+    String name = prefix.substring(prefix.lastIndexOf('.') + 1);
+    RemoteMethod rm = new RemoteMethod(objname, name);
+    String params = sig.substring(ip + 1, ep);
+    if(params.isEmpty()) return rm;
+    for(String type : params.split(",")) {
+      Class<?> cls = type(type.trim());
+      // not resolved, keep the method name only
+      if(cls == null) return rm.clearTypes();
+      rm.addType(cls);
+    }
+    return rm;
+  }
+  
+  
+  /**
+   * Resolve the class of a method parameter type.
+   * @return The class or <code>null</code> if not found.
+   */
+  private static Class<?> type(String name) {
+    switch(name) {
+      case "boolean": return boolean.class;
+      case "byte": return byte.class;
+      case "char": return char.class;
+      case "short": return short.class;
+      case "int": return int.class;
+      case "long": return long.class;
+      case "float": return float.class;
+      case "double": return double.class;
+    }
+    try {
+      return Class.forName(name);
+    } catch(ClassNotFoundException | LinkageError e) {
+      return null;
+    }
+  }
+  
+  
+  /**
+   * Read the sample files, one message per file.
+   * Directories are read recursively.
+   * @param path A sample file or directory.
+   * @return The sample messages.
+   * @throws IOException In case of error reading.
+   */
+  public static List<byte[]> samples(Path path) throws IOException {
+    if(path == null)
+      throw new IllegalArgumentException(
+          "[DeflateDictionary.samples( Path )] Invalid Path {"+ path+ "}");
+    List<byte[]> samples = new LinkedList<>();
+    if(!Files.isDirectory(path)) {
+      samples.add(Files.readAllBytes(path));
+      return samples;
+    }
+    List<Path> files;
+    try(Stream<Path> st = Files.walk(path)) {
+      files = st.filter(Files::isRegularFile)
+          .sorted().collect(Collectors.toList());
+    }
+    for(Path p : files) {
+      samples.add(Files.readAllBytes(p));
+    }
+    return samples;
+  }
+  
+  
+  @Override
+  public String toString() {
+    return "DeflateDictionary{id="+ Integer.toHexString(id)
+        + ", size="+ bytes.length+ "}";
+  }
+  
+  
+  /**
+   * Dictionary generator tool. Trains a dictionary from sample
+   * message files (captured serialized messages, one per file)
+   * and writes it to the dictionary file.
+   * @param args <code>&lt;dictionary file&gt; &lt;sample file or dir&gt;... [-size bytes]</code>
+   * @throws IOException In case of error reading or writing.
+   */
+  public static void main(String[] args) throws IOException {
+    int size = DEFAULT_SIZE;
+    List<String> files = new LinkedList<>();
+    for(int i = 0; i < args.length; i++) {
+      if("-size".equals(args[i]) && i+1 < args.length)
+        size = Integer.parseInt(args[++i]);
+      else files.add(args[i]);
+    }
+    if(files.size() < 2) {
+      System.out.println("Usage: DeflateDictionary <dictionary file> "
+          + "<sample file or dir>... [-size bytes]");
+      return;
+    }
+    List<byte[]> samples = new LinkedList<>();
+    for(String f : files.subList(1, files.size())) {
+      samples.addAll(samples(Paths.get(f)));
+    }
+    DeflateDictionary dict = train(samples, size);
+    try(OutputStream out = Files.newOutputStream(Paths.get(files.get(0)))) {
+      dict.writeTo(out);
+    }
+    System.out.println("* "+ samples.size()+ " samples");
+    System.out.println("* "+ dict+ " written to "+ files.get(0));
+  }
+  
+}
@@ -0,0 +1,182 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
+import us.pserver.cdr.crypt.CryptKey;
+import us.pserver.cdr.crypt.CryptUtils;
+
+/**
+ * Stream coders of the binary envelope content, 
+ * chained on the fly over the wire streams, as 
+ * described by the envelope flags (see <code>EnvelopeConsts</code>).
+ * Content is compressed, then encrypted, then Base64 encoded;
+ * decoding is done in the reverse order.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public abstract class EnvelopeCoder {
+  
+  /**
+   * <code>
+   *  BUFFER_SIZE = 8*1024
+   * </code><br>
+   * Buffer size of the GZip coders.
+   */
+  public static final int BUFFER_SIZE = 8*1024;
+  
+  
+  /**
+   * Create an encoding <code>OutputStream</code> over the
+   * specified stream, for the coders described in <code>flags</code>.
+   * Closing the returned stream finishes the encoding,
+   * but does not close nor flush the underlying stream.
+   * @param os The underlying <code>OutputStream</code>.
+   * @param flags The envelope flags.
+   * @param key The cryptography key, if <code>FLAG_KEY</code> is set.
+   * @return The encoding <code>OutputStream</code>.
+   * @throws IOException In case of error creating the coders.
+   */
+  public static OutputStream encoder(OutputStream os, int flags, CryptKey key) throws IOException {
+    return encoder(os, flags, key, null);
+  }
+  
+  
+  /**
+   * Create an encoding <code>OutputStream</code> over the
+   * specified stream, for the coders described in <code>flags</code>.
+   * Closing the returned stream finishes the encoding,
+   * but does not close nor flush the underlying stream.
+   * @param os The underlying <code>OutputStream</code>.
+   * @param flags The envelope flags.
+   * @param key The cryptography key, if <code>FLAG_KEY</code> is set.
+   * @param session The session cipher, if <code>FLAG_SESSION</code> is set.
+   * @return The encoding <code>OutputStream</code>.
+   * @throws IOException In case of error creating the coders.
+   */
+  public static OutputStream encoder(OutputStream os, int flags, CryptKey key, SessionCipher session) throws IOException {
+    if(os == null)
+      throw new IllegalArgumentException(
+          "[EnvelopeCoder.encoder( OutputStream, int, CryptKey, SessionCipher )] "
+          + "Invalid OutputStream {"+ os+ "}");
+    // Coders flush on close. Flushing a chunked HTTP stream
+    // sends the closing chunk in a separated small segment,
+    // delayed by Nagle's algorithm until the peer ACK (~40ms).
+    // The HTTP connection flushes once, after the closing chunk.
+    os = new FilterOutputStream(os) {
+      @Override public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+      @Override public void flush() {}
+      @Override public void close() {}
+    };
+    if((flags & EnvelopeConsts.FLAG_BASE64) != 0)
+      os = new Base64OutputStream(os);
+    if((flags & EnvelopeConsts.FLAG_SESSION) != 0) {
+      checkSession(session);
+      os = session.encoder(os);
+    }
+    else if((flags & EnvelopeConsts.FLAG_KEY) != 0) {
+      checkKey(key);
+      os = CryptUtils.createCipherOutputStream(os, key);
+    }
+    if((flags & EnvelopeConsts.FLAG_GZIP) != 0)
+      os = new GZIPOutputStream(os, BUFFER_SIZE);
+    return os;
+  }
+  
+  
+  /**
+   * Create a decoding <code>InputStream</code> over the
+   * specified stream, for the coders described in <code>flags</code>.
+   * @param is The underlying <code>InputStream</code>.
+   * @param flags The envelope flags.
+   * @param key The cryptography key, if <code>FLAG_KEY</code> is set.
+   * @return The decoding <code>InputStream</code>.
+   * @throws IOException In case of error creating the coders.
+   */
+  public static InputStream decoder(InputStream is, int flags, CryptKey key) throws IOException {
+    return decoder(is, flags, key, null);
+  }
+  
+  
+  /**
+   * Create a decoding <code>InputStream</code> over the
+   * specified stream, for the coders described in <code>flags</code>.
+   * @param is The underlying <code>InputStream</code>.
+   * @param flags The envelope flags.
+   * @param key The cryptography key, if <code>FLAG_KEY</code> is set.
+   * @param session The session cipher, if <code>FLAG_SESSION</code> is set.
+   * @return The decoding <code>InputStream</code>.
+   * @throws IOException In case of error creating the coders.
+   */
+  public static InputStream decoder(InputStream is, int flags, CryptKey key, SessionCipher session) throws IOException {
+    if(is == null)
+      throw new IllegalArgumentException(
+          "[EnvelopeCoder.decoder( InputStream, int, CryptKey, SessionCipher )] "
+          + "Invalid InputStream {"+ is+ "}");
+    if((flags & EnvelopeConsts.FLAG_BASE64) != 0)
+      is = new Base64InputStream(is);
+    if((flags & EnvelopeConsts.FLAG_SESSION) != 0) {
+      checkSession(session);
+      is = session.decoder(is);
+    }
+    else if((flags & EnvelopeConsts.FLAG_KEY) != 0) {
+      checkKey(key);
+      is = CryptUtils.createCipherInputStream(is, key);
+    }
+    if((flags & EnvelopeConsts.FLAG_GZIP) != 0)
+      is = new GZIPInputStream(is, BUFFER_SIZE);
+    return is;
+  }
+  
+  
+  /**
+   * Check the cryptography key is not null.
+   * @param key The cryptography key.
+   * @throws IOException If the key is null.
+   */
+  private static void checkKey(CryptKey key) throws IOException {
+    if(key == null) throw new IOException(
+        "Missing CryptKey for encrypted content");
+  }
+  
+  
+  /**
+   * Check the session cipher is not null.
+   * @param session The session cipher.
+   * @throws IOException If the session cipher is null.
+   */
+  private static void checkSession(SessionCipher session) throws IOException {
+    if(session == null) throw new IOException(
+        "Missing SessionCipher for session encrypted content");
+  }
+  
+}
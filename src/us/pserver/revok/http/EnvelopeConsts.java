@@ -0,0 +1,207 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+/**
+ * Constants values of the binary envelope used in 
+ * communication protocol. The envelope layout is:
+ * <pre>
+ * [MAGIC:4][VERSION:1][FLAGS:1]
+ * [key length:4][key bytes]          (if FLAG_KEY, never encoded)
+ * --- encoded with the coders described in FLAGS ---
+ * [iv length:4][iv bytes]            (if FLAG_SESSION, before the cipher)
+ * [codec:1]                          (if FLAG_ADAPTIVE)
+ * [object length:4][object bytes]    (if FLAG_OBJECT)
+ * [codec:1]                          (if FLAG_ADAPTIVE)
+ * [chunk length:4][chunk bytes]...[0:4] (if FLAG_STREAM)
+ * </pre>
+ * All lengths are big endian signed integers, 
+ * so sections are sliced without scanning the content.
+ * With <code>FLAG_ADAPTIVE</code> each section is prefixed
+ * by the codec chosen for it (<code>CODEC_*</code>), and 
+ * the object bytes and each stream chunk are encoded 
+ * with that codec (the lengths are of the encoded bytes).
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public interface EnvelopeConsts {
+
+  /**
+   * <code>
+   *  MAGIC = 0xCA524F42
+   * </code><br>
+   * Magic number identifying the binary envelope. 
+   * The first byte differs from the legacy 
+   * <code>&lt;xml&gt;</code> format.
+   */
+  public static final int MAGIC = 0xCA524F42;
+  
+  /**
+   * <code>
+   *  VERSION = 1
+   * </code><br>
+   * Current envelope version.
+   */
+  public static final int VERSION = 1;
+  
+  /**
+   * <code>
+   *  HEADER_SIZE = 6
+   * </code><br>
+   * Size in bytes of magic, version and flags.
+   */
+  public static final int HEADER_SIZE = 6;
+  
+  /**
+   * <code>
+   *  FLAG_KEY = 0x01
+   * </code><br>
+   * A plain cryptography key section is present 
+   * and the content is encrypted with it.
+   */
+  public static final int FLAG_KEY = 0x01;
+  
+  /**
+   * <code>
+   *  FLAG_OBJECT = 0x02
+   * </code><br>
+   * A serialized object section is present.
+   */
+  public static final int FLAG_OBJECT = 0x02;
+  
+  /**
+   * <code>
+   *  FLAG_STREAM = 0x04
+   * </code><br>
+   * A chunked stream section is present.
+   */
+  public static final int FLAG_STREAM = 0x04;
+  
+  /**
+   * <code>
+   *  FLAG_GZIP = 0x08
+   * </code><br>
+   * The content is GZip compressed.
+   */
+  public static final int FLAG_GZIP = 0x08;
+  
+  /**
+   * <code>
+   *  FLAG_BASE64 = 0x10
+   * </code><br>
+   * The content is Base64 encoded.
+   */
+  public static final int FLAG_BASE64 = 0x10;
+  
+  /**
+   * <code>
+   *  FLAG_SESSION = 0x20
+   * </code><br>
+   * The content is encrypted with the session key of 
+   * the connection, under a per message random IV.
+   * If <code>FLAG_KEY</code> is also set, the key 
+   * section starts a new session on the connection.
+   */
+  public static final int FLAG_SESSION = 0x20;
+  
+  /**
+   * <code>
+   *  FLAG_ADAPTIVE = 0x40
+   * </code><br>
+   * Each section is compressed with its own codec, 
+   * recorded in the section (see <code>CODEC_*</code>).
+   * Not combined with <code>FLAG_GZIP</code>.
+   */
+  public static final int FLAG_ADAPTIVE = 0x40;
+  
+  /**
+   * <code>
+   *  CODEC_NONE = 0
+   * </code><br>
+   * The section is not compressed.
+   */
+  public static final int CODEC_NONE = 0;
+  
+  /**
+   * <code>
+   *  CODEC_GZIP = 1
+   * </code><br>
+   * The section is GZip compressed.
+   */
+  public static final int CODEC_GZIP = 1;
+  
+  /**
+   * <code>
+   *  CODEC_LZMA = 2
+   * </code><br>
+   * The section is LZMA compressed.
+   */
+  public static final int CODEC_LZMA = 2;
+  
+  /**
+   * <code>
+   *  CODEC_DEFLATE = 3
+   * </code><br>
+   * The section is compressed with zlib deflate, over the 
+   * preset dictionary identified in the zlib header
+   * (see <code>DeflateDictionary</code>).
+   */
+  public static final int CODEC_DEFLATE = 3;
+  
+  /**
+   * <code>
+   *  STREAM_CHUNK_SIZE = 8*1024
+   * </code><br>
+   * Max size of each chunk of the stream section.
+   */
+  public static final int STREAM_CHUNK_SIZE = 8*1024;
+  
+  /**
+   * <code>
+   *  CODEC_BLOCK_SIZE = 64*1024
+   * </code><br>
+   * Max decoded size of each compressed chunk 
+   * of the stream section (see <code>FLAG_ADAPTIVE</code>).
+   */
+  public static final int CODEC_BLOCK_SIZE = 64*1024;
+  
+  /**
+   * <code>
+   *  MAX_SECTION_SIZE = 64*1024*1024
+   * </code><br>
+   * Default max length of the key and object sections, 
+   * checked before allocating the section buffer (the 
+   * same of <code>NioHttpRequestDecoder.DEFAULT_MAX_CONTENT</code>).
+   */
+  public static final int MAX_SECTION_SIZE = 
+      NioHttpRequestDecoder.DEFAULT_MAX_CONTENT;
+  
+  /**
+   * <code>
+   *  LEGACY_START = '&lt;'
+   * </code><br>
+   * First byte of the legacy <code>&lt;xml&gt;</code> format.
+   */
+  public static final int LEGACY_START = '<';
+  
+}
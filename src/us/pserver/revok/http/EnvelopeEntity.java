@@ -0,0 +1,204 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import us.pserver.cdr.StringByteConverter;
+import us.pserver.cdr.crypt.CryptKey;
+import us.pserver.revok.protocol.ObjectSerializer;
+
+/**
+ * Streaming <code>HttpEntity</code> of the binary envelope
+ * (see <code>EnvelopeConsts</code>). The content is serialized, 
+ * compressed and encrypted on the fly while written to the 
+ * connection, without buffering, and is sent with the chunked 
+ * transfer encoding, since the length is unknown beforehand.
+ * The embedded input stream is consumed once, so this entity
+ * is not repeatable.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class EnvelopeEntity extends AbstractHttpEntity {
+  
+  private final int flags;
+  
+  private final CryptKey key;
+  
+  private final SessionCipher session;
+  
+  private final Object obj;
+  
+  private final InputStream input;
+  
+  private final ObjectSerializer serial;
+  
+  private final boolean lzma;
+  
+  private final DeflateDictionary dict;
+  
+  private boolean consumed;
+  
+  
+  /**
+   * Constructor which receives the envelope content.
+   * @param type Content mime type.
+   * @param flags The envelope flags.
+   * @param key Cryptography key, if <code>FLAG_KEY</code> is set.
+   * @param session Session cipher, if <code>FLAG_SESSION</code> is set.
+   * @param obj Object to embed, if <code>FLAG_OBJECT</code> is set.
+   * @param input Stream to embed, if <code>FLAG_STREAM</code> is set.
+   * @param serial <code>ObjectSerializer</code> for the object.
+   */
+  public EnvelopeEntity(ContentType type, int flags, CryptKey key, 
+      SessionCipher session, Object obj, InputStream input, ObjectSerializer serial) {
+    this(type, flags, key, session, obj, input, serial, false, null);
+  }
+  
+  
+  /**
+   * Constructor which receives the envelope content.
+   * @param type Content mime type.
+   * @param flags The envelope flags.
+   * @param key Cryptography key, if <code>FLAG_KEY</code> is set.
+   * @param session Session cipher, if <code>FLAG_SESSION</code> is set.
+   * @param obj Object to embed, if <code>FLAG_OBJECT</code> is set.
+   * @param input Stream to embed, if <code>FLAG_STREAM</code> is set.
+   * @param serial <code>ObjectSerializer</code> for the object.
+   * @param lzma <code>true</code> if the LZMA codec may be 
+   * chosen for large sections, if <code>FLAG_ADAPTIVE</code> is set.
+   * @param dict The preset dictionary for the object section, 
+   * if <code>FLAG_ADAPTIVE</code> is set, or <code>null</code>.
+   */
+  public EnvelopeEntity(ContentType type, int flags, CryptKey key, SessionCipher session, 
+      Object obj, InputStream input, ObjectSerializer serial, boolean lzma, DeflateDictionary dict) {
+    if(serial == null)
+      throw new IllegalArgumentException(
+          "[EnvelopeEntity( ... )] Invalid ObjectSerializer {"+ serial+ "}");
+    this.flags = flags;
+    this.key = key;
+    this.session = session;
+    this.obj = obj;
+    this.input = input;
+    this.serial = serial;
+    this.lzma = lzma;
+    this.dict = dict;
+    consumed = false;
+    if(type != null) setContentType(type.toString());
+    setChunked(true);
+  }
+  
+  
+  @Override
+  public boolean isRepeatable() {
+    return false;
+  }
+  
+  
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+  
+  
+  @Override
+  public boolean isStreaming() {
+    return !consumed;
+  }
+  
+  
+  /**
+   * Buffer the whole encoded content in memory.
+   * Prefer <code>writeTo(OutputStream)</code>.
+   * @return <code>InputStream</code> with the encoded content.
+   * @throws IOException In case of error encoding.
+   */
+  @Override
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    writeTo(bos);
+    return new ByteArrayInputStream(bos.toByteArray());
+  }
+  
+  
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    if(out == null)
+      throw new IllegalArgumentException(
+          "[EnvelopeEntity.writeTo( OutputStream )] "
+          + "Invalid OutputStream {"+ out+ "}");
+    if(consumed) throw new IllegalStateException(
+        "[EnvelopeEntity.writeTo( OutputStream )] "
+        + "Content already consumed");
+    consumed = true;
+    
+    DataOutputStream head = new DataOutputStream(out);
+    head.writeInt(EnvelopeConsts.MAGIC);
+    head.writeByte(EnvelopeConsts.VERSION);
+    head.writeByte(flags);
+    if((flags & EnvelopeConsts.FLAG_KEY) != 0) {
+      // write plain data
+      byte[] bs = new StringByteConverter().convert(key.toString());
+      head.writeInt(bs.length);
+      head.write(bs);
+    }
+    if((flags & (EnvelopeConsts.FLAG_OBJECT 
+        | EnvelopeConsts.FLAG_STREAM)) == 0) 
+      return;
+    
+    // Encoded OutputStream
+    DataOutputStream os = new DataOutputStream(
+        EnvelopeCoder.encoder(out, flags, key, session));
+    boolean adaptive = (flags & EnvelopeConsts.FLAG_ADAPTIVE) != 0;
+    if((flags & EnvelopeConsts.FLAG_OBJECT) != 0 && adaptive) {
+      SectionCodec.writeObject(os, serial.toBytes(obj), lzma, dict);
+    }
+    else if((flags & EnvelopeConsts.FLAG_OBJECT) != 0) {
+      byte[] bs = serial.toBytes(obj);
+      os.writeInt(bs.length);
+      os.write(bs);
+    }
+    if((flags & EnvelopeConsts.FLAG_STREAM) != 0 && adaptive) {
+      SectionCodec.writeStream(os, input, lzma);
+    }
+    else if((flags & EnvelopeConsts.FLAG_STREAM) != 0) {
+      byte[] chunk = new byte[EnvelopeConsts.STREAM_CHUNK_SIZE];
+      int read;
+      while((read = input.read(chunk)) != -1) {
+        if(read == 0) continue;
+        os.writeInt(read);
+        os.write(chunk, 0, read);
+      }
+      os.writeInt(0);
+    }
+    // finish the coders, keeping the connection open
+    os.close();
+  }
+  
+}
@@ -0,0 +1,468 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * HPACK header compression of HTTP/2 (RFC 7541). Each 
+ * connection direction has its own instance, since the
+ * dynamic table is shared by the encoder of one peer and
+ * the decoder of the other. The encoder indexes the header
+ * fields, so repeated headers are sent as a single byte 
+ * on the next requests, and sends the strings without the
+ * Huffman coding. The decoder supports the full format.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class Hpack {
+  
+  /**
+   * <code>DEFAULT_TABLE_SIZE = 4096</code><br>
+   * Default maximum size of the dynamic table.
+   */
+  public static final int DEFAULT_TABLE_SIZE = 4096;
+  
+  /**
+   * <code>ENTRY_OVERHEAD = 32</code><br>
+   * Size added to the name and value length 
+   * of each dynamic table entry.
+   */
+  public static final int ENTRY_OVERHEAD = 32;
+  
+  
+  private static final String[][] STATIC_TABLE = {
+    {":authority", ""}, {":method", "GET"}, {":method", "POST"}, 
+    {":path", "/"}, {":path", "/index.html"}, {":scheme", "http"}, 
+    {":scheme", "https"}, {":status", "200"}, {":status", "204"}, 
+    {":status", "206"}, {":status", "304"}, {":status", "400"}, 
+    {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, 
+    {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, 
+    {"accept-ranges", ""}, {"accept", ""}, 
+    {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, 
+    {"authorization", ""}, {"cache-control", ""}, 
+    {"content-disposition", ""}, {"content-encoding", ""}, 
+    {"content-language", ""}, {"content-length", ""}, 
+    {"content-location", ""}, {"content-range", ""}, 
+    {"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""}, 
+    {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, 
+    {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, 
+    {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""}, 
+    {"link", ""}, {"location", ""}, {"max-forwards", ""}, 
+    {"proxy-authenticate", ""}, {"proxy-authorization", ""}, 
+    {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, 
+    {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""}, 
+    {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, 
+    {"via", ""}, {"www-authenticate", ""}
+  };
+  
+  /*
+   * Code lengths of the Huffman code (RFC 7541, Appendix B), 
+   * for the symbols 0-255 and EOS. The code is canonical, so
+   * the codes are assigned in order of length and symbol.
+   */
+  private static final int[] HUFFMAN_LENGTHS = {
+    13,23,28,28,28,28,28,28,28,24,30,28,28,30,28,28,
+    28,28,28,28,28,28,30,28,28,28,28,28,28,28,28,28,
+    6,10,10,12,13,6,8,11,10,10,8,11,8,6,6,6,
+    5,5,5,6,6,6,6,6,6,6,7,8,15,6,12,10,
+    13,6,7,7,7,7,7,7,7,7,7,7,7,7,7,7,
+    7,7,7,7,7,7,7,7,8,7,8,13,19,13,14,6,
+    15,5,6,5,6,5,6,6,6,5,7,7,6,6,6,5,
+    6,7,6,5,5,6,7,7,7,7,7,15,11,14,13,28,
+    20,22,20,20,22,22,22,23,22,23,23,23,23,23,24,23,
+    24,24,22,23,24,23,23,23,23,21,22,23,22,23,23,24,
+    22,21,20,22,22,23,23,21,23,22,22,24,21,22,23,23,
+    21,21,22,21,23,22,23,23,20,22,22,22,23,22,22,23,
+    26,26,20,19,22,23,22,25,26,26,26,27,27,26,24,25,
+    19,21,26,27,27,26,27,24,21,21,26,26,28,27,27,27,
+    20,24,20,21,22,21,21,23,22,22,25,25,24,24,26,23,
+    26,27,26,26,27,27,27,27,27,28,27,27,27,27,27,26,
+    30
+  };
+  
+  private static final int MAX_CODE_LENGTH = 30;
+  
+  private static final int EOS = 256;
+  
+  // first code, number of codes and first symbol index of each length
+  private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH +1];
+  
+  private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH +1];
+  
+  private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH +1];
+  
+  // symbols sorted by code length
+  private static final int[] SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+  
+  static {
+    int code = 0, index = 0;
+    for(int len = 1; len <= MAX_CODE_LENGTH; len++) {
+      FIRST_CODE[len] = code;
+      FIRST_SYMBOL[len] = index;
+      for(int sym = 0; sym < HUFFMAN_LENGTHS.length; sym++) {
+        if(HUFFMAN_LENGTHS[sym] == len) {
+          SYMBOLS[index++] = sym;
+          CODE_COUNT[len]++;
+          code++;
+        }
+      }
+      code <<= 1;
+    }
+  }
+  
+  
+  private final LinkedList<String[]> table;
+  
+  private int size;
+  
+  private int maxSize;
+  
+  private int limit;
+  
+  private boolean resized;
+  
+  
+  /**
+   * Default constructor without arguments,
+   * with the default dynamic table size.
+   */
+  public Hpack() {
+    table = new LinkedList<>();
+    size = 0;
+    maxSize = limit = DEFAULT_TABLE_SIZE;
+    resized = false;
+  }
+  
+  
+  /**
+   * Set the maximum size of the dynamic table allowed by the
+   * peer decoder (<code>SETTINGS_HEADER_TABLE_SIZE</code>).
+   * The encoder uses up to <code>DEFAULT_TABLE_SIZE</code>, 
+   * and signals the new size in the next header block.
+   * @param max The maximum size of the dynamic table.
+   * @return This modified <code>Hpack</code> instance.
+   */
+  public synchronized Hpack setMaxTableSize(int max) {
+    if(max < 0)
+      throw new IllegalArgumentException(
+          "[Hpack.setMaxTableSize( int )] "
+              + "Invalid max {"+ max+ "}");
+    int sz = Math.min(max, DEFAULT_TABLE_SIZE);
+    if(sz != maxSize) {
+      maxSize = sz;
+      resized = true;
+      evict(0);
+    }
+    return this;
+  }
+  
+  
+  /**
+   * Get the maximum size of the dynamic table.
+   * @return The maximum size of the dynamic table.
+   */
+  public int getMaxTableSize() {
+    return maxSize;
+  }
+  
+  
+  /**
+   * Get the current size of the dynamic table entries.
+   * @return The size of the dynamic table.
+   */
+  public synchronized int getTableSize() {
+    return size;
+  }
+  
+  
+  /**
+   * Encode the header fields in a header block.
+   * Names must be in lower case, as required by HTTP/2.
+   * The <code>content-length</code> value is not indexed,
+   * since it changes on every message.
+   * @param headers The header fields.
+   * @return The encoded header block.
+   */
+  public synchronized byte[] encode(Map<String,String> headers) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if(resized) {
+      integer(out, 0x20, 5, maxSize);
+      resized = false;
+    }
+    for(Map.Entry<String,String> e : headers.entrySet()) {
+      String name = e.getKey();
+      String value = (e.getValue() != null ? e.getValue() : "");
+      int idx = indexOf(name, value, true);
+      if(idx > 0) {
+        integer(out, 0x80, 7, idx);
+        continue;
+      }
+      idx = indexOf(name, value, false);
+      boolean indexing = !"content-length".equals(name);
+      if(indexing) integer(out, 0x40, 6, idx);
+      else integer(out, 0x00, 4, idx);
+      if(idx == 0) string(out, name);
+      string(out, value);
+      if(indexing) add(name, value);
+    }
+    return out.toByteArray();
+  }
+  
+  
+  /**
+   * Decode a header block. Repeated header 
+   * fields are joined with a comma.
+   * @param block The header block.
+   * @return The header fields, in the received order.
+   * @throws IOException In case of an invalid header block.
+   */
+  public Map<String,String> decode(byte[] block) throws IOException {
+    return decode(block, Integer.MAX_VALUE);
+  }
+  
+  
+  /**
+   * Decode a header block, limiting the size of the decoded
+   * header list, computed as the name and value length of each
+   * field plus <code>ENTRY_OVERHEAD</code> (RFC 7540, 6.5.2). 
+   * Repeated header fields are joined with a comma.
+   * @param block The header block.
+   * @param max The maximum size of the decoded header list.
+   * @return The header fields, in the received order.
+   * @throws IOException In case of an invalid header block,
+   * or a header list bigger than the maximum size.
+   */
+  public synchronized Map<String,String> decode(byte[] block, int max) throws IOException {
+    Map<String,String> headers = new LinkedHashMap<>();
+    int[] pos = new int[]{0};
+    long total = 0;
+    while(pos[0] < block.length) {
+      int b = block[pos[0]] & 0xFF;
+      String name, value;
+      if((b & 0x80) != 0) {
+        String[] field = field(integer(block, pos, 7));
+        name = field[0];
+        value = field[1];
+      }
+      else if((b & 0x20) != 0 && (b & 0x40) == 0) {
+        int sz = integer(block, pos, 5);
+        if(sz > limit) throw new IOException(
+            "[Hpack.decode( byte[], int )] Invalid table size {"+ sz+ "}");
+        maxSize = sz;
+        evict(0);
+        continue;
+      }
+      else {
+        boolean indexing = (b & 0x40) != 0;
+        int idx = integer(block, pos, (indexing ? 6 : 4));
+        name = (idx > 0 ? field(idx)[0] : string(block, pos));
+        value = string(block, pos);
+        if(indexing) add(name, value);
+      }
+      total += name.length() + value.length() + ENTRY_OVERHEAD;
+      if(total > max) throw new IOException(
+          "[Hpack.decode( byte[], int )] Header list too large {max="+ max+ "}");
+      String prev = headers.get(name);
+      headers.put(name, (prev == null ? value : prev+ ", "+ value));
+    }
+    return headers;
+  }
+  
+  
+  /**
+   * Find the index of a header field on the static 
+   * and dynamic tables.
+   * @param name The header name.
+   * @param value The header value.
+   * @param exact <code>true</code> for matching name and value,
+   * <code>false</code> for matching only the name.
+   * @return The field index, or <code>0</code> if not found.
+   */
+  private int indexOf(String name, String value, boolean exact) {
+    for(int i = 0; i < STATIC_TABLE.length; i++) {
+      if(STATIC_TABLE[i][0].equals(name) 
+          && (!exact || STATIC_TABLE[i][1].equals(value)))
+        return i +1;
+    }
+    int i = STATIC_TABLE.length +1;
+    for(String[] field : table) {
+      if(field[0].equals(name) 
+          && (!exact || field[1].equals(value)))
+        return i;
+      i++;
+    }
+    return 0;
+  }
+  
+  
+  /**
+   * Get the header field with the index on
+   * the static or dynamic table.
+   */
+  private String[] field(int idx) throws IOException {
+    if(idx > 0 && idx <= STATIC_TABLE.length)
+      return STATIC_TABLE[idx -1];
+    idx -= STATIC_TABLE.length +1;
+    if(idx < 0 || idx >= table.size())
+      throw new IOException("[Hpack.field( int )] "
+          + "Invalid index {"+ idx+ "}");
+    return table.get(idx);
+  }
+  
+  
+  /**
+   * Add a header field to the dynamic table,
+   * evicting the oldest ones as needed.
+   */
+  private void add(String name, String value) {
+    int sz = name.length() + value.length() + ENTRY_OVERHEAD;
+    evict(sz);
+    if(sz > maxSize) return;
+    table.addFirst(new String[]{name, value});
+    size += sz;
+  }
+  
+  
+  /**
+   * Evict the oldest entries from the dynamic table,
+   * until there is room for an entry of the given size.
+   */
+  private void evict(int room) {
+    while(!table.isEmpty() && size + room > maxSize) {
+      String[] old = table.removeLast();
+      size -= old[0].length() + old[1].length() + ENTRY_OVERHEAD;
+    }
+  }
+  
+  
+  /**
+   * Write an integer with a N bits prefix.
+   */
+  private static void integer(ByteArrayOutputStream out, int mask, int bits, int val) {
+    int max = (1 << bits) -1;
+    if(val < max) {
+      out.write(mask | val);
+      return;
+    }
+    out.write(mask | max);
+    val -= max;
+    while(val >= 0x80) {
+      out.write((val & 0x7F) | 0x80);
+      val >>>= 7;
+    }
+    out.write(val);
+  }
+  
+  
+  /**
+   * Read an integer with a N bits prefix.
+   */
+  private static int integer(byte[] block, int[] pos, int bits) throws IOException {
+    int max = (1 << bits) -1;
+    int val = block[pos[0]++] & max;
+    if(val < max) return val;
+    int shift = 0, b;
+    do {
+      if(pos[0] >= block.length || shift > 28)
+        throw new IOException("[Hpack.integer( byte[], int[], int )] "
+            + "Invalid integer encoding");
+      b = block[pos[0]++] & 0xFF;
+      val += (b & 0x7F) << shift;
+      shift += 7;
+    } while((b & 0x80) != 0);
+    if(val < 0) throw new IOException(
+        "[Hpack.integer( byte[], int[], int )] Integer overflow");
+    return val;
+  }
+  
+  
+  /**
+   * Write a string literal, without Huffman coding.
+   */
+  private static void string(ByteArrayOutputStream out, String str) {
+    byte[] bs = str.getBytes(StandardCharsets.ISO_8859_1);
+    integer(out, 0x00, 7, bs.length);
+    out.write(bs, 0, bs.length);
+  }
+  
+  
+  /**
+   * Read a string literal, Huffman coded or not.
+   */
+  private static String string(byte[] block, int[] pos) throws IOException {
+    if(pos[0] >= block.length)
+      throw new IOException("[Hpack.string( byte[], int[] )] "
+          + "Unexpected end of header block");
+    boolean huffman = (block[pos[0]] & 0x80) != 0;
+    int len = integer(block, pos, 7);
+    if(len > block.length - pos[0])
+      throw new IOException("[Hpack.string( byte[], int[] )] "
+          + "Invalid string length {"+ len+ "}");
+    int off = pos[0];
+    pos[0] += len;
+    if(!huffman) 
+      return new String(block, off, len, StandardCharsets.ISO_8859_1);
+    return huffman(block, off, len);
+  }
+  
+  
+  /**
+   * Decode a Huffman coded string.
+   */
+  private static String huffman(byte[] block, int off, int len) throws IOException {
+    StringBuilder sb = new StringBuilder(len * 8 / 5);
+    int code = 0, bits = 0;
+    for(int i = off; i < off + len; i++) {
+      for(int j = 7; j >= 0; j--) {
+        code = (code << 1) | ((block[i] >>> j) & 1);
+        bits++;
+        int idx = code - FIRST_CODE[bits];
+        if(idx >= 0 && idx < CODE_COUNT[bits]) {
+          int sym = SYMBOLS[FIRST_SYMBOL[bits] + idx];
+          if(sym == EOS) throw new IOException(
+              "[Hpack.huffman( byte[], int, int )] "
+                  + "EOS symbol in string");
+          sb.append((char) sym);
+          code = bits = 0;
+        }
+        else if(bits >= MAX_CODE_LENGTH) {
+          throw new IOException(
+              "[Hpack.huffman( byte[], int, int )] "
+                  + "Invalid Huffman code");
+        }
+      }
+    }
+    // padding with the most significant bits of EOS (all ones)
+    if(bits > 7 || code != (1 << bits) -1)
+      throw new IOException(
+          "[Hpack.huffman( byte[], int, int )] Invalid padding");
+    return sb.toString();
+  }
+  
+}
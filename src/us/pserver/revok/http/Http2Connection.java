@@ -0,0 +1,1138 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * HTTP/2 connection over cleartext TCP (h2c, RFC 7540), 
+ * for the client or the server side. Many streams, each one
+ * with a request and its response, are exchanged concurrently
+ * over the connection, with HPACK header compression 
+ * (see <code>Hpack</code>) and flow control. The messages 
+ * content is buffered in memory, and the receiving windows 
+ * are updated as the content arrives. A reader thread 
+ * receives the frames of the connection.
+ * <br><br>
+ * The server side accepts the connection preface sent by 
+ * clients with prior knowledge of HTTP/2, and the HTTP/1.1
+ * <code>Upgrade: h2c</code> request.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class Http2Connection {
+  
+  /**
+   * <code>PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"</code><br>
+   * Connection preface sent by the client.
+   */
+  public static final String PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
+  
+  /**
+   * <code>DEFAULT_WINDOW_SIZE = 65535</code><br>
+   * Initial flow control window of HTTP/2.
+   */
+  public static final int DEFAULT_WINDOW_SIZE = 65535;
+  
+  /**
+   * <code>DEFAULT_FRAME_SIZE = 16384</code><br>
+   * Maximum frame payload size, unless changed by the peer.
+   */
+  public static final int DEFAULT_FRAME_SIZE = 16384;
+  
+  /**
+   * <code>RECEIVE_WINDOW_SIZE = 1024*1024</code><br>
+   * Flow control window announced for receiving 
+   * on the connection and on each stream.
+   */
+  public static final int RECEIVE_WINDOW_SIZE = 1024*1024;
+  
+  /**
+   * <code>MAX_CONCURRENT_STREAMS = 100</code><br>
+   * Maximum number of concurrent streams 
+   * accepted by the server side.
+   */
+  public static final int MAX_CONCURRENT_STREAMS = 100;
+  
+  /**
+   * <code>MAX_HEAD_SIZE = 16*1024</code><br>
+   * Maximum size of an HTTP/1.1 upgrade request head, and of 
+   * the received header blocks, compressed and decoded
+   * (<code>SETTINGS_MAX_HEADER_LIST_SIZE</code>).
+   */
+  public static final int MAX_HEAD_SIZE = 16*1024;
+  
+  
+  private static final int DATA = 0x0;
+  
+  private static final int HEADERS = 0x1;
+  
+  private static final int RST_STREAM = 0x3;
+  
+  private static final int SETTINGS = 0x4;
+  
+  private static final int PUSH_PROMISE = 0x5;
+  
+  private static final int PING = 0x6;
+  
+  private static final int GOAWAY = 0x7;
+  
+  private static final int WINDOW_UPDATE = 0x8;
+  
+  private static final int CONTINUATION = 0x9;
+  
+  private static final int FLAG_END_STREAM = 0x1;
+  
+  private static final int FLAG_ACK = 0x1;
+  
+  private static final int FLAG_END_HEADERS = 0x4;
+  
+  private static final int FLAG_PADDED = 0x8;
+  
+  private static final int FLAG_PRIORITY = 0x20;
+  
+  private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  
+  private static final int SETTINGS_ENABLE_PUSH = 0x2;
+  
+  private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  
+  private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  
+  private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  
+  private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+  
+  private static final int NO_ERROR = 0x0;
+  
+  private static final int PROTOCOL_ERROR = 0x1;
+  
+  private static final int FRAME_SIZE_ERROR = 0x6;
+  
+  private static final int REFUSED_STREAM = 0x7;
+  
+  private static final int CANCEL = 0x8;
+  
+  private static final int COMPRESSION_ERROR = 0x9;
+  
+  
+  private final Socket sock;
+  
+  private final boolean client;
+  
+  private final InputStream input;
+  
+  private final OutputStream output;
+  
+  private final Hpack encoder;
+  
+  private final Hpack decoder;
+  
+  private final Map<Integer, Stream> streams;
+  
+  private Consumer<Stream> handler;
+  
+  private int maxContent;
+  
+  private int nextId;
+  
+  private int lastId;
+  
+  private int active;
+  
+  private int sendWindow;
+  
+  private int initialWindow;
+  
+  private int maxFrame;
+  
+  private int maxStreams;
+  
+  private int unacked;
+  
+  private volatile boolean open;
+  
+  private volatile boolean goaway;
+  
+  private volatile IOException error;
+  
+  
+  /**
+   * Constructor which receives the connected socket 
+   * and the side of the connection.
+   * @param sock The connected <code>Socket</code>.
+   * @param client <code>true</code> for the client side,
+   * <code>false</code> for the server side.
+   * @throws IOException In case of error getting 
+   * the socket streams.
+   */
+  public Http2Connection(Socket sock, boolean client) throws IOException {
+    if(sock == null || !sock.isConnected())
+      throw new IllegalArgumentException(
+          "[Http2Connection( Socket, boolean )] "
+              + "Invalid Socket {"+ sock+ "}");
+    this.sock = sock;
+    this.client = client;
+    input = new BufferedInputStream(
+        sock.getInputStream(), DEFAULT_FRAME_SIZE);
+    output = new BufferedOutputStream(
+        sock.getOutputStream(), DEFAULT_FRAME_SIZE + 9);
+    encoder = new Hpack();
+    decoder = new Hpack();
+    streams = new ConcurrentHashMap<>();
+    handler = null;
+    maxContent = NioHttpRequestDecoder.DEFAULT_MAX_CONTENT;
+    nextId = 1;
+    lastId = 0;
+    active = 0;
+    sendWindow = initialWindow = DEFAULT_WINDOW_SIZE;
+    maxFrame = DEFAULT_FRAME_SIZE;
+    maxStreams = Integer.MAX_VALUE;
+    unacked = 0;
+    open = false;
+    goaway = false;
+    error = null;
+  }
+  
+  
+  /**
+   * Set the handler of the requests received on the 
+   * server side, called by the reader thread when the 
+   * request is complete. The handler must answer with 
+   * <code>respond(Stream, Map, byte[])</code>, usually 
+   * from another thread.
+   * @param handler The requests handler.
+   * @return This modified <code>Http2Connection</code> instance.
+   */
+  public Http2Connection setRequestHandler(Consumer<Stream> handler) {
+    this.handler = handler;
+    return this;
+  }
+  
+  
+  /**
+   * Set the maximum content size of the received messages.
+   * Bigger messages have the stream canceled.
+   * @param size The maximum content size in bytes.
+   * @return This modified <code>Http2Connection</code> instance.
+   */
+  public Http2Connection setMaxContentSize(int size) {
+    if(size < 1)
+      throw new IllegalArgumentException(
+          "[Http2Connection.setMaxContentSize( int )] "
+              + "Invalid size {"+ size+ "}");
+    maxContent = size;
+    return this;
+  }
+  
+  
+  /**
+   * Start the connection. The client side sends the 
+   * connection preface. The server side receives the 
+   * preface on the reader thread.
+   * @return This modified <code>Http2Connection</code> instance.
+   * @throws IOException In case of error sending the preface.
+   */
+  public Http2Connection start() throws IOException {
+    if(!client && handler == null)
+      throw new IllegalStateException(
+          "[Http2Connection.start()] Invalid request handler {null}");
+    open = true;
+    if(client) {
+      synchronized(output) {
+        output.write(PREFACE.getBytes(StandardCharsets.ISO_8859_1));
+        writeSettings();
+        output.flush();
+      }
+    }
+    Thread reader = new Thread(this::run, "Http2Connection-Reader");
+    reader.setDaemon(true);
+    reader.start();
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if new streams may be opened on the connection.
+   * @return <code>true</code> if the connection is open and 
+   * was not finished by the peer, <code>false</code> otherwise.
+   */
+  public boolean isOpen() {
+    return open && !goaway;
+  }
+  
+  
+  /**
+   * Get the number of streams in progress.
+   * @return The number of streams in progress.
+   */
+  public synchronized int getActiveStreams() {
+    return active;
+  }
+  
+  
+  /**
+   * Send a request on a new stream (client side).
+   * The response is received with <code>Stream.await()</code>.
+   * Waits while the maximum number of concurrent 
+   * streams allowed by the server is reached.
+   * @param headers The request header fields, 
+   * with the pseudo header fields first.
+   * @param content The request content or <code>null</code>.
+   * @return The request <code>Stream</code>.
+   * @throws IOException In case of error sending the request.
+   */
+  public Stream request(Map<String,String> headers, byte[] content) throws IOException {
+    if(!client) throw new IllegalStateException(
+        "[Http2Connection.request( Map, byte[] )] Not a client connection");
+    synchronized(this) {
+      while(isOpen() && active >= maxStreams) 
+        waitState();
+      checkOpen();
+      if(goaway) throw new IOException(
+          "[Http2Connection] Connection finished by peer (GOAWAY)");
+      active++;
+    }
+    Stream s;
+    try {
+      synchronized(output) {
+        // stream IDs must be sent in increasing order
+        s = new Stream(nextId);
+        nextId += 2;
+        synchronized(this) {
+          s.window = initialWindow;
+          streams.put(s.id, s);
+        }
+        writeHeaders(s.id, headers, content);
+      }
+      writeData(s, content);
+    }
+    catch(IOException e) {
+      close();
+      throw e;
+    }
+    return s;
+  }
+  
+  
+  /**
+   * Send the response of a request stream (server side).
+   * @param s The request <code>Stream</code>.
+   * @param headers The response header fields, 
+   * with the <code>:status</code> pseudo header first.
+   * @param content The response content or <code>null</code>.
+   * @throws IOException In case of error sending the response.
+   */
+  public void respond(Stream s, Map<String,String> headers, byte[] content) throws IOException {
+    if(s == null || streams.get(s.id) != s) 
+      throw new IOException("[Http2Connection.respond( Stream, Map, byte[] )] "
+          + "Stream closed {"+ (s != null ? s.id : null)+ "}");
+    try {
+      synchronized(output) {
+        writeHeaders(s.id, headers, content);
+      }
+      writeData(s, content);
+    }
+    finally {
+      finish(s);
+    }
+  }
+  
+  
+  /**
+   * Close the connection, failing the pending streams.
+   */
+  public void close() {
+    boolean sendGoaway;
+    synchronized(this) {
+      sendGoaway = open;
+      open = false;
+      notifyAll();
+    }
+    if(sendGoaway) {
+      try {
+        synchronized(output) {
+          byte[] payload = new byte[8];
+          int32(payload, 0, lastId);
+          int32(payload, 4, NO_ERROR);
+          writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+          output.flush();
+        }
+      } catch(IOException e) {}
+    }
+    try { sock.close(); }
+    catch(IOException e) {}
+    IOException ex = (error != null ? error 
+        : new EOFException("[Http2Connection] Connection closed"));
+    for(Stream s : streams.values()) {
+      s.done.completeExceptionally(ex);
+    }
+    streams.clear();
+  }
+  
+  
+  /**
+   * Receive the frames of the connection until closed.
+   */
+  private void run() {
+    try {
+      if(!client) handshake();
+      while(open) readFrame();
+    }
+    catch(IOException e) {
+      if(open) error = e;
+    }
+    finally {
+      close();
+    }
+  }
+  
+  
+  /**
+   * Receive the client connection preface or the HTTP/1.1 
+   * upgrade request (server side), and send the server preface.
+   */
+  private void handshake() throws IOException {
+    Stream upgraded = null;
+    input.mark(MAX_HEAD_SIZE);
+    byte[] pri = new byte[4];
+    readFully(pri, 0, 4);
+    if(!"PRI ".equals(new String(pri, StandardCharsets.ISO_8859_1))) {
+      input.reset();
+      upgraded = upgrade();
+    }
+    else {
+      synchronized(output) {
+        writeSettings();
+        output.flush();
+      }
+      input.reset();
+    }
+    byte[] pre = new byte[PREFACE.length()];
+    readFully(pre, 0, pre.length);
+    if(!PREFACE.equals(new String(pre, StandardCharsets.ISO_8859_1)))
+      throw new IOException("[Http2Connection.handshake()] "
+          + "Invalid connection preface");
+    if(upgraded != null) handler.accept(upgraded);
+  }
+  
+  
+  /**
+   * Receive the HTTP/1.1 upgrade request, answering with 
+   * <code>101 Switching Protocols</code>. The request becomes 
+   * the stream 1 of the connection.
+   * @return The request stream.
+   */
+  private Stream upgrade() throws IOException {
+    List<String> lines = new ArrayList<>();
+    StringBuilder line = new StringBuilder();
+    int size = 0;
+    while(true) {
+      int b = input.read();
+      if(b < 0) throw new EOFException(
+          "[Http2Connection.upgrade()] Connection closed");
+      if(++size > MAX_HEAD_SIZE) throw new IOException(
+          "[Http2Connection.upgrade()] Request head too large");
+      if(b == '\n') {
+        if(line.length() > 0 && line.charAt(line.length()-1) == '\r')
+          line.setLength(line.length()-1);
+        if(line.length() == 0) break;
+        lines.add(line.toString());
+        line.setLength(0);
+      }
+      else line.append((char) b);
+    }
+    String[] reqline = (lines.isEmpty() ? new String[0] 
+        : lines.get(0).split(HttpConsts.SP));
+    Map<String,String> head = new LinkedHashMap<>();
+    for(int i = 1; i < lines.size(); i++) {
+      int idx = lines.get(i).indexOf(HttpConsts.COLON);
+      if(idx <= 0) continue;
+      head.put(lines.get(i).substring(0, idx).trim().toLowerCase(Locale.ENGLISH), 
+          lines.get(i).substring(idx+1).trim());
+    }
+    String upg = head.get("upgrade");
+    String settings = head.get("http2-settings");
+    if(reqline.length != 3 || upg == null || settings == null
+        || !upg.toLowerCase(Locale.ENGLISH).contains("h2c")
+        || head.containsKey("transfer-encoding")) {
+      output.write(("HTTP/1.1 "+ HttpConsts.STATUS_400+ HttpConsts.SP
+          + HttpConsts.STATUS_BAD_REQUEST+ HttpConsts.CRLF
+          + HttpConsts.HD_CONT_LENGTH+ ": 0"+ HttpConsts.CRLF
+          + HttpConsts.HD_CONNECTION+ ": "+ HttpConsts.HD_VAL_CLOSE
+          + HttpConsts.CRLF+ HttpConsts.CRLF)
+          .getBytes(StandardCharsets.ISO_8859_1));
+      output.flush();
+      throw new IOException("[Http2Connection.upgrade()] "
+          + "Not an HTTP/2 upgrade request: "+ lines);
+    }
+    int length = 0;
+    if(head.containsKey("content-length")) {
+      try {
+        length = Integer.parseInt(head.get("content-length"));
+      } catch(NumberFormatException e) {
+        length = -1;
+      }
+      if(length < 0 || length > maxContent) throw new IOException(
+          "[Http2Connection.upgrade()] Invalid content length {"
+              + head.get("content-length")+ "}");
+    }
+    byte[] content = new byte[length];
+    readFully(content, 0, length);
+    // peer settings in the HTTP2-Settings header
+    settings(Base64.getUrlDecoder().decode(settings));
+    
+    Map<String,String> headers = new LinkedHashMap<>();
+    headers.put(":method", reqline[0]);
+    headers.put(":scheme", "http");
+    headers.put(":authority", (head.containsKey("host") ? head.get("host") : ""));
+    headers.put(":path", reqline[1]);
+    for(Map.Entry<String,String> e : head.entrySet()) {
+      switch(e.getKey()) {
+        case "host": case "connection": case "upgrade": 
+        case "http2-settings": case "keep-alive":
+          break;
+        default:
+          headers.put(e.getKey(), e.getValue());
+      }
+    }
+    Stream s = new Stream(1);
+    s.headers = headers;
+    s.content.write(content, 0, content.length);
+    synchronized(this) {
+      s.window = initialWindow;
+      lastId = 1;
+      active++;
+    }
+    streams.put(s.id, s);
+    synchronized(output) {
+      output.write(("HTTP/1.1 101 Switching Protocols"+ HttpConsts.CRLF
+          + HttpConsts.HD_CONNECTION+ ": Upgrade"+ HttpConsts.CRLF
+          + "Upgrade: h2c"+ HttpConsts.CRLF+ HttpConsts.CRLF)
+          .getBytes(StandardCharsets.ISO_8859_1));
+      writeSettings();
+      output.flush();
+    }
+    return s;
+  }
+  
+  
+  /**
+   * Read and process the next frame.
+   */
+  private void readFrame() throws IOException {
+    int first;
+    try {
+      first = input.read();
+    }
+    catch(SocketTimeoutException e) {
+      // idle connection, without streams in progress
+      if(getActiveStreams() == 0) close();
+      return;
+    }
+    if(first < 0) throw new EOFException(
+        "[Http2Connection.readFrame()] Connection closed by peer");
+    byte[] head = new byte[9];
+    head[0] = (byte) first;
+    readFully(head, 1, 8);
+    int len = ((head[0] & 0xFF) << 16) | ((head[1] & 0xFF) << 8) | (head[2] & 0xFF);
+    int type = head[3] & 0xFF;
+    int flags = head[4] & 0xFF;
+    int id = int32(head, 5) & 0x7FFFFFFF;
+    if(len > DEFAULT_FRAME_SIZE) {
+      goaway(FRAME_SIZE_ERROR);
+      throw new IOException("[Http2Connection.readFrame()] "
+          + "Invalid frame size {"+ len+ "}");
+    }
+    byte[] payload = new byte[len];
+    readFully(payload, 0, len);
+    
+    switch(type) {
+      case DATA:
+        data(id, flags, payload);
+        break;
+      case HEADERS:
+        headers(id, flags, payload);
+        break;
+      case RST_STREAM:
+        Stream s = streams.get(id);
+        if(s != null) {
+          s.done.completeExceptionally(new IOException(
+              "[Http2Connection] Stream reset by peer {id="+ id
+                  + ", error="+ (len >= 4 ? int32(payload, 0) : -1)+ "}"));
+          finish(s);
+        }
+        break;
+      case SETTINGS:
+        if((flags & FLAG_ACK) == 0) {
+          settings(payload);
+          synchronized(output) {
+            writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+            output.flush();
+          }
+        }
+        break;
+      case PING:
+        if((flags & FLAG_ACK) == 0) {
+          synchronized(output) {
+            writeFrame(PING, FLAG_ACK, 0, payload, 0, len);
+            output.flush();
+          }
+        }
+        break;
+      case GOAWAY:
+        goaway = true;
+        int last = (len >= 4 ? int32(payload, 0) & 0x7FFFFFFF : 0);
+        for(Stream st : streams.values()) {
+          if(client && st.id > last) {
+            st.done.completeExceptionally(new IOException(
+                "[Http2Connection] Stream refused by GOAWAY {id="+ st.id+ "}"));
+            finish(st);
+          }
+        }
+        synchronized(this) {
+          notifyAll();
+        }
+        if(getActiveStreams() == 0) close();
+        break;
+      case WINDOW_UPDATE:
+        int inc = (len >= 4 ? int32(payload, 0) & 0x7FFFFFFF : 0);
+        synchronized(this) {
+          if(id == 0) sendWindow += inc;
+          else if(streams.containsKey(id)) 
+            streams.get(id).window += inc;
+          notifyAll();
+        }
+        break;
+      case PUSH_PROMISE:
+      case CONTINUATION:
+        // push is disabled and continuations are read with headers
+        goaway(PROTOCOL_ERROR);
+        throw new IOException("[Http2Connection.readFrame()] "
+            + "Unexpected frame {type="+ type+ "}");
+      default:
+        // PRIORITY and unknown frames are ignored
+        break;
+    }
+  }
+  
+  
+  /**
+   * Process a HEADERS frame, with the CONTINUATION frames.
+   */
+  private void headers(int id, int flags, byte[] payload) throws IOException {
+    int off = 0, end = payload.length;
+    if((flags & FLAG_PADDED) != 0) {
+      end -= (payload[0] & 0xFF);
+      off++;
+    }
+    if((flags & FLAG_PRIORITY) != 0) off += 5;
+    if(off > end) {
+      goaway(PROTOCOL_ERROR);
+      throw new IOException("[Http2Connection.headers( int, int, byte[] )] "
+          + "Invalid padding");
+    }
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    block.write(payload, off, end - off);
+    boolean endHeaders = (flags & FLAG_END_HEADERS) != 0;
+    while(!endHeaders) {
+      byte[] head = new byte[9];
+      readFully(head, 0, 9);
+      int len = ((head[0] & 0xFF) << 16) | ((head[1] & 0xFF) << 8) | (head[2] & 0xFF);
+      if((head[3] & 0xFF) != CONTINUATION 
+          || (int32(head, 5) & 0x7FFFFFFF) != id
+          || len > DEFAULT_FRAME_SIZE
+          || block.size() + len > MAX_HEAD_SIZE) {
+        goaway(PROTOCOL_ERROR);
+        throw new IOException("[Http2Connection.headers( int, int, byte[] )] "
+            + "Invalid CONTINUATION frame");
+      }
+      byte[] cont = new byte[len];
+      readFully(cont, 0, len);
+      block.write(cont, 0, len);
+      endHeaders = (head[4] & FLAG_END_HEADERS) != 0;
+    }
+    // the header block must be decoded to keep the HPACK state
+    Map<String,String> headers;
+    try {
+      headers = decoder.decode(block.toByteArray(), MAX_HEAD_SIZE);
+    } catch(IOException e) {
+      goaway(COMPRESSION_ERROR);
+      throw e;
+    }
+    Stream s = streams.get(id);
+    if(s == null) {
+      if(client || id <= lastId || (id & 1) == 0) 
+        return;
+      lastId = id;
+      boolean refused;
+      synchronized(this) {
+        refused = (active >= MAX_CONCURRENT_STREAMS || goaway);
+        if(!refused) {
+          active++;
+          s = new Stream(id);
+          s.window = initialWindow;
+          streams.put(id, s);
+        }
+      }
+      if(refused) {
+        reset(id, REFUSED_STREAM);
+        return;
+      }
+    }
+    // trailers are not used
+    if(s.headers == null) s.headers = headers;
+    if((flags & FLAG_END_STREAM) != 0) complete(s);
+  }
+  
+  
+  /**
+   * Process a DATA frame.
+   */
+  private void data(int id, int flags, byte[] payload) throws IOException {
+    int off = 0, end = payload.length;
+    if((flags & FLAG_PADDED) != 0 && end > 0) {
+      end -= (payload[0] & 0xFF);
+      off++;
+    }
+    Stream s = streams.get(id);
+    boolean endStream = (flags & FLAG_END_STREAM) != 0;
+    if(s != null && s.headers != null && off <= end) {
+      if(s.content.size() + end - off > maxContent) {
+        reset(id, CANCEL);
+        s.done.completeExceptionally(new IOException(
+            "[Http2Connection] Content too large {id="+ id+ "}"));
+        finish(s);
+        s = null;
+      }
+      else s.content.write(payload, off, end - off);
+    }
+    // update the receiving windows, consumed in memory
+    int len = payload.length;
+    int conninc = 0, streaminc = 0;
+    synchronized(this) {
+      unacked += len;
+      if(unacked >= RECEIVE_WINDOW_SIZE / 2) {
+        conninc = unacked;
+        unacked = 0;
+      }
+      if(s != null && !endStream) {
+        s.unacked += len;
+        if(s.unacked >= RECEIVE_WINDOW_SIZE / 2) {
+          streaminc = s.unacked;
+          s.unacked = 0;
+        }
+      }
+    }
+    if(conninc > 0 || streaminc > 0) {
+      synchronized(output) {
+        byte[] inc = new byte[4];
+        if(conninc > 0) {
+          int32(inc, 0, conninc);
+          writeFrame(WINDOW_UPDATE, 0, 0, inc, 0, 4);
+        }
+        if(streaminc > 0) {
+          int32(inc, 0, streaminc);
+          writeFrame(WINDOW_UPDATE, 0, id, inc, 0, 4);
+        }
+        output.flush();
+      }
+    }
+    if(s != null && endStream) complete(s);
+  }
+  
+  
+  /**
+   * Apply the settings received from the peer.
+   */
+  private void settings(byte[] payload) throws IOException {
+    if(payload.length % 6 != 0) {
+      goaway(FRAME_SIZE_ERROR);
+      throw new IOException("[Http2Connection.settings( byte[] )] "
+          + "Invalid SETTINGS frame");
+    }
+    synchronized(this) {
+      for(int i = 0; i < payload.length; i += 6) {
+        int key = ((payload[i] & 0xFF) << 8) | (payload[i+1] & 0xFF);
+        int val = int32(payload, i+2);
+        switch(key) {
+          case SETTINGS_HEADER_TABLE_SIZE:
+            encoder.setMaxTableSize(val < 0 ? Integer.MAX_VALUE : val);
+            break;
+          case SETTINGS_MAX_CONCURRENT_STREAMS:
+            maxStreams = (val < 0 ? Integer.MAX_VALUE : val);
+            break;
+          case SETTINGS_INITIAL_WINDOW_SIZE:
+            int delta = val - initialWindow;
+            for(Stream s : streams.values()) 
+              s.window += delta;
+            initialWindow = val;
+            break;
+          case SETTINGS_MAX_FRAME_SIZE:
+            maxFrame = Math.max(DEFAULT_FRAME_SIZE, Math.min(val, 16*1024*1024 -1));
+            break;
+          default:
+            break;
+        }
+      }
+      notifyAll();
+    }
+  }
+  
+  
+  /**
+   * Mark the stream complete, removing the client streams 
+   * and calling the handler with the server streams.
+   */
+  private void complete(Stream s) {
+    if(client) {
+      finish(s);
+      s.done.complete(s);
+    }
+    else {
+      s.done.complete(s);
+      handler.accept(s);
+    }
+  }
+  
+  
+  /**
+   * Remove the finished stream.
+   */
+  private void finish(Stream s) {
+    if(streams.remove(s.id, s)) {
+      synchronized(this) {
+        active--;
+        notifyAll();
+      }
+      if(goaway && client && getActiveStreams() == 0) close();
+    }
+  }
+  
+  
+  /**
+   * Write the SETTINGS frame and the connection window 
+   * update of this side. Must be called holding the 
+   * output lock.
+   */
+  private void writeSettings() throws IOException {
+    byte[] payload = new byte[24];
+    int off = 0;
+    if(client) {
+      setting(payload, off, SETTINGS_ENABLE_PUSH, 0);
+    } else {
+      setting(payload, off, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+    }
+    setting(payload, off += 6, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+    setting(payload, off += 6, SETTINGS_HEADER_TABLE_SIZE, Hpack.DEFAULT_TABLE_SIZE);
+    setting(payload, off += 6, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEAD_SIZE);
+    writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    byte[] inc = new byte[4];
+    int32(inc, 0, RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+    writeFrame(WINDOW_UPDATE, 0, 0, inc, 0, 4);
+  }
+  
+  
+  /**
+   * Write a header block, in HEADERS and CONTINUATION frames.
+   * Must be called holding the output lock.
+   */
+  private void writeHeaders(int id, Map<String,String> headers, byte[] content) throws IOException {
+    Map<String,String> hds = headers;
+    if(content != null) {
+      hds = new LinkedHashMap<>(headers);
+      hds.put("content-length", String.valueOf(content.length));
+    }
+    byte[] block = encoder.encode(hds);
+    boolean empty = (content == null || content.length == 0);
+    int off = 0, type = HEADERS;
+    do {
+      int len = Math.min(block.length - off, maxFrame);
+      int flags = (off + len == block.length ? FLAG_END_HEADERS : 0);
+      if(type == HEADERS && empty) flags |= FLAG_END_STREAM;
+      writeFrame(type, flags, id, block, off, len);
+      type = CONTINUATION;
+      off += len;
+    } while(off < block.length);
+    if(empty) output.flush();
+  }
+  
+  
+  /**
+   * Write the content in DATA frames, 
+   * waiting for the flow control windows.
+   */
+  private void writeData(Stream s, byte[] content) throws IOException {
+    if(content == null || content.length == 0) return;
+    int off = 0;
+    while(off < content.length) {
+      int len = 0;
+      synchronized(this) {
+        checkOpen();
+        if(streams.get(s.id) != s) throw new IOException(
+            "[Http2Connection.writeData( Stream, byte[] )] "
+                + "Stream closed {"+ s.id+ "}");
+        if(sendWindow > 0 && s.window > 0) {
+          len = Math.min(content.length - off, 
+              Math.min(maxFrame, Math.min(sendWindow, s.window)));
+          sendWindow -= len;
+          s.window -= len;
+        }
+      }
+      if(len == 0) {
+        // the output lock is never taken holding this instance lock
+        synchronized(output) {
+          output.flush();
+        }
+        synchronized(this) {
+          while(open && streams.get(s.id) == s
+              && (sendWindow <= 0 || s.window <= 0))
+            waitState();
+        }
+        continue;
+      }
+      synchronized(output) {
+        writeFrame(DATA, (off + len == content.length 
+            ? FLAG_END_STREAM : 0), s.id, content, off, len);
+        if(off + len == content.length) output.flush();
+      }
+      off += len;
+    }
+  }
+  
+  
+  /**
+   * Send a RST_STREAM frame.
+   */
+  private void reset(int id, int code) throws IOException {
+    synchronized(output) {
+      byte[] payload = new byte[4];
+      int32(payload, 0, code);
+      writeFrame(RST_STREAM, 0, id, payload, 0, 4);
+      output.flush();
+    }
+  }
+  
+  
+  /**
+   * Send a GOAWAY frame with the error code, 
+   * before closing the connection on errors.
+   */
+  private void goaway(int code) {
+    try {
+      synchronized(output) {
+        byte[] payload = new byte[8];
+        int32(payload, 0, lastId);
+        int32(payload, 4, code);
+        writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+        output.flush();
+      }
+    } catch(IOException e) {}
+    synchronized(this) {
+      open = false;
+    }
+  }
+  
+  
+  /**
+   * Write a frame. Must be called holding the output lock.
+   */
+  private void writeFrame(int type, int flags, int id, byte[] payload, int off, int len) throws IOException {
+    output.write(len >>> 16);
+    output.write(len >>> 8);
+    output.write(len);
+    output.write(type);
+    output.write(flags);
+    byte[] sid = new byte[4];
+    int32(sid, 0, id);
+    output.write(sid);
+    output.write(payload, off, len);
+  }
+  
+  
+  private void checkOpen() throws IOException {
+    if(!open) throw (error != null ? new IOException(error.toString(), error)
+        : new EOFException("[Http2Connection] Connection closed"));
+  }
+  
+  
+  /**
+   * Wait for a state change. Must be called 
+   * holding this instance lock.
+   */
+  private void waitState() throws IOException {
+    try {
+      wait();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.toString());
+    }
+  }
+  
+  
+  private void readFully(byte[] bs, int off, int len) throws IOException {
+    while(len > 0) {
+      int read = input.read(bs, off, len);
+      if(read < 0) throw new EOFException(
+          "[Http2Connection] Connection closed by peer");
+      off += read;
+      len -= read;
+    }
+  }
+  
+  
+  private static void setting(byte[] bs, int off, int key, int val) {
+    bs[off] = (byte) (key >>> 8);
+    bs[off+1] = (byte) key;
+    int32(bs, off+2, val);
+  }
+  
+  
+  private static int int32(byte[] bs, int off) {
+    return ((bs[off] & 0xFF) << 24) | ((bs[off+1] & 0xFF) << 16)
+        | ((bs[off+2] & 0xFF) << 8) | (bs[off+3] & 0xFF);
+  }
+  
+  
+  private static void int32(byte[] bs, int off, int val) {
+    bs[off] = (byte) (val >>> 24);
+    bs[off+1] = (byte) (val >>> 16);
+    bs[off+2] = (byte) (val >>> 8);
+    bs[off+3] = (byte) val;
+  }
+  
+  
+  
+  /**
+   * A stream of the connection, with the received 
+   * message (response on the client side, request 
+   * on the server side).
+   */
+  public static class Stream {
+    
+    private final int id;
+    
+    private volatile Map<String,String> headers;
+    
+    private final ByteArrayOutputStream content;
+    
+    private final CompletableFuture<Stream> done;
+    
+    private int window;
+    
+    private int unacked;
+    
+    
+    Stream(int id) {
+      this.id = id;
+      headers = null;
+      content = new ByteArrayOutputStream();
+      done = new CompletableFuture<>();
+      window = 0;
+      unacked = 0;
+    }
+    
+    
+    /**
+     * Get the stream ID.
+     * @return The stream ID.
+     */
+    public int getId() {
+      return id;
+    }
+    
+    
+    /**
+     * Get the received header fields.
+     * @return The received header fields.
+     */
+    public Map<String,String> getHeaders() {
+      return (headers != null ? headers 
+          : Collections.<String,String>emptyMap());
+    }
+    
+    
+    /**
+     * Get a received header field value.
+     * @param name The header name in lower case.
+     * @return The header value or <code>null</code>.
+     */
+    public String getHeader(String name) {
+      return getHeaders().get(name);
+    }
+    
+    
+    /**
+     * Get the received content.
+     * @return The received content.
+     */
+    public byte[] getContent() {
+      return content.toByteArray();
+    }
+    
+    
+    /**
+     * Wait for the received message to complete.
+     * @return This <code>Stream</code> instance.
+     * @throws IOException In case of error receiving the 
+     * message or if the stream was reset.
+     */
+    public Stream await() throws IOException {
+      try {
+        return done.get();
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(e.toString());
+      }
+      catch(ExecutionException e) {
+        if(e.getCause() instanceof IOException)
+          throw (IOException) e.getCause();
+        throw new IOException(e.getCause().toString(), e.getCause());
+      }
+    }
+    
+  }
+  
+}
@@ -45,6 +45,38 @@ public interface HttpConsts {
    */
   public static final String STATUS_OK = "OK";
   
+  /**
+   * <code>
+   *  STATUS_400 = 400
+   * </code><br>
+   * Http 400 Response Code.
+   */
+  public static final int STATUS_400 = 400;
+  
+  /**
+   * <code>
+   *  STATUS_BAD_REQUEST = "Bad Request"
+   * </code><br>
+   * Http Bad Request Response Reason.
+   */
+  public static final String STATUS_BAD_REQUEST = "Bad Request";
+  
+  /**
+   * <code>
+   *  STATUS_503 = 503
+   * </code><br>
+   * Http 503 Response Code.
+   */
+  public static final int STATUS_503 = 503;
+  
+  /**
+   * <code>
+   *  STATUS_UNAVAILABLE = "Service Unavailable"
+   * </code><br>
+   * Http Service Unavailable Response Reason.
+   */
+  public static final String STATUS_UNAVAILABLE = "Service Unavailable";
+  
   /**
    * <code>
    *  AMPERSAND = "&amp;"
@@ -125,6 +157,14 @@ public interface HttpConsts {
    */
   public static final String HTTP = "http://";
 
+  /**
+   * <code>
+   *  HTTPS = "https://"
+   * </code><br>
+   * Https URI start.
+   */
+  public static final String HTTPS = "https://";
+
   /**
    * <code>
    *  SLASH = "/"
@@ -173,6 +213,14 @@ public interface HttpConsts {
    */
   public static final String HD_CONT_ENCODING = "Content-Encoding";
 
+  /**
+   * <code>
+   *  HD_ACCEPT_ENCODING = "Accept-Encoding"
+   * </code><br>
+   * Http Accept-Encoding Header.
+   */
+  public static final String HD_ACCEPT_ENCODING = "Accept-Encoding";
+
   /**
    * <code>
    *  HD_VAL_DEF_ENCODING = "deflate"
@@ -205,6 +253,38 @@ public interface HttpConsts {
    */
   public static final String HD_PROXY_AUTH = "Proxy-Authorization";
 
+  /**
+   * <code>
+   *  HD_RETRY_AFTER = "Retry-After"
+   * </code><br>
+   * Http Retry-After header.
+   */
+  public static final String HD_RETRY_AFTER = "Retry-After";
+
+  /**
+   * <code>
+   *  HD_CONNECTION = "Connection"
+   * </code><br>
+   * Http Connection header.
+   */
+  public static final String HD_CONNECTION = "Connection";
+
+  /**
+   * <code>
+   *  HD_VAL_CLOSE = "close"
+   * </code><br>
+   * Http Connection header value for non persistent connections.
+   */
+  public static final String HD_VAL_CLOSE = "close";
+
+  /**
+   * <code>
+   *  HD_CONT_LENGTH = "Content-Length"
+   * </code><br>
+   * Http Content-Length header.
+   */
+  public static final String HD_CONT_LENGTH = "Content-Length";
+
   /**
    * <code>
    *  UTF8 = "UTF-8"
@@ -21,13 +21,19 @@
 
 package us.pserver.revok.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import org.apache.http.Consts;
 import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.util.EntityUtils;
 import us.pserver.cdr.StringByteConverter;
 import us.pserver.cdr.crypt.CryptAlgorithm;
@@ -35,13 +41,14 @@ import us.pserver.cdr.crypt.CryptKey;
 import us.pserver.revok.protocol.JsonSerializer;
 import us.pserver.revok.protocol.ObjectSerializer;
 import us.pserver.revok.protocol.XmlSerializer;
-import us.pserver.streams.IO;
-import us.pserver.streams.MixedWriteBuffer;
-import us.pserver.streams.StreamCoderFactory;
 
 /**
- * A factory for embed Http RPC info
- * in the Http message body.
+ * A factory for embed Http RPC info in the Http message body,
+ * writing the binary envelope (see <code>EnvelopeConsts</code>) 
+ * directly into the target <code>OutputStream</code>, through 
+ * the coders chain, without any intermediate buffer.
+ * Stream chunk buffers and GZip deflaters are pooled 
+ * between requests, minimizing allocation per request.
  * 
  * @author Juno Roesler - juno@pserver.com
  * @version 1.1 - 201506
@@ -59,8 +66,21 @@ public class HttpContentFactory {
       TYPE_X_JAVA_ROB = ContentType.create(
           "application/x-java-rob", Consts.UTF_8);
   
+  /**
+   * <code>
+   * POOL_SIZE = 64
+   * </code><br>
+   * Max number of pooled chunk buffers and deflaters.
+   */
+  public static final int POOL_SIZE = 64;
+  
+  
+  private static final ArrayBlockingQueue<byte[]> 
+      CHUNKS = new ArrayBlockingQueue<>(POOL_SIZE);
+  
+  private static final ArrayBlockingQueue<Deflater> 
+      DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
   
-  private StreamCoderFactory sfact;
   
   private final StringByteConverter scv;
   
@@ -68,12 +88,18 @@ public class HttpContentFactory {
   
   private CryptKey key;
   
+  private SessionCipher session;
+  
   private Object obj;
   
   private InputStream input;
   
   private ObjectSerializer serial;
   
+  private DeflateDictionary dict;
+  
+  private boolean gzip, adaptive, lzma, base64;
+  
   
   /**
    * Constructor receives the mime content type.
@@ -83,12 +109,16 @@ public class HttpContentFactory {
     if(type == null)
       type = TYPE_X_JAVA_ROB;
     this.type = type;
-    sfact = StreamCoderFactory.getNew();
     scv = new StringByteConverter();
     key = null;
+    session = null;
     obj = null;
     input = null;
     serial = new JsonSerializer();
+    gzip = base64 = false;
+    adaptive = true;
+    lzma = false;
+    dict = null;
   }
   
   
@@ -125,10 +155,10 @@ public class HttpContentFactory {
   
   
   /**
-   * Create an <code>HttpEntityFactory</code> 
+   * Create an <code>HttpContentFactory</code> 
    * with the specified content mime type.
    * @param type Content mime type.
-   * @return <code>HttpEntityFactory</code> instance.
+   * @return <code>HttpContentFactory</code> instance.
    */
   public static HttpContentFactory instance(ContentType type) {
     return new HttpContentFactory(type);
@@ -136,12 +166,12 @@ public class HttpContentFactory {
   
   
   /**
-   * Create an <code>HttpEntityFactory</code> 
+   * Create an <code>HttpContentFactory</code> 
    * with the specified content mime type and 
    * object serializator.
    * @param type Content mime type.
    * @param os <code>ObjectSerializer</code>.
-   * @return <code>HttpEntityFactory</code> instance.
+   * @return <code>HttpContentFactory</code> instance.
    */
   public static HttpContentFactory instance(ContentType type, ObjectSerializer os) {
     return new HttpContentFactory(type, os);
@@ -149,10 +179,10 @@ public class HttpContentFactory {
   
   
   /**
-   * Create an <code>HttpEntityFactory</code> 
+   * Create an <code>HttpContentFactory</code> 
    * with the specified object serializator.
    * @param os <code>ObjectSerializer</code>.
-   * @return <code>HttpEntityFactory</code> instance.
+   * @return <code>HttpContentFactory</code> instance.
    */
   public static HttpContentFactory instance(ObjectSerializer os) {
     return new HttpContentFactory(os);
@@ -160,8 +190,8 @@ public class HttpContentFactory {
   
   
   /**
-   * Create an <code>HttpEntityFactory</code>.
-   * @return <code>HttpEntityFactory</code> instance.
+   * Create an <code>HttpContentFactory</code>.
+   * @return <code>HttpContentFactory</code> instance.
    */
   public static HttpContentFactory instance() {
     return new HttpContentFactory();
@@ -170,9 +200,9 @@ public class HttpContentFactory {
   
   /**
    * Get the object serializer used by this instance 
-   * of <code>HttpEntityFactory</code>.
+   * of <code>HttpContentFactory</code>.
    * @return The object serializer used by this 
-   * instance of <code>HttpEntityFactory</code>.
+   * instance of <code>HttpContentFactory</code>.
    */
   public ObjectSerializer getObjectSerializer() {
     return serial;
@@ -181,10 +211,10 @@ public class HttpContentFactory {
   
   /**
    * Set the object serializer used by this instance 
-   * of <code>HttpEntityFactory</code>.
+   * of <code>HttpContentFactory</code>.
    * @param serializer The object serializer used by this 
-   * instance of <code>HttpEntityFactory</code>.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * instance of <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory setObjectSerializer(ObjectSerializer serializer) {
     if(serializer != null) {
@@ -196,81 +226,180 @@ public class HttpContentFactory {
   
   /**
    * Enable criptography for this instance of 
-   * <code>HttpEntityFactory</code>.
+   * <code>HttpContentFactory</code>.
    * @param key Criptography key.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory enableCryptCoder(CryptKey key) {
     if(key != null) {
-      sfact.setCryptCoderEnabled(true, key);
       this.key = key;
     }
     return this;
   }
   
   
+  /**
+   * Enable criptography with the session cipher of the connection 
+   * for this instance of <code>HttpContentFactory</code>, reusing the
+   * cipher instances and the key of previous messages.
+   * @param session The session cipher of the connection.
+   * @param sendKey If <code>true</code>, the session key is sent 
+   * in the content, starting the session on the connection.
+   * @return This modified <code>HttpContentFactory</code> instance.
+   */
+  public HttpContentFactory enableSessionCipher(SessionCipher session, boolean sendKey) {
+    if(session != null) {
+      this.session = session;
+      this.key = (sendKey ? session.getKey() : null);
+    }
+    return this;
+  }
+  
+  
   /**
    * Disable all coders for this instance of 
-   * <code>HttpEntityFactory</code>.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory disableAllCoders() {
-    sfact.clearCoders();
+    gzip = base64 = false;
+    key = null;
+    session = null;
     return this;
   }
   
   
   /**
    * Disable criptography for this instance of 
-   * <code>HttpEntityFactory</code>.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory disableCryptCoder() {
-    sfact.setCryptCoderEnabled(false, null);
+    key = null;
+    session = null;
     return this;
   }
   
   
   /**
    * Enable GZip compression for this instance of 
-   * <code>HttpEntityFactory</code>.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory enableGZipCoder() {
-    sfact.setGZipCoderEnabled(true);
+    gzip = true;
     return this;
   }
   
   
   /**
    * Disable GZip compression for this instance of 
-   * <code>HttpEntityFactory</code>.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory disableGZipCoder() {
-    sfact.setGZipCoderEnabled(false);
+    gzip = false;
+    return this;
+  }
+  
+  
+  /**
+   * Enable the adaptive compression (default) for this instance of 
+   * <code>HttpContentFactory</code>. With GZip compression enabled, 
+   * the codec of each section is chosen by its content
+   * (see <code>SectionCodec</code>), instead of compressing 
+   * the whole content with GZip.
+   * @return This modified <code>HttpContentFactory</code> instance.
+   */
+  public HttpContentFactory enableAdaptiveCoder() {
+    adaptive = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the adaptive compression for this instance of 
+   * <code>HttpContentFactory</code>, compressing the whole 
+   * content with GZip, if enabled.
+   * @return This modified <code>HttpContentFactory</code> instance.
+   */
+  public HttpContentFactory disableAdaptiveCoder() {
+    adaptive = false;
+    return this;
+  }
+  
+  
+  /**
+   * Enable the LZMA codec for large sections of the adaptive 
+   * compression, for this instance of <code>HttpContentFactory</code>.
+   * LZMA compresses better than GZip, but is much slower, 
+   * paying off only on slow links.
+   * @return This modified <code>HttpContentFactory</code> instance.
+   */
+  public HttpContentFactory enableLzmaCoder() {
+    lzma = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the LZMA codec (default) for this instance of 
+   * <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
+   */
+  public HttpContentFactory disableLzmaCoder() {
+    lzma = false;
+    return this;
+  }
+  
+  
+  /**
+   * Enable the preset dictionary codec for the object section 
+   * of the adaptive compression, for this instance of 
+   * <code>HttpContentFactory</code> (see <code>DeflateDictionary</code>).
+   * The dictionary is registered for decoding the responses.
+   * @param dict The preset dictionary.
+   * @return This modified <code>HttpContentFactory</code> instance.
+   */
+  public HttpContentFactory enableDictionaryCoder(DeflateDictionary dict) {
+    if(dict == null)
+      throw new IllegalArgumentException(
+          "[HttpContentFactory.enableDictionaryCoder( DeflateDictionary )] "
+          + "Invalid DeflateDictionary {"+ dict+ "}");
+    this.dict = DeflateDictionary.register(dict);
+    return this;
+  }
+  
+  
+  /**
+   * Disable the preset dictionary codec (default) for this 
+   * instance of <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
+   */
+  public HttpContentFactory disableDictionaryCoder() {
+    dict = null;
     return this;
   }
   
   
   /**
    * Enable Base64 encoding for this instance of 
-   * <code>HttpEntityFactory</code>.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory enableBase64Coder() {
-    sfact.setBase64CoderEnabled(true);
+    base64 = true;
     return this;
   }
   
   
   /**
    * Disable Base64 encoding for this instance of 
-   * <code>HttpEntityFactory</code>.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * <code>HttpContentFactory</code>.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory disableBase64Coder() {
-    sfact.setBase64CoderEnabled(false);
+    base64 = false;
     return this;
   }
   
@@ -278,7 +407,7 @@ public class HttpContentFactory {
   /**
    * Put an object for embed in http content.
    * @param obj Object for embed in http content.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory put(Object obj) {
     if(obj != null) {
@@ -291,7 +420,7 @@ public class HttpContentFactory {
   /**
    * Put an input stream for embed in http content.
    * @param is Input stream for embed in http content.
-   * @return This modified <code>HttpEntityFactory</code> instance.
+   * @return This modified <code>HttpContentFactory</code> instance.
    */
   public HttpContentFactory put(InputStream is) {
     if(is != null) {
@@ -302,95 +431,238 @@ public class HttpContentFactory {
   
   
   /**
-   * Write the criptography key in http content.
-   * @throws IOException In case of error writing.
+   * Return the envelope flags for the current content and coders.
+   * @return The envelope flags.
    */
-  private void writeCryptKey(OutputStream out) throws IOException {
-    if(key != null) {
-      // write plain data
-      out.write(scv.convert(XmlConsts.START_CRYPT_KEY));
-      out.write(scv.convert(key.toString()));
-      out.write(scv.convert(XmlConsts.END_CRYPT_KEY));
-    }
+  private int flags() {
+    int flags = 0;
+    if(key != null) flags |= EnvelopeConsts.FLAG_KEY;
+    if(session != null) flags |= EnvelopeConsts.FLAG_SESSION;
+    if(obj != null) flags |= EnvelopeConsts.FLAG_OBJECT;
+    if(input != null) flags |= EnvelopeConsts.FLAG_STREAM;
+    if(gzip && adaptive) flags |= EnvelopeConsts.FLAG_ADAPTIVE;
+    else if(gzip) flags |= EnvelopeConsts.FLAG_GZIP;
+    if(base64) flags |= EnvelopeConsts.FLAG_BASE64;
+    return flags;
   }
   
   
   /**
-   * Write the object in http content.
-   * @param os OutputStream for write the content.
-   * @throws IOException In case of error writing.
+   * Write a big endian int in the byte array.
+   * @param bs The byte array.
+   * @param off The offset in the byte array.
+   * @param val The int value.
    */
-  private void writeObject(OutputStream os) throws IOException {
-    if(os == null) return;
-    if(obj != null) {
-      buffer.write(scv.convert(XmlConsts.START_CONTENT));
-      os.write(scv.convert(XmlConsts.START_ROB));
-      os.write(serial.toBytes(obj));
-      os.write(scv.convert(XmlConsts.END_ROB));
-      os.flush();
-    }
+  private static void putInt(byte[] bs, int off, int val) {
+    bs[off] = (byte) (val >>> 24);
+    bs[off+1] = (byte) (val >>> 16);
+    bs[off+2] = (byte) (val >>> 8);
+    bs[off+3] = (byte) val;
   }
   
   
   /**
-   * Write the input stream content.
-   * @param os OutputStream for write the content.
+   * Write the envelope content directly into the 
+   * specified <code>OutputStream</code>, encoding on the fly.
+   * The <code>OutputStream</code> is not closed.
+   * @param out The target <code>OutputStream</code>.
    * @throws IOException In case of error writing.
    */
-  private void writeInputStream(OutputStream os) throws IOException {
-    if(os == null) return;
-    if(input != null) {
-      if(obj == null) {
-        buffer.write(scv.convert(XmlConsts.START_CONTENT));
+  public void writeTo(OutputStream out) throws IOException {
+    if(out == null)
+      throw new IllegalArgumentException(
+          "[HttpContentFactory.writeTo( OutputStream )] "
+          + "Invalid OutputStream {"+ out+ "}");
+    int flags = flags();
+    byte[] chunk = CHUNKS.poll();
+    if(chunk == null) 
+      chunk = new byte[EnvelopeConsts.STREAM_CHUNK_SIZE];
+    Deflater def = null;
+    try {
+      putInt(chunk, 0, EnvelopeConsts.MAGIC);
+      chunk[4] = (byte) EnvelopeConsts.VERSION;
+      chunk[5] = (byte) flags;
+      out.write(chunk, 0, EnvelopeConsts.HEADER_SIZE);
+      if(key != null) {
+        // write plain data
+        byte[] bs = scv.convert(key.toString());
+        putInt(chunk, 0, bs.length);
+        out.write(chunk, 0, 4);
+        out.write(bs);
+      }
+      if(obj == null && input == null) 
+        return;
+      
+      // Encoded OutputStream
+      OutputStream os = EnvelopeCoder.encoder(
+          out, flags & ~EnvelopeConsts.FLAG_GZIP, key, session);
+      if((flags & EnvelopeConsts.FLAG_GZIP) != 0) {
+        def = DEFLATERS.poll();
+        if(def == null) def = new Deflater(
+            Deflater.DEFAULT_COMPRESSION, true);
+        os = new GZipStream(os, def);
+      }
+      if(obj != null && gzip && adaptive) {
+        SectionCodec.writeObject(os, serial.toBytes(obj), lzma, dict);
+      }
+      else if(obj != null) {
+        byte[] bs = serial.toBytes(obj);
+        putInt(chunk, 0, bs.length);
+        os.write(chunk, 0, 4);
+        os.write(bs);
       }
-      os.write(scv.convert(XmlConsts.START_STREAM));
-      IO.tr(input, os);
-      os.write(scv.convert(XmlConsts.END_STREAM));
-      os.flush();
+      if(input != null && gzip && adaptive) {
+        SectionCodec.writeStream(os, input, lzma);
+      }
+      else if(input != null) {
+        // chunk length and content in a single write
+        int read;
+        while((read = input.read(chunk, 4, chunk.length - 4)) != -1) {
+          if(read == 0) continue;
+          putInt(chunk, 0, read);
+          os.write(chunk, 0, read + 4);
+        }
+        putInt(chunk, 0, 0);
+        os.write(chunk, 0, 4);
+      }
+      // finish the coders, keeping the target stream open
+      os.close();
     }
-    if(obj != null || input != null) {
-      os.write(scv.convert(XmlConsts.END_CONTENT));
-      os.flush();
+    finally {
+      CHUNKS.offer(chunk);
+      if(def != null) {
+        def.reset();
+        if(!DEFLATERS.offer(def)) def.end();
+      }
     }
   }
   
   
   /**
    * Create the <code>HttpEntity</code> with the content to be transmitted.
+   * The content is written directly into the connection 
+   * (see <code>writeTo(OutputStream)</code>), with chunked 
+   * transfer encoding. The entity is not repeatable.
    * @return The <code>HttpEntity</code> with the content to be transmitted.
    * @throws IOException In case of error creating the <code>HttpEntity</code>.
    */
   public HttpEntity create() throws IOException {
     if(key == null && obj == null && input == null)
       return null;
-    InputStream istream = createStream();
-    return new InputStreamEntity(istream, istream.available(), type);
+    return new DirectEntity();
   }
   
   
   /**
    * Create an <code>InputStream</code> with the content to be transmitted.
+   * The whole encoded content is buffered in memory, prefer 
+   * <code>writeTo(OutputStream)</code>.
    * @return <code>InputStream</code> with the content to be transmitted.
    * @throws IOException In case of error creating the <code>InputStream</code>.
    */
   public InputStream createStream() throws IOException {
     if(key == null && obj == null && input == null)
       return null;
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    writeTo(bos);
+    return new ByteArrayInputStream(bos.toByteArray());
+  }
+  
+  
+  
+  /**
+   * Streaming <code>HttpEntity</code> writing the 
+   * content directly into the connection.
+   */
+  private class DirectEntity extends AbstractHttpEntity {
+    
+    private boolean consumed;
     
-    buffer.clear();
-    buffer.write(scv.convert(XmlConsts.START_XML));
-    // Encoded OutputStream
-    OutputStream os = buffer.getOutputStream();
+    public DirectEntity() {
+      consumed = false;
+      setContentType(type.toString());
+      setChunked(true);
+    }
     
-    writeCryptKey();
-    writeObject(os);
-    writeInputStream(os);
+    @Override
+    public boolean isRepeatable() {
+      return false;
+    }
     
-    os.write(scv.convert(XmlConsts.END_XML));
-    os.flush();
-    os.close();
+    @Override
+    public long getContentLength() {
+      return -1;
+    }
+    
+    @Override
+    public InputStream getContent() throws IOException {
+      return createStream();
+    }
+    
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      if(consumed) throw new IllegalStateException(
+          "[HttpContentFactory.DirectEntity.writeTo( OutputStream )] "
+          + "Content already consumed");
+      consumed = true;
+      HttpContentFactory.this.writeTo(out);
+    }
+    
+    @Override
+    public boolean isStreaming() {
+      return !consumed;
+    }
+    
+  }
+  
+  
+  
+  /**
+   * GZip <code>OutputStream</code> over a pooled 
+   * <code>Deflater</code>, writing the GZip header and 
+   * trailer around the raw deflate content.
+   */
+  private static class GZipStream extends DeflaterOutputStream {
+    
+    private static final byte[] HEADER = {
+      0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+    
+    private final CRC32 crc;
+    
+    private boolean finished;
+    
+    public GZipStream(OutputStream out, Deflater def) throws IOException {
+      super(out, def);
+      crc = new CRC32();
+      finished = false;
+      out.write(HEADER);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      crc.update(b, off, len);
+    }
+    
+    @Override
+    public void finish() throws IOException {
+      if(finished) return;
+      finished = true;
+      super.finish();
+      byte[] trailer = new byte[8];
+      trailerInt(trailer, 0, (int) crc.getValue());
+      trailerInt(trailer, 4, (int) def.getBytesRead());
+      out.write(trailer);
+    }
+    
+    private static void trailerInt(byte[] bs, int off, int val) {
+      bs[off] = (byte) val;
+      bs[off+1] = (byte) (val >>> 8);
+      bs[off+2] = (byte) (val >>> 16);
+      bs[off+3] = (byte) (val >>> 24);
+    }
     
-    return buffer.getReadBuffer().getRawInputStream();
   }
   
   
@@ -404,14 +676,10 @@ public class HttpContentFactory {
       public MSG(String s) { str = s; }
       public String toString() { return "MSG{str="+ str+ "}"; }
     }
-    fac.put(new MSG("Hello EntityFactory!"));
+    fac.put(new MSG("Hello ContentFactory!"));
     HttpEntity ent = fac.create();
-    ent.writeTo(System.out);
-    System.out.println();
-    
-    ent = fac.create();
-    HttpEntityParser ep = HttpEntityParser.instance(new XmlSerializer());//.enableGZipCoder();
-    ep.parse(ent);
+    HttpEntityParser ep = HttpEntityParser.instance(new XmlSerializer());
+    ep.parse(ent.getContent());
     System.out.println("* key: "+ ep.getCryptKey());
     System.out.println("* rob: "+ ep.getObject());
     EntityUtils.consume(ent);
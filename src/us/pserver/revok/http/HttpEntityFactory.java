@@ -67,12 +67,18 @@ public class HttpEntityFactory {
   
   private CryptKey key;
   
+  private SessionCipher session;
+  
   private Object obj;
   
   private InputStream input;
   
   private ObjectSerializer serial;
   
+  private DeflateDictionary dict;
+  
+  private boolean gzip, adaptive, lzma, base64, legacy;
+  
   
   /**
    * Constructor receives the mime content type.
@@ -85,9 +91,14 @@ public class HttpEntityFactory {
     buffer = new MixedWriteBuffer();
     scv = new StringByteConverter();
     key = null;
+    session = null;
     obj = null;
     input = null;
     serial = new JsonSerializer();
+    gzip = base64 = legacy = false;
+    adaptive = true;
+    lzma = false;
+    dict = null;
   }
   
   
@@ -208,6 +219,24 @@ public class HttpEntityFactory {
   }
   
   
+  /**
+   * Enable criptography with the session cipher of the connection 
+   * for this instance of <code>HttpEntityFactory</code>, reusing the
+   * cipher instances and the key of previous messages.
+   * @param session The session cipher of the connection.
+   * @param sendKey If <code>true</code>, the session key is sent 
+   * in the content, starting the session on the connection.
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory enableSessionCipher(SessionCipher session, boolean sendKey) {
+    if(session != null) {
+      this.session = session;
+      this.key = (sendKey ? session.getKey() : null);
+    }
+    return this;
+  }
+  
+  
   /**
    * Disable all coders for this instance of 
    * <code>HttpEntityFactory</code>.
@@ -215,6 +244,9 @@ public class HttpEntityFactory {
    */
   public HttpEntityFactory disableAllCoders() {
     buffer.getCoderFactory().clearCoders();
+    gzip = base64 = false;
+    key = null;
+    session = null;
     return this;
   }
   
@@ -226,6 +258,8 @@ public class HttpEntityFactory {
    */
   public HttpEntityFactory disableCryptCoder() {
     buffer.getCoderFactory().setCryptCoderEnabled(false, null);
+    key = null;
+    session = null;
     return this;
   }
   
@@ -237,6 +271,7 @@ public class HttpEntityFactory {
    */
   public HttpEntityFactory enableGZipCoder() {
     buffer.getCoderFactory().setGZipCoderEnabled(true);
+    gzip = true;
     return this;
   }
   
@@ -248,6 +283,86 @@ public class HttpEntityFactory {
    */
   public HttpEntityFactory disableGZipCoder() {
     buffer.getCoderFactory().setGZipCoderEnabled(false);
+    gzip = false;
+    return this;
+  }
+  
+  
+  /**
+   * Enable the adaptive compression (default) for this instance of 
+   * <code>HttpEntityFactory</code>. With GZip compression enabled, 
+   * the codec of each section is chosen by its content
+   * (see <code>SectionCodec</code>), instead of compressing 
+   * the whole content with GZip.
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory enableAdaptiveCoder() {
+    adaptive = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the adaptive compression for this instance of 
+   * <code>HttpEntityFactory</code>, compressing the whole 
+   * content with GZip, if enabled.
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory disableAdaptiveCoder() {
+    adaptive = false;
+    return this;
+  }
+  
+  
+  /**
+   * Enable the LZMA codec for large sections of the adaptive 
+   * compression, for this instance of <code>HttpEntityFactory</code>.
+   * LZMA compresses better than GZip, but is much slower, 
+   * paying off only on slow links.
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory enableLzmaCoder() {
+    lzma = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the LZMA codec (default) for this instance of 
+   * <code>HttpEntityFactory</code>.
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory disableLzmaCoder() {
+    lzma = false;
+    return this;
+  }
+  
+  
+  /**
+   * Enable the preset dictionary codec for the object section 
+   * of the adaptive compression, for this instance of 
+   * <code>HttpEntityFactory</code> (see <code>DeflateDictionary</code>).
+   * The dictionary is registered for decoding the responses.
+   * @param dict The preset dictionary.
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory enableDictionaryCoder(DeflateDictionary dict) {
+    if(dict == null)
+      throw new IllegalArgumentException(
+          "[HttpEntityFactory.enableDictionaryCoder( DeflateDictionary )] "
+          + "Invalid DeflateDictionary {"+ dict+ "}");
+    this.dict = DeflateDictionary.register(dict);
+    return this;
+  }
+  
+  
+  /**
+   * Disable the preset dictionary codec (default) for this 
+   * instance of <code>HttpEntityFactory</code>.
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory disableDictionaryCoder() {
+    dict = null;
     return this;
   }
   
@@ -259,6 +374,7 @@ public class HttpEntityFactory {
    */
   public HttpEntityFactory enableBase64Coder() {
     buffer.getCoderFactory().setBase64CoderEnabled(true);
+    base64 = true;
     return this;
   }
   
@@ -270,10 +386,46 @@ public class HttpEntityFactory {
    */
   public HttpEntityFactory disableBase64Coder() {
     buffer.getCoderFactory().setBase64CoderEnabled(false);
+    base64 = false;
+    return this;
+  }
+  
+  
+  /**
+   * Enable the legacy <code>&lt;xml&gt;</code> token format 
+   * for this instance of <code>HttpEntityFactory</code>,
+   * instead of the default binary envelope 
+   * (see <code>EnvelopeConsts</code>).
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory enableLegacyFormat() {
+    legacy = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the legacy <code>&lt;xml&gt;</code> token format, 
+   * using the binary envelope (default).
+   * @return This modified <code>HttpEntityFactory</code> instance.
+   */
+  public HttpEntityFactory disableLegacyFormat() {
+    legacy = false;
     return this;
   }
   
   
+  /**
+   * Verify if the legacy <code>&lt;xml&gt;</code> 
+   * token format is enabled.
+   * @return <code>true</code> if the legacy format 
+   * is enabled, <code>false</code> otherwise.
+   */
+  public boolean isLegacyFormatEnabled() {
+    return legacy;
+  }
+  
+  
   /**
    * Put an object for embed in http content.
    * @param obj Object for embed in http content.
@@ -356,12 +508,17 @@ public class HttpEntityFactory {
   
   /**
    * Create the <code>HttpEntity</code> with the content to be transmitted.
+   * In the binary envelope format (default), the content is encoded 
+   * on the fly while the entity is written, with chunked 
+   * transfer encoding (see <code>EnvelopeEntity</code>).
    * @return The <code>HttpEntity</code> with the content to be transmitted.
    * @throws IOException In case of error creating the <code>HttpEntity</code>.
    */
   public HttpEntity create() throws IOException {
     if(key == null && obj == null && input == null)
       return null;
+    if(!legacy) return new EnvelopeEntity(
+        type, flags(), key, session, obj, input, serial, lzma, dict);
     InputStream istream = createStream();
     return new InputStreamEntity(istream, istream.available(), type);
   }
@@ -369,12 +526,18 @@ public class HttpEntityFactory {
   
   /**
    * Create an <code>InputStream</code> with the content to be transmitted.
+   * The whole encoded content is buffered in memory, prefer 
+   * <code>create().writeTo(OutputStream)</code> for streaming.
    * @return <code>InputStream</code> with the content to be transmitted.
    * @throws IOException In case of error creating the <code>InputStream</code>.
    */
   public InputStream createStream() throws IOException {
     if(key == null && obj == null && input == null)
       return null;
+    if(!legacy) return create().getContent();
+    // no sessions on legacy format, send the key
+    if(session != null && key == null)
+      enableCryptCoder(session.getKey());
     
     buffer.clear();
     buffer.write(scv.convert(XmlConsts.START_XML));
@@ -393,6 +556,23 @@ public class HttpEntityFactory {
   }
   
   
+  /**
+   * Return the envelope flags for the current content and coders.
+   * @return The envelope flags.
+   */
+  private int flags() {
+    int flags = 0;
+    if(key != null) flags |= EnvelopeConsts.FLAG_KEY;
+    if(session != null) flags |= EnvelopeConsts.FLAG_SESSION;
+    if(obj != null) flags |= EnvelopeConsts.FLAG_OBJECT;
+    if(input != null) flags |= EnvelopeConsts.FLAG_STREAM;
+    if(gzip && adaptive) flags |= EnvelopeConsts.FLAG_ADAPTIVE;
+    else if(gzip) flags |= EnvelopeConsts.FLAG_GZIP;
+    if(base64) flags |= EnvelopeConsts.FLAG_BASE64;
+    return flags;
+  }
+  
+  
   public static void main(String[] args) throws IOException {
     HttpEntityFactory fac = HttpEntityFactory.instance(new XmlSerializer())
         .enableGZipCoder()
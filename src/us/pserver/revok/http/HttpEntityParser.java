@@ -22,10 +22,14 @@
 package us.pserver.revok.http;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import org.apache.http.HttpEntity;
 import org.apache.http.util.EntityUtils;
+import us.pserver.cdr.StringByteConverter;
 import us.pserver.cdr.crypt.CryptKey;
 import us.pserver.revok.protocol.JsonSerializer;
 import us.pserver.revok.protocol.ObjectSerializer;
@@ -52,6 +56,18 @@ public class HttpEntityParser {
   
   private ObjectSerializer serial;
   
+  private final StringByteConverter scv;
+  
+  private boolean legacy;
+  
+  private boolean lazy;
+  
+  private SessionCipher session;
+  
+  private boolean insession;
+  
+  private int maxSection;
+  
   
   /**
    * Default constructor without arguments.
@@ -62,6 +78,12 @@ public class HttpEntityParser {
     obj = null;
     key = null;
     serial = new JsonSerializer();
+    scv = new StringByteConverter();
+    legacy = false;
+    lazy = false;
+    session = null;
+    insession = false;
+    maxSection = EnvelopeConsts.MAX_SECTION_SIZE;
   }
   
   
@@ -72,11 +94,7 @@ public class HttpEntityParser {
    * for objects serialization.
    */
   public HttpEntityParser(ObjectSerializer os) {
-    buffer = new MixedWriteBuffer();
-    buffer = new MixedWriteBuffer();
-    input = null;
-    obj = null;
-    key = null;
+    this();
     if(os == null) os = new JsonSerializer();
     serial = os;
   }
@@ -102,6 +120,34 @@ public class HttpEntityParser {
   }
   
   
+  /**
+   * Get the max length of the key and object sections
+   * of the binary envelope.
+   * @return The max section length in bytes.
+   */
+  public int getMaxSectionSize() {
+    return maxSection;
+  }
+  
+  
+  /**
+   * Set the max length of the key and object sections
+   * of the binary envelope. Longer sections are rejected
+   * before allocating the section buffer 
+   * (default <code>EnvelopeConsts.MAX_SECTION_SIZE</code>).
+   * @param max The max section length in bytes.
+   * @return This modified <code>HttpEntityParser</code> instance.
+   */
+  public HttpEntityParser setMaxSectionSize(int max) {
+    if(max <= 0)
+      throw new IllegalArgumentException(
+          "[HttpEntityParser.setMaxSectionSize( int )] "
+              + "Invalid max section size {"+ max+ "}");
+    maxSection = max;
+    return this;
+  }
+  
+  
   /**
    * Get the object serializer used by this instance 
    * of <code>HttpEntityFactory</code>.
@@ -208,6 +254,90 @@ public class HttpEntityParser {
   }
   
 
+  /**
+   * Enable the lazy stream mode for this instance of 
+   * <code>HttpEntityParser</code>. In this mode, the parsing 
+   * ends right after the object section of binary envelopes, 
+   * and the stream section is exposed as a lazy 
+   * <code>SectionInputStream</code>, decoded on demand 
+   * from the content stream, without buffering. 
+   * The caller is responsible for consuming the content 
+   * remaining after the stream section is read.
+   * @return This modified <code>HttpEntityParser</code> instance.
+   */
+  public HttpEntityParser enableLazyStream() {
+    lazy = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the lazy stream mode (default), buffering 
+   * the whole stream section while parsing.
+   * @return This modified <code>HttpEntityParser</code> instance.
+   */
+  public HttpEntityParser disableLazyStream() {
+    lazy = false;
+    return this;
+  }
+  
+  
+  /**
+   * Verify if the lazy stream mode is enabled.
+   * @return <code>true</code> if the lazy stream 
+   * mode is enabled, <code>false</code> otherwise.
+   */
+  public boolean isLazyStreamEnabled() {
+    return lazy;
+  }
+  
+  
+  /**
+   * Verify if the input stream read from the 
+   * content is a lazy <code>SectionInputStream</code>, 
+   * still backed by the content stream.
+   * @return <code>true</code> if the input stream 
+   * is lazy, <code>false</code> otherwise.
+   */
+  public boolean hasLazyStream() {
+    return input instanceof SectionInputStream;
+  }
+  
+  
+  /**
+   * Set the session cipher of the connection, for 
+   * decoding contents encrypted with the session key.
+   * @param session The session cipher of the connection.
+   * @return This modified <code>HttpEntityParser</code> instance.
+   */
+  public HttpEntityParser setSessionCipher(SessionCipher session) {
+    this.session = session;
+    return this;
+  }
+  
+  
+  /**
+   * Get the session cipher of the connection, which may be
+   * started by the parsed content, if it carries a new session key.
+   * @return The session cipher of the connection, 
+   * or <code>null</code> if there is no session.
+   */
+  public SessionCipher getSessionCipher() {
+    return session;
+  }
+  
+  
+  /**
+   * Verify if the last parsed content was 
+   * encrypted with the session cipher.
+   * @return <code>true</code> if the last parsed content was 
+   * encrypted with the session cipher, <code>false</code> otherwise.
+   */
+  public boolean isSessionEncrypted() {
+    return insession;
+  }
+  
+  
   /**
    * Get the readed object from <code>HttpEntity</code>.
    * @return The readed object from <code>HttpEntity</code>.
@@ -235,6 +365,19 @@ public class HttpEntityParser {
   }
   
   
+  /**
+   * Verify if the last parsed content was in the legacy 
+   * <code>&lt;xml&gt;</code> token format, instead of 
+   * the binary envelope (see <code>EnvelopeConsts</code>).
+   * Servers should answer in the same format received.
+   * @return <code>true</code> if the last parsed content 
+   * was in the legacy format, <code>false</code> otherwise.
+   */
+  public boolean isLegacyFormat() {
+    return legacy;
+  }
+  
+  
   /**
    * Read five chars from the input stream.
    * @param is The <code>InputStream</code> for read.
@@ -264,6 +407,8 @@ public class HttpEntityParser {
   
   /**
    * Parse the specified <code>HttpEntity</code> content.
+   * The entity is fully consumed, unless a lazy stream 
+   * was read (see <code>enableLazyStream()</code>).
    * @param entity <code>HttpEntity</code> to parse.
    * @return This modified <code>HttpEntityParser</code> instance.
    * @throws IOException In case of error parsing.
@@ -275,7 +420,8 @@ public class HttpEntityParser {
               + "Invalid HttpEntity {"+ entity+ "}");
     
     this.parse(entity.getContent());
-    EntityUtils.consume(entity);
+    if(!hasLazyStream())
+      EntityUtils.consume(entity);
     return this;
   }
   
@@ -293,6 +439,24 @@ public class HttpEntityParser {
               + "Invalid InputStream {"+ content+ "}");
     
     buffer.clear();
+    PushbackInputStream pis = new PushbackInputStream(content, 1);
+    int first = pis.read();
+    if(first == -1) throw new IOException(
+        "Invalid Content to Parse {empty content}");
+    pis.unread(first);
+    legacy = first == EnvelopeConsts.LEGACY_START;
+    if(legacy) return parseLegacy(pis);
+    return parseEnvelope(pis);
+  }
+  
+  
+  /**
+   * Parse the content in the legacy <code>&lt;xml&gt;</code> token format.
+   * @param content <code>InputStream</code> to parse.
+   * @return This modified <code>HttpEntityParser</code> instance.
+   * @throws IOException In case of error parsing.
+   */
+  private HttpEntityParser parseLegacy(InputStream content) throws IOException {
     checkExpectedToken(XmlConsts.START_XML, readFive(content));
     
     String five = readFive(content);
@@ -310,6 +474,101 @@ public class HttpEntityParser {
   }
   
   
+  /**
+   * Parse the content in the binary envelope format, 
+   * slicing the length prefixed sections and decoding
+   * directly from the content stream.
+   * @param content <code>InputStream</code> to parse.
+   * @return This modified <code>HttpEntityParser</code> instance.
+   * @throws IOException In case of error parsing.
+   */
+  private HttpEntityParser parseEnvelope(InputStream content) throws IOException {
+    DataInputStream din = new DataInputStream(content);
+    int magic = din.readInt();
+    if(magic != EnvelopeConsts.MAGIC)
+      throw new IOException("Invalid Content to Parse {"
+          + "magic="+ Integer.toHexString(magic)+ "}");
+    int version = din.readUnsignedByte();
+    if(version < 1 || version > EnvelopeConsts.VERSION)
+      throw new IOException("Unsupported Envelope Version {"
+          + "version="+ version+ "}");
+    int flags = din.readUnsignedByte();
+    
+    if((flags & EnvelopeConsts.FLAG_KEY) != 0) {
+      key = CryptKey.fromString(scv.reverse(readSection(din)));
+    }
+    insession = (flags & EnvelopeConsts.FLAG_SESSION) != 0;
+    // a key with the session flag starts a new session
+    if(insession && key != null && (session == null 
+        || !session.getKey().toString().equals(key.toString()))) {
+      session = new SessionCipher(key);
+    }
+    if((flags & (EnvelopeConsts.FLAG_OBJECT 
+        | EnvelopeConsts.FLAG_STREAM)) == 0)
+      return this;
+    
+    // coders are described by the envelope itself,
+    // decoding on the fly from the content stream
+    din = new DataInputStream(
+        EnvelopeCoder.decoder(din, flags, key, session));
+    
+    // each section records its own codec
+    boolean adaptive = (flags & EnvelopeConsts.FLAG_ADAPTIVE) != 0;
+    if((flags & EnvelopeConsts.FLAG_OBJECT) != 0) {
+      obj = serial.fromBytes(adaptive 
+          ? SectionCodec.readObject(din, maxSection) : readSection(din));
+    }
+    int codec = EnvelopeConsts.CODEC_NONE;
+    if((flags & EnvelopeConsts.FLAG_STREAM) != 0 && adaptive) {
+      codec = din.readUnsignedByte();
+    }
+    if((flags & EnvelopeConsts.FLAG_STREAM) != 0 && lazy) {
+      input = new SectionInputStream(din, codec);
+    }
+    else if((flags & EnvelopeConsts.FLAG_STREAM) != 0) {
+      MixedWriteBuffer inbuf = new MixedWriteBuffer();
+      OutputStream os = inbuf.getRawOutputStream();
+      InputStream section = new SectionInputStream(din, codec);
+      byte[] chunk = new byte[EnvelopeConsts.STREAM_CHUNK_SIZE];
+      int read;
+      while((read = section.read(chunk)) != -1) {
+        os.write(chunk, 0, read);
+      }
+      os.flush();
+      input = inbuf.getReadBuffer().getRawInputStream();
+    }
+    return this;
+  }
+  
+  
+  /**
+   * Read a section length from the <code>InputStream</code>.
+   * @param din <code>DataInputStream</code> for read the length.
+   * @return The section length.
+   * @throws IOException In case of error reading, or if the 
+   * length is negative or greater than the max section size.
+   */
+  private int readLength(DataInputStream din) throws IOException {
+    int len = din.readInt();
+    if(len < 0 || len > maxSection) throw new IOException(
+        "Invalid Section Length {"+ len+ "}");
+    return len;
+  }
+  
+  
+  /**
+   * Read a length prefixed section from the <code>InputStream</code>.
+   * @param din <code>DataInputStream</code> for read the section.
+   * @return The section content.
+   * @throws IOException In case of error reading.
+   */
+  private byte[] readSection(DataInputStream din) throws IOException {
+    byte[] bs = new byte[readLength(din)];
+    din.readFully(bs);
+    return bs;
+  }
+  
+  
   /**
    * Try to parse a criptography key from the <code>InputStream</code>.
    * @param is <code>InputStream</code> for read the content.
@@ -0,0 +1,171 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP request decoded by <code>NioHttpRequestDecoder</code>,
+ * with the whole content already received.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class NioHttpRequest {
+  
+  private final String method;
+  
+  private final String uri;
+  
+  private final String version;
+  
+  private final Map<String, String> headers;
+  
+  private byte[] content;
+  
+  
+  /**
+   * Constructor which receives the request line elements.
+   * @param method The request method.
+   * @param uri The request URI.
+   * @param version The HTTP protocol version.
+   */
+  public NioHttpRequest(String method, String uri, String version) {
+    this.method = method;
+    this.uri = uri;
+    this.version = version;
+    headers = new HashMap<>();
+    content = new byte[0];
+  }
+  
+  
+  /**
+   * Get the request method.
+   * @return The request method.
+   */
+  public String getMethod() {
+    return method;
+  }
+  
+  
+  /**
+   * Get the request URI.
+   * @return The request URI.
+   */
+  public String getUri() {
+    return uri;
+  }
+  
+  
+  /**
+   * Get the HTTP protocol version.
+   * @return The HTTP protocol version (i.e: <code>HTTP/1.1</code>).
+   */
+  public String getVersion() {
+    return version;
+  }
+  
+  
+  /**
+   * Add a request header. Header names are case insensitive.
+   * @param name The header name.
+   * @param value The header value.
+   * @return This modified <code>NioHttpRequest</code> instance.
+   */
+  public NioHttpRequest addHeader(String name, String value) {
+    if(name != null && value != null) {
+      String key = name.trim().toLowerCase();
+      String prev = headers.get(key);
+      headers.put(key, prev == null 
+          ? value.trim() : prev + ", " + value.trim());
+    }
+    return this;
+  }
+  
+  
+  /**
+   * Get a request header value.
+   * @param name The header name (case insensitive).
+   * @return The header value or <code>null</code> if not present.
+   */
+  public String getHeader(String name) {
+    if(name == null) return null;
+    return headers.get(name.toLowerCase());
+  }
+  
+  
+  /**
+   * Get all request headers, with lower case names.
+   * @return An unmodifiable map of request headers.
+   */
+  public Map<String, String> getHeaders() {
+    return Collections.unmodifiableMap(headers);
+  }
+  
+  
+  /**
+   * Get the request content.
+   * @return The request content bytes.
+   */
+  public byte[] getContent() {
+    return content;
+  }
+  
+  
+  /**
+   * Set the request content.
+   * @param cont The request content bytes.
+   * @return This modified <code>NioHttpRequest</code> instance.
+   */
+  public NioHttpRequest setContent(byte[] cont) {
+    content = (cont != null ? cont : new byte[0]);
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the client asked for a persistent 
+   * connection, according to the protocol version
+   * and the <code>Connection</code> header.
+   * @return <code>true</code> if the connection is 
+   * persistent, <code>false</code> otherwise.
+   */
+  public boolean isKeepAlive() {
+    String conn = getHeader(HttpConsts.HD_CONNECTION);
+    if(conn != null && conn.toLowerCase()
+        .contains(HttpConsts.HD_VAL_CLOSE))
+      return false;
+    if("HTTP/1.0".equalsIgnoreCase(version))
+      return conn != null && conn.toLowerCase().contains("keep-alive");
+    return true;
+  }
+  
+  
+  @Override
+  public String toString() {
+    return "NioHttpRequest{"+ method+ " "+ uri+ " "+ version
+        + ", content="+ content.length+ " bytes}";
+  }
+  
+}
@@ -0,0 +1,306 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.1 request decoder for non-blocking 
+ * connections. Received bytes are fed with 
+ * <code>feed(ByteBuffer)</code> as they arrive, and complete
+ * requests are taken with <code>next()</code>. Request contents
+ * delimited by <code>Content-Length</code> or by the 
+ * <code>chunked</code> transfer coding are supported.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class NioHttpRequestDecoder {
+  
+  /**
+   * <code>MAX_HEAD_SIZE = 16*1024</code><br>
+   * Maximum size of the request line and headers.
+   */
+  public static final int MAX_HEAD_SIZE = 16*1024;
+  
+  /**
+   * <code>DEFAULT_MAX_CONTENT = 64*1024*1024</code><br>
+   * Default maximum request content size.
+   */
+  public static final int DEFAULT_MAX_CONTENT = 64*1024*1024;
+  
+  
+  private static final int STATE_HEAD = 0;
+  
+  private static final int STATE_CONTENT = 1;
+  
+  private static final int STATE_CHUNK_SIZE = 2;
+  
+  private static final int STATE_CHUNK_DATA = 3;
+  
+  private static final int STATE_TRAILER = 4;
+  
+  
+  private final int maxContent;
+  
+  private byte[] buf;
+  
+  private int pos;
+  
+  private int len;
+  
+  private int state;
+  
+  private long remaining;
+  
+  private NioHttpRequest request;
+  
+  private ByteArrayOutputStream chunks;
+  
+  
+  /**
+   * Default constructor without arguments.
+   */
+  public NioHttpRequestDecoder() {
+    this(DEFAULT_MAX_CONTENT);
+  }
+  
+  
+  /**
+   * Constructor which receives the maximum request content size.
+   * @param maxContent The maximum request content size in bytes.
+   */
+  public NioHttpRequestDecoder(int maxContent) {
+    if(maxContent < 0)
+      throw new IllegalArgumentException(
+          "[NioHttpRequestDecoder( int )] "
+              + "Invalid maxContent {"+ maxContent+ "}");
+    this.maxContent = maxContent;
+    buf = new byte[4096];
+    pos = len = 0;
+    state = STATE_HEAD;
+  }
+  
+  
+  /**
+   * Append the received bytes to the decoding buffer.
+   * @param bb The <code>ByteBuffer</code> with received bytes.
+   * @return This <code>NioHttpRequestDecoder</code> instance.
+   */
+  public NioHttpRequestDecoder feed(ByteBuffer bb) {
+    if(bb == null || !bb.hasRemaining()) return this;
+    int n = bb.remaining();
+    if(pos > 0 && len + n > buf.length) {
+      // Compact consumed bytes
+      System.arraycopy(buf, pos, buf, 0, len - pos);
+      len -= pos;
+      pos = 0;
+    }
+    if(len + n > buf.length) {
+      byte[] nb = new byte[Math.max(buf.length * 2, len + n)];
+      System.arraycopy(buf, 0, nb, 0, len);
+      buf = nb;
+    }
+    bb.get(buf, len, n);
+    len += n;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if there are received bytes not decoded yet.
+   * @return <code>true</code> if there are buffered bytes,
+   * <code>false</code> otherwise.
+   */
+  public boolean hasBufferedInput() {
+    return len > pos;
+  }
+  
+  
+  /**
+   * Decode the next complete request from the received bytes.
+   * @return The decoded <code>NioHttpRequest</code>, or 
+   * <code>null</code> if more bytes are needed.
+   * @throws IOException In case of malformed request.
+   */
+  public NioHttpRequest next() throws IOException {
+    while(true) {
+      switch(state) {
+        case STATE_HEAD:
+          if(!decodeHead()) return null;
+          break;
+        case STATE_CONTENT:
+          if(len - pos < remaining) return null;
+          byte[] cont = new byte[(int) remaining];
+          System.arraycopy(buf, pos, cont, 0, cont.length);
+          pos += cont.length;
+          request.setContent(cont);
+          return complete();
+        case STATE_CHUNK_SIZE:
+          String line = readLine();
+          if(line == null) return null;
+          remaining = parseChunkSize(line);
+          state = (remaining == 0 ? STATE_TRAILER : STATE_CHUNK_DATA);
+          break;
+        case STATE_CHUNK_DATA:
+          // chunk data followed by CRLF
+          if(len - pos < remaining + 2) return null;
+          chunks.write(buf, pos, (int) remaining);
+          pos += (int) remaining + 2;
+          state = STATE_CHUNK_SIZE;
+          break;
+        case STATE_TRAILER:
+          String trailer = readLine();
+          if(trailer == null) return null;
+          if(trailer.isEmpty()) {
+            request.setContent(chunks.toByteArray());
+            return complete();
+          }
+          break;
+        default:
+          throw new IllegalStateException("Invalid state: "+ state);
+      }
+    }
+  }
+  
+  
+  /**
+   * Finish the current request, resetting the decoder state.
+   * @return The complete request.
+   */
+  private NioHttpRequest complete() {
+    NioHttpRequest req = request;
+    request = null;
+    chunks = null;
+    remaining = 0;
+    state = STATE_HEAD;
+    if(pos == len) pos = len = 0;
+    return req;
+  }
+  
+  
+  /**
+   * Decode the request line and headers.
+   * @return <code>true</code> if the head was 
+   * decoded, <code>false</code> if more bytes are needed.
+   * @throws IOException In case of malformed request.
+   */
+  private boolean decodeHead() throws IOException {
+    int end = indexOfHeadEnd();
+    if(end < 0) {
+      if(len - pos > MAX_HEAD_SIZE)
+        throw new IOException("Request head too large");
+      return false;
+    }
+    String head = new String(buf, pos, end - pos, StandardCharsets.ISO_8859_1);
+    pos = end + 4;
+    String[] lines = head.split("\r\n");
+    String[] rl = lines[0].split(" ");
+    if(rl.length != 3 || !rl[2].startsWith("HTTP/"))
+      throw new IOException("Invalid request line {"+ lines[0]+ "}");
+    request = new NioHttpRequest(rl[0], rl[1], rl[2]);
+    for(int i = 1; i < lines.length; i++) {
+      int ic = lines[i].indexOf(HttpConsts.COLON);
+      if(ic <= 0) 
+        throw new IOException("Invalid header {"+ lines[i]+ "}");
+      request.addHeader(lines[i].substring(0, ic), lines[i].substring(ic+1));
+    }
+    String te = request.getHeader("Transfer-Encoding");
+    String cl = request.getHeader(HttpConsts.HD_CONT_LENGTH);
+    if(te != null && te.toLowerCase().contains("chunked")) {
+      chunks = new ByteArrayOutputStream();
+      state = STATE_CHUNK_SIZE;
+    }
+    else if(cl != null) {
+      try { remaining = Long.parseLong(cl.trim()); }
+      catch(NumberFormatException e) {
+        throw new IOException("Invalid Content-Length {"+ cl+ "}");
+      }
+      if(remaining < 0 || remaining > maxContent)
+        throw new IOException("Invalid Content-Length {"+ cl+ "}");
+      state = STATE_CONTENT;
+    }
+    else {
+      remaining = 0;
+      state = STATE_CONTENT;
+    }
+    return true;
+  }
+  
+  
+  /**
+   * Find the end of request head (CRLF CRLF).
+   * @return The index of the head end, or <code>-1</code>.
+   */
+  private int indexOfHeadEnd() {
+    for(int i = pos; i + 3 < len; i++) {
+      if(buf[i] == '\r' && buf[i+1] == '\n' 
+          && buf[i+2] == '\r' && buf[i+3] == '\n')
+        return i;
+    }
+    return -1;
+  }
+  
+  
+  /**
+   * Read a CRLF terminated line.
+   * @return The line without CRLF, or 
+   * <code>null</code> if more bytes are needed.
+   * @throws IOException If the line is too large.
+   */
+  private String readLine() throws IOException {
+    for(int i = pos; i + 1 < len; i++) {
+      if(buf[i] == '\r' && buf[i+1] == '\n') {
+        String line = new String(buf, pos, i - pos, StandardCharsets.ISO_8859_1);
+        pos = i + 2;
+        return line;
+      }
+    }
+    if(len - pos > MAX_HEAD_SIZE)
+      throw new IOException("Line too large");
+    return null;
+  }
+  
+  
+  /**
+   * Parse the chunk size line, ignoring extensions.
+   * @param line The chunk size line.
+   * @return The chunk size.
+   * @throws IOException In case of invalid chunk size.
+   */
+  private long parseChunkSize(String line) throws IOException {
+    int ie = line.indexOf(HttpConsts.SEMICOLON);
+    if(ie >= 0) line = line.substring(0, ie);
+    long size;
+    try { size = Long.parseLong(line.trim(), 16); }
+    catch(NumberFormatException e) {
+      throw new IOException("Invalid chunk size {"+ line+ "}");
+    }
+    if(size < 0 || chunks.size() + size > maxContent)
+      throw new IOException("Invalid chunk size {"+ line+ "}");
+    return size;
+  }
+  
+}
@@ -0,0 +1,594 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import lzma.sdk.lzma.Decoder;
+import lzma.sdk.lzma.Encoder;
+
+/**
+ * Per section compression codec of the binary envelope
+ * (see <code>EnvelopeConsts.FLAG_ADAPTIVE</code>).
+ * The codec is chosen for each section by the content size 
+ * and a quick check for already compressed content (magic 
+ * bytes and the entropy of a sample), so small or incompressible 
+ * payloads are sent as is, and only large payloads pay 
+ * for the slower LZMA coder. With a preset dictionary
+ * (see <code>DeflateDictionary</code>), small object sections 
+ * are compressed too, with deflate over the dictionary.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class SectionCodec {
+  
+  /**
+   * <code>
+   *  MIN_COMPRESS_SIZE = 512
+   * </code><br>
+   * Sections smaller than this size are not compressed,
+   * since the codec header costs more than it saves.
+   */
+  public static final int MIN_COMPRESS_SIZE = 512;
+  
+  /**
+   * <code>
+   *  DICT_MIN_SIZE = 32
+   * </code><br>
+   * Object sections smaller than this size are not 
+   * compressed, even with a preset dictionary.
+   */
+  public static final int DICT_MIN_SIZE = 32;
+  
+  /**
+   * <code>
+   *  LZMA_MIN_SIZE = 64*1024
+   * </code><br>
+   * Min section size for the LZMA codec, if enabled.
+   * A full first chunk of the stream section reaches it.
+   */
+  public static final int LZMA_MIN_SIZE = EnvelopeConsts.CODEC_BLOCK_SIZE;
+  
+  /**
+   * <code>
+   *  SAMPLE_SIZE = 4*1024
+   * </code><br>
+   * Size of the content sample for the entropy check.
+   */
+  public static final int SAMPLE_SIZE = 4*1024;
+  
+  /**
+   * <code>
+   *  MAX_ENTROPY = 7.5
+   * </code><br>
+   * Max entropy (bits per byte) of compressible content.
+   * Compressed or encrypted content is close to 8.
+   */
+  public static final double MAX_ENTROPY = 7.5;
+  
+  /**
+   * <code>
+   *  LZMA_DICTIONARY_SIZE = 1024*1024
+   * </code><br>
+   * Dictionary size of the LZMA coder.
+   */
+  public static final int LZMA_DICTIONARY_SIZE = 1024*1024;
+  
+  /**
+   * <code>
+   *  POOL_SIZE = 64
+   * </code><br>
+   * Max number of pooled deflaters and inflaters 
+   * of the preset dictionary codec.
+   */
+  public static final int POOL_SIZE = 64;
+  
+  /**
+   * Magic bytes of common compressed formats:
+   * gzip, zip, jpeg, png, gif, 7z, xz, bzip2, rar and zstd.
+   */
+  private static final byte[][] MAGICS = {
+    {0x1f, (byte) 0x8b},
+    {0x50, 0x4b, 0x03, 0x04},
+    {(byte) 0xff, (byte) 0xd8, (byte) 0xff},
+    {(byte) 0x89, 0x50, 0x4e, 0x47},
+    {0x47, 0x49, 0x46, 0x38},
+    {0x37, 0x7a, (byte) 0xbc, (byte) 0xaf},
+    {(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a},
+    {0x42, 0x5a, 0x68},
+    {0x52, 0x61, 0x72, 0x21},
+    {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd}
+  };
+  
+  private static final ArrayBlockingQueue<Deflater> 
+      DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+  
+  private static final ArrayBlockingQueue<Inflater> 
+      INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+  
+  
+  private final int codec;
+  
+  private final DeflateDictionary dict;
+  
+  private final ByteArrayOutputStream buffer;
+  
+  private Encoder lzenc;
+  
+  private Decoder lzdec;
+  
+  
+  /**
+   * Constructor which receives the codec 
+   * (see <code>EnvelopeConsts.CODEC_*</code>).
+   * @param codec The section codec.
+   */
+  public SectionCodec(int codec) {
+    this(codec, null);
+  }
+  
+  
+  /**
+   * Constructor which receives the codec 
+   * (see <code>EnvelopeConsts.CODEC_*</code>) and 
+   * the preset dictionary for encoding with 
+   * <code>CODEC_DEFLATE</code>. Decoding uses the 
+   * registered dictionary identified in the content.
+   * @param codec The section codec.
+   * @param dict The preset dictionary.
+   */
+  public SectionCodec(int codec, DeflateDictionary dict) {
+    if(codec < EnvelopeConsts.CODEC_NONE 
+        || codec > EnvelopeConsts.CODEC_DEFLATE)
+      throw new IllegalArgumentException(
+          "[SectionCodec( int, DeflateDictionary )] "
+          + "Invalid codec {"+ codec+ "}");
+    this.codec = codec;
+    this.dict = dict;
+    buffer = new ByteArrayOutputStream();
+  }
+  
+  
+  /**
+   * Get the section codec.
+   * @return The section codec (see <code>EnvelopeConsts.CODEC_*</code>).
+   */
+  public int getCodec() {
+    return codec;
+  }
+  
+  
+  /**
+   * Choose the codec for the specified section content.
+   * @param bs The section content (or its first chunk).
+   * @param off The content offset.
+   * @param len The content length.
+   * @param lzma <code>true</code> if the LZMA codec 
+   * may be chosen for large content.
+   * @return The section codec (see <code>EnvelopeConsts.CODEC_*</code>).
+   */
+  public static int select(byte[] bs, int off, int len, boolean lzma) {
+    return select(bs, off, len, lzma, null);
+  }
+  
+  
+  /**
+   * Choose the codec for the specified section content.
+   * @param bs The section content (or its first chunk).
+   * @param off The content offset.
+   * @param len The content length.
+   * @param lzma <code>true</code> if the LZMA codec 
+   * may be chosen for large content.
+   * @param dict The preset dictionary, if the 
+   * <code>CODEC_DEFLATE</code> may be chosen.
+   * @return The section codec (see <code>EnvelopeConsts.CODEC_*</code>).
+   */
+  public static int select(byte[] bs, int off, int len, boolean lzma, DeflateDictionary dict) {
+    int min = (dict != null ? DICT_MIN_SIZE : MIN_COMPRESS_SIZE);
+    if(len < min || isCompressed(bs, off, len))
+      return EnvelopeConsts.CODEC_NONE;
+    if(lzma && len >= LZMA_MIN_SIZE)
+      return EnvelopeConsts.CODEC_LZMA;
+    if(dict != null)
+      return EnvelopeConsts.CODEC_DEFLATE;
+    return EnvelopeConsts.CODEC_GZIP;
+  }
+  
+  
+  /**
+   * Verify if the content looks already compressed, 
+   * by the magic bytes of common compressed formats 
+   * or by the entropy of a content sample.
+   * @param bs The content.
+   * @param off The content offset.
+   * @param len The content length.
+   * @return <code>true</code> if the content looks 
+   * compressed, <code>false</code> otherwise.
+   */
+  public static boolean isCompressed(byte[] bs, int off, int len) {
+    for(byte[] magic : MAGICS) {
+      if(startsWith(bs, off, len, magic)) return true;
+    }
+    return entropy(bs, off, Math.min(len, SAMPLE_SIZE)) > MAX_ENTROPY;
+  }
+  
+  
+  /**
+   * Verify if the content starts with the specified bytes.
+   */
+  private static boolean startsWith(byte[] bs, int off, int len, byte[] magic) {
+    if(len < magic.length) return false;
+    for(int i = 0; i < magic.length; i++) {
+      if(bs[off+i] != magic[i]) return false;
+    }
+    return true;
+  }
+  
+  
+  /**
+   * Calculate the Shannon entropy of the content, in bits per byte.
+   * @param bs The content.
+   * @param off The content offset.
+   * @param len The content length.
+   * @return The entropy, from 0 to 8 bits per byte.
+   */
+  public static double entropy(byte[] bs, int off, int len) {
+    if(len <= 0) return 0;
+    int[] freq = new int[256];
+    for(int i = off; i < off + len; i++) {
+      freq[bs[i] & 0xff]++;
+    }
+    double ent = 0;
+    for(int f : freq) {
+      if(f == 0) continue;
+      double p = (double) f / len;
+      ent -= p * Math.log(p);
+    }
+    return ent / Math.log(2);
+  }
+  
+  
+  /**
+   * Encode and write the content, prefixed by the encoded length.
+   * @param out The <code>OutputStream</code> to write.
+   * @param bs The content.
+   * @param off The content offset.
+   * @param len The content length.
+   * @throws IOException In case of error encoding.
+   */
+  public void write(OutputStream out, byte[] bs, int off, int len) throws IOException {
+    if(codec == EnvelopeConsts.CODEC_NONE) {
+      writeInt(out, len);
+      out.write(bs, off, len);
+      return;
+    }
+    buffer.reset();
+    if(codec == EnvelopeConsts.CODEC_GZIP) {
+      GZIPOutputStream gos = new GZIPOutputStream(
+          buffer, EnvelopeCoder.BUFFER_SIZE);
+      gos.write(bs, off, len);
+      gos.finish();
+      gos.close();
+    }
+    else if(codec == EnvelopeConsts.CODEC_DEFLATE) {
+      deflate(bs, off, len);
+    }
+    else {
+      // [properties:5][decoded length:4][lzma data]
+      Encoder enc = encoder();
+      enc.writeCoderProperties(buffer);
+      writeInt(buffer, len);
+      enc.code(new ByteArrayInputStream(bs, off, len), buffer, len, -1, null);
+    }
+    writeInt(out, buffer.size());
+    buffer.writeTo(out);
+  }
+  
+  
+  /**
+   * Decode the content, up to 
+   * <code>EnvelopeConsts.MAX_SECTION_SIZE</code> bytes.
+   * @param bs The encoded content.
+   * @param off The encoded content offset.
+   * @param len The encoded content length.
+   * @return The decoded content.
+   * @throws IOException In case of error decoding.
+   */
+  public byte[] decode(byte[] bs, int off, int len) throws IOException {
+    return decode(bs, off, len, EnvelopeConsts.MAX_SECTION_SIZE);
+  }
+  
+  
+  /**
+   * Decode the content, rejecting a decoded content
+   * greater than the specified max size, so a small 
+   * compressed content can not inflate without limit.
+   * @param bs The encoded content.
+   * @param off The encoded content offset.
+   * @param len The encoded content length.
+   * @param max The max decoded size in bytes.
+   * @return The decoded content.
+   * @throws IOException In case of error decoding or 
+   * if the decoded content is greater than <code>max</code>.
+   */
+  public byte[] decode(byte[] bs, int off, int len, int max) throws IOException {
+    if(codec == EnvelopeConsts.CODEC_NONE) {
+      if(len > max) throw overflow(len, max);
+      byte[] dec = new byte[len];
+      System.arraycopy(bs, off, dec, 0, len);
+      return dec;
+    }
+    buffer.reset();
+    InputStream in = new ByteArrayInputStream(bs, off, len);
+    if(codec == EnvelopeConsts.CODEC_GZIP) {
+      in = new GZIPInputStream(in, EnvelopeCoder.BUFFER_SIZE);
+      byte[] chunk = new byte[EnvelopeConsts.STREAM_CHUNK_SIZE];
+      int read;
+      while((read = in.read(chunk)) != -1) {
+        if(buffer.size() + read > max) 
+          throw overflow(buffer.size() + read, max);
+        buffer.write(chunk, 0, read);
+      }
+    }
+    else if(codec == EnvelopeConsts.CODEC_DEFLATE) {
+      inflate(bs, off, len, max);
+    }
+    else {
+      DataInputStream din = new DataInputStream(in);
+      byte[] props = new byte[Encoder.kPropSize];
+      din.readFully(props);
+      int size = din.readInt();
+      if(lzdec == null) lzdec = new Decoder();
+      if(size < 0 || !lzdec.setDecoderProperties(props)) 
+        throw new IOException("Invalid LZMA Section {size="+ size+ "}");
+      if(size > max) throw overflow(size, max);
+      if(!lzdec.code(din, buffer, size) || buffer.size() != size)
+        throw new IOException("Invalid LZMA Section Data");
+    }
+    return buffer.toByteArray();
+  }
+  
+  
+  /**
+   * Create the error for a decoded content 
+   * greater than the max size.
+   * @param size The decoded size.
+   * @param max The max decoded size.
+   * @return The <code>IOException</code> to throw.
+   */
+  private static IOException overflow(int size, int max) {
+    return new IOException("Decoded Section Too Large {"
+        + "size="+ size+ ", max="+ max+ "}");
+  }
+  
+  
+  /**
+   * Compress the content with a pooled <code>Deflater</code>
+   * over the preset dictionary, into the buffer.
+   */
+  private void deflate(byte[] bs, int off, int len) throws IOException {
+    if(dict == null) throw new IOException(
+        "Missing DeflateDictionary for deflate section");
+    Deflater def = DEFLATERS.poll();
+    if(def == null) def = new Deflater();
+    try {
+      def.setDictionary(dict.getBytes());
+      def.setInput(bs, off, len);
+      def.finish();
+      byte[] chunk = new byte[Math.min(len + 64, EnvelopeCoder.BUFFER_SIZE)];
+      while(!def.finished()) {
+        int n = def.deflate(chunk);
+        buffer.write(chunk, 0, n);
+      }
+    }
+    finally {
+      def.reset();
+      if(!DEFLATERS.offer(def)) def.end();
+    }
+  }
+  
+  
+  /**
+   * Decompress the content with a pooled <code>Inflater</code>
+   * into the buffer, over the registered dictionary 
+   * identified in the content, up to <code>max</code> bytes.
+   */
+  private void inflate(byte[] bs, int off, int len, int max) throws IOException {
+    Inflater inf = INFLATERS.poll();
+    if(inf == null) inf = new Inflater();
+    try {
+      inf.setInput(bs, off, len);
+      byte[] chunk = new byte[EnvelopeCoder.BUFFER_SIZE];
+      while(!inf.finished()) {
+        int n = inf.inflate(chunk);
+        if(n > 0) {
+          if(buffer.size() + n > max) 
+            throw overflow(buffer.size() + n, max);
+          buffer.write(chunk, 0, n);
+        }
+        else if(inf.needsDictionary()) {
+          DeflateDictionary dd = DeflateDictionary.lookup(inf.getAdler());
+          if(dd == null) throw new IOException(
+              "Unknown DeflateDictionary {id="
+              + Integer.toHexString(inf.getAdler())+ "}");
+          inf.setDictionary(dd.getBytes());
+        }
+        else if(inf.needsInput()) {
+          throw new IOException("Unexpected end of deflate section");
+        }
+      }
+    }
+    catch(DataFormatException e) {
+      throw new IOException("Invalid deflate section: "+ e.getMessage(), e);
+    }
+    finally {
+      inf.reset();
+      if(!INFLATERS.offer(inf)) inf.end();
+    }
+  }
+  
+  
+  /**
+   * Create the LZMA encoder, reused for all 
+   * chunks of the section.
+   * @return The LZMA encoder.
+   */
+  private Encoder encoder() {
+    if(lzenc == null) {
+      lzenc = new Encoder();
+      lzenc.setDictionarySize(LZMA_DICTIONARY_SIZE);
+      lzenc.setEndMarkerMode(false);
+    }
+    return lzenc;
+  }
+  
+  
+  /**
+   * Write a big endian int in the <code>OutputStream</code>.
+   */
+  private static void writeInt(OutputStream out, int val) throws IOException {
+    out.write(val >>> 24);
+    out.write(val >>> 16);
+    out.write(val >>> 8);
+    out.write(val);
+  }
+  
+  
+  /**
+   * Fill the byte array from the <code>InputStream</code>.
+   * @return The number of bytes read, 0 at the end of stream.
+   */
+  private static int fill(InputStream in, byte[] bs) throws IOException {
+    int len = 0;
+    int read;
+    while(len < bs.length && (read = in.read(bs, len, bs.length - len)) != -1) {
+      len += read;
+    }
+    return len;
+  }
+  
+  
+  /**
+   * Write the object section with an adaptive codec:
+   * <code>[codec:1][length:4][encoded bytes]</code>.
+   * @param out The <code>OutputStream</code> to write.
+   * @param bs The serialized object.
+   * @param lzma <code>true</code> if the LZMA codec 
+   * may be chosen for large content.
+   * @throws IOException In case of error writing.
+   */
+  public static void writeObject(OutputStream out, byte[] bs, boolean lzma) throws IOException {
+    writeObject(out, bs, lzma, null);
+  }
+  
+  
+  /**
+   * Write the object section with an adaptive codec:
+   * <code>[codec:1][length:4][encoded bytes]</code>.
+   * @param out The <code>OutputStream</code> to write.
+   * @param bs The serialized object.
+   * @param lzma <code>true</code> if the LZMA codec 
+   * may be chosen for large content.
+   * @param dict The preset dictionary, if the 
+   * <code>CODEC_DEFLATE</code> may be chosen.
+   * @throws IOException In case of error writing.
+   */
+  public static void writeObject(OutputStream out, byte[] bs, boolean lzma, DeflateDictionary dict) throws IOException {
+    SectionCodec sc = new SectionCodec(
+        select(bs, 0, bs.length, lzma, dict), dict);
+    out.write(sc.getCodec());
+    sc.write(out, bs, 0, bs.length);
+  }
+  
+  
+  /**
+   * Read the object section written by 
+   * <code>writeObject(OutputStream, byte[], boolean)</code>,
+   * up to <code>EnvelopeConsts.MAX_SECTION_SIZE</code> bytes.
+   * @param in The decoding content stream.
+   * @return The serialized object.
+   * @throws IOException In case of error reading.
+   */
+  public static byte[] readObject(DataInputStream in) throws IOException {
+    return readObject(in, EnvelopeConsts.MAX_SECTION_SIZE);
+  }
+  
+  
+  /**
+   * Read the object section written by 
+   * <code>writeObject(OutputStream, byte[], boolean)</code>.
+   * The encoded and the decoded lengths are checked against 
+   * the max size before allocating.
+   * @param in The decoding content stream.
+   * @param max The max section size in bytes.
+   * @return The serialized object.
+   * @throws IOException In case of error reading or
+   * if the section is greater than <code>max</code>.
+   */
+  public static byte[] readObject(DataInputStream in, int max) throws IOException {
+    SectionCodec sc = new SectionCodec(in.readUnsignedByte());
+    int len = in.readInt();
+    if(len < 0 || len > max) throw new IOException(
+        "Invalid Section Length {"+ len+ "}");
+    byte[] bs = new byte[len];
+    in.readFully(bs);
+    if(sc.getCodec() == EnvelopeConsts.CODEC_NONE) 
+      return bs;
+    return sc.decode(bs, 0, len, max);
+  }
+  
+  
+  /**
+   * Write the stream section with an adaptive codec:
+   * <code>[codec:1][length:4][encoded chunk]...[0:4]</code>.
+   * The codec is chosen by the first chunk, so a full first 
+   * chunk of <code>CODEC_BLOCK_SIZE</code> means bulk content.
+   * @param out The <code>OutputStream</code> to write.
+   * @param input The <code>InputStream</code> to embed.
+   * @param lzma <code>true</code> if the LZMA codec 
+   * may be chosen for large content.
+   * @throws IOException In case of error writing.
+   */
+  public static void writeStream(OutputStream out, InputStream input, boolean lzma) throws IOException {
+    byte[] block = new byte[EnvelopeConsts.CODEC_BLOCK_SIZE];
+    int len = fill(input, block);
+    SectionCodec sc = new SectionCodec(select(block, 0, len, lzma));
+    out.write(sc.getCodec());
+    while(len > 0) {
+      sc.write(out, block, 0, len);
+      len = fill(input, block);
+    }
+    writeInt(out, 0);
+  }
+  
+}
@@ -0,0 +1,195 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Lazy <code>InputStream</code> over the chunked stream 
+ * section of a binary envelope (see <code>EnvelopeConsts</code>),
+ * reading the chunks on demand from the decoding content stream,
+ * without buffering. Chunks compressed with a section codec
+ * (see <code>EnvelopeConsts.FLAG_ADAPTIVE</code>) are decoded
+ * one at a time. Closing the stream skips the remaining 
+ * chunks, but does not close the underlying stream.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class SectionInputStream extends InputStream {
+  
+  /**
+   * <code>
+   *  MAX_ENCODED_CHUNK = 2 * CODEC_BLOCK_SIZE
+   * </code><br>
+   * Max length of a compressed stream chunk. The writer 
+   * never encodes more than <code>CODEC_BLOCK_SIZE</code>
+   * bytes per chunk, so longer chunks are rejected before 
+   * allocating.
+   */
+  public static final int MAX_ENCODED_CHUNK = 
+      2 * EnvelopeConsts.CODEC_BLOCK_SIZE;
+  
+  
+  private final DataInputStream input;
+  
+  private final SectionCodec codec;
+  
+  private byte[] block;
+  
+  private int remaining;
+  
+  private boolean eof;
+  
+  
+  /**
+   * Constructor which receives the decoding content
+   * stream, positioned at the start of the stream section.
+   * @param in The decoding content stream.
+   */
+  public SectionInputStream(DataInputStream in) {
+    this(in, EnvelopeConsts.CODEC_NONE);
+  }
+  
+  
+  /**
+   * Constructor which receives the decoding content
+   * stream, positioned at the first chunk of the stream 
+   * section, and the section codec.
+   * @param in The decoding content stream.
+   * @param codec The section codec (see <code>EnvelopeConsts.CODEC_*</code>).
+   */
+  public SectionInputStream(DataInputStream in, int codec) {
+    if(in == null)
+      throw new IllegalArgumentException(
+          "[SectionInputStream( DataInputStream, int )] "
+          + "Invalid DataInputStream {"+ in+ "}");
+    input = in;
+    this.codec = new SectionCodec(codec);
+    block = null;
+    remaining = 0;
+    eof = false;
+  }
+  
+  
+  /**
+   * Read the next chunk length, if the current is finished.
+   * @param decode <code>true</code> for decode compressed 
+   * chunks, <code>false</code> for skip them.
+   * @return <code>true</code> if there is content 
+   * available, <code>false</code> at the end of section.
+   * @throws IOException In case of error reading.
+   */
+  private boolean nextChunk(boolean decode) throws IOException {
+    if(eof) return false;
+    while(remaining == 0) {
+      remaining = input.readInt();
+      if(remaining < 0) throw new IOException(
+          "Invalid Section Length {"+ remaining+ "}");
+      eof = remaining == 0;
+      if(eof) return false;
+      if(decode && codec.getCodec() != EnvelopeConsts.CODEC_NONE) {
+        if(remaining > MAX_ENCODED_CHUNK) throw new IOException(
+            "Invalid Section Length {"+ remaining+ "}");
+        byte[] bs = new byte[remaining];
+        input.readFully(bs);
+        block = codec.decode(bs, 0, bs.length, 
+            EnvelopeConsts.CODEC_BLOCK_SIZE);
+        remaining = block.length;
+      }
+    }
+    return true;
+  }
+  
+  
+  @Override
+  public int read() throws IOException {
+    if(!nextChunk(true)) return -1;
+    if(block != null) 
+      return block[block.length - remaining--] & 0xff;
+    int b = input.read();
+    if(b == -1) throw new IOException(
+        "Unexpected end of stream section");
+    remaining--;
+    return b;
+  }
+  
+  
+  @Override
+  public int read(byte[] bs, int off, int len) throws IOException {
+    if(len == 0) return 0;
+    if(!nextChunk(true)) return -1;
+    if(block != null) {
+      int read = Math.min(len, remaining);
+      System.arraycopy(block, block.length - remaining, bs, off, read);
+      remaining -= read;
+      return read;
+    }
+    int read = input.read(bs, off, Math.min(len, remaining));
+    if(read == -1) throw new IOException(
+        "Unexpected end of stream section");
+    remaining -= read;
+    return read;
+  }
+  
+  
+  @Override
+  public int available() throws IOException {
+    if(eof) return 0;
+    if(block != null) return remaining;
+    return Math.min(remaining, input.available());
+  }
+  
+  
+  /**
+   * Verify if the whole stream section was read.
+   * @return <code>true</code> if the end of 
+   * section was reached, <code>false</code> otherwise.
+   */
+  public boolean isFinished() {
+    return eof;
+  }
+  
+  
+  /**
+   * Skip the remaining chunks of the stream section.
+   * @throws IOException In case of error reading.
+   */
+  @Override
+  public void close() throws IOException {
+    // drop the decoded chunk and skip the encoded ones
+    if(block != null) {
+      block = null;
+      remaining = 0;
+    }
+    while(nextChunk(false)) {
+      remaining -= input.skipBytes(remaining);
+      if(remaining > 0 && input.read() != -1) 
+        remaining--;
+      else if(remaining > 0) 
+        throw new IOException("Unexpected end of stream section");
+    }
+  }
+  
+}
@@ -0,0 +1,73 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.net.Socket;
+import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.io.BufferInfo;
+import org.apache.http.io.SessionInputBuffer;
+
+/**
+ * Server side blocking HTTP connection, exposing
+ * some internal state of the Apache Http Core 
+ * <code>DefaultBHttpServerConnection</code> 
+ * needed for connection management.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class ServerHttpConnection extends DefaultBHttpServerConnection {
+  
+  /**
+   * Constructor which receives the connection buffer size.
+   * @param buffersize The connection buffer size.
+   */
+  public ServerHttpConnection(int buffersize) {
+    super(buffersize);
+  }
+  
+  
+  /**
+   * Verifies if there are bytes already readed from the 
+   * socket and not consumed yet (i.e: a pipelined request).
+   * This method never blocks.
+   * @return <code>true</code> if there are buffered input bytes,
+   * <code>false</code> otherwise.
+   */
+  public boolean hasBufferedInput() {
+    SessionInputBuffer in = getSessionInputBuffer();
+    return in instanceof BufferInfo 
+        && ((BufferInfo) in).length() > 0;
+  }
+  
+  
+  /**
+   * Get the bounded socket.
+   * @return The bounded <code>Socket</code> or
+   * <code>null</code> if the connection is not bounded.
+   */
+  @Override
+  public Socket getSocket() {
+    return super.getSocket();
+  }
+  
+}
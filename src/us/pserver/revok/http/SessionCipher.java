@@ -0,0 +1,151 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.http;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import us.pserver.cdr.crypt.CryptKey;
+
+/**
+ * Cryptography session of a connection. The session key is 
+ * sent once, on the first message of the connection, and 
+ * the <code>Cipher</code> instances are created once and 
+ * reused by all the messages, each one encrypted under a new 
+ * random IV, written in front of the encrypted content.
+ * Instances are not thread safe, messages of the same
+ * connection must be encoded and decoded one at a time.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class SessionCipher {
+  
+  private static final SecureRandom random = new SecureRandom();
+  
+  private final CryptKey key;
+  
+  private final Cipher encrypt;
+  
+  private final Cipher decrypt;
+  
+  private final int ivsize;
+  
+  
+  /**
+   * Constructor which receives the session key.
+   * @param key The session key.
+   * @throws IOException In case of error creating the ciphers.
+   */
+  public SessionCipher(CryptKey key) throws IOException {
+    if(key == null || key.getAlgorithm() == null)
+      throw new IllegalArgumentException(
+          "[SessionCipher( CryptKey )] Invalid CryptKey {"+ key+ "}");
+    this.key = key;
+    try {
+      encrypt = Cipher.getInstance(key.getAlgorithm().toString());
+      decrypt = Cipher.getInstance(key.getAlgorithm().toString());
+    } catch(GeneralSecurityException e) {
+      throw new IOException(e.toString(), e);
+    }
+    // ECB modes does not use IV
+    ivsize = key.getAlgorithm().toString().contains("/ECB") 
+        ? 0 : encrypt.getBlockSize();
+  }
+  
+  
+  /**
+   * Get the session key.
+   * @return The session key.
+   */
+  public CryptKey getKey() {
+    return key;
+  }
+  
+  
+  /**
+   * Create an encrypting <code>OutputStream</code> for a new 
+   * message, writing the random IV section in the specified stream.
+   * @param os The underlying <code>OutputStream</code>.
+   * @return The encrypting <code>OutputStream</code>.
+   * @throws IOException In case of error initializing the cipher.
+   */
+  public OutputStream encoder(OutputStream os) throws IOException {
+    byte[] iv = new byte[ivsize];
+    random.nextBytes(iv);
+    os.write(ivsize >>> 24);
+    os.write(ivsize >>> 16);
+    os.write(ivsize >>> 8);
+    os.write(ivsize);
+    os.write(iv);
+    init(encrypt, Cipher.ENCRYPT_MODE, iv);
+    return new CipherOutputStream(os, encrypt);
+  }
+  
+  
+  /**
+   * Create a decrypting <code>InputStream</code> for a new 
+   * message, reading the IV section from the specified stream.
+   * @param is The underlying <code>InputStream</code>.
+   * @return The decrypting <code>InputStream</code>.
+   * @throws IOException In case of error reading the IV 
+   * or initializing the cipher.
+   */
+  public InputStream decoder(InputStream is) throws IOException {
+    DataInputStream din = new DataInputStream(is);
+    int len = din.readInt();
+    if(len != ivsize) throw new IOException(
+        "Invalid IV Length {"+ len+ "}");
+    byte[] iv = new byte[len];
+    din.readFully(iv);
+    init(decrypt, Cipher.DECRYPT_MODE, iv);
+    return new CipherInputStream(is, decrypt);
+  }
+  
+  
+  /**
+   * Initialize the cipher for a new message, 
+   * resetting any previous state.
+   * @param cipher The cipher to initialize.
+   * @param mode The cipher mode.
+   * @param iv The message IV.
+   * @throws IOException In case of error initializing the cipher.
+   */
+  private void init(Cipher cipher, int mode, byte[] iv) throws IOException {
+    try {
+      if(ivsize == 0) 
+        cipher.init(mode, key.getSpec());
+      else 
+        cipher.init(mode, key.getSpec(), new IvParameterSpec(iv));
+    } catch(GeneralSecurityException e) {
+      throw new IOException(e.toString(), e);
+    }
+  }
+  
+}
@@ -0,0 +1,52 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.protocol;
+
+/**
+ * Interface for managing the life cycle of connections
+ * handled by <code>RunnableConnectionHandler</code>.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public interface ConnectionManager {
+  
+  /**
+   * Called when a persistent connection becomes idle, 
+   * after a response was sent. The manager may take the 
+   * connection and resume the handler later, when the next 
+   * request arrives, releasing the current thread.
+   * @param handler The idle connection handler.
+   * @return <code>true</code> if the connection was parked 
+   * and the handler must return, <code>false</code> if the 
+   * handler must continue reading on the current thread.
+   */
+  public boolean park(RunnableConnectionHandler handler);
+  
+  
+  /**
+   * Called once when the connection handled is closed.
+   * @param handler The closed connection handler.
+   */
+  public default void closed(RunnableConnectionHandler handler) {}
+  
+}
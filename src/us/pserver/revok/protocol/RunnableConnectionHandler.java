@@ -23,6 +23,11 @@ package us.pserver.revok.protocol;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import static us.pserver.chk.Checker.nullarg;
 import us.pserver.log.Log;
 import us.pserver.log.LogFactory;
@@ -34,6 +39,8 @@ import us.pserver.revok.channel.Channel;
 import us.pserver.revok.container.AuthenticationException;
 import us.pserver.revok.container.ObjectContainer;
 import us.pserver.revok.reflect.Invoker;
+import us.pserver.revok.server.AdaptiveConcurrencyLimiter;
+import us.pserver.revok.server.Bulkhead;
 import us.pserver.revok.server.RevokServer;
 
 /**
@@ -61,6 +68,24 @@ public class RunnableConnectionHandler implements Runnable {
    */
   public static final String CONN_RESET = "Connection reset";
   
+  /**
+   * <code>STATE_IDLE = 0</code><br>
+   * Handler state waiting for a request.
+   */
+  public static final int STATE_IDLE = 0;
+  
+  /**
+   * <code>STATE_BUSY = 1</code><br>
+   * Handler state processing a request.
+   */
+  public static final int STATE_BUSY = 1;
+  
+  /**
+   * <code>STATE_CLOSED = 2</code><br>
+   * Handler state closed.
+   */
+  public static final int STATE_CLOSED = 2;
+  
   
   private Channel channel;
   
@@ -68,7 +93,19 @@ public class RunnableConnectionHandler implements Runnable {
   
   private Log log;
   
-  private boolean closed;
+  private final AtomicInteger state;
+  
+  private ConnectionManager manager;
+  
+  private AdaptiveConcurrencyLimiter limiter;
+  
+  private Map<String, Bulkhead> bulkheads;
+  
+  private Executor executor;
+  
+  private int inflight;
+  
+  private boolean finishing;
   
   
   /**
@@ -92,7 +129,7 @@ public class RunnableConnectionHandler implements Runnable {
     
     //Set the internal properties and log the connection.
     channel = ch;
-    closed = false;
+    state = new AtomicInteger(STATE_IDLE);
     container = cont;
     log = LogFactory.getSimpleLog(RunnableConnectionHandler.class);
   }
@@ -119,6 +156,101 @@ public class RunnableConnectionHandler implements Runnable {
   }
 
 
+  /**
+   * Get the <code>ConnectionManager</code> which may 
+   * park this handler while the connection is idle.
+   * @return The <code>ConnectionManager</code> or 
+   * <code>null</code> if not defined.
+   */
+  public ConnectionManager getConnectionManager() {
+    return manager;
+  }
+  
+  
+  /**
+   * Set the <code>ConnectionManager</code> which may 
+   * park this handler while the connection is idle.
+   * If not defined (<code>null</code>), persistent connections
+   * are handled entirely on the current thread.
+   * @param cm The <code>ConnectionManager</code>.
+   * @return This modified <code>RunnableConnectionHandler</code> instance.
+   */
+  public RunnableConnectionHandler setConnectionManager(ConnectionManager cm) {
+    this.manager = cm;
+    return this;
+  }
+
+
+  /**
+   * Get the concurrency limiter applied to method invocations.
+   * @return The <code>AdaptiveConcurrencyLimiter</code> or 
+   * <code>null</code> if not defined.
+   */
+  public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+    return limiter;
+  }
+  
+  
+  /**
+   * Set the concurrency limiter applied to method invocations.
+   * @param acl The <code>AdaptiveConcurrencyLimiter</code>, or
+   * <code>null</code> for unlimited invocations.
+   * @return This modified <code>RunnableConnectionHandler</code> instance.
+   */
+  public RunnableConnectionHandler setConcurrencyLimiter(AdaptiveConcurrencyLimiter acl) {
+    this.limiter = acl;
+    return this;
+  }
+
+
+  /**
+   * Get the per namespace bulkheads applied to method invocations.
+   * @return The bulkheads map by namespace, or 
+   * <code>null</code> if not defined.
+   */
+  public Map<String, Bulkhead> getBulkheads() {
+    return bulkheads;
+  }
+  
+  
+  /**
+   * Set the per namespace bulkheads applied to method invocations.
+   * @param bhs The bulkheads map by namespace, or
+   * <code>null</code> for unlimited invocations.
+   * @return This modified <code>RunnableConnectionHandler</code> instance.
+   */
+  public RunnableConnectionHandler setBulkheads(Map<String, Bulkhead> bhs) {
+    this.bulkheads = bhs;
+    return this;
+  }
+
+
+  /**
+   * Get the executor of multiplexed invocations.
+   * @return The executor of multiplexed invocations.
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+  
+  
+  /**
+   * Set the executor of multiplexed invocations. Requests 
+   * with a request ID (see <code>Transport.getRequestId()</code>)
+   * are invoked concurrently on this executor, while the next 
+   * requests are read, and answered out of order as the 
+   * invocations finish. Must not wait for the threads
+   * blocked reading the connections.
+   * @param exec The executor of multiplexed invocations, or 
+   * <code>null</code> for invoking all requests in order.
+   * @return This modified <code>RunnableConnectionHandler</code> instance.
+   */
+  public RunnableConnectionHandler setExecutor(Executor exec) {
+    this.executor = exec;
+    return this;
+  }
+
+
   /**
    * Reads a <code>Transport</code> object from the network channel.
    * @return A <code>Transport</code> object readed from the network channel.
@@ -128,6 +260,9 @@ public class RunnableConnectionHandler implements Runnable {
       // Try to read and return the Transport object from the channel.
       return channel.read();
     } catch(Exception e) {
+      // The connection was closed by another 
+      // thread (i.e: server draining).
+      if(isClosed()) return null;
       // Log an occurred error on channel reading, 
       // but only if the error is a reading error or 
       // connection reset error. Other less important 
@@ -237,6 +372,74 @@ public class RunnableConnectionHandler implements Runnable {
   }
    
     
+  /**
+   * Get the bulkhead of the target object namespace.
+   * @param rm The remote method.
+   * @return The namespace <code>Bulkhead</code>,
+   * or <code>null</code> if not defined.
+   */
+  private Bulkhead bulkhead(RemoteMethod rm) {
+    if(bulkheads == null || bulkheads.isEmpty() 
+        || rm == null || rm.objectName() == null)
+      return null;
+    int ip = rm.objectName().indexOf(".");
+    if(ip < 0) return null;
+    return bulkheads.get(rm.objectName().substring(0, ip));
+  }
+  
+  
+  /**
+   * Create an error operation result for rejected invocations.
+   * @param msg The error message.
+   * @return An operation result <code>OpResult</code> object.
+   */
+  private OpResult rejected(String msg) {
+    OpResult op = new OpResult();
+    op.setSuccessOperation(false);
+    op.setError(new MethodInvocationException(
+        "[HttpConnectionHandler.limit( RemoteMethod, Supplier )] "
+            + msg));
+    return op;
+  }
+  
+  
+  /**
+   * Execute the invocation under the target namespace bulkhead
+   * and the concurrency limiter, measuring its latency. If a
+   * limit is reached, the invocation is rejected with an error 
+   * operation result.
+   * @param rm The remote method invoked.
+   * @param inv The invocation to execute.
+   * @return An operation result <code>OpResult</code> object.
+   */
+  private OpResult limit(RemoteMethod rm, Supplier<OpResult> inv) {
+    Bulkhead bh = bulkhead(rm);
+    if(bh != null && !bh.acquire()) {
+      log.warn("Invocation rejected: "+ bh.toString());
+      return rejected("Namespace overloaded. Bulkhead limit reached {"
+          + bh.getName()+ "}");
+    }
+    try {
+      if(limiter == null) return inv.get();
+      if(!limiter.acquire()) {
+        log.warn("Invocation rejected: "+ limiter.toString());
+        return rejected("Server overloaded. Concurrency limit reached {"
+            + limiter.getLimit()+ "}");
+      }
+      long start = System.nanoTime();
+      try {
+        return inv.get();
+      }
+      finally {
+        limiter.release(System.nanoTime() - start);
+      }
+    }
+    finally {
+      if(bh != null) bh.release();
+    }
+  }
+   
+    
   /**
    * Log a chain of methods invocation request.
    * @param obj The object on the methods chain will be invoked.
@@ -290,17 +493,20 @@ public class RunnableConnectionHandler implements Runnable {
     // Handle the readed invocation request according
     // if it is a single remote request or a chain of 
     // methods request
+    Transport res;
     if(trp.isObjectFromType(RemoteMethod.class)) {
       RemoteMethod rm = trp.castObject();
       this.checkInputStreamReference(rm, trp);
-      return pack(invoke(rm));
+      res = pack(limit(rm, ()->invoke(rm)));
     }
     else if(trp.isObjectFromType(MethodChain.class)) {
       MethodChain chain = trp.castObject();
       this.checkInputStreamReference(chain.current(), trp);
-      return pack(invoke(chain));
+      res = pack(limit(chain.current(), ()->invoke(chain)));
     }
-    else return invalidType(trp);
+    else res = invalidType(trp);
+    // correlate the response to a multiplexed request
+    return res.setRequestId(trp.getRequestId());
   }
   
   
@@ -324,34 +530,132 @@ public class RunnableConnectionHandler implements Runnable {
   
   
   /**
-   * Handle the Http connection request.
+   * Handle the Http connection request. Persistent 
+   * connections are handled in a loop, until closed or 
+   * parked by the <code>ConnectionManager</code>, when idle.
    */
   @Override
   public void run() {
-    // Check if connection is closed.
-    if(isClosed()) {
-      close();
-      return;
+    while(!isClosed()) {
+      // Reads the Transport object from the channel.
+      Transport trp = this.read();
+      // Check for error reading from the channel and log it.
+      if(trp == null) {
+        log.info("Connection closed by client.");
+        break;
+      }
+      // Mark as busy, unless closed while reading.
+      if(!enter()) break;
+      // Multiplexed requests are invoked concurrently,
+      // going on reading the next requests.
+      if(isMultiplexed(trp)) {
+        this.dispatch(trp);
+        continue;
+      }
+      // Handle the invocation request and write the 
+      // result on the channel.
+      this.write( handleInvoke(trp) );
+      // If is a persistent Http connection, try
+      // to continue the communication with the client
+      // over the same connection. Close it otherwise.
+      if(!leave() || !channel.isValid())
+        break;
+      // The connection is idle now (no multiplexed 
+      // invocations running). Let the manager park it, 
+      // releasing the current thread until the next 
+      // request arrives.
+      if(manager != null && !isBusy() && manager.park(this))
+        return;
     }
+    this.finish();
+  }
   
-    // Reads the Transport object from the channel.
-    Transport trp = this.read();
-    // Check for error reading from the channel and log it.
-    if(trp == null) {
-      log.info("Connection closed by client.");
-      close();
-      return;
+  
+  /**
+   * Close the handler, or defer the close to the end of 
+   * the multiplexed invocations still running, so their 
+   * responses are written before closing the connection.
+   */
+  private void finish() {
+    synchronized(this) {
+      if(inflight > 0) {
+        finishing = true;
+        return;
+      }
+    }
+    this.close();
+  }
+  
+  
+  /**
+   * Verifies if the request is invoked concurrently: it has a
+   * request ID, no stream content to read from the connection,
+   * and there is an executor for multiplexed invocations.
+   * @param trp The request <code>Transport</code>.
+   * @return <code>true</code> if the request is invoked 
+   * concurrently, <code>false</code> otherwise.
+   */
+  private boolean isMultiplexed(Transport trp) {
+    return executor != null 
+        && trp.getRequestId() != 0 
+        && !trp.hasContentEmbedded();
+  }
+  
+  
+  /**
+   * Invoke the multiplexed request on the executor and write
+   * the response when finished. If the executor is saturated 
+   * or shutdown, the request is invoked on the current thread.
+   * @param trp The request <code>Transport</code>.
+   */
+  private void dispatch(Transport trp) {
+    Runnable task = ()->{
+      try {
+        this.write( handleInvoke(trp) );
+      }
+      finally {
+        leave();
+      }
+    };
+    try {
+      executor.execute(task);
+    } catch(RejectedExecutionException e) {
+      task.run();
+    }
+  }
+  
+  
+  /**
+   * Mark the handler busy with one more request,
+   * unless it was closed.
+   * @return <code>true</code> if marked busy,
+   * <code>false</code> if closed.
+   */
+  private synchronized boolean enter() {
+    if(!state.compareAndSet(STATE_IDLE, STATE_BUSY)
+        && state.get() != STATE_BUSY)
+      return false;
+    inflight++;
+    return true;
+  }
+  
+  
+  /**
+   * Mark one request finished. The handler gets idle 
+   * when there is no more multiplexed invocations running,
+   * or is closed if the reading of requests has finished.
+   * @return <code>true</code> if not closed, 
+   * <code>false</code> otherwise.
+   */
+  private boolean leave() {
+    synchronized(this) {
+      if(--inflight > 0) 
+        return !isClosed();
+      if(!finishing)
+        return state.compareAndSet(STATE_BUSY, STATE_IDLE);
     }
-    // Handle the invocation request and write the 
-    // result on the channel.
-    this.write( handleInvoke(trp) );
-    // If is a persistent Http connection, try
-    // to continue the communication with the client
-    // over the same connection. Close it otherwise.
-    if(channel.isValid())
-      this.run();
-    else
-      this.close();
+    this.close();
+    return false;
   }
   
   
@@ -361,7 +665,31 @@ public class RunnableConnectionHandler implements Runnable {
    * connection is closed, <code>false</code> otherwise.
    */
   public boolean isClosed() {
-    return closed;
+    return state.get() == STATE_CLOSED;
+  }
+  
+  
+  /**
+   * Verify if this handler is processing a request.
+   * @return <code>true</code> if a request is being 
+   * processed, <code>false</code> otherwise.
+   */
+  public boolean isBusy() {
+    return state.get() == STATE_BUSY;
+  }
+  
+  
+  /**
+   * Close the connection only if it is idle, waiting for
+   * the next request. A request in progress is not affected.
+   * @return <code>true</code> if the connection was closed,
+   * <code>false</code> if it is busy or already closed.
+   */
+  public boolean closeIfIdle() {
+    if(!state.compareAndSet(STATE_IDLE, STATE_CLOSED))
+      return false;
+    release();
+    return true;
   }
   
   
@@ -395,9 +723,19 @@ public class RunnableConnectionHandler implements Runnable {
    * Close the server Http connection and finish this handler.
    */
   public void close() {
-    closed = true;
+    if(state.getAndSet(STATE_CLOSED) != STATE_CLOSED)
+      release();
+  }
+  
+  
+  /**
+   * Close the channel and notify the 
+   * <code>ConnectionManager</code>.
+   */
+  private void release() {
     try { channel.close(); }
     catch(Exception e) {}
+    if(manager != null) manager.closed(this);
   }
   
 }
@@ -39,6 +39,8 @@ public class Transport {
   
   private boolean hasContentEmbedded;
   
+  private Integer requestId;
+  
   
   /**
    * Default constructor without arguments.
@@ -82,6 +84,7 @@ public class Transport {
     Transport t = new Transport();
     t.object = object;
     t.hasContentEmbedded = hasContentEmbedded;
+    t.requestId = requestId;
     return t;
   }
 
@@ -107,6 +110,31 @@ public class Transport {
   }
 
 
+  /**
+   * Get the request ID, which correlates the request and 
+   * the response on a multiplexed channel, where responses 
+   * may be received out of order.
+   * @return The request ID or <code>0</code> if not set.
+   */
+  public int getRequestId() {
+    return (requestId != null ? requestId : 0);
+  }
+
+
+  /**
+   * Set the request ID, which correlates the request and 
+   * the response on a multiplexed channel. The ID is not 
+   * serialized if <code>0</code>, keeping compatible with 
+   * older peers.
+   * @param id The request ID.
+   * @return This modified <code>Transport</code> instance.
+   */
+  public Transport setRequestId(int id) {
+    this.requestId = (id != 0 ? id : null);
+    return this;
+  }
+
+
   /**
    * Get the embedded <code>InputStream</code>.
    * @return The embedded <code>InputStream</code>.
@@ -22,6 +22,8 @@
 package us.pserver.revok.reflect;
 
 import com.jpower.rfl.Reflector;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.List;
 import java.util.stream.Collectors;
 import static us.pserver.chk.Checker.nullarg;
@@ -239,20 +241,48 @@ public class Invoker {
       throw new MethodInvocationException("Method not found: "+ mth);
     }
     
-    Object ret = ref.invoke((mth.args().isEmpty() 
-        ? null : mth.args().toArray()));
-      
-    if(ref.hasError()) {
+    Object ret = null;
+    try {
+      ret = invoke(ref.method(), target, (mth.args().isEmpty() 
+          ? null : mth.args().toArray()));
+    }
+    catch(Exception e) {
       if(currTry < tries) 
         return invoke(mth, currTry+1);
         
       throw new MethodInvocationException(
           "Invocation error ["
-          + ref.getError().toString()+ "]", 
-          ref.getError());
+          + e.toString()+ "]", e);
     }
       
     return ret;
   }
   
+  
+  /**
+   * Invoke the method found by the <code>Reflector</code>.
+   * <code>Reflector.invoke</code> holds a lock shared by 
+   * all instances while the method runs, serializing the 
+   * concurrent invocations on the server, so the method
+   * is invoked here, outside of the lock.
+   * @param meth The method to invoke.
+   * @param obj The target object.
+   * @param args The method arguments.
+   * @return Returned value from the method invocation or <code>null</code>.
+   * @throws Exception In case of error invoking the method, 
+   * or the exception thrown by the method.
+   */
+  private static Object invoke(Method meth, Object obj, Object[] args) throws Exception {
+    meth.setAccessible(true);
+    try {
+      return meth.invoke(obj, (args == null ? new Object[0] : args));
+    }
+    catch(InvocationTargetException e) {
+      // report the exception thrown by the method itself
+      if(e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+  
 }
@@ -0,0 +1,266 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Concurrency limiter which adapts the number of concurrent
+ * method invocations to the observed invocation latency,
+ * using a gradient algorithm. A slow moving average of the
+ * latency is kept as baseline. While the recent latency stays 
+ * near the baseline, the limit grows; when the recent latency
+ * rises over it (i.e: requests are queueing on the invoked 
+ * objects), the limit shrinks proportionally:
+ * <pre>
+ *   gradient = max(0.5, min(1.0, baseline / recent))
+ *   limit = limit * gradient + sqrt(limit)
+ * </pre>
+ * Invocations over the limit wait at most <code>getMaxWait()</code>
+ * milliseconds for a free slot, and are rejected otherwise.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class AdaptiveConcurrencyLimiter {
+  
+  /**
+   * <code>DEFAULT_MAX_WAIT = 50</code><br>
+   * Default maximum wait time in milliseconds for a free slot.
+   */
+  public static final int DEFAULT_MAX_WAIT = 50;
+  
+  /**
+   * <code>SMOOTHING = 0.2</code><br>
+   * Weight of each new limit estimation.
+   */
+  public static final double SMOOTHING = 0.2;
+  
+  /**
+   * <code>RECENT_WEIGHT = 0.1</code><br>
+   * Weight of each latency sample on the recent average.
+   */
+  public static final double RECENT_WEIGHT = 0.1;
+  
+  /**
+   * <code>BASELINE_WEIGHT = 0.01</code><br>
+   * Weight of each latency sample on the baseline average.
+   */
+  public static final double BASELINE_WEIGHT = 0.01;
+  
+  
+  private final ReentrantLock lock;
+  
+  private final Condition available;
+  
+  private final int minLimit;
+  
+  private final int maxLimit;
+  
+  private int maxWait;
+  
+  private double limit;
+  
+  private int inflight;
+  
+  private double recent;
+  
+  private double baseline;
+  
+  private long rejected;
+  
+  
+  /**
+   * Constructor which receives the initial, minimum and maximum limits.
+   * @param initial The initial concurrency limit.
+   * @param min The minimum concurrency limit.
+   * @param max The maximum concurrency limit.
+   */
+  public AdaptiveConcurrencyLimiter(int initial, int min, int max) {
+    if(min < 1 || max < min)
+      throw new IllegalArgumentException(
+          "[AdaptiveConcurrencyLimiter( int, int, int )] "
+              + "Invalid limits {min="+ min+ ", max="+ max+ "}");
+    lock = new ReentrantLock();
+    available = lock.newCondition();
+    minLimit = min;
+    maxLimit = max;
+    limit = Math.max(min, Math.min(max, initial));
+    maxWait = DEFAULT_MAX_WAIT;
+    inflight = 0;
+    recent = 0;
+    baseline = 0;
+    rejected = 0;
+  }
+  
+  
+  /**
+   * Get the maximum wait time for a free slot.
+   * @return The maximum wait time in milliseconds.
+   */
+  public int getMaxWait() {
+    return maxWait;
+  }
+  
+  
+  /**
+   * Set the maximum wait time for a free slot.
+   * @param millis The maximum wait time in milliseconds,
+   * or <code>0</code> for rejecting right away.
+   * @return This modified <code>AdaptiveConcurrencyLimiter</code> instance.
+   */
+  public AdaptiveConcurrencyLimiter setMaxWait(int millis) {
+    if(millis < 0)
+      throw new IllegalArgumentException(
+          "[AdaptiveConcurrencyLimiter.setMaxWait( int )] "
+              + "Invalid millis {"+ millis+ "}");
+    lock.lock();
+    try { maxWait = millis; }
+    finally { lock.unlock(); }
+    return this;
+  }
+  
+  
+  /**
+   * Acquire a slot for one invocation, waiting at most
+   * <code>getMaxWait()</code> milliseconds if the limit 
+   * was reached. A successful acquire must be followed by
+   * a call to <code>release(long)</code>.
+   * @return <code>true</code> if the slot was acquired,
+   * <code>false</code> if the invocation was rejected.
+   */
+  public boolean acquire() {
+    lock.lock();
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+      while(inflight >= (int) limit) {
+        if(nanos <= 0) {
+          rejected++;
+          return false;
+        }
+        nanos = available.awaitNanos(nanos);
+      }
+      inflight++;
+      return true;
+    } 
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      rejected++;
+      return false;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  
+  /**
+   * Release an acquired slot, updating the 
+   * limit with the invocation latency.
+   * @param nanos The invocation latency in nanoseconds.
+   */
+  public void release(long nanos) {
+    lock.lock();
+    try {
+      inflight--;
+      update(Math.max(nanos, 1));
+      available.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  
+  /**
+   * Update the latency averages and the concurrency limit.
+   * Must be called holding the lock.
+   * @param nanos The invocation latency in nanoseconds.
+   */
+  private void update(long nanos) {
+    if(baseline == 0) {
+      recent = baseline = nanos;
+      return;
+    }
+    recent += (nanos - recent) * RECENT_WEIGHT;
+    baseline += (nanos - baseline) * BASELINE_WEIGHT;
+    // Do not grow the limit while it is not being used.
+    if(inflight + 1 < limit / 2) return;
+    double gradient = Math.max(0.5, Math.min(1.0, baseline / recent));
+    double estimate = limit * gradient + Math.sqrt(limit);
+    limit = limit * (1 - SMOOTHING) + estimate * SMOOTHING;
+    limit = Math.max(minLimit, Math.min(maxLimit, limit));
+    // Let the baseline follow a lasting latency drop.
+    if(recent < baseline) baseline = recent;
+  }
+  
+  
+  /**
+   * Get the current concurrency limit.
+   * @return The current concurrency limit.
+   */
+  public int getLimit() {
+    lock.lock();
+    try { return (int) limit; }
+    finally { lock.unlock(); }
+  }
+  
+  
+  /**
+   * Get the number of invocations in progress.
+   * @return The number of invocations in progress.
+   */
+  public int getInflight() {
+    lock.lock();
+    try { return inflight; }
+    finally { lock.unlock(); }
+  }
+  
+  
+  /**
+   * Get the number of rejected invocations.
+   * @return The number of rejected invocations.
+   */
+  public long getRejectedCount() {
+    lock.lock();
+    try { return rejected; }
+    finally { lock.unlock(); }
+  }
+  
+  
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return "AdaptiveConcurrencyLimiter{limit="+ (int) limit
+          + ", inflight="+ inflight
+          + ", rejected="+ rejected
+          + ", recent="+ String.format("%.3f", recent / 1_000_000.0)
+          + "ms, baseline="+ String.format("%.3f", baseline / 1_000_000.0)+ "ms}";
+    }
+    finally { lock.unlock(); }
+  }
+  
+}
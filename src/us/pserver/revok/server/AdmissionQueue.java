@@ -0,0 +1,213 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded admission queue in front of an <code>ExecutorService</code>.
+ * Tasks submitted and not yet started by a worker thread are 
+ * counted as pending. When the number of pending tasks reaches
+ * the queue capacity, new tasks are refused right away, instead 
+ * of waiting on an unbounded executor queue. The time each 
+ * admitted task waits in queue is measured.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class AdmissionQueue {
+  
+  private final ExecutorService exec;
+  
+  private final int capacity;
+  
+  private final AtomicInteger pending;
+  
+  private final AtomicLong admitted;
+  
+  private final AtomicLong rejected;
+  
+  private final AtomicLong started;
+  
+  private final AtomicLong totalWait;
+  
+  private final AtomicLong maxWait;
+  
+  
+  /**
+   * Constructor which receives the executor and the queue capacity.
+   * @param exec The <code>ExecutorService</code> which runs the tasks.
+   * @param capacity The maximum number of pending tasks. 
+   * A value <code>&lt;= 0</code> means an unbounded queue.
+   */
+  public AdmissionQueue(ExecutorService exec, int capacity) {
+    if(exec == null)
+      throw new IllegalArgumentException(
+          "[AdmissionQueue( ExecutorService, int )] "
+              + "Invalid ExecutorService {"+ exec+ "}");
+    this.exec = exec;
+    this.capacity = capacity;
+    pending = new AtomicInteger(0);
+    admitted = new AtomicLong(0);
+    rejected = new AtomicLong(0);
+    started = new AtomicLong(0);
+    totalWait = new AtomicLong(0);
+    maxWait = new AtomicLong(0);
+  }
+  
+  
+  /**
+   * Submit a task for execution, if the queue is not full.
+   * @param task The task to execute.
+   * @return <code>true</code> if the task was admitted,
+   * <code>false</code> if the queue is full or the 
+   * executor does not accept new tasks.
+   */
+  public boolean submit(Runnable task) {
+    if(task == null)
+      throw new IllegalArgumentException(
+          "[AdmissionQueue.submit( Runnable )] "
+              + "Invalid Runnable {"+ task+ "}");
+    int count = pending.incrementAndGet();
+    if(capacity > 0 && count > capacity) {
+      pending.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+    long queued = System.nanoTime();
+    try {
+      exec.execute(()->{
+        pending.decrementAndGet();
+        recordWait(System.nanoTime() - queued);
+        task.run();
+      });
+      admitted.incrementAndGet();
+      return true;
+    } 
+    catch(RejectedExecutionException e) {
+      pending.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+  }
+  
+  
+  /**
+   * Record the queue wait time of a started task.
+   * @param nanos Wait time in nanoseconds.
+   */
+  private void recordWait(long nanos) {
+    started.incrementAndGet();
+    totalWait.addAndGet(nanos);
+    long max = maxWait.get();
+    while(nanos > max && !maxWait.compareAndSet(max, nanos)) {
+      max = maxWait.get();
+    }
+  }
+  
+  
+  /**
+   * Get the queue capacity.
+   * @return The maximum number of pending tasks,
+   * or <code>0</code> for an unbounded queue.
+   */
+  public int capacity() {
+    return Math.max(capacity, 0);
+  }
+  
+  
+  /**
+   * Get the number of tasks waiting for a worker thread.
+   * @return The number of pending tasks.
+   */
+  public int pending() {
+    return pending.get();
+  }
+  
+  
+  /**
+   * Get the number of admitted tasks.
+   * @return The number of admitted tasks.
+   */
+  public long admittedCount() {
+    return admitted.get();
+  }
+  
+  
+  /**
+   * Get the number of refused tasks.
+   * @return The number of refused tasks.
+   */
+  public long rejectedCount() {
+    return rejected.get();
+  }
+  
+  
+  /**
+   * Get the average time tasks waited in queue.
+   * @return The average queue wait time in milliseconds.
+   */
+  public double averageWaitMillis() {
+    long count = started.get();
+    if(count == 0) return 0;
+    return totalWait.get() / (double) count / 1_000_000.0;
+  }
+  
+  
+  /**
+   * Get the maximum time a task waited in queue.
+   * @return The maximum queue wait time in milliseconds.
+   */
+  public double maxWaitMillis() {
+    return maxWait.get() / 1_000_000.0;
+  }
+  
+  
+  /**
+   * Reset the admission and queue wait statistics.
+   * @return This <code>AdmissionQueue</code> instance.
+   */
+  public AdmissionQueue resetStats() {
+    admitted.set(0);
+    rejected.set(0);
+    started.set(0);
+    totalWait.set(0);
+    maxWait.set(0);
+    return this;
+  }
+  
+  
+  @Override
+  public String toString() {
+    return "AdmissionQueue{capacity="+ capacity()
+        + ", pending="+ pending()
+        + ", admitted="+ admittedCount()
+        + ", rejected="+ rejectedCount()
+        + ", avgWait="+ String.format("%.3f", averageWaitMillis())
+        + "ms, maxWait="+ String.format("%.3f", maxWaitMillis())+ "ms}";
+  }
+  
+}
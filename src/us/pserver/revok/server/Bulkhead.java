@@ -0,0 +1,326 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Concurrency cap for the method invocations of one 
+ * <code>ObjectContainer</code> namespace. At most 
+ * <code>getMaxConcurrent()</code> invocations run at the same
+ * time; up to <code>getMaxQueue()</code> more wait at most 
+ * <code>getMaxWait()</code> milliseconds for a free slot, and
+ * any other is rejected right away. So a slow namespace can 
+ * saturate only its own slots, not the whole worker pool.
+ * Waiting invocations hold their worker threads, so by default
+ * nothing waits and a full namespace rejects at once.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class Bulkhead {
+  
+  /**
+   * <code>DEFAULT_MAX_WAIT = 0</code><br>
+   * Default maximum wait time in milliseconds for a free slot.
+   */
+  public static final int DEFAULT_MAX_WAIT = 0;
+  
+  /**
+   * <code>DEFAULT_MAX_QUEUE = 0</code><br>
+   * Default maximum invocations waiting for a free slot.
+   */
+  public static final int DEFAULT_MAX_QUEUE = 0;
+  
+  
+  private final String name;
+  
+  private final int maxConcurrent;
+  
+  private final int maxQueue;
+  
+  private final ReentrantLock lock;
+  
+  private final Condition available;
+  
+  private int maxWait;
+  
+  private int active;
+  
+  private int waiting;
+  
+  private long admitted;
+  
+  private long rejected;
+  
+  private long totalWait;
+  
+  private long maxWaited;
+  
+  
+  /**
+   * Constructor which receives the namespace name and the 
+   * concurrency cap, with <code>DEFAULT_MAX_QUEUE</code>.
+   * @param name The namespace name.
+   * @param maxConcurrent Maximum concurrent invocations.
+   */
+  public Bulkhead(String name, int maxConcurrent) {
+    this(name, maxConcurrent, DEFAULT_MAX_QUEUE);
+  }
+  
+  
+  /**
+   * Constructor which receives the namespace name,
+   * the concurrency cap and the waiting queue limit.
+   * @param name The namespace name.
+   * @param maxConcurrent Maximum concurrent invocations.
+   * @param maxQueue Maximum invocations waiting for a slot.
+   */
+  public Bulkhead(String name, int maxConcurrent, int maxQueue) {
+    if(name == null || name.trim().isEmpty())
+      throw new IllegalArgumentException(
+          "[Bulkhead( String, int, int )] "
+              + "Invalid name {"+ name+ "}");
+    if(maxConcurrent < 1)
+      throw new IllegalArgumentException(
+          "[Bulkhead( String, int, int )] "
+              + "Invalid maxConcurrent {"+ maxConcurrent+ "}");
+    if(maxQueue < 0)
+      throw new IllegalArgumentException(
+          "[Bulkhead( String, int, int )] "
+              + "Invalid maxQueue {"+ maxQueue+ "}");
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueue = maxQueue;
+    lock = new ReentrantLock();
+    available = lock.newCondition();
+    maxWait = DEFAULT_MAX_WAIT;
+  }
+  
+  
+  /**
+   * Get the namespace name.
+   * @return The namespace name.
+   */
+  public String getName() {
+    return name;
+  }
+  
+  
+  /**
+   * Get the maximum concurrent invocations.
+   * @return The maximum concurrent invocations.
+   */
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+  
+  
+  /**
+   * Get the maximum invocations waiting for a slot.
+   * @return The maximum invocations waiting for a slot.
+   */
+  public int getMaxQueue() {
+    return maxQueue;
+  }
+  
+  
+  /**
+   * Get the maximum wait time for a free slot.
+   * @return The maximum wait time in milliseconds.
+   */
+  public int getMaxWait() {
+    return maxWait;
+  }
+  
+  
+  /**
+   * Set the maximum wait time for a free slot. A waiting 
+   * invocation holds its worker thread for that time.
+   * @param millis The maximum wait time in milliseconds.
+   * @return This modified <code>Bulkhead</code> instance.
+   */
+  public Bulkhead setMaxWait(int millis) {
+    if(millis < 0)
+      throw new IllegalArgumentException(
+          "[Bulkhead.setMaxWait( int )] "
+              + "Invalid millis {"+ millis+ "}");
+    lock.lock();
+    try { maxWait = millis; }
+    finally { lock.unlock(); }
+    return this;
+  }
+  
+  
+  /**
+   * Acquire a slot for one invocation. A successful acquire
+   * must be followed by a call to <code>release()</code>.
+   * @return <code>true</code> if the slot was acquired,
+   * <code>false</code> if the invocation was rejected.
+   */
+  public boolean acquire() {
+    lock.lock();
+    try {
+      if(active < maxConcurrent) {
+        active++;
+        admitted++;
+        return true;
+      }
+      if(waiting >= maxQueue || maxWait == 0) {
+        rejected++;
+        return false;
+      }
+      long start = System.nanoTime();
+      long nanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+      waiting++;
+      try {
+        while(active >= maxConcurrent && nanos > 0) {
+          nanos = available.awaitNanos(nanos);
+        }
+      } 
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      finally {
+        waiting--;
+      }
+      if(active >= maxConcurrent 
+          || Thread.currentThread().isInterrupted()) {
+        rejected++;
+        return false;
+      }
+      active++;
+      admitted++;
+      long waited = System.nanoTime() - start;
+      totalWait += waited;
+      maxWaited = Math.max(maxWaited, waited);
+      return true;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  
+  /**
+   * Release an acquired slot.
+   */
+  public void release() {
+    lock.lock();
+    try {
+      active--;
+      available.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  
+  /**
+   * Get the number of invocations in progress.
+   * @return The number of invocations in progress.
+   */
+  public int getActive() {
+    lock.lock();
+    try { return active; }
+    finally { lock.unlock(); }
+  }
+  
+  
+  /**
+   * Get the number of invocations waiting for a slot.
+   * @return The number of invocations waiting for a slot.
+   */
+  public int getWaiting() {
+    lock.lock();
+    try { return waiting; }
+    finally { lock.unlock(); }
+  }
+  
+  
+  /**
+   * Get the number of admitted invocations.
+   * @return The number of admitted invocations.
+   */
+  public long getAdmittedCount() {
+    lock.lock();
+    try { return admitted; }
+    finally { lock.unlock(); }
+  }
+  
+  
+  /**
+   * Get the number of rejected invocations.
+   * @return The number of rejected invocations.
+   */
+  public long getRejectedCount() {
+    lock.lock();
+    try { return rejected; }
+    finally { lock.unlock(); }
+  }
+  
+  
+  /**
+   * Get the average time admitted invocations waited for a slot.
+   * @return The average wait time in milliseconds.
+   */
+  public double averageWaitMillis() {
+    lock.lock();
+    try { 
+      if(admitted == 0) return 0;
+      return totalWait / (double) admitted / 1_000_000.0; 
+    }
+    finally { lock.unlock(); }
+  }
+  
+  
+  /**
+   * Get the maximum time an invocation waited for a slot.
+   * @return The maximum wait time in milliseconds.
+   */
+  public double maxWaitMillis() {
+    lock.lock();
+    try { return maxWaited / 1_000_000.0; }
+    finally { lock.unlock(); }
+  }
+  
+  
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return "Bulkhead{name="+ name
+          + ", maxConcurrent="+ maxConcurrent
+          + ", maxQueue="+ maxQueue
+          + ", active="+ active
+          + ", waiting="+ waiting
+          + ", admitted="+ admitted
+          + ", rejected="+ rejected+ "}";
+    }
+    finally { lock.unlock(); }
+  }
+  
+}
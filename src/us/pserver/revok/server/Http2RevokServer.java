@@ -0,0 +1,401 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import us.pserver.log.Log;
+import us.pserver.log.LogFactory;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.channel.BufferedResponseChannel;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.http.Http2Connection;
+import us.pserver.revok.http.HttpConsts;
+import us.pserver.revok.http.NioHttpRequestDecoder;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.ObjectSerializer;
+import us.pserver.revok.protocol.RunnableConnectionHandler;
+import us.pserver.revok.protocol.Transport;
+
+
+/**
+ * HTTP/2 cleartext (h2c) object server for remote method 
+ * invocation. Each connection is read by its own thread 
+ * (see <code>Http2Connection</code>), which hands the complete 
+ * requests to the worker threads (<code>getAvailableThreads()</code>). 
+ * So the concurrent requests of a connection are invoked in 
+ * parallel and answered as they finish, without a slow call 
+ * blocking the others. Both the prior knowledge and the 
+ * HTTP/1.1 upgrade (<code>Upgrade: h2c</code>) connections 
+ * are accepted. The content format is the same of 
+ * <code>RevokServer</code>, compatible with the 
+ * <code>Http2RequestChannel</code> clients.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class Http2RevokServer extends AbstractServer {
+  
+  /**
+   * <code>
+   *  SHUTDOWN_TIMEOUT = 10000
+   * </code><br>
+   * Time in milliseconds to wait for requests 
+   * in progress when the server is stopped.
+   */
+  public static final int SHUTDOWN_TIMEOUT = 10000;
+  
+  
+  private transient HttpConnector con;
+  
+  private transient List<Http2Connection> conns;
+  
+  private int maxContent;
+  
+  private ExecutorService exec;
+  
+  private ObjectSerializer serial;
+  
+  private Log log;
+  
+  
+  /**
+   * Default constructor receives the <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked.
+   * @param cont The <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked.
+   */
+  public Http2RevokServer(ObjectContainer cont) {
+    super(cont);
+    cont.put(ObjectContainer.NAMESPACE_GLOBAL, RevokServer.SERVER_KEY, this);
+    log = LogFactory.getSimpleLog(this.getClass());
+    con = new HttpConnector();
+    conns = new CopyOnWriteArrayList<>();
+    maxContent = NioHttpRequestDecoder.DEFAULT_MAX_CONTENT;
+    serial = new JsonSerializer();
+  }
+  
+  
+  /**
+   * Constructor which receives the <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked and the
+   * network information object <code>HttpConnector</code>.
+   * @param cont The <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked.
+   * @param hcon The network information object <code>HttpConnector</code>.
+   */
+  public Http2RevokServer(ObjectContainer cont, HttpConnector hcon) {
+    this(cont);
+    if(hcon == null)
+      throw new IllegalArgumentException(
+          "[Http2RevokServer( ObjectContainer, HttpConnector )] "
+              + "Invalid HttpConnector: "+ hcon);
+    this.con = hcon;
+  }
+  
+  
+  /**
+   * Constructor which receives the <code>ObjectContainer</code>,
+   * the network information <code>HttpConnector</code> and
+   * the default object serializer for encoding transmitted objects.
+   * @param cont The <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked.
+   * @param hcon The network information object <code>HttpConnector</code>.
+   * @param serial The object serializer.
+   */
+  public Http2RevokServer(ObjectContainer cont, HttpConnector hcon, ObjectSerializer serial) {
+    this(cont, hcon);
+    if(serial == null)
+      serial = new JsonSerializer();
+    this.serial = serial;
+  }
+  
+  
+  /**
+   * Get the <code>ObjectSerializer</code> for objects serialization.
+   * @return <code>ObjectSerializer</code> for objects serialization.
+   */
+  public ObjectSerializer getObjectSerializer() {
+    return serial;
+  }
+  
+  
+  /**
+   * Set the <code>ObjectSerializer</code> for objects serialization.
+   * @param serializer <code>ObjectSerializer</code> for objects serialization.
+   * @return This modified <code>Http2RevokServer</code> instance.
+   */
+  public Http2RevokServer setObjectSerializer(ObjectSerializer serializer) {
+    if(serializer != null) {
+      serial = serializer;
+    }
+    return this;
+  }
+  
+  
+  /**
+   * Get the network information object <code>HttpConnector</code>.
+   * @return The network information object <code>HttpConnector</code>.
+   */
+  public HttpConnector getConnector() {
+    return con;
+  }
+  
+  
+  /**
+   * Set the network information object <code>HttpConnector</code>.
+   * @param hcon The network information object <code>HttpConnector</code>.
+   * @return This modified <code>Http2RevokServer</code> instance.
+   */
+  public Http2RevokServer setConnector(HttpConnector hcon) {
+    if(hcon != null) this.con = hcon;
+    return this;
+  }
+  
+  
+  /**
+   * Get the maximum request and response content size.
+   * @return The maximum content size in bytes.
+   */
+  public int getMaxContentSize() {
+    return maxContent;
+  }
+  
+  
+  /**
+   * Set the maximum request and response content size. 
+   * Bigger requests have the stream canceled, and bigger
+   * responses are replaced by a failed <code>OpResult</code>.
+   * @param size The maximum request content size in bytes.
+   * @return This modified <code>Http2RevokServer</code> instance.
+   */
+  public Http2RevokServer setMaxContentSize(int size) {
+    if(size < 1)
+      throw new IllegalArgumentException(
+          "[Http2RevokServer.setMaxContentSize( int )] "
+              + "Invalid size {"+ size+ "}");
+    maxContent = size;
+    return this;
+  }
+  
+  
+  /**
+   * Get the log system.
+   * @return Log
+   */
+  public Log getLog() {
+    return log;
+  }
+  
+  
+  /**
+   * Set the log system.
+   * @param log Log
+   * @return This modified <code>Http2RevokServer</code> instance.
+   */
+  public Http2RevokServer setLog(Log log) {
+    if(log != null)
+      this.log = log;
+    return this;
+  }
+  
+  
+  /**
+   * Validates and start the necessary components for server execution.
+   */
+  private void preStart() {
+    if(con == null)
+      throw new IllegalStateException("[Http2RevokServer.preStart()] "
+          + "Invalid HttpConnector ["+ con + "]");
+    if(container == null)
+      throw new IllegalArgumentException("[Http2RevokServer.preStart()] "
+          + "Invalid ObjectContainer ["+ container+ "]");
+    if(con.isTlsEnabled())
+      throw new IllegalStateException("[Http2RevokServer.preStart()] "
+          + "TLS is not supported by h2c, use RevokServer");
+    log.info("Starting Http2RevokServer...");
+    setRunning(true);
+    exec = Executors.newFixedThreadPool(availableThreads);
+  }
+  
+  
+  @Override
+  public void start() {
+    preStart();
+    run();
+  }
+  
+  
+  /**
+   * Starts the server execution in a new <code>Thread</code>.
+   * @return This modified <code>Http2RevokServer</code> instance.
+   */
+  public Http2RevokServer startNewThread() {
+    preStart();
+    new Thread(this, "Http2RevokServer").start();
+    return this;
+  }
+  
+  
+  /**
+   * Not invoke directly. Executes server routines.
+   */
+  @Override
+  public void run() {
+    try(ServerSocket server = con.connectServerSocket()) {
+      server.setSoTimeout(RevokServer.SOCK_SO_TIMEOUT);
+      log.info("Listening on: "+ con.toString());
+      log.info("Http2RevokServer started!\n");
+      
+      while(isRunning()) {
+        Socket sock;
+        try {
+          sock = con.acceptSocket(server.accept());
+        } catch(SocketTimeoutException e) {
+          conns.removeIf(c -> !c.isOpen() && c.getActiveStreams() == 0);
+          continue;
+        }
+        try {
+          Http2Connection c = new Http2Connection(sock, false)
+              .setMaxContentSize(maxContent);
+          c.setRequestHandler(s -> dispatch(c, s)).start();
+          conns.add(c);
+        } catch(IOException e) {
+          log.warn(e, false);
+          sock.close();
+        }
+      }//while
+    } 
+    catch(IOException e) {
+      log.error(
+          new IOException("Error running Http2RevokServer", e), true);
+      if(log.outputs().isEmpty())
+        throw new RuntimeException("Error running Http2RevokServer", e);
+    }
+    finally {
+      // Let the requests in progress be answered
+      log.info("Stopping ExecutorService...");
+      exec.shutdown();
+      try { exec.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS); }
+      catch(InterruptedException e) {}
+      exec.shutdownNow();
+      conns.forEach(Http2Connection::close);
+      conns.clear();
+      log.info("Http2RevokServer Shutdown!");
+    }
+  }
+  
+  
+  /**
+   * Hand the complete request to a worker thread.
+   * Called by the connection reader thread.
+   * @param c The request connection.
+   * @param s The request stream.
+   */
+  private void dispatch(Http2Connection c, Http2Connection.Stream s) {
+    try {
+      exec.execute(() -> respond(c, s, process(s)));
+    } catch(RejectedExecutionException e) {
+      respond(c, s, null);
+    }
+  }
+  
+  
+  /**
+   * Send the response on the request stream.
+   * @param c The request connection.
+   * @param s The request stream.
+   * @param channel The response channel, or <code>null</code>
+   * to answer with HTTP 400.
+   */
+  private void respond(Http2Connection c, Http2Connection.Stream s, BufferedResponseChannel channel) {
+    Map<String,String> headers = new LinkedHashMap<>();
+    byte[] content = null;
+    if(channel == null || channel.getResponseContent() == null) {
+      headers.put(":status", String.valueOf(HttpConsts.STATUS_400));
+    }
+    else {
+      headers.put(":status", String.valueOf(HttpConsts.STATUS_200));
+      if(channel.getResponseContentType() != null)
+        headers.put("content-type", channel.getResponseContentType());
+      headers.put(lower(HttpConsts.HD_CONT_ENCODING), 
+          channel.getResponseContentEncoding());
+      content = channel.getResponseContent();
+    }
+    try {
+      c.respond(s, headers, content);
+    } catch(IOException e) {
+      log.warn(e, false);
+    }
+  }
+  
+  
+  /**
+   * Handle the request on a worker thread: decode the 
+   * content, invoke the method and encode the response.
+   * @param s The request stream.
+   * @return The response channel, or <code>null</code>
+   * if the request is invalid.
+   */
+  private BufferedResponseChannel process(Http2Connection.Stream s) {
+    if(!HttpConsts.POST.equalsIgnoreCase(s.getHeader(":method")))
+      return null;
+    try {
+      BufferedResponseChannel channel = 
+          new BufferedResponseChannel(s.getContent(), serial)
+              .setRequestEncoding(
+                  s.getHeader(lower(HttpConsts.HD_CONT_ENCODING)), 
+                  s.getHeader(lower(HttpConsts.HD_ACCEPT_ENCODING)))
+              .setMaxResponseSize(maxContent);
+      RunnableConnectionHandler handler = 
+          new RunnableConnectionHandler(channel, container);
+      Transport trp = handler.read();
+      if(trp == null) return null;
+      handler.write(handler.handleInvoke(trp));
+      return channel;
+    } 
+    catch(RuntimeException e) {
+      log.warn(e, false);
+      return null;
+    }
+  }
+  
+  
+  /**
+   * HTTP/2 header names are lower case.
+   */
+  private static String lower(String name) {
+    return name.toLowerCase(Locale.ENGLISH);
+  }
+  
+}
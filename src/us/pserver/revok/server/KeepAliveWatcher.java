@@ -0,0 +1,344 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * Watches idle persistent connections with a NIO 
+ * <code>Selector</code>, so no thread stays blocked 
+ * waiting for the next request. When the client sends
+ * new bytes, the connection is switched back to blocking 
+ * mode and the resume task (i.e: re-dispatch the handler
+ * to the worker pool) is executed.
+ * It also performs lingering close of connections, 
+ * discarding client data until the peer closes it, so an
+ * error response already sent is not lost with a TCP reset.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class KeepAliveWatcher implements Runnable, Closeable {
+  
+  /**
+   * <code>LINGER_CHECK_INTERVAL = 500</code><br>
+   * Interval in milliseconds for checking expired lingering connections.
+   */
+  public static final int LINGER_CHECK_INTERVAL = 500;
+  
+  
+  private final Selector selector;
+  
+  private final ByteBuffer discard;
+  
+  private final List<Parked> pending;
+  
+  private volatile boolean closed;
+  
+  
+  /**
+   * Default constructor without arguments.
+   * @throws IOException In case of error opening the selector.
+   */
+  public KeepAliveWatcher() throws IOException {
+    selector = Selector.open();
+    pending = new LinkedList<>();
+    discard = ByteBuffer.allocate(1024);
+    closed = false;
+  }
+  
+  
+  /**
+   * Park an idle connection until it becomes readable.
+   * The channel must be in blocking mode and not be used
+   * by any other thread until the resume task is executed.
+   * @param sc The idle connection <code>SocketChannel</code>.
+   * @param resume Task executed when the connection 
+   * becomes readable, with the channel in blocking mode.
+   * @return <code>true</code> if the connection was parked,
+   * <code>false</code> if this watcher is closed.
+   */
+  public boolean park(SocketChannel sc, Runnable resume) {
+    if(sc == null)
+      throw new IllegalArgumentException(
+          "[KeepAliveWatcher.park( SocketChannel, Runnable )] "
+              + "Invalid SocketChannel {"+ sc+ "}");
+    if(resume == null)
+      throw new IllegalArgumentException(
+          "[KeepAliveWatcher.park( SocketChannel, Runnable )] "
+              + "Invalid Runnable {"+ resume+ "}");
+    return enqueue(new Parked(sc, resume, 0));
+  }
+  
+  
+  /**
+   * Close the connection gracefully, discarding any received 
+   * data until the client closes it or the timeout expires.
+   * The connection output should already be shut down.
+   * @param sc The <code>SocketChannel</code> to close.
+   * @param timeout The maximum lingering time in milliseconds.
+   * @return <code>true</code> if the connection will be closed
+   * by this watcher, <code>false</code> if this watcher is closed.
+   */
+  public boolean linger(SocketChannel sc, int timeout) {
+    if(sc == null)
+      throw new IllegalArgumentException(
+          "[KeepAliveWatcher.linger( SocketChannel, int )] "
+              + "Invalid SocketChannel {"+ sc+ "}");
+    return enqueue(new Parked(sc, null, 
+        System.currentTimeMillis() + Math.max(timeout, 1)));
+  }
+  
+  
+  /**
+   * Add a connection to the pending registration list.
+   * @param p The connection to register.
+   * @return <code>true</code> if added, 
+   * <code>false</code> if this watcher is closed.
+   */
+  private boolean enqueue(Parked p) {
+    synchronized(pending) {
+      if(closed) return false;
+      pending.add(p);
+    }
+    selector.wakeup();
+    return true;
+  }
+  
+  
+  /**
+   * Get the number of parked connections.
+   * @return The number of parked connections.
+   */
+  public int parkedCount() {
+    int count;
+    synchronized(pending) {
+      count = pending.size();
+    }
+    try { return count + selector.keys().size(); }
+    catch(Exception e) { return count; }
+  }
+  
+  
+  /**
+   * Verifies if this watcher is closed.
+   * @return <code>true</code> if this watcher is closed,
+   * <code>false</code> otherwise.
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+  
+  
+  /**
+   * Register the pending parked connections on the selector.
+   * Must be called only by the watching thread.
+   */
+  private void registerPending() {
+    List<Parked> ps;
+    synchronized(pending) {
+      if(pending.isEmpty()) return;
+      ps = new LinkedList<>(pending);
+      pending.clear();
+    }
+    for(Parked p : ps) {
+      try {
+        p.channel.configureBlocking(false);
+        p.channel.register(selector, SelectionKey.OP_READ, p);
+      } catch(IOException e) {
+        closeChannel(p.channel);
+      }
+    }
+  }
+  
+  
+  /**
+   * Collect the readable connections, cancelling
+   * their registration on the selector.
+   * @return The list of readable parked connections.
+   * @throws IOException In case of error on the selector.
+   */
+  private List<Parked> collectReady() throws IOException {
+    List<Parked> ready = new LinkedList<>();
+    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+    while(it.hasNext()) {
+      SelectionKey key = it.next();
+      it.remove();
+      Parked p = (Parked) key.attachment();
+      if(p.isLingering()) {
+        drain(key, p);
+        continue;
+      }
+      key.cancel();
+      ready.add(p);
+    }
+    // A channel can not be switched to blocking 
+    // mode while registered. Flush the cancelled keys.
+    if(!ready.isEmpty()) selector.selectNow();
+    return ready;
+  }
+  
+  
+  /**
+   * Discard the available data of a lingering connection,
+   * closing it on end of stream.
+   * @param key The connection selection key.
+   * @param p The lingering connection.
+   */
+  private void drain(SelectionKey key, Parked p) {
+    try {
+      int read;
+      do {
+        discard.clear();
+        read = p.channel.read(discard);
+      } while(read > 0);
+      if(read < 0) {
+        key.cancel();
+        closeChannel(p.channel);
+      }
+    } catch(IOException e) {
+      key.cancel();
+      closeChannel(p.channel);
+    }
+  }
+  
+  
+  /**
+   * Close the lingering connections with expired timeout.
+   */
+  private void expireLingering() {
+    long now = System.currentTimeMillis();
+    for(SelectionKey key : selector.keys()) {
+      Parked p = (Parked) key.attachment();
+      if(key.isValid() && p.isLingering() && p.deadline <= now) {
+        key.cancel();
+        closeChannel(p.channel);
+      }
+    }
+  }
+  
+  
+  /**
+   * Switch the channel back to blocking mode 
+   * and execute the resume task.
+   * @param p The readable parked connection.
+   */
+  private void resume(Parked p) {
+    try {
+      p.channel.configureBlocking(true);
+      p.resume.run();
+    } catch(Exception e) {
+      closeChannel(p.channel);
+    }
+  }
+  
+  
+  /**
+   * Close the channel ignoring errors.
+   * @param sc The channel to close.
+   */
+  private void closeChannel(SocketChannel sc) {
+    try { sc.close(); }
+    catch(IOException e) {}
+  }
+  
+  
+  /**
+   * Not invoke directly. Executes the watching loop, until closed.
+   */
+  @Override
+  public void run() {
+    try {
+      while(!closed) {
+        selector.select(LINGER_CHECK_INTERVAL);
+        if(closed) break;
+        registerPending();
+        for(Parked p : collectReady()) {
+          resume(p);
+        }
+        expireLingering();
+      }
+    } 
+    catch(IOException e) {
+      closed = true;
+    }
+    finally {
+      // Close all connections still parked.
+      for(SelectionKey key : selector.keys()) {
+        closeChannel((SocketChannel) key.channel());
+      }
+      synchronized(pending) {
+        closed = true;
+        pending.forEach(p->closeChannel(p.channel));
+        pending.clear();
+      }
+      try { selector.close(); }
+      catch(IOException e) {}
+    }
+  }
+  
+  
+  /**
+   * Stop watching and close all parked connections.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+  }
+  
+  
+  
+  /**
+   * A parked connection and its resume task, 
+   * or a lingering connection and its deadline.
+   */
+  private static class Parked {
+    
+    final SocketChannel channel;
+    
+    final Runnable resume;
+    
+    final long deadline;
+    
+    Parked(SocketChannel sc, Runnable r, long deadline) {
+      channel = sc;
+      resume = r;
+      this.deadline = deadline;
+    }
+    
+    boolean isLingering() {
+      return resume == null;
+    }
+    
+  }
+  
+}
@@ -0,0 +1,668 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import us.pserver.log.Log;
+import us.pserver.log.LogFactory;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.channel.BufferedResponseChannel;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.http.HttpConsts;
+import us.pserver.revok.http.NioHttpRequest;
+import us.pserver.revok.http.NioHttpRequestDecoder;
+import us.pserver.revok.http.SessionCipher;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.ObjectSerializer;
+import us.pserver.revok.protocol.RunnableConnectionHandler;
+import us.pserver.revok.protocol.Transport;
+
+
+/**
+ * Non-blocking network HTTP object server for remote method 
+ * invocation. Connections are accepted and served by a few
+ * event loop threads (<code>getIOThreads()</code>), which 
+ * decode the HTTP requests and write the responses without
+ * blocking. Only the content decoding, the method invocation 
+ * and the response encoding are done by the worker threads
+ * (<code>getAvailableThreads()</code>). So idle persistent 
+ * connections do not hold any thread. The content format is
+ * the same of <code>RevokServer</code>, compatible with the 
+ * <code>RemoteObject</code> clients.
+ * The responses are encoded in memory by the worker threads,
+ * and written by the event loops with the content in a single 
+ * buffer, so the response content, including any embedded 
+ * <code>InputStream</code>, is limited to 
+ * <code>getMaxContentSize()</code> bytes. Bigger responses 
+ * are answered with a failed <code>OpResult</code>.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class NioRevokServer extends AbstractServer {
+  
+  /**
+   * <code>
+   *  DEFAULT_IO_THREADS = 2
+   * </code><br>
+   * Default number of event loop threads.
+   */
+  public static final int DEFAULT_IO_THREADS = 2;
+  
+  /**
+   * <code>
+   *  IO_BUFFER_SIZE = 16*1024
+   * </code><br>
+   * Size of the reading buffer of each event loop thread.
+   */
+  public static final int IO_BUFFER_SIZE = 16*1024;
+  
+  /**
+   * <code>
+   *  SHUTDOWN_TIMEOUT = 10000
+   * </code><br>
+   * Time in milliseconds to wait for requests 
+   * in progress when the server is stopped.
+   */
+  public static final int SHUTDOWN_TIMEOUT = 10000;
+  
+  
+  private transient HttpConnector con;
+  
+  private transient volatile Selector selector;
+  
+  private transient List<Reactor> reactors;
+  
+  private int ioThreads;
+  
+  private int maxContent;
+  
+  private ExecutorService exec;
+  
+  private ObjectSerializer serial;
+  
+  private Log log;
+  
+  
+  /**
+   * Default constructor receives the <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked.
+   * @param cont The <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked.
+   */
+  public NioRevokServer(ObjectContainer cont) {
+    super(cont);
+    log = LogFactory.getSimpleLog(this.getClass());
+    con = new HttpConnector();
+    reactors = new CopyOnWriteArrayList<>();
+    ioThreads = DEFAULT_IO_THREADS;
+    maxContent = NioHttpRequestDecoder.DEFAULT_MAX_CONTENT;
+    serial = new JsonSerializer();
+    selector = null;
+  }
+  
+  
+  /**
+   * Constructor which receives the <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked and the
+   * network information object <code>HttpConnector</code>.
+   * @param cont The <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked.
+   * @param hcon The network information object <code>HttpConnector</code>.
+   */
+  public NioRevokServer(ObjectContainer cont, HttpConnector hcon) {
+    this(cont);
+    if(hcon == null)
+      throw new IllegalArgumentException(
+          "[NioRevokServer( ObjectContainer, HttpConnector )] "
+              + "Invalid HttpConnector: "+ hcon);
+    this.con = hcon;
+  }
+  
+  
+  /**
+   * Constructor which receives the <code>ObjectContainer</code>,
+   * the network information <code>HttpConnector</code> and
+   * the default object serializer for encoding transmitted objects.
+   * @param cont The <code>ObjectContainer</code>
+   * with the objects whose methods will be invoked.
+   * @param hcon The network information object <code>HttpConnector</code>.
+   * @param serial The object serializer.
+   */
+  public NioRevokServer(ObjectContainer cont, HttpConnector hcon, ObjectSerializer serial) {
+    this(cont, hcon);
+    if(serial == null)
+      serial = new JsonSerializer();
+    this.serial = serial;
+  }
+  
+  
+  /**
+   * Get the <code>ObjectSerializer</code> for objects serialization.
+   * @return <code>ObjectSerializer</code> for objects serialization.
+   */
+  public ObjectSerializer getObjectSerializer() {
+    return serial;
+  }
+  
+  
+  /**
+   * Set the <code>ObjectSerializer</code> for objects serialization.
+   * @param serializer <code>ObjectSerializer</code> for objects serialization.
+   * @return This modified <code>NioRevokServer</code> instance.
+   */
+  public NioRevokServer setObjectSerializer(ObjectSerializer serializer) {
+    if(serializer != null) {
+      serial = serializer;
+    }
+    return this;
+  }
+  
+  
+  /**
+   * Get the network information object <code>HttpConnector</code>.
+   * @return The network information object <code>HttpConnector</code>.
+   */
+  public HttpConnector getConnector() {
+    return con;
+  }
+  
+  
+  /**
+   * Set the network information object <code>HttpConnector</code>.
+   * @param hcon The network information object <code>HttpConnector</code>.
+   * @return This modified <code>NioRevokServer</code> instance.
+   */
+  public NioRevokServer setConnector(HttpConnector hcon) {
+    if(hcon != null) this.con = hcon;
+    return this;
+  }
+  
+  
+  /**
+   * Get the number of event loop threads.
+   * @return The number of event loop threads.
+   */
+  public int getIOThreads() {
+    return ioThreads;
+  }
+  
+  
+  /**
+   * Set the number of event loop threads.
+   * @param threads The number of event loop threads.
+   * @return This modified <code>NioRevokServer</code> instance.
+   */
+  public NioRevokServer setIOThreads(int threads) {
+    if(threads < 1)
+      throw new IllegalArgumentException(
+          "[NioRevokServer.setIOThreads( int )] "
+              + "Invalid threads {"+ threads+ "}");
+    ioThreads = threads;
+    return this;
+  }
+  
+  
+  /**
+   * Get the maximum request and response content size.
+   * @return The maximum content size in bytes.
+   */
+  public int getMaxContentSize() {
+    return maxContent;
+  }
+  
+  
+  /**
+   * Set the maximum request and response content size. Bigger 
+   * requests are answered with HTTP 400 and closed, and bigger
+   * responses are replaced by a failed <code>OpResult</code>.
+   * @param size The maximum content size in bytes.
+   * @return This modified <code>NioRevokServer</code> instance.
+   */
+  public NioRevokServer setMaxContentSize(int size) {
+    if(size < 1)
+      throw new IllegalArgumentException(
+          "[NioRevokServer.setMaxContentSize( int )] "
+              + "Invalid size {"+ size+ "}");
+    maxContent = size;
+    return this;
+  }
+  
+  
+  /**
+   * Get the log system.
+   * @return Log
+   */
+  public Log getLog() {
+    return log;
+  }
+  
+  
+  /**
+   * Set the log system.
+   * @param log Log
+   * @return This modified <code>NioRevokServer</code> instance.
+   */
+  public NioRevokServer setLog(Log log) {
+    if(log != null)
+      this.log = log;
+    return this;
+  }
+  
+  
+  /**
+   * Validates and start the necessary components for server execution.
+   */
+  private void preStart() {
+    if(con == null)
+      throw new IllegalStateException("[NioRevokServer.preStart()] "
+          + "Invalid HttpConnector ["+ con + "]");
+    if(container == null)
+      throw new IllegalArgumentException("[NioRevokServer.preStart()] "
+          + "Invalid ObjectContainer ["+ container+ "]");
+    if(con.isTlsEnabled())
+      throw new IllegalStateException("[NioRevokServer.preStart()] "
+          + "TLS is not supported by NioRevokServer, use RevokServer");
+    // registered on start, not leaking this from the constructor
+    container.put(ObjectContainer.NAMESPACE_GLOBAL, RevokServer.SERVER_KEY, this);
+    log.info("Starting NioRevokServer...");
+    setRunning(true);
+    exec = Executors.newFixedThreadPool(availableThreads);
+  }
+  
+  
+  @Override
+  public void start() {
+    preStart();
+    run();
+  }
+  
+  
+  /**
+   * Starts the server execution in a new <code>Thread</code>.
+   * @return This modified <code>NioRevokServer</code> instance.
+   */
+  public NioRevokServer startNewThread() {
+    preStart();
+    new Thread(this, "NioRevokServer").start();
+    return this;
+  }
+  
+  
+  @Override
+  public void stop() {
+    super.stop();
+    Selector sel = selector;
+    if(sel != null) sel.wakeup();
+  }
+  
+  
+  /**
+   * Not invoke directly. Executes server routines.
+   */
+  @Override
+  public void run() {
+    try(ServerSocketChannel ssc = con.connectServerChannel();
+        Selector sel = Selector.open();) {
+      ssc.configureBlocking(false);
+      ssc.register(sel, SelectionKey.OP_ACCEPT);
+      for(int i = 0; i < ioThreads; i++) {
+        Reactor r = new Reactor();
+        reactors.add(r);
+        new Thread(r, "NioRevokServer-IO-"+ i).start();
+      }
+      selector = sel;
+      log.info("Listening on: "+ con.toString());
+      log.info("NioRevokServer started!\n");
+      
+      int next = 0;
+      while(isRunning()) {
+        sel.select();
+        sel.selectedKeys().clear();
+        SocketChannel sc;
+        // Spread the accepted connections across the event loops
+        while((sc = ssc.accept()) != null) {
+          // Unix domain channels have no TCP options to apply
+          if(!con.isUnixDomain())
+            con.getSocketOptions().apply(sc.socket());
+          reactors.get(next++ % reactors.size()).register(sc);
+        }
+      }//while
+    } 
+    catch(IOException e) {
+      log.error(
+          new IOException("Error running NioRevokServer", e), true);
+      if(log.outputs().isEmpty())
+        throw new RuntimeException("Error running NioRevokServer", e);
+    }
+    finally {
+      selector = null;
+      // Let the requests in progress finish, 
+      // while the event loops write the responses.
+      log.info("Stopping ExecutorService...");
+      exec.shutdown();
+      try { exec.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS); }
+      catch(InterruptedException e) {}
+      exec.shutdownNow();
+      reactors.forEach(Reactor::close);
+      reactors.clear();
+      log.info("NioRevokServer Shutdown!");
+    }
+  }
+  
+  
+  /**
+   * Handle the decoded request on a worker thread: decode the 
+   * content, invoke the method and encode the response.
+   * @param req The decoded HTTP request.
+   * @param c The request connection.
+   * @param keepAlive If the connection is persistent.
+   * @return The encoded HTTP response buffers.
+   */
+  private ByteBuffer[] process(NioHttpRequest req, Connection c, boolean keepAlive) {
+    if(!HttpConsts.POST.equalsIgnoreCase(req.getMethod()))
+      return status(HttpConsts.STATUS_400, HttpConsts.STATUS_BAD_REQUEST);
+    try {
+      BufferedResponseChannel channel = 
+          new BufferedResponseChannel(req.getContent(), serial)
+              .setRequestEncoding(
+                  req.getHeader(HttpConsts.HD_CONT_ENCODING), 
+                  req.getHeader(HttpConsts.HD_ACCEPT_ENCODING))
+              .setSessionCipher(c.session)
+              .setKeepAlive(keepAlive)
+              .setMaxResponseSize(maxContent);
+      RunnableConnectionHandler handler = 
+          new RunnableConnectionHandler(channel, container);
+      Transport trp = handler.read();
+      if(trp == null)
+        return status(HttpConsts.STATUS_400, HttpConsts.STATUS_BAD_REQUEST);
+      // requests of a connection are handled one at a time
+      c.session = channel.getSessionCipher();
+      handler.write(handler.handleInvoke(trp));
+      if(channel.getResponse() == null)
+        return status(HttpConsts.STATUS_400, HttpConsts.STATUS_BAD_REQUEST);
+      return channel.getResponse();
+    } 
+    catch(RuntimeException e) {
+      log.warn(e, false);
+      return status(HttpConsts.STATUS_400, HttpConsts.STATUS_BAD_REQUEST);
+    }
+  }
+  
+  
+  /**
+   * Create an empty HTTP response which closes the connection.
+   * @param code The response status code.
+   * @param reason The response status reason.
+   * @return The encoded HTTP response buffers.
+   */
+  private static ByteBuffer[] status(int code, String reason) {
+    return new ByteBuffer[] { ByteBuffer.wrap(("HTTP/1.1 "+ code+ HttpConsts.SP+ reason+ HttpConsts.CRLF
+        + HttpConsts.HD_CONT_LENGTH+ ": 0"+ HttpConsts.CRLF
+        + HttpConsts.HD_CONNECTION+ ": "+ HttpConsts.HD_VAL_CLOSE
+        + HttpConsts.CRLF+ HttpConsts.CRLF)
+        .getBytes(StandardCharsets.ISO_8859_1)) };
+  }
+  
+  
+  
+  /**
+   * State of a non-blocking client connection.
+   */
+  private class Connection {
+    
+    final SocketChannel channel;
+    
+    final NioHttpRequestDecoder decoder;
+    
+    ByteBuffer[] output;
+    
+    boolean busy;
+    
+    boolean closing;
+    
+    boolean eof;
+    
+    volatile SessionCipher session;
+    
+    Connection(SocketChannel sc) {
+      channel = sc;
+      decoder = new NioHttpRequestDecoder(maxContent);
+      output = null;
+      busy = closing = eof = false;
+      session = null;
+    }
+    
+  }
+  
+  
+  
+  /**
+   * Event loop serving a set of connections. All the 
+   * connection state is accessed only by the loop thread; 
+   * other threads submit tasks with <code>execute(Runnable)</code>.
+   */
+  private class Reactor implements Runnable {
+    
+    private final Selector sel;
+    
+    private final Queue<Runnable> tasks;
+    
+    private final ByteBuffer input;
+    
+    private volatile boolean closed;
+    
+    
+    Reactor() throws IOException {
+      sel = Selector.open();
+      tasks = new ConcurrentLinkedQueue<>();
+      input = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+      closed = false;
+    }
+    
+    
+    /**
+     * Execute the task on the event loop thread.
+     */
+    void execute(Runnable task) {
+      tasks.add(task);
+      sel.wakeup();
+    }
+    
+    
+    /**
+     * Register an accepted connection on this event loop.
+     */
+    void register(SocketChannel sc) {
+      execute(()->{
+        try {
+          sc.configureBlocking(false);
+          sc.register(sel, SelectionKey.OP_READ, new Connection(sc));
+        } catch(IOException e) {
+          try { sc.close(); }
+          catch(IOException ex) {}
+        }
+      });
+    }
+    
+    
+    /**
+     * Read the available bytes and dispatch a complete request.
+     */
+    private void read(SelectionKey key, Connection c) throws IOException {
+      input.clear();
+      int read = c.channel.read(input);
+      if(read < 0) {
+        c.eof = true;
+      } 
+      else {
+        input.flip();
+        c.decoder.feed(input);
+      }
+      dispatch(key, c);
+    }
+    
+    
+    /**
+     * Submit the next decoded request to the workers. Requests 
+     * on the same connection are handled one at a time, so the
+     * responses are sent in order.
+     */
+    private void dispatch(SelectionKey key, Connection c) throws IOException {
+      if(c.busy) return;
+      NioHttpRequest req;
+      try {
+        req = c.decoder.next();
+      } catch(IOException e) {
+        log.warn("Invalid request: "+ e.getMessage());
+        send(key, c, status(HttpConsts.STATUS_400, 
+            HttpConsts.STATUS_BAD_REQUEST), false);
+        return;
+      }
+      if(req == null) {
+        if(c.eof) close(key, c);
+        return;
+      }
+      c.busy = true;
+      key.interestOps(0);
+      boolean keepAlive = req.isKeepAlive() && !c.eof;
+      try {
+        exec.execute(()->{
+          boolean persist = keepAlive && isRunning();
+          ByteBuffer[] resp = process(req, c, persist);
+          execute(()->send(key, c, resp, persist));
+        });
+      } catch(RejectedExecutionException e) {
+        send(key, c, status(HttpConsts.STATUS_503, 
+            HttpConsts.STATUS_UNAVAILABLE), false);
+      }
+    }
+    
+    
+    /**
+     * Start writing the response on the connection.
+     */
+    private void send(SelectionKey key, Connection c, ByteBuffer[] resp, boolean keepAlive) {
+      if(!key.isValid()) return;
+      c.output = resp;
+      c.closing = !keepAlive;
+      c.busy = true;
+      try {
+        write(key, c);
+      } catch(IOException e) {
+        close(key, c);
+      }
+    }
+    
+    
+    /**
+     * Write the pending response bytes, waiting for write 
+     * readiness if the socket buffer is full.
+     */
+    private void write(SelectionKey key, Connection c) throws IOException {
+      // gathering write of the response head and content
+      c.channel.write(c.output);
+      if(c.output[c.output.length - 1].hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      c.output = null;
+      if(c.closing) {
+        close(key, c);
+        return;
+      }
+      c.busy = false;
+      key.interestOps(SelectionKey.OP_READ);
+      // Pipelined requests may be already buffered
+      dispatch(key, c);
+    }
+    
+    
+    private void close(SelectionKey key, Connection c) {
+      key.cancel();
+      try { c.channel.close(); }
+      catch(IOException e) {}
+    }
+    
+    
+    @Override
+    public void run() {
+      try {
+        while(!closed) {
+          sel.select();
+          Runnable task;
+          while((task = tasks.poll()) != null) {
+            task.run();
+          }
+          Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+          while(it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Connection c = (Connection) key.attachment();
+            try {
+              if(key.isValid() && key.isReadable()) 
+                read(key, c);
+              if(key.isValid() && key.isWritable())
+                write(key, c);
+            } catch(IOException e) {
+              close(key, c);
+            }
+          }
+        }
+      } 
+      catch(IOException e) {
+        log.error(new IOException("Error on event loop", e), true);
+      }
+      finally {
+        for(SelectionKey key : sel.keys()) {
+          try { key.channel().close(); }
+          catch(IOException e) {}
+        }
+        try { sel.close(); }
+        catch(IOException e) {}
+      }
+    }
+    
+    
+    void close() {
+      closed = true;
+      sel.wakeup();
+    }
+    
+  }
+  
+}
@@ -22,30 +22,55 @@
 package us.pserver.revok.server;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpServerConnection;
-import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
 import us.pserver.log.Log;
 import us.pserver.log.LogFactory;
 import us.pserver.log.output.FileLogOutput;
 import us.pserver.log.output.LogOutput;
 import us.pserver.revok.HttpConnector;
+import us.pserver.revok.channel.Channel;
+import us.pserver.revok.channel.HttpResponseChannel;
+import us.pserver.revok.channel.TcpResponseChannel;
 import us.pserver.revok.container.ObjectContainer;
 import us.pserver.revok.factory.ChannelFactory;
 import us.pserver.revok.factory.ChannelFactoryBuilder;
+import us.pserver.revok.http.HttpConsts;
+import us.pserver.revok.http.ServerHttpConnection;
+import us.pserver.revok.protocol.ConnectionManager;
 import us.pserver.revok.protocol.RunnableConnectionHandler;
 import us.pserver.revok.protocol.JsonSerializer;
 import us.pserver.revok.protocol.ObjectSerializer;
 
 /**
  * Network HTTP object server for remote method invocation.
+ * With the raw TCP protocol enabled (see <code>enableTcpProtocol()</code>),
+ * the server listens for <code>TcpRequestChannel</code> clients instead.
  * 
  * @author Juno Roesler - juno@pserver.com
  * @version 1.1 - 201506
@@ -76,13 +101,97 @@ public class RevokServer extends AbstractServer {
    */
   public static final int HTTP_CONN_BUFFER_SIZE = 8*1024;
   
+  /**
+   * <code>
+   *  DEFAULT_RETRY_AFTER = 1
+   * </code><br>
+   * Default Retry-After seconds sent when a connection is refused.
+   */
+  public static final int DEFAULT_RETRY_AFTER = 1;
+  
+  /**
+   * <code>
+   *  LINGER_TIMEOUT = 2000
+   * </code><br>
+   * Maximum time in milliseconds to discard client 
+   * data before closing a refused connection.
+   */
+  public static final int LINGER_TIMEOUT = 2000;
+  
+  /**
+   * <code>
+   *  MAX_CONCURRENCY_LIMIT = 1000
+   * </code><br>
+   * Maximum adaptive concurrency limit, and maximum number
+   * of worker threads when the adaptive limit is enabled.
+   */
+  public static final int MAX_CONCURRENCY_LIMIT = 1000;
+  
+  /**
+   * <code>
+   *  DEFAULT_DRAIN_TIMEOUT = 10000
+   * </code><br>
+   * Default time in milliseconds for draining 
+   * open connections when the server is stopped.
+   */
+  public static final int DEFAULT_DRAIN_TIMEOUT = 10000;
+  
+  /**
+   * <code>
+   *  DRAIN_CHECK_INTERVAL = 50
+   * </code><br>
+   * Interval in milliseconds for checking 
+   * open connections while draining.
+   */
+  public static final int DRAIN_CHECK_INTERVAL = 50;
+  
   
   private transient HttpConnector con;
   
+  private transient List<HttpConnector> cons;
+  
+  private transient List<SelectorAcceptor> acceptors;
+  
+  private int acceptorThreads;
+  
+  private transient volatile KeepAliveWatcher watcher;
+  
+  private boolean selectorAccept;
+  
+  private boolean virtualThreads;
+  
   private transient ChannelFactory<HttpServerConnection> factory;
   
+  private transient ChannelFactory<Socket> tcpFactory;
+  
+  private boolean tcp;
+  
   private ExecutorService exec;
   
+  private ExecutorService invoker;
+  
+  private ExecutorService readers;
+  
+  private ExecutorService closers;
+  
+  private transient volatile AdmissionQueue admission;
+  
+  private int queueCapacity;
+  
+  private int retryAfter;
+  
+  private boolean adaptive;
+  
+  private transient volatile AdaptiveConcurrencyLimiter limiter;
+  
+  private transient Set<RunnableConnectionHandler> handlers;
+  
+  private transient Map<String, Bulkhead> bulkheads;
+  
+  private transient volatile boolean draining;
+  
+  private int drainTimeout;
+  
   private ObjectSerializer serial;
   
   private Log log;
@@ -100,10 +209,30 @@ public class RevokServer extends AbstractServer {
     this.enableLogging();
     cont.put(ObjectContainer.NAMESPACE_GLOBAL, SERVER_KEY, this);
     con = new HttpConnector();
+    cons = new CopyOnWriteArrayList<>();
+    acceptors = new CopyOnWriteArrayList<>();
+    acceptorThreads = 1;
+    watcher = null;
+    selectorAccept = false;
+    virtualThreads = false;
+    admission = null;
+    queueCapacity = 0;
+    retryAfter = DEFAULT_RETRY_AFTER;
+    adaptive = false;
+    limiter = null;
+    handlers = ConcurrentHashMap.newKeySet();
+    bulkheads = new ConcurrentHashMap<>();
+    draining = false;
+    drainTimeout = DEFAULT_DRAIN_TIMEOUT;
     factory = ChannelFactoryBuilder.builder()
         .enableGZipCompression()
         .enableCryptography()
         .createHttpResponseChannelFactory();
+    tcpFactory = ChannelFactoryBuilder.builder()
+        .enableGZipCompression()
+        .enableCryptography()
+        .createTcpResponseChannelFactory();
+    tcp = false;
     serial = new JsonSerializer();
   }
   
@@ -190,6 +319,369 @@ public class RevokServer extends AbstractServer {
   }
 
 
+  /**
+   * Add an extra network information object <code>HttpConnector</code>,
+   * on which the server will listen for connections too.
+   * Listening on more than one <code>HttpConnector</code> requires
+   * the selector acceptor to be enabled.
+   * @param hcon The extra network information object <code>HttpConnector</code>.
+   * @return This modified <code>RevokServer</code> instance.
+   * @see us.pserver.revok.server.RevokServer#enableSelectorAcceptor()
+   */
+  public RevokServer addConnector(HttpConnector hcon) {
+    if(hcon == null)
+      throw new IllegalArgumentException(
+          "[RevokServer.addConnector( HttpConnector )] "
+              + "Invalid HttpConnector: "+ hcon);
+    cons.add(hcon);
+    return this;
+  }
+  
+  
+  /**
+   * Get all network information objects <code>HttpConnector</code>
+   * on which the server listen for connections (the main connector
+   * first, followed by the extra ones).
+   * @return An unmodifiable list of <code>HttpConnector</code>.
+   */
+  public List<HttpConnector> getConnectors() {
+    List<HttpConnector> all = new LinkedList<>();
+    if(con != null) all.add(con);
+    all.addAll(cons);
+    return Collections.unmodifiableList(all);
+  }
+  
+  
+  /**
+   * Set the number of acceptor threads. With more than one
+   * thread, each acceptor listens on its own channel for every
+   * <code>HttpConnector</code>, bounded to the same port with
+   * <code>SO_REUSEPORT</code>, and the kernel spreads the incoming
+   * connections across them. Requires the selector acceptor. If 
+   * <code>SO_REUSEPORT</code> is not supported (Java 9+ on Linux,
+   * BSD or MacOS), a single acceptor thread is used.
+   * @param threads The number of acceptor threads (default 1).
+   * @return This modified <code>RevokServer</code> instance.
+   * @see us.pserver.revok.HttpConnector#isReusePortSupported()
+   */
+  public RevokServer setAcceptorThreads(int threads) {
+    if(threads < 1)
+      throw new IllegalArgumentException(
+          "[RevokServer.setAcceptorThreads( int )] "
+              + "Invalid threads {"+ threads+ "}");
+    acceptorThreads = threads;
+    return this;
+  }
+  
+  
+  /**
+   * Get the number of acceptor threads.
+   * @return The number of acceptor threads.
+   */
+  public int getAcceptorThreads() {
+    return acceptorThreads;
+  }
+  
+  
+  /**
+   * Enable the NIO <code>Selector</code> based acceptor. 
+   * Instead of polling the listening socket with a timeout,
+   * the accepting thread waits on a <code>Selector</code>,
+   * waking up immediately on new connections and on
+   * <code>stop()</code>. It is required for listening 
+   * on more than one <code>HttpConnector</code>.
+   * Idle persistent connections are also parked on a
+   * selector, releasing the worker threads between requests.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer enableSelectorAcceptor() {
+    selectorAccept = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the NIO <code>Selector</code> based acceptor,
+   * using the blocking <code>ServerSocket.accept()</code>
+   * with <code>SOCK_SO_TIMEOUT</code>.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer disableSelectorAcceptor() {
+    selectorAccept = false;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the NIO <code>Selector</code> based acceptor is enabled.
+   * @return <code>true</code> if the selector acceptor is enabled,
+   * <code>false</code> otherwise.
+   */
+  public boolean isSelectorAcceptorEnabled() {
+    return selectorAccept;
+  }
+
+
+  /**
+   * Enable the virtual threads execution mode. Each client
+   * connection is handled by its own virtual <code>Thread</code>,
+   * so the number of concurrent persistent connections is not
+   * limited by <code>getAvailableThreads()</code>. Requires a 
+   * JVM with virtual threads support (Java 21+), otherwise the 
+   * server falls back to the fixed size thread pool.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer enableVirtualThreads() {
+    virtualThreads = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the virtual threads execution mode, using a fixed
+   * size pool of <code>getAvailableThreads()</code> threads.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer disableVirtualThreads() {
+    virtualThreads = false;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the virtual threads execution mode is enabled.
+   * @return <code>true</code> if virtual threads are enabled,
+   * <code>false</code> otherwise.
+   */
+  public boolean isVirtualThreadsEnabled() {
+    return virtualThreads;
+  }
+
+
+  /**
+   * Set the admission queue capacity, the maximum number of
+   * connections waiting for a worker thread. When the queue 
+   * is full, new connections are refused right away with a 
+   * HTTP 503 response and a Retry-After header, keeping the 
+   * queue wait time bounded under overload.
+   * @param capacity The admission queue capacity, or 
+   * <code>0</code> for an unbounded queue (default).
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer setAdmissionQueueCapacity(int capacity) {
+    if(capacity < 0)
+      throw new IllegalArgumentException(
+          "[RevokServer.setAdmissionQueueCapacity( int )] "
+              + "Invalid capacity {"+ capacity+ "}");
+    queueCapacity = capacity;
+    return this;
+  }
+  
+  
+  /**
+   * Get the admission queue capacity.
+   * @return The admission queue capacity, or 
+   * <code>0</code> for an unbounded queue.
+   */
+  public int getAdmissionQueueCapacity() {
+    return queueCapacity;
+  }
+  
+  
+  /**
+   * Set the Retry-After seconds sent to refused connections.
+   * @param seconds The Retry-After seconds.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer setRetryAfter(int seconds) {
+    if(seconds < 0)
+      throw new IllegalArgumentException(
+          "[RevokServer.setRetryAfter( int )] "
+              + "Invalid seconds {"+ seconds+ "}");
+    retryAfter = seconds;
+    return this;
+  }
+  
+  
+  /**
+   * Get the Retry-After seconds sent to refused connections.
+   * @return The Retry-After seconds.
+   */
+  public int getRetryAfter() {
+    return retryAfter;
+  }
+  
+  
+  /**
+   * Get the running <code>AdmissionQueue</code>, with the 
+   * admission and queue wait time statistics.
+   * @return The <code>AdmissionQueue</code> or 
+   * <code>null</code> if the server was not started.
+   */
+  public AdmissionQueue getAdmissionQueue() {
+    return admission;
+  }
+
+
+  /**
+   * Enable the adaptive concurrency limit of method invocations.
+   * Starting from <code>getAvailableThreads()</code>, the number
+   * of concurrent invocations is adjusted automatically following
+   * the observed invocation latency (see 
+   * <code>AdaptiveConcurrencyLimiter</code>), up to 
+   * <code>MAX_CONCURRENCY_LIMIT</code>. Invocations over 
+   * the limit wait briefly for a free slot, and are rejected
+   * with a <code>MethodInvocationException</code> otherwise.
+   * Without virtual threads, the worker pool grows on demand
+   * up to <code>MAX_CONCURRENCY_LIMIT</code> threads, so the
+   * limit is able to raise over <code>getAvailableThreads()</code>.
+   * Connections are then not queued: the admission queue capacity
+   * does not apply, and connections arriving with all threads 
+   * busy are refused.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer enableAdaptiveConcurrency() {
+    adaptive = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the adaptive concurrency limit of method invocations.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer disableAdaptiveConcurrency() {
+    adaptive = false;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the adaptive concurrency limit is enabled.
+   * @return <code>true</code> if the adaptive concurrency
+   * limit is enabled, <code>false</code> otherwise.
+   */
+  public boolean isAdaptiveConcurrencyEnabled() {
+    return adaptive;
+  }
+  
+  
+  /**
+   * Get the running <code>AdaptiveConcurrencyLimiter</code>.
+   * @return The <code>AdaptiveConcurrencyLimiter</code> or 
+   * <code>null</code> if not enabled or the server was not started.
+   */
+  public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+    return limiter;
+  }
+
+
+  /**
+   * Set a bulkhead for the method invocations on objects of the
+   * specified <code>ObjectContainer</code> namespace. At most
+   * <code>maxConcurrent</code> invocations on that namespace run
+   * at the same time, and up to <code>maxQueue</code> more wait
+   * for a free slot, so a slow namespace can not starve the
+   * others. Invocations over the limits are rejected with a 
+   * <code>MethodInvocationException</code>. Waiting invocations
+   * hold their worker threads, and wait only after setting 
+   * <code>Bulkhead.setMaxWait(int)</code> (none by default).
+   * @param namespace The <code>ObjectContainer</code> namespace.
+   * @param maxConcurrent Maximum concurrent invocations.
+   * @param maxQueue Maximum invocations waiting for a slot.
+   * @return This modified <code>RevokServer</code> instance.
+   * @see us.pserver.revok.server.Bulkhead
+   */
+  public RevokServer setBulkhead(String namespace, int maxConcurrent, int maxQueue) {
+    bulkheads.put(namespace, new Bulkhead(namespace, maxConcurrent, maxQueue));
+    return this;
+  }
+  
+  
+  /**
+   * Set a bulkhead for the method invocations on objects of the
+   * specified <code>ObjectContainer</code> namespace, rejecting 
+   * right away the invocations over <code>maxConcurrent</code>.
+   * @param namespace The <code>ObjectContainer</code> namespace.
+   * @param maxConcurrent Maximum concurrent invocations.
+   * @return This modified <code>RevokServer</code> instance.
+   * @see us.pserver.revok.server.Bulkhead
+   */
+  public RevokServer setBulkhead(String namespace, int maxConcurrent) {
+    return setBulkhead(namespace, maxConcurrent, Bulkhead.DEFAULT_MAX_QUEUE);
+  }
+  
+  
+  /**
+   * Remove the bulkhead of the specified namespace.
+   * @param namespace The <code>ObjectContainer</code> namespace.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer removeBulkhead(String namespace) {
+    if(namespace != null) bulkheads.remove(namespace);
+    return this;
+  }
+  
+  
+  /**
+   * Get the bulkhead of the specified namespace, 
+   * with its invocations statistics.
+   * @param namespace The <code>ObjectContainer</code> namespace.
+   * @return The <code>Bulkhead</code> or <code>null</code> if not defined.
+   */
+  public Bulkhead getBulkhead(String namespace) {
+    if(namespace == null) return null;
+    return bulkheads.get(namespace);
+  }
+  
+  
+  /**
+   * Get all bulkheads by namespace.
+   * @return An unmodifiable map of <code>Bulkhead</code> by namespace.
+   */
+  public Map<String, Bulkhead> getBulkheads() {
+    return Collections.unmodifiableMap(bulkheads);
+  }
+  
+  
+  /**
+   * Set the drain timeout. When the server is stopped, it stops
+   * accepting connections, closes the idle ones and lets the 
+   * requests in progress finish, closing their connections 
+   * after the response. Connections still open after the 
+   * drain timeout are forced closed.
+   * @param millis The drain timeout in milliseconds, or 
+   * <code>0</code> for closing all connections right away.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer setDrainTimeout(int millis) {
+    if(millis < 0)
+      throw new IllegalArgumentException(
+          "[RevokServer.setDrainTimeout( int )] "
+              + "Invalid millis {"+ millis+ "}");
+    drainTimeout = millis;
+    return this;
+  }
+  
+  
+  /**
+   * Get the drain timeout.
+   * @return The drain timeout in milliseconds.
+   */
+  public int getDrainTimeout() {
+    return drainTimeout;
+  }
+  
+  
+  /**
+   * Get the number of open client connections.
+   * @return The number of open client connections.
+   */
+  public int getOpenConnections() {
+    return handlers.size();
+  }
+
+
   /**
    * Get the network channel factory object.
    * @return The network channel factory object.
@@ -211,6 +703,60 @@ public class RevokServer extends AbstractServer {
   }
   
   
+  /**
+   * Enable the raw TCP protocol. The server listens for the 
+   * compact binary framing of <code>TcpRequestChannel</code> 
+   * clients, instead of HTTP, on all connectors.
+   * @return This modified <code>RevokServer</code> instance.
+   * @see us.pserver.revok.channel.TcpFrame
+   */
+  public RevokServer enableTcpProtocol() {
+    tcp = true;
+    return this;
+  }
+  
+  
+  /**
+   * Disable the raw TCP protocol, listening for HTTP (default).
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer disableTcpProtocol() {
+    tcp = false;
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if the raw TCP protocol is enabled.
+   * @return <code>true</code> if the raw TCP protocol is 
+   * enabled, <code>false</code> otherwise.
+   */
+  public boolean isTcpProtocolEnabled() {
+    return tcp;
+  }
+
+
+  /**
+   * Get the network channel factory object of the raw TCP protocol.
+   * @return The network channel factory object of the raw TCP protocol.
+   */
+  public ChannelFactory<Socket> getTcpChannelFactory() {
+    return tcpFactory;
+  }
+
+
+  /**
+   * Set the network channel factory object of the raw TCP protocol.
+   * @param fact The network channel factory object of the raw TCP protocol.
+   * @return This modified <code>RevokServer</code> instance.
+   */
+  public RevokServer setTcpChannelFactory(ChannelFactory<Socket> fact) {
+    if(fact != null)
+      this.tcpFactory = fact;
+    return this;
+  }
+  
+  
   /**
    * Get the log system.
    * @return Log
@@ -297,13 +843,143 @@ public class RevokServer extends AbstractServer {
     if(factory == null)
       throw new IllegalArgumentException("[RevokServer.preStart()] "
           + "Invalid ChannelFactory ["+ factory+ "]");
+    if(tcp && tcpFactory == null)
+      throw new IllegalArgumentException("[RevokServer.preStart()] "
+          + "Invalid TCP ChannelFactory ["+ tcpFactory+ "]");
     if(container == null)
       throw new IllegalArgumentException("[RevokServer.preStart()] "
           + "Invalid ObjectContainer ["+ container+ "]");
+    if(!cons.isEmpty() && !selectorAccept)
+      throw new IllegalStateException("[RevokServer.preStart()] "
+          + "Listening on multiple HttpConnectors requires the selector acceptor");
+    if(acceptorThreads > 1 && !selectorAccept)
+      throw new IllegalStateException("[RevokServer.preStart()] "
+          + "Multiple acceptor threads requires the selector acceptor");
     
     log.info("Starting RevokServer...");
     setRunning(true);
-    exec = Executors.newFixedThreadPool(availableThreads);
+    draining = false;
+    exec = createExecutor();
+    invoker = createInvoker();
+    readers = createReaders();
+    closers = createClosers();
+    admission = new AdmissionQueue(exec, queueCapacity);
+    limiter = null;
+    if(adaptive) {
+      limiter = new AdaptiveConcurrencyLimiter(getAvailableThreads(), 
+          1, Math.max(getAvailableThreads(), MAX_CONCURRENCY_LIMIT));
+    }
+  }
+  
+  
+  /**
+   * Create the <code>ExecutorService</code> for worker threads,
+   * according to the virtual threads execution mode. With the
+   * adaptive concurrency limit, the pool keeps 
+   * <code>getAvailableThreads()</code> threads and starts more on 
+   * demand up to <code>MAX_CONCURRENCY_LIMIT</code>; idle threads 
+   * over <code>getAvailableThreads()</code> are discarded after 
+   * 60 seconds. Tasks are handed off without queueing, so the 
+   * admission queue capacity does not apply, and connections 
+   * arriving with all threads busy are refused.
+   * @return The workers <code>ExecutorService</code>.
+   */
+  private ExecutorService createExecutor() {
+    if(virtualThreads) {
+      ExecutorService vexec = newVirtualThreadExecutor();
+      if(vexec != null) {
+        log.info("Using virtual threads for workers");
+        return vexec;
+      }
+      log.warn("Virtual threads not supported by this JVM. "
+          + "Using "+ availableThreads+ " worker threads");
+    }
+    if(adaptive) {
+      int max = Math.max(availableThreads, MAX_CONCURRENCY_LIMIT);
+      return new ThreadPoolExecutor(availableThreads, max, 
+          60, TimeUnit.SECONDS, new SynchronousQueue<>());
+    }
+    return Executors.newFixedThreadPool(availableThreads);
+  }
+  
+  
+  /**
+   * Create the <code>ExecutorService</code> for multiplexed 
+   * invocations. The connection handlers hold the workers 
+   * while reading, so multiplexed invocations can not wait
+   * for the same fixed pool of workers. When all invoker 
+   * threads are busy, the invocation runs on the handler 
+   * thread, pausing the reading of that connection.
+   * With virtual threads, the workers are used.
+   * @return The invocations <code>ExecutorService</code>.
+   */
+  private ExecutorService createInvoker() {
+    if(!(exec instanceof ThreadPoolExecutor)) 
+      return exec;
+    return new ThreadPoolExecutor(0, 
+        ((ThreadPoolExecutor)exec).getMaximumPoolSize(), 
+        60, TimeUnit.SECONDS, new SynchronousQueue<>(), 
+        (task, pool)->task.run());
+  }
+  
+  
+  /**
+   * Create the <code>ExecutorService</code> for reading ahead 
+   * pipelined requests, bounded by <code>getAvailableThreads()</code>.
+   * When all reader threads are busy, the next request is read by 
+   * the handler thread after the current one is answered.
+   * With virtual threads, the workers are used.
+   * @return The read ahead <code>ExecutorService</code>.
+   */
+  private ExecutorService createReaders() {
+    if(!(exec instanceof ThreadPoolExecutor)) 
+      return exec;
+    return new ThreadPoolExecutor(0, availableThreads, 
+        60, TimeUnit.SECONDS, new SynchronousQueue<>(), 
+        r -> {
+          Thread t = new Thread(r, "RevokServer-ReadAhead");
+          t.setDaemon(true);
+          return t;
+        });
+  }
+  
+  
+  /**
+   * Create the <code>ExecutorService</code> for lingering refused 
+   * blocking sockets, bounded by <code>getAvailableThreads()</code>,
+   * so the acceptor thread never waits for the client data.
+   * When all closer threads are busy, refused sockets are closed 
+   * at once. With virtual threads, the workers are used.
+   * @return The closers <code>ExecutorService</code>.
+   */
+  private ExecutorService createClosers() {
+    if(!(exec instanceof ThreadPoolExecutor)) 
+      return exec;
+    return new ThreadPoolExecutor(0, availableThreads, 
+        60, TimeUnit.SECONDS, new SynchronousQueue<>(), 
+        r -> {
+          Thread t = new Thread(r, "RevokServer-Closer");
+          t.setDaemon(true);
+          return t;
+        });
+  }
+  
+  
+  /**
+   * Create an <code>ExecutorService</code> which starts a new
+   * virtual thread for each task. The method is looked up by
+   * reflection, since the project is compiled for Java 8.
+   * @return The virtual threads <code>ExecutorService</code> 
+   * or <code>null</code> if not supported by the running JVM.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch(ReflectiveOperationException e) {
+      return null;
+    }
   }
   
   
@@ -326,10 +1002,261 @@ public class RevokServer extends AbstractServer {
   
   
   /**
-   * Not invoke directly. Executes server routines.
+   * Stop the server. New connections are not accepted 
+   * anymore and the open ones are drained by the server 
+   * thread, within the drain timeout.
+   * @see #setDrainTimeout(int)
    */
   @Override
-  public void run() {
+  public void stop() {
+    super.stop();
+    acceptors.forEach(SelectorAcceptor::wakeup);
+  }
+  
+  
+  /**
+   * Create an HTTP connection over the accepted socket and 
+   * submit it for handling by a worker <code>Thread</code>.
+   * When accepted by the selector acceptor, idle persistent 
+   * connections are parked on the <code>KeepAliveWatcher</code>
+   * and re-dispatched when the next request arrives.
+   * TLS connections are not parked, since a <code>SSLSocket</code>
+   * has no channel to be selected.
+   * May be called concurrently by many acceptor threads.
+   * @param sock The accepted client socket.
+   * @throws IOException In case of error binding the HTTP connection.
+   */
+  private void dispatch(Socket sock) throws IOException {
+    if(tcp) {
+      dispatchTcp(sock);
+      return;
+    }
+    // Create and bind an HTTP connection
+    // over the TCP connection received.
+    ServerHttpConnection conn = 
+        new ServerHttpConnection(
+            HTTP_CONN_BUFFER_SIZE);
+    conn.bind(sock);
+    // Submit for Thread worker execution
+    // a HttpConnectionHandler for handling 
+    // the HTTP connection
+    log.debug("Handling socket: {}", sock);
+    Channel channel = factory.createChannel(conn, serial);
+    if(channel instanceof HttpResponseChannel)
+      ((HttpResponseChannel) channel).setReadAheadExecutor(readers);
+    RunnableConnectionHandler handler = 
+        new RunnableConnectionHandler(channel, container)
+            .setConcurrencyLimiter(limiter)
+            .setBulkheads(bulkheads)
+            .setExecutor(invoker);
+    KeepAliveWatcher kaw = watcher;
+    SocketChannel sc = sock.getChannel();
+    handler.setConnectionManager(new ConnectionManager() {
+      @Override
+      public boolean park(RunnableConnectionHandler h) {
+        // Pipelined requests already buffered or being
+        // read ahead must be handled right away, without parking.
+        return kaw != null && sc != null 
+            && !draining
+            && !conn.hasBufferedInput() 
+            && !isReadingAhead(h.getChannel())
+            && kaw.park(sc, ()->submit(h, conn, ()->refuse(conn)));
+      }
+      @Override
+      public void closed(RunnableConnectionHandler h) {
+        handlers.remove(h);
+      }
+    });
+    handlers.add(handler);
+    submit(handler, conn, ()->refuse(conn));
+  }
+  
+  
+  /**
+   * Create a raw TCP channel over the accepted socket and 
+   * submit it for handling by a worker <code>Thread</code>,
+   * parking the idle persistent connections as in 
+   * <code>dispatch(Socket)</code>.
+   * @param sock The accepted client socket.
+   * @throws IOException In case of error creating the channel.
+   */
+  private void dispatchTcp(Socket sock) throws IOException {
+    log.debug("Handling socket: {}", sock);
+    TcpResponseChannel channel;
+    try {
+      channel = (TcpResponseChannel) tcpFactory.createChannel(sock, serial);
+    } catch(IllegalArgumentException e) {
+      sock.close();
+      throw new IOException(e.getMessage(), e);
+    }
+    channel.setReadAheadExecutor(readers);
+    RunnableConnectionHandler handler = 
+        new RunnableConnectionHandler(channel, container)
+            .setConcurrencyLimiter(limiter)
+            .setBulkheads(bulkheads)
+            .setExecutor(invoker);
+    KeepAliveWatcher kaw = watcher;
+    SocketChannel sc = sock.getChannel();
+    handler.setConnectionManager(new ConnectionManager() {
+      @Override
+      public boolean park(RunnableConnectionHandler h) {
+        return kaw != null && sc != null 
+            && !draining
+            && !channel.hasBufferedInput() 
+            && !channel.hasReadAhead()
+            && kaw.park(sc, ()->submit(h, sock, ()->refuse(channel)));
+      }
+      @Override
+      public void closed(RunnableConnectionHandler h) {
+        handlers.remove(h);
+      }
+    });
+    handlers.add(handler);
+    submit(handler, sock, ()->refuse(channel));
+  }
+  
+  
+  /**
+   * Verifies if the channel is reading ahead a pipelined request.
+   * @param ch The connection channel.
+   * @return <code>true</code> if the channel is reading ahead 
+   * the next request, <code>false</code> otherwise.
+   */
+  private static boolean isReadingAhead(Channel ch) {
+    return ch instanceof HttpResponseChannel 
+        && ((HttpResponseChannel) ch).hasReadAhead();
+  }
+  
+  
+  /**
+   * Submit the connection handler to the admission queue,
+   * refusing the connection if the queue is full.
+   * @param handler The connection handler.
+   * @param conn The handled connection.
+   * @param refuse Refuses the handled connection.
+   */
+  private void submit(RunnableConnectionHandler handler, Object conn, Runnable refuse) {
+    if(!admission.submit(handler)) {
+      log.warn("Admission queue full, refusing connection: "+ conn.toString());
+      handlers.remove(handler);
+      refuse.run();
+    }
+  }
+  
+  
+  /**
+   * Refuse the connection sending a HTTP 503 response
+   * with the Retry-After header, and close it.
+   * @param conn The refused HTTP connection.
+   */
+  private void refuse(ServerHttpConnection conn) {
+    HttpResponse response = new BasicHttpResponse(
+        HttpVersion.HTTP_1_1, 
+        HttpConsts.STATUS_503, 
+        HttpConsts.STATUS_UNAVAILABLE);
+    response.addHeader(HttpConsts.HD_RETRY_AFTER, String.valueOf(retryAfter));
+    response.addHeader(HttpConsts.HD_CONNECTION, HttpConsts.HD_VAL_CLOSE);
+    response.addHeader(HttpConsts.HD_CONT_LENGTH, "0");
+    Socket sock = conn.getSocket();
+    try {
+      conn.sendResponseHeader(response);
+      conn.flush();
+      sock.shutdownOutput();
+      if(linger(sock, ()->close(conn))) return;
+    } 
+    catch(HttpException | IOException e) {}
+    close(conn);
+  }
+  
+  
+  /**
+   * Close the HTTP connection, ignoring errors.
+   * @param conn The HTTP connection.
+   */
+  private static void close(ServerHttpConnection conn) {
+    try { conn.close(); }
+    catch(IOException e) {}
+  }
+  
+  
+  /**
+   * Refuse the raw TCP connection sending an empty 
+   * response with <code>TcpFrame.FLAG_UNAVAILABLE</code>,
+   * and close it.
+   * @param channel The refused TCP channel.
+   */
+  private void refuse(TcpResponseChannel channel) {
+    Socket sock = channel.getSocket();
+    try {
+      channel.refuse();
+      sock.shutdownOutput();
+      if(linger(sock, channel::close)) return;
+    } 
+    catch(IOException e) {}
+    channel.close();
+  }
+  
+  
+  /**
+   * Discard the request data of a refused connection, with the
+   * output already shut down, so the response is not lost with a 
+   * TCP reset on close. A <code>SocketChannel</code> is handed to 
+   * the <code>KeepAliveWatcher</code>. Blocking sockets (blocking 
+   * acceptor or SSL) are read until the end of stream or 
+   * <code>LINGER_TIMEOUT</code> milliseconds by a closer thread.
+   * @param sock The refused socket.
+   * @param close Closes the refused connection.
+   * @return <code>true</code> if the socket will be closed
+   * by the watcher or a closer thread, <code>false</code> if 
+   * it should be closed by the caller.
+   */
+  private boolean linger(Socket sock, Runnable close) {
+    KeepAliveWatcher kaw = watcher;
+    SocketChannel sc = sock.getChannel();
+    if(kaw != null && sc != null 
+        && kaw.linger(sc, LINGER_TIMEOUT))
+      return true;
+    if(sc != null && !sc.isBlocking())
+      return false;
+    try {
+      closers.execute(()->{
+        discard(sock);
+        close.run();
+      });
+      return true;
+    }
+    catch(RejectedExecutionException e) {
+      return false;
+    }
+  }
+  
+  
+  /**
+   * Read and discard the socket data until the end of 
+   * stream or <code>LINGER_TIMEOUT</code> milliseconds.
+   * @param sock The refused socket.
+   */
+  private static void discard(Socket sock) {
+    long end = System.currentTimeMillis() + LINGER_TIMEOUT;
+    byte[] buf = new byte[4096];
+    try {
+      InputStream in = sock.getInputStream();
+      long left;
+      while((left = end - System.currentTimeMillis()) > 0) {
+        sock.setSoTimeout((int) left);
+        if(in.read(buf) < 0) break;
+      }
+    } 
+    catch(IOException e) {}
+  }
+  
+  
+  /**
+   * Accept connections with a blocking <code>ServerSocket</code>,
+   * polling the running state every <code>SOCK_SO_TIMEOUT</code>.
+   * @throws IOException In case of error on the listening socket.
+   */
+  private void runBlockingAcceptor() throws IOException {
     // Stablish a listen server connection
     try(ServerSocket server = con.connectServerSocket();) {
       server.setSoTimeout(SOCK_SO_TIMEOUT);
@@ -341,24 +1268,180 @@ public class RevokServer extends AbstractServer {
       while(isRunning()) {
         try {
           // Accept a client TCP connection
-          Socket sock = server.accept();
-          // Create and bind an HTTP connection
-          // over the TCP connection received.
-          DefaultBHttpServerConnection conn = 
-              new DefaultBHttpServerConnection(
-                  HTTP_CONN_BUFFER_SIZE);
-          conn.bind(sock);
-          // Submit for Thread worker execution
-          // a HttpConnectionHandler for handling 
-          // the HTTP connection
-          log.info("------------------------------")
-              .info("Handling socket: "+ conn.toString());
-          exec.submit(new RunnableConnectionHandler(
-              factory.createChannel(conn, serial), container));
+          dispatch(con.acceptSocket(server.accept()));
           // Catch socket timeout exceptions and continue 
           // accepting other connections
         } catch(SocketTimeoutException se) {}
       }//while
+    }
+  }
+  
+  
+  /**
+   * Accept connections with <code>SelectorAcceptor</code>'s,
+   * listening on all configured <code>HttpConnector</code>'s.
+   * The accepting threads sleep on the selector until a 
+   * connection arrives or the server is stopped.
+   * @throws IOException In case of error on the listening channels.
+   */
+  private void runSelectorAcceptor() throws IOException {
+    int threads = acceptorThreads;
+    if(threads > 1 && !HttpConnector.isReusePortSupported()) {
+      log.warn("SO_REUSEPORT not supported, using a single acceptor thread");
+      threads = 1;
+    }
+    // An Unix domain socket file can be bound only once
+    if(threads > 1 && getConnectors().stream()
+        .anyMatch(HttpConnector::isUnixDomain)) {
+      log.warn("Unix domain socket listening, using a single acceptor thread");
+      threads = 1;
+    }
+    List<Thread> extra = new LinkedList<>();
+    try {
+      for(int i = 0; i < threads; i++) {
+        SelectorAcceptor acc = new SelectorAcceptor();
+        acceptors.add(acc);
+        for(HttpConnector hc : getConnectors()) {
+          acc.listen(hc.connectServerChannel(threads > 1), hc);
+        }
+      }
+      for(HttpConnector hc : getConnectors()) {
+        log.info("Listening on: "+ hc.toString());
+      }
+      // The first acceptor runs on the server thread
+      for(int i = 1; i < threads; i++) {
+        SelectorAcceptor acc = acceptors.get(i);
+        Thread t = new Thread(()->{
+          try { accept(acc); }
+          catch(IOException e) {
+            log.error(new IOException("Error accepting connections", e), true);
+          }
+        }, "RevokServer-Acceptor-"+ i);
+        t.start();
+        extra.add(t);
+      }
+      log.info("RevokServer started!\n");
+      accept(acceptors.get(0));
+    }
+    finally {
+      // Wait the other acceptors to return, before 
+      // the connections draining.
+      setRunning(false);
+      acceptors.forEach(SelectorAcceptor::wakeup);
+      for(Thread t : extra) {
+        try { t.join(); }
+        catch(InterruptedException e) {}
+      }
+      acceptors.forEach(SelectorAcceptor::close);
+      acceptors.clear();
+      for(HttpConnector hc : getConnectors()) {
+        if(hc.isUnixDomain()) 
+          Files.deleteIfExists(Paths.get(hc.getUnixPath()));
+      }
+    }
+  }
+  
+  
+  /**
+   * Accept and dispatch connections while the server is running.
+   * @param acc The <code>SelectorAcceptor</code>.
+   * @throws IOException In case of error on the listening channels.
+   */
+  private void accept(SelectorAcceptor acc) throws IOException {
+    // Loop while the server should be running.
+    // stop() wakes up the selector, so the
+    // running state is checked right away.
+    while(isRunning()) {
+      for(Socket sock : acc.accept()) {
+        dispatch(sock);
+      }
+    }//while
+  }
+  
+  
+  /**
+   * Start the <code>KeepAliveWatcher</code> thread, so
+   * idle persistent connections are watched by a single 
+   * thread, releasing the workers.
+   * @throws IOException In case of error opening the watcher.
+   */
+  private void startWatcher() throws IOException {
+    KeepAliveWatcher kaw = new KeepAliveWatcher();
+    Thread kat = new Thread(kaw, "RevokServer-KeepAlive");
+    kat.setDaemon(true);
+    kat.start();
+    watcher = kaw;
+  }
+  
+  
+  /**
+   * Drain the open connections and shutdown the workers.
+   * Idle connections are closed and busy ones are closed 
+   * after sending the current response, with the 
+   * <code>Connection: close</code> header. Connections
+   * still open after the drain timeout are forced closed.
+   */
+  private void drain() {
+    draining = true;
+    long deadline = System.currentTimeMillis() + drainTimeout;
+    if(!handlers.isEmpty())
+      log.info("Draining "+ handlers.size()+ " connections...");
+    while(!handlers.isEmpty() 
+        && System.currentTimeMillis() < deadline) {
+      for(RunnableConnectionHandler h : handlers) {
+        if(h.closeIfIdle()) continue;
+        if(h.getChannel() instanceof HttpResponseChannel) {
+          ((HttpResponseChannel) h.getChannel()).closeAfterResponse();
+        }
+        else if(h.getChannel() instanceof TcpResponseChannel) {
+          ((TcpResponseChannel) h.getChannel()).closeAfterResponse();
+        }
+      }
+      try { Thread.sleep(DRAIN_CHECK_INTERVAL); }
+      catch(InterruptedException e) { break; }
+    }
+    // Shutdown the server and log when it not should be running anymore
+    log.info("Stopping ExecutorService...");
+    exec.shutdown();
+    invoker.shutdown();
+    readers.shutdown();
+    closers.shutdown();
+    try {
+      exec.awaitTermination(Math.max(0, 
+          deadline - System.currentTimeMillis()), 
+          TimeUnit.MILLISECONDS);
+      invoker.awaitTermination(Math.max(0, 
+          deadline - System.currentTimeMillis()), 
+          TimeUnit.MILLISECONDS);
+    } catch(InterruptedException e) {}
+    if(!handlers.isEmpty()) {
+      log.warn("Drain timeout expired, forcing close of "
+          + handlers.size()+ " connections");
+      handlers.forEach(RunnableConnectionHandler::close);
+    }
+    exec.shutdownNow();
+    invoker.shutdownNow();
+    readers.shutdownNow();
+    closers.shutdownNow();
+    KeepAliveWatcher kaw = watcher;
+    if(kaw != null) kaw.close();
+    watcher = null;
+  }
+  
+  
+  /**
+   * Not invoke directly. Executes server routines.
+   */
+  @Override
+  public void run() {
+    try {
+      if(selectorAccept) {
+        startWatcher();
+        runSelectorAcceptor();
+      }
+      else {
+        runBlockingAcceptor();
+      }
     } catch(IOException e) {
       // Catch and log other error occurred accepting connections.
       // Errors over server listening connections are fatal
@@ -368,10 +1451,11 @@ public class RevokServer extends AbstractServer {
       if(log.outputs().isEmpty())
         throw new RuntimeException("Error running RevokServer", e);
     }
-    // Shutdown the server and log when it not should be running anymore
-    log.info("Stopping ExecutorService...");
-    exec.shutdown();
-    log.info("RevokServer Shutdown!");
+    finally {
+      drain();
+      log.info(admission.toString());
+      log.info("RevokServer Shutdown!");
+    }
   }
   
 }
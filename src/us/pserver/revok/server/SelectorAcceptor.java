@@ -0,0 +1,184 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import us.pserver.revok.HttpConnector;
+
+
+/**
+ * Connection acceptor based on a NIO <code>Selector</code>.
+ * A single thread may wait for incoming connections on
+ * many listening <code>HttpConnector</code>'s at once,
+ * without polling with socket timeouts. The waiting
+ * thread is released as soon as a connection arrives,
+ * or when <code>wakeup()</code> is called.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class SelectorAcceptor implements Closeable {
+  
+  private final Selector selector;
+  
+  private final List<ServerSocketChannel> channels;
+  
+  
+  /**
+   * Default constructor without arguments.
+   * @throws IOException In case of error opening the selector.
+   */
+  public SelectorAcceptor() throws IOException {
+    selector = Selector.open();
+    channels = new LinkedList<>();
+  }
+  
+  
+  /**
+   * Bind a listening channel with the informations
+   * of the specified <code>HttpConnector</code> and
+   * register it for accept readiness.
+   * @param con Network information object <code>HttpConnector</code>.
+   * @return This modified <code>SelectorAcceptor</code> instance.
+   * @throws IOException In case of error binding the channel.
+   */
+  public SelectorAcceptor listen(HttpConnector con) throws IOException {
+    if(con == null)
+      throw new IllegalArgumentException(
+          "[SelectorAcceptor.listen( HttpConnector )] "
+              + "Invalid HttpConnector {"+ con+ "}");
+    return listen(con.connectServerChannel(), con);
+  }
+  
+  
+  /**
+   * Register an already bounded listening channel for accept readiness.
+   * @param ssc The bounded <code>ServerSocketChannel</code>.
+   * @param attach An object attached to the channel registration
+   * (i.e: the <code>HttpConnector</code> which describes it).
+   * @return This modified <code>SelectorAcceptor</code> instance.
+   * @throws IOException In case of error registering the channel.
+   */
+  public SelectorAcceptor listen(ServerSocketChannel ssc, Object attach) throws IOException {
+    if(ssc == null)
+      throw new IllegalArgumentException(
+          "[SelectorAcceptor.listen( ServerSocketChannel, Object )] "
+              + "Invalid ServerSocketChannel {"+ ssc+ "}");
+    ssc.configureBlocking(false);
+    ssc.register(selector, SelectionKey.OP_ACCEPT, attach);
+    channels.add(ssc);
+    return this;
+  }
+  
+  
+  /**
+   * Get the listening channels registered on this acceptor.
+   * @return The list of <code>ServerSocketChannel</code>.
+   */
+  public List<ServerSocketChannel> channels() {
+    return channels;
+  }
+  
+  
+  /**
+   * Wait until one or more client connections are available
+   * and accept all of them. The accepted channels are
+   * put in blocking mode and returned as <code>Socket</code>'s,
+   * with the <code>SocketOptions</code> and <code>TlsOptions</code>
+   * of the listening <code>HttpConnector</code> applied. An empty 
+   * list is returned if <code>wakeup()</code> was called before
+   * any connection arrives.
+   * @return The list of accepted <code>Socket</code>.
+   * @throws IOException In case of error accepting connections.
+   */
+  public List<Socket> accept() throws IOException {
+    List<Socket> accepted = new LinkedList<>();
+    if(!selector.isOpen()) return accepted;
+    selector.select();
+    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+    while(it.hasNext()) {
+      SelectionKey key = it.next();
+      it.remove();
+      if(!key.isValid() || !key.isAcceptable()) 
+        continue;
+      ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
+      HttpConnector con = null;
+      if(key.attachment() instanceof HttpConnector)
+        con = (HttpConnector) key.attachment();
+      // Drain the whole backlog, so a burst of 
+      // connections is handled in a single wake up.
+      SocketChannel sc;
+      while((sc = ssc.accept()) != null) {
+        sc.configureBlocking(true);
+        accepted.add(con != null 
+            ? con.acceptChannel(sc) 
+            : sc.socket());
+      }
+    }
+    return accepted;
+  }
+  
+  
+  /**
+   * Release a thread blocked in <code>accept()</code>.
+   * @return This <code>SelectorAcceptor</code> instance.
+   */
+  public SelectorAcceptor wakeup() {
+    selector.wakeup();
+    return this;
+  }
+  
+  
+  /**
+   * Verifies if this acceptor is open.
+   * @return <code>true</code> if this acceptor is open,
+   * <code>false</code> otherwise.
+   */
+  public boolean isOpen() {
+    return selector.isOpen();
+  }
+  
+  
+  /**
+   * Close all listening channels and the selector.
+   */
+  @Override
+  public void close() {
+    channels.forEach(c->{
+      try { c.close(); }
+      catch(IOException e) {}
+    });
+    channels.clear();
+    try { selector.close(); }
+    catch(IOException e) {}
+  }
+  
+}
@@ -0,0 +1,132 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import us.pserver.cdr.crypt.CryptAlgorithm;
+import us.pserver.cdr.crypt.CryptKey;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.http.HttpContentFactory;
+import us.pserver.revok.http.HttpEntityFactory;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.ObjectSerializer;
+import us.pserver.revok.protocol.Transport;
+
+/**
+ * Benchmark of the bytes allocated per request by the 
+ * content encoders: the buffered legacy format and the 
+ * streaming envelope of <code>HttpEntityFactory</code>, 
+ * and the direct <code>HttpContentFactory</code> encoder.
+ * Each request carries a <code>Transport</code> object and
+ * an embedded stream, GZip compressed and encrypted, and is 
+ * written to a discarding <code>OutputStream</code>.
+ * <br>Usage: <code>BenchContentAllocation [requests] [streamSize]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchContentAllocation {
+  
+  
+  interface Encoder {
+    void encode(Transport trp, CryptKey key, OutputStream out) throws IOException;
+  }
+  
+  
+  static final ObjectSerializer serial = new JsonSerializer();
+  
+  static final OutputStream discard = new OutputStream() {
+    @Override public void write(int b) {}
+    @Override public void write(byte[] b, int off, int len) {}
+  };
+  
+  
+  public static void main(String[] args) throws Exception {
+    int requests = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+    int size = (args.length > 1 ? Integer.parseInt(args[1]) : 64*1024);
+    byte[] data = new byte[size];
+    for(int i = 0; i < data.length; i++)
+      data[i] = (byte) (i % 61);
+    
+    bench("HttpEntityFactory legacy", requests, data, (trp, key, out)->{
+      HttpEntityFactory.instance(serial)
+          .enableGZipCoder().enableCryptCoder(key).enableLegacyFormat()
+          .put(trp.createWriteVersion()).put(trp.getInputStream())
+          .create().writeTo(out);
+    });
+    bench("HttpEntityFactory envelope", requests, data, (trp, key, out)->{
+      HttpEntityFactory.instance(serial)
+          .enableGZipCoder().enableCryptCoder(key)
+          .put(trp.createWriteVersion()).put(trp.getInputStream())
+          .create().writeTo(out);
+    });
+    bench("HttpContentFactory", requests, data, (trp, key, out)->{
+      HttpContentFactory.instance(serial)
+          .enableGZipCoder().enableCryptCoder(key)
+          .put(trp.createWriteVersion()).put(trp.getInputStream())
+          .writeTo(out);
+    });
+  }
+  
+  
+  static void bench(String name, int requests, byte[] data, Encoder enc) throws IOException {
+    CryptKey key = CryptKey.createRandomKey(CryptAlgorithm.AES_CBC_PKCS5);
+    OpResult res = new OpResult();
+    res.setSuccessOperation(true);
+    res.setReturn("Hello Revok!");
+    // warm up
+    for(int i = 0; i < requests / 4; i++) {
+      enc.encode(transport(res, data), key, discard);
+    }
+    long alloc = allocatedBytes();
+    long start = System.nanoTime();
+    for(int i = 0; i < requests; i++) {
+      enc.encode(transport(res, data), key, discard);
+    }
+    long nanos = System.nanoTime() - start;
+    alloc = allocatedBytes() - alloc;
+    System.out.printf("* %-28s %10d bytes/req  %8.3f ms/req%n", 
+        name, alloc / requests, nanos / 1e6 / requests);
+  }
+  
+  
+  static Transport transport(OpResult res, byte[] data) {
+    InputStream in = new ByteArrayInputStream(data);
+    return new Transport(res, in);
+  }
+  
+  
+  /**
+   * Bytes allocated by the current thread, through 
+   * the HotSpot <code>ThreadMXBean</code> extension.
+   */
+  static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) 
+        ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+  
+}
@@ -0,0 +1,152 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.RemoteMethod;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.http.DeflateDictionary;
+import us.pserver.revok.http.HttpContentFactory;
+import us.pserver.revok.http.HttpEntityParser;
+import us.pserver.revok.protocol.JsonSerializer;
+import us.pserver.revok.protocol.Transport;
+
+/**
+ * Benchmark of the envelope size and coding time of small
+ * RPC messages (<code>RemoteMethod</code> requests and 
+ * <code>OpResult</code> responses of <code>ICalculator</code>):
+ * without compression, with GZip over the whole content, with 
+ * the adaptive section codecs, and with the preset dictionary 
+ * trained from the <code>ObjectContainer</code> objects.
+ * Usage: <code>BenchDictionary [messages] [dictionary file to write]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchDictionary {
+  
+  
+  public static void main(String[] args) throws Exception {
+    int count = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("calc.ICalculator", new Calculator());
+    JsonSerializer serial = new JsonSerializer();
+    
+    long t = System.nanoTime();
+    DeflateDictionary dict = DeflateDictionary.train(
+        DeflateDictionary.samples(cont, serial), 
+        DeflateDictionary.DEFAULT_SIZE);
+    System.out.println("* "+ dict+ " trained in "
+        + (System.nanoTime() - t) / 1000000+ "ms");
+    if(args.length > 1) {
+      try(OutputStream out = Files.newOutputStream(Paths.get(args[1]))) {
+        dict.writeTo(out);
+      }
+      System.out.println("* written to "+ args[1]);
+    }
+    
+    List<Object> msgs = messages(count);
+    for(int i = 0; i < 2; i++) {
+      bench(null, msgs, 0, null);
+      bench(null, msgs, 1, null);
+      bench(null, msgs, 2, null);
+      bench(null, msgs, 2, dict);
+    }
+    bench("none", msgs, 0, null);
+    bench("gzip", msgs, 1, null);
+    bench("adaptive", msgs, 2, null);
+    bench("adaptive + dictionary", msgs, 2, dict);
+  }
+  
+  
+  /**
+   * Create the request and response messages.
+   */
+  static List<Object> messages(int count) {
+    Random rdm = new Random(7);
+    String[] mts = {"sum", "xyz", "setX", "setY", "x", "moveXY"};
+    List<Object> msgs = new ArrayList<>(count);
+    for(int i = 0; i < count; i++) {
+      if(i % 2 == 0) {
+        RemoteMethod rm = new RemoteMethod(
+            "calc.ICalculator", mts[rdm.nextInt(mts.length)]);
+        switch(rm.method()) {
+          case "sum": rm.types(double.class, double.class)
+              .args(rdm.nextDouble(), rdm.nextDouble()); break;
+          case "xyz": rm.types(double.class, double.class, double.class)
+              .args(rdm.nextDouble(), rdm.nextDouble(), rdm.nextDouble()); break;
+          case "setX": 
+          case "setY": rm.types(double.class).args(rdm.nextDouble()); break;
+        }
+        msgs.add(new Transport(rm).createWriteVersion());
+      }
+      else {
+        OpResult res = new OpResult();
+        res.setSuccessOperation(true);
+        res.setReturn(rdm.nextDouble() * 1000);
+        msgs.add(new Transport(res).createWriteVersion());
+      }
+    }
+    return msgs;
+  }
+  
+  
+  /**
+   * Encode and parse the messages.
+   * @param mode 0 = no compression, 1 = gzip, 2 = adaptive.
+   */
+  static void bench(String name, List<Object> msgs, int mode, DeflateDictionary dict) throws IOException {
+    JsonSerializer serial = new JsonSerializer();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    long bytes = 0, enc = 0, dec = 0;
+    for(Object msg : msgs) {
+      HttpContentFactory fac = HttpContentFactory.instance(serial);
+      if(mode > 0) fac.enableGZipCoder();
+      if(mode == 1) fac.disableAdaptiveCoder();
+      if(dict != null) fac.enableDictionaryCoder(dict);
+      fac.put(msg);
+      bos.reset();
+      long t = System.nanoTime();
+      fac.writeTo(bos);
+      long t2 = System.nanoTime();
+      HttpEntityParser.instance(serial).parse(
+          new ByteArrayInputStream(bos.toByteArray())).getObject();
+      dec += System.nanoTime() - t2;
+      enc += t2 - t;
+      bytes += bos.size();
+    }
+    if(name == null) return;
+    int n = msgs.size();
+    System.out.printf("* %-22s %6.1f bytes/msg, encode %5.1f us, parse %5.1f us%n",
+        name, (double) bytes / n, enc / 1000.0 / n, dec / 1000.0 / n);
+  }
+  
+}
@@ -0,0 +1,142 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.RemoteMethod;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.SocketOptions;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.factory.ChannelFactoryBuilder;
+import us.pserver.revok.server.Http2RevokServer;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark of HTTP/2 (h2c) concurrent calls over one connection.
+ * Some threads make fast calls while another thread makes 
+ * slow calls, all sharing a single <code>RemoteObject</code> 
+ * and connection. In the first round the calls are serialized 
+ * on the HTTP/1.1 channel and the fast calls wait behind the 
+ * slow ones (head of line blocking). In the second round each 
+ * call is sent on its own HTTP/2 stream to the 
+ * <code>Http2RevokServer</code>, which answers each call 
+ * as it finishes.
+ * <br>Usage: <code>BenchHttp2 [threads] [calls] [slow_ms]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchHttp2 {
+  
+  public static final int HTTP1_PORT = 9998;
+  
+  public static final int HTTP2_PORT = 9999;
+  
+  
+  public static void main(String[] args) throws Exception {
+    int threads = (args.length > 0 ? Integer.parseInt(args[0]) : 4);
+    int calls = (args.length > 1 ? Integer.parseInt(args[1]) : 200);
+    int slow = (args.length > 2 ? Integer.parseInt(args[2]) : 20);
+    
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("bench.Service", new BenchMultiplex.Service());
+    RevokServer srv = new RevokServer(cont, 
+        new HttpConnector("127.0.0.1:"+ HTTP1_PORT)
+            .setSocketOptions(SocketOptions.lowLatency()))
+        .disableLogging();
+    srv.startNewThread();
+    Http2RevokServer srv2 = new Http2RevokServer(cont, 
+        new HttpConnector("127.0.0.1:"+ HTTP2_PORT)
+            .setSocketOptions(SocketOptions.lowLatency()));
+    srv2.getLog().clearOutputs();
+    srv2.startNewThread();
+    Thread.sleep(500);
+    
+    RemoteObject http1 = new RemoteObject(
+        new HttpConnector("127.0.0.1:"+ HTTP1_PORT)
+            .setSocketOptions(SocketOptions.lowLatency()));
+    bench("http/1.1", http1, false, threads, calls, slow);
+    
+    RemoteObject http2 = new RemoteObject(
+        new HttpConnector("127.0.0.1:"+ HTTP2_PORT)
+            .setSocketOptions(SocketOptions.lowLatency()))
+        .setChannelFactory(ChannelFactoryBuilder.builder()
+            .enableGZipCompression()
+            .enableCryptography()
+            .createHttp2RequestChannelFactory());
+    bench("h2c", http2, true, threads, calls, slow);
+    srv.stop();
+    srv2.stop();
+  }
+  
+  
+  /**
+   * Run the fast calls threads and the slow calls thread
+   * over one <code>RemoteObject</code>, recording the 
+   * latency of the fast calls.
+   */
+  static void bench(String name, RemoteObject rob, boolean concurrent, int threads, int calls, int slow) throws Exception {
+    // warm up the connection
+    BenchMultiplex.call(rob, concurrent, BenchMultiplex.sum(0));
+    
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread slowth = new Thread(()->{
+      while(running.get()) 
+        BenchMultiplex.call(rob, concurrent, 
+            new RemoteMethod("bench.Service", "sleep")
+                .types(int.class).args(slow));
+    });
+    slowth.start();
+    
+    LatencyRecorder lat = new LatencyRecorder();
+    int[] errors = new int[1];
+    List<Thread> fast = new ArrayList<>();
+    lat.start();
+    for(int t = 0; t < threads; t++) {
+      Thread th = new Thread(()->{
+        for(int i = 0; i < calls; i++) {
+          long start = System.nanoTime();
+          OpResult res = BenchMultiplex.call(
+              rob, concurrent, BenchMultiplex.sum(i));
+          lat.record(System.nanoTime() - start);
+          if(!res.isSuccessOperation() 
+              || !Double.valueOf(i + 1.0).equals(res.getReturn())) {
+            synchronized(errors) { errors[0]++; }
+          }
+        }
+      });
+      fast.add(th);
+      th.start();
+    }
+    for(Thread th : fast) th.join();
+    lat.stop();
+    running.set(false);
+    slowth.join();
+    rob.close();
+    System.out.println("* "+ name+ ": "+ lat+ ", errors="+ errors[0]);
+  }
+  
+}
@@ -0,0 +1,98 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.SocketOptions;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.factory.ChannelFactoryBuilder;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark comparing the remote method call latency of 
+ * co-located services over the in-process <code>LocalChannel</code>
+ * (with and without the defensive copy) to the direct call 
+ * and to <code>RevokServer</code> over TCP loopback, with the 
+ * default channel configuration (cryptography and compression).
+ * <br>Usage: <code>BenchLocalChannel [calls]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchLocalChannel {
+  
+  public static final int PORT = 9989;
+  
+  
+  public static void main(String[] args) throws Exception {
+    int calls = (args.length > 0 ? Integer.parseInt(args[0]) : 5000);
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("calc.ICalculator", new Calculator());
+    
+    bench("direct call", new Calculator(), calls);
+    
+    RemoteObject rob = new RemoteObject(new HttpConnector())
+        .setChannelFactory(ChannelFactoryBuilder.builder()
+            .createLocalChannelFactory(cont));
+    bench("local channel", rob.createRemoteObject("calc", ICalculator.class), calls);
+    rob.close();
+    
+    rob = new RemoteObject(new HttpConnector())
+        .setChannelFactory(ChannelFactoryBuilder.builder()
+            .enableDefensiveCopy()
+            .createLocalChannelFactory(cont));
+    bench("local channel copy", rob.createRemoteObject("calc", ICalculator.class), calls);
+    rob.close();
+    
+    RevokServer srv = new RevokServer(cont, new HttpConnector("127.0.0.1:"+ PORT)
+        .setSocketOptions(SocketOptions.lowLatency()))
+        .disableLogging();
+    srv.startNewThread();
+    Thread.sleep(500);
+    rob = new RemoteObject(new HttpConnector("127.0.0.1:"+ PORT)
+        .setSocketOptions(SocketOptions.lowLatency()));
+    bench("tcp 127.0.0.1", rob.createRemoteObject("calc", ICalculator.class), calls / 5);
+    rob.close();
+    srv.stop();
+  }
+  
+  
+  /**
+   * Sequential calls, after a warm up round.
+   */
+  static void bench(String name, ICalculator calc, int calls) throws Exception {
+    for(int i = 0; i < calls / 4; i++) {
+      calc.sum(i, 1);
+    }
+    LatencyRecorder lat = new LatencyRecorder();
+    lat.start();
+    for(int i = 0; i < calls; i++) {
+      long t = System.nanoTime();
+      calc.sum(i, 1);
+      lat.record(System.nanoTime() - t);
+    }
+    lat.stop();
+    System.out.println("* "+ name+ ": "+ lat);
+  }
+  
+}
@@ -0,0 +1,157 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.RemoteMethod;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.SocketOptions;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark of multiplexed calls over one connection.
+ * Some threads make fast calls while another thread makes 
+ * slow calls, all sharing a single <code>RemoteObject</code> 
+ * and connection. In the first round the calls are serialized, 
+ * as required by the strict write-then-read of the HTTP channel, 
+ * and the fast calls wait behind the slow ones (head of line 
+ * blocking). In the second round the multiplexed mode is 
+ * enabled, and the server answers each call as it finishes.
+ * <br>Usage: <code>BenchMultiplex [threads] [calls] [slow_ms]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchMultiplex {
+  
+  public static final int PORT = 9994;
+  
+  
+  /**
+   * The remote service, with fast and slow methods.
+   */
+  public static class Service {
+    
+    public double sum(double d1, double d2) {
+      return d1 + d2;
+    }
+    
+    public int sleep(int millis) throws InterruptedException {
+      Thread.sleep(millis);
+      return millis;
+    }
+    
+  }
+  
+  
+  public static void main(String[] args) throws Exception {
+    int threads = (args.length > 0 ? Integer.parseInt(args[0]) : 4);
+    int calls = (args.length > 1 ? Integer.parseInt(args[1]) : 200);
+    int slow = (args.length > 2 ? Integer.parseInt(args[2]) : 20);
+    
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("bench.Service", new Service());
+    RevokServer srv = new RevokServer(cont, 
+        new HttpConnector("127.0.0.1:"+ PORT)
+            .setSocketOptions(SocketOptions.lowLatency()))
+        .disableLogging();
+    srv.startNewThread();
+    Thread.sleep(500);
+    
+    bench("serialized", false, threads, calls, slow);
+    bench("multiplexed", true, threads, calls, slow);
+    srv.stop();
+  }
+  
+  
+  /**
+   * Run the fast calls threads and the slow calls thread
+   * over one <code>RemoteObject</code>, recording the 
+   * latency of the fast calls.
+   */
+  static void bench(String name, boolean multiplex, int threads, int calls, int slow) throws Exception {
+    RemoteObject rob = new RemoteObject(
+        new HttpConnector("127.0.0.1:"+ PORT)
+            .setSocketOptions(SocketOptions.lowLatency()))
+        .setMultiplexEnabled(multiplex);
+    // warm up the connection
+    call(rob, multiplex, sum(0));
+    
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread slowth = new Thread(()->{
+      while(running.get()) 
+        call(rob, multiplex, new RemoteMethod("bench.Service", "sleep")
+            .types(int.class).args(slow));
+    });
+    slowth.start();
+    
+    LatencyRecorder lat = new LatencyRecorder();
+    int[] errors = new int[1];
+    List<Thread> fast = new ArrayList<>();
+    lat.start();
+    for(int t = 0; t < threads; t++) {
+      Thread th = new Thread(()->{
+        for(int i = 0; i < calls; i++) {
+          long start = System.nanoTime();
+          OpResult res = call(rob, multiplex, sum(i));
+          lat.record(System.nanoTime() - start);
+          if(!res.isSuccessOperation() 
+              || !Double.valueOf(i + 1.0).equals(res.getReturn())) {
+            synchronized(errors) { errors[0]++; }
+          }
+        }
+      });
+      fast.add(th);
+      th.start();
+    }
+    for(Thread th : fast) th.join();
+    lat.stop();
+    running.set(false);
+    slowth.join();
+    rob.close();
+    System.out.println("* "+ name+ ": "+ lat+ ", errors="+ errors[0]);
+  }
+  
+  
+  static RemoteMethod sum(int i) {
+    return new RemoteMethod("bench.Service", "sum")
+        .types(double.class, double.class).args((double) i, 1.0);
+  }
+  
+  
+  /**
+   * Invoke the method, serializing the calls 
+   * if not in the multiplexed mode.
+   */
+  static OpResult call(RemoteObject rob, boolean multiplex, RemoteMethod rm) {
+    if(multiplex) return rob.invokeSafe(rm);
+    synchronized(rob) {
+      return rob.invokeSafe(rm);
+    }
+  }
+  
+}
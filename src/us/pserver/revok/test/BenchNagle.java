@@ -0,0 +1,155 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.SocketOptions;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark showing the Nagle's algorithm and delayed ACK 
+ * interaction on the header-then-entity writes of 
+ * <code>HttpRequestChannel.write</code>. With Nagle enabled,
+ * the small entity segment waits the ACK of the header segment,
+ * which the server delays because it is waiting the rest of 
+ * the request, adding up to ~40ms (Linux) per call.
+ * <br>The first round uses plain sockets writing the header and
+ * the entity separately; the second round uses <code>RevokServer</code>
+ * and <code>RemoteObject</code>. Both compare the 
+ * <code>SocketOptions.bulkTransfer()</code> (Nagle enabled) and 
+ * <code>SocketOptions.lowLatency()</code> (TCP_NODELAY) profiles.
+ * <br>Usage: <code>BenchNagle [calls]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchNagle {
+  
+  public static final int PORT = 9997;
+  
+  public static final int HEADER_SIZE = 200;
+  
+  public static final int ENTITY_SIZE = 1000;
+  
+  
+  public static void main(String[] args) throws Exception {
+    int calls = (args.length > 0 ? Integer.parseInt(args[0]) : 200);
+    benchSockets("sockets bulkTransfer", SocketOptions.bulkTransfer(), calls);
+    benchSockets("sockets lowLatency", SocketOptions.lowLatency(), calls);
+    benchRevok("revok bulkTransfer", SocketOptions.bulkTransfer(), calls);
+    benchRevok("revok lowLatency", SocketOptions.lowLatency(), calls);
+  }
+  
+  
+  /**
+   * Request/response over plain sockets, each message
+   * written as a header write followed by an entity write.
+   */
+  static void benchSockets(String name, SocketOptions opts, int calls) throws Exception {
+    HttpConnector hc = new HttpConnector("127.0.0.1:"+ PORT)
+        .setSocketOptions(opts);
+    try(ServerSocket server = hc.connectServerSocket()) {
+      Thread echo = new Thread(()->{
+        try(Socket s = opts.apply(server.accept())) {
+          DataInputStream in = new DataInputStream(s.getInputStream());
+          OutputStream out = s.getOutputStream();
+          byte[] msg = new byte[HEADER_SIZE + ENTITY_SIZE];
+          for(int i = 0; i < calls; i++) {
+            in.readFully(msg);
+            send(out, msg);
+          }
+        } catch(IOException e) {
+          e.printStackTrace();
+        }
+      });
+      echo.start();
+      
+      LatencyRecorder lat = new LatencyRecorder();
+      try(Socket sock = hc.connectSocket()) {
+        DataInputStream in = new DataInputStream(sock.getInputStream());
+        OutputStream out = sock.getOutputStream();
+        byte[] msg = new byte[HEADER_SIZE + ENTITY_SIZE];
+        lat.start();
+        for(int i = 0; i < calls; i++) {
+          long t = System.nanoTime();
+          send(out, msg);
+          in.readFully(msg);
+          lat.record(System.nanoTime() - t);
+        }
+        lat.stop();
+      }
+      echo.join();
+      System.out.println("* "+ name+ ": "+ lat);
+    }
+  }
+  
+  
+  /**
+   * Write the message header and entity in separated writes.
+   */
+  static void send(OutputStream out, byte[] msg) throws IOException {
+    out.write(msg, 0, HEADER_SIZE);
+    out.flush();
+    out.write(msg, HEADER_SIZE, ENTITY_SIZE);
+    out.flush();
+  }
+  
+  
+  /**
+   * Remote method calls with the profile on both ends.
+   */
+  static void benchRevok(String name, SocketOptions opts, int calls) throws Exception {
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("calc.ICalculator", new Calculator());
+    HttpConnector hc = new HttpConnector("127.0.0.1:"+ PORT)
+        .setSocketOptions(opts);
+    RevokServer srv = new RevokServer(cont, hc).disableLogging();
+    srv.startNewThread();
+    Thread.sleep(500);
+    
+    RemoteObject rob = new RemoteObject(
+        new HttpConnector("127.0.0.1:"+ PORT)
+            .setSocketOptions(opts));
+    ICalculator calc = rob.createRemoteObject("calc", ICalculator.class);
+    LatencyRecorder lat = new LatencyRecorder();
+    lat.start();
+    for(int i = 0; i < calls; i++) {
+      long t = System.nanoTime();
+      calc.sum(i, 1);
+      lat.record(System.nanoTime() - t);
+    }
+    lat.stop();
+    rob.close();
+    srv.stop();
+    Thread.sleep(1000);
+    System.out.println("* "+ name+ ": "+ lat);
+  }
+  
+}
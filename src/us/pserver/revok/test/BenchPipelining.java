@@ -0,0 +1,185 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.RemoteMethod;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.SocketOptions;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark of HTTP/1.1 pipelining on a high latency link.
+ * A proxy between client and server delays each direction
+ * by the given one way latency. The same calls are made one 
+ * at a time with <code>RemoteObject.invokeSafe</code>, paying a 
+ * full round trip each, and pipelined on one connection with 
+ * <code>RemoteObject.invokeAll</code>. Both ends use the
+ * <code>SocketOptions.lowLatency()</code> profile, otherwise the
+ * small pipelined writes are held by the Nagle's algorithm.
+ * <br>Usage: <code>BenchPipelining [calls] [latency_ms]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchPipelining {
+  
+  public static final int PORT = 9996;
+  
+  public static final int PROXY_PORT = 9995;
+  
+  
+  public static void main(String[] args) throws Exception {
+    int calls = (args.length > 0 ? Integer.parseInt(args[0]) : 200);
+    int latency = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+    
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("calc.ICalculator", new Calculator());
+    RevokServer srv = new RevokServer(cont, 
+        new HttpConnector("127.0.0.1:"+ PORT)
+            .setSocketOptions(SocketOptions.lowLatency()))
+        .disableLogging();
+    srv.startNewThread();
+    ServerSocket proxy = new ServerSocket(PROXY_PORT);
+    Thread pth = new Thread(()->delayProxy(proxy, latency));
+    pth.setDaemon(true);
+    pth.start();
+    Thread.sleep(500);
+    
+    RemoteObject rob = new RemoteObject(
+        new HttpConnector("127.0.0.1:"+ PROXY_PORT)
+            .setSocketOptions(SocketOptions.lowLatency()));
+    List<RemoteMethod> rms = new ArrayList<>(calls);
+    for(int i = 0; i < calls; i++) {
+      rms.add(new RemoteMethod("calc.ICalculator", "sum")
+          .types(double.class, double.class).args((double) i, 1.0));
+    }
+    // warm up the connection
+    rob.invokeSafe(rms.get(0));
+    
+    long start = System.nanoTime();
+    List<OpResult> seq = new ArrayList<>(calls);
+    for(RemoteMethod rm : rms) 
+      seq.add(rob.invokeSafe(rm));
+    long tseq = System.nanoTime() - start;
+    print("sequential", calls, tseq, seq);
+    
+    for(int depth : Arrays.asList(4, 16, 64)) {
+      rob.setPipelineDepth(depth);
+      start = System.nanoTime();
+      List<OpResult> pip = rob.invokeAll(rms);
+      long tpip = System.nanoTime() - start;
+      print("pipelined depth="+ depth, calls, tpip, pip);
+      System.out.printf("  speedup: %.1fx%n", (double) tseq / tpip);
+    }
+    
+    rob.close();
+    srv.stop();
+    proxy.close();
+  }
+  
+  
+  /**
+   * Print the benchmark round result, checking the returned values.
+   */
+  static void print(String name, int calls, long nanos, List<OpResult> res) {
+    int errors = 0;
+    for(int i = 0; i < res.size(); i++) {
+      OpResult op = res.get(i);
+      if(!op.isSuccessOperation() 
+          || !Double.valueOf(i + 1.0).equals(op.getReturn()))
+        errors++;
+    }
+    System.out.printf("* %s: %d calls in %d ms (%.0f calls/s), errors=%d%n", 
+        name, calls, nanos / 1_000_000, 
+        calls * 1e9 / nanos, errors);
+  }
+  
+  
+  /**
+   * Accept connections forwarding to the server,
+   * delaying both directions by the latency.
+   */
+  static void delayProxy(ServerSocket proxy, int latency) {
+    try {
+      while(true) {
+        Socket client = proxy.accept();
+        Socket server = new Socket("127.0.0.1", PORT);
+        client.setTcpNoDelay(true);
+        server.setTcpNoDelay(true);
+        forward(client.getInputStream(), server.getOutputStream(), latency);
+        forward(server.getInputStream(), client.getOutputStream(), latency);
+      }
+    } catch(IOException e) {}
+  }
+  
+  
+  /**
+   * Forward the bytes read from input to output after
+   * the latency, preserving order and throughput.
+   */
+  static void forward(InputStream in, OutputStream out, int latency) {
+    BlockingQueue<Object[]> queue = new LinkedBlockingQueue<>();
+    Thread reader = new Thread(()->{
+      try {
+        byte[] buf = new byte[8192];
+        int read;
+        while((read = in.read(buf)) > 0) {
+          queue.put(new Object[]{System.nanoTime() 
+              + latency * 1_000_000L, Arrays.copyOf(buf, read)});
+        }
+      } catch(IOException | InterruptedException e) {}
+      queue.add(new Object[]{0L, new byte[0]});
+    });
+    Thread writer = new Thread(()->{
+      try {
+        while(true) {
+          Object[] chunk = queue.take();
+          byte[] data = (byte[]) chunk[1];
+          if(data.length == 0) break;
+          long wait = (Long) chunk[0] - System.nanoTime();
+          if(wait > 0) Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+          out.write(data);
+          out.flush();
+        }
+        out.close();
+      } catch(IOException | InterruptedException e) {}
+    });
+    reader.setDaemon(true);
+    writer.setDaemon(true);
+    reader.start();
+    writer.start();
+  }
+  
+}
@@ -0,0 +1,200 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.OpResult;
+import us.pserver.revok.RemoteMethod;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.SocketOptions;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.factory.ChannelFactoryBuilder;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark of the raw TCP channel against the HTTP channel.
+ * The same calls are made over HTTP and over the raw TCP 
+ * protocol, one at a time and pipelined, with the same coders 
+ * (GZIP and cryptography with session key). A counting proxy 
+ * measures the bytes transmitted per call on each protocol.
+ * <br>Usage: <code>BenchTcp [calls]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchTcp {
+  
+  public static final int HTTP_PORT = 9993;
+  
+  public static final int TCP_PORT = 9992;
+  
+  public static final int PROXY_PORT = 9991;
+  
+  
+  public static void main(String[] args) throws Exception {
+    int calls = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+    
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("calc.ICalculator", new Calculator());
+    RevokServer http = new RevokServer(cont, 
+        new HttpConnector("127.0.0.1:"+ HTTP_PORT)
+            .setSocketOptions(SocketOptions.lowLatency()))
+        .disableLogging();
+    http.startNewThread();
+    RevokServer tcp = new RevokServer(cont, 
+        new HttpConnector("127.0.0.1:"+ TCP_PORT)
+            .setSocketOptions(SocketOptions.lowLatency()))
+        .enableTcpProtocol()
+        .disableLogging();
+    tcp.startNewThread();
+    Thread.sleep(500);
+    
+    List<RemoteMethod> rms = new ArrayList<>(calls);
+    for(int i = 0; i < calls; i++) {
+      rms.add(new RemoteMethod("calc.ICalculator", "sum")
+          .types(double.class, double.class).args((double) i, 1.0));
+    }
+    ChannelFactoryBuilder builder = ChannelFactoryBuilder.builder()
+        .enableGZipCompression()
+        .enableCryptography()
+        .enableSessionKey();
+    bench("http", client(HTTP_PORT)
+        .setChannelFactory(builder.createHttpRequestChannelFactory()), rms);
+    bench("tcp", client(TCP_PORT)
+        .setChannelFactory(builder.createTcpRequestChannelFactory()), rms);
+    
+    int sample = Math.min(calls, 100);
+    bytes("http", HTTP_PORT, builder.createHttpRequestChannelFactory(), 
+        rms.subList(0, sample));
+    bytes("tcp", TCP_PORT, builder.createTcpRequestChannelFactory(), 
+        rms.subList(0, sample));
+    http.stop();
+    tcp.stop();
+  }
+  
+  
+  static RemoteObject client(int port) {
+    return new RemoteObject(
+        new HttpConnector("127.0.0.1:"+ port)
+            .setSocketOptions(SocketOptions.lowLatency()));
+  }
+  
+  
+  /**
+   * Run the calls one at a time and pipelined.
+   */
+  static void bench(String name, RemoteObject rob, List<RemoteMethod> rms) {
+    // warm up the connection and the coders
+    for(int i = 0; i < 200; i++)
+      rob.invokeSafe(rms.get(i % rms.size()));
+    
+    LatencyRecorder lat = new LatencyRecorder();
+    List<OpResult> seq = new ArrayList<>(rms.size());
+    lat.start();
+    for(RemoteMethod rm : rms) {
+      long start = System.nanoTime();
+      seq.add(rob.invokeSafe(rm));
+      lat.record(System.nanoTime() - start);
+    }
+    lat.stop();
+    System.out.println("* "+ name+ " sequential: "+ lat
+        + ", errors="+ errors(seq));
+    
+    rob.setPipelineDepth(16);
+    long start = System.nanoTime();
+    List<OpResult> pip = rob.invokeAll(rms);
+    long nanos = System.nanoTime() - start;
+    System.out.printf("* %s pipelined depth=16: %.0f calls/s, errors=%d%n", 
+        name, rms.size() * 1e9 / nanos, errors(pip));
+    rob.close();
+  }
+  
+  
+  static int errors(List<OpResult> res) {
+    int errors = 0;
+    for(int i = 0; i < res.size(); i++) {
+      OpResult op = res.get(i);
+      if(!op.isSuccessOperation() 
+          || !Double.valueOf(i + 1.0).equals(op.getReturn()))
+        errors++;
+    }
+    return errors;
+  }
+  
+  
+  /**
+   * Count the bytes transmitted per call through a proxy.
+   */
+  static void bytes(String name, int port, 
+      us.pserver.revok.factory.ChannelFactory<HttpConnector> factory, 
+      List<RemoteMethod> rms) throws Exception {
+    AtomicLong sent = new AtomicLong(), received = new AtomicLong();
+    try(ServerSocket proxy = new ServerSocket(PROXY_PORT)) {
+      Thread pth = new Thread(()->{
+        try {
+          Socket client = proxy.accept();
+          Socket server = new Socket("127.0.0.1", port);
+          forward(client.getInputStream(), server.getOutputStream(), sent);
+          forward(server.getInputStream(), client.getOutputStream(), received);
+        } catch(IOException e) {}
+      });
+      pth.setDaemon(true);
+      pth.start();
+      RemoteObject rob = client(PROXY_PORT).setChannelFactory(factory);
+      // the first call sends the session key
+      rob.invokeSafe(rms.get(0));
+      long s0 = sent.get(), r0 = received.get();
+      for(RemoteMethod rm : rms) rob.invokeSafe(rm);
+      System.out.printf("* %s bytes per call: request=%d, response=%d%n", 
+          name, (sent.get() - s0) / rms.size(), 
+          (received.get() - r0) / rms.size());
+      rob.close();
+    }
+  }
+  
+  
+  static void forward(InputStream in, OutputStream out, AtomicLong count) {
+    Thread th = new Thread(()->{
+      try {
+        byte[] buf = new byte[8192];
+        int read;
+        while((read = in.read(buf)) > 0) {
+          count.addAndGet(read);
+          out.write(buf, 0, read);
+          out.flush();
+        }
+        out.close();
+      } catch(IOException e) {}
+    });
+    th.setDaemon(true);
+    th.start();
+  }
+  
+}
@@ -0,0 +1,174 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.SocketOptions;
+import us.pserver.revok.TlsOptions;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.factory.ChannelFactoryBuilder;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark comparing the per-message cryptography coder of
+ * <code>ChannelFactoryBuilder.enableCryptography()</code> 
+ * (AES/CBC) with TLS AES-GCM channels of <code>TlsOptions</code>.
+ * The first round makes remote method calls on a persistent 
+ * connection: without encryption, with the cryptography coder,
+ * and over TLS. The second round opens a new connection for each
+ * call over TLS, with session resumption (same <code>SSLContext</code>)
+ * and with a full handshake (a new <code>SSLContext</code> per call).
+ * All connections use the <code>SocketOptions.lowLatency()</code> profile.
+ * <br>The self-signed key store <code>revok-test.p12</code> 
+ * (password <code>revoktest</code>) was created with:
+ * <pre>
+ * keytool -genkeypair -alias revok -keyalg RSA -keysize 2048 
+ *   -validity 36500 -dname "CN=localhost, O=Revok Test" 
+ *   -ext "SAN=dns:localhost,ip:127.0.0.1" -storetype PKCS12 
+ *   -keystore revok-test.p12 -storepass revoktest -keypass revoktest
+ * </pre>
+ * Usage: <code>BenchTls [calls] [keystore]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchTls {
+  
+  public static final int PORT = 9996;
+  
+  public static final String KEYSTORE = "revok-test.p12";
+  
+  public static final char[] PASSWORD = "revoktest".toCharArray();
+  
+  
+  public static void main(String[] args) throws Exception {
+    int calls = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+    String file = (args.length > 1 ? args[1] : null);
+    TlsOptions tls = loadTls(file);
+    System.out.println("* "+ tls);
+    
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("calc.ICalculator", new Calculator());
+    RevokServer srv = new RevokServer(cont, 
+        new HttpConnector("127.0.0.1:"+ PORT)
+            .setSocketOptions(SocketOptions.lowLatency()))
+        .disableLogging();
+    srv.startNewThread();
+    RevokServer tsrv = new RevokServer(cont, 
+        new HttpConnector("127.0.0.1:"+ (PORT+1))
+            .setSocketOptions(SocketOptions.lowLatency())
+            .setTlsOptions(tls))
+        .disableLogging();
+    tsrv.startNewThread();
+    Thread.sleep(500);
+    
+    // warm up the JIT and the AES intrinsics
+    for(int i = 0; i < 2; i++) {
+      benchCalls(null, ChannelFactoryBuilder.builder(), PORT, calls);
+      benchCalls(null, ChannelFactoryBuilder.builder().enableCryptography(), PORT, calls);
+      benchCalls(null, ChannelFactoryBuilder.builder().enableTls(tls), PORT+1, calls);
+    }
+    benchCalls("plain", ChannelFactoryBuilder.builder(), PORT, calls);
+    benchCalls("cryptography coder", 
+        ChannelFactoryBuilder.builder().enableCryptography(), PORT, calls);
+    benchCalls("tls aes-gcm", 
+        ChannelFactoryBuilder.builder().enableTls(tls), PORT+1, calls);
+    
+    int conns = Math.max(1, calls / 10);
+    benchConnects("tls new connection, resumed", tls, null, conns);
+    TlsOptions[] full = new TlsOptions[conns];
+    for(int i = 0; i < conns; i++) full[i] = loadTls(file);
+    benchConnects("tls new connection, full handshake", null, full, conns);
+    
+    srv.stop();
+    tsrv.stop();
+  }
+  
+  
+  /**
+   * Load the key store from the file informed or from 
+   * the <code>revok-test.p12</code> class path resource.
+   */
+  static TlsOptions loadTls(String file) throws IOException {
+    if(file != null) 
+      return TlsOptions.fromKeyStore(file, PASSWORD);
+    try(InputStream in = BenchTls.class.getResourceAsStream(KEYSTORE)) {
+      if(in == null) throw new IOException(
+          "Key store not found: "+ KEYSTORE);
+      return TlsOptions.fromKeyStore(in, PASSWORD);
+    }
+  }
+  
+  
+  /**
+   * Remote method calls on a persistent connection.
+   */
+  static void benchCalls(String name, ChannelFactoryBuilder bld, int port, int calls) throws Exception {
+    RemoteObject rob = new RemoteObject(
+        new HttpConnector("127.0.0.1:"+ port)
+            .setSocketOptions(SocketOptions.lowLatency()));
+    rob.setChannelFactory(bld.createHttpRequestChannelFactory());
+    ICalculator calc = rob.createRemoteObject("calc", ICalculator.class);
+    LatencyRecorder lat = new LatencyRecorder();
+    lat.start();
+    for(int i = 0; i < calls; i++) {
+      long t = System.nanoTime();
+      calc.sum(i, 1);
+      lat.record(System.nanoTime() - t);
+    }
+    lat.stop();
+    rob.close();
+    if(name != null)
+      System.out.println("* "+ name+ ": "+ lat);
+  }
+  
+  
+  /**
+   * Remote method calls over TLS, each one on a new connection.
+   * With <code>shared</code>, every connection uses the same
+   * <code>TlsOptions</code> and resumes the cached session,
+   * otherwise each connection uses its own <code>TlsOptions</code>.
+   */
+  static void benchConnects(String name, TlsOptions shared, TlsOptions[] each, int conns) throws Exception {
+    LatencyRecorder lat = new LatencyRecorder();
+    lat.start();
+    for(int i = 0; i < conns; i++) {
+      TlsOptions tls = (shared != null ? shared : each[i]);
+      RemoteObject rob = new RemoteObject(
+          new HttpConnector("127.0.0.1:"+ (PORT+1))
+              .setSocketOptions(SocketOptions.lowLatency()));
+      rob.setChannelFactory(ChannelFactoryBuilder.builder()
+          .enableTls(tls).createHttpRequestChannelFactory());
+      ICalculator calc = rob.createRemoteObject("calc", ICalculator.class);
+      long t = System.nanoTime();
+      calc.sum(i, 1);
+      lat.record(System.nanoTime() - t);
+      rob.close();
+    }
+    lat.stop();
+    System.out.println("* "+ name+ ": "+ lat);
+  }
+  
+}
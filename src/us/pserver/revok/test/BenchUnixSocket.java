@@ -0,0 +1,97 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.SocketOptions;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark comparing the remote method call latency of 
+ * same-host clients over an Unix domain socket file 
+ * (<code>unix:/tmp/revok-bench.sock</code>, Java 16+)
+ * and over TCP loopback (<code>127.0.0.1</code>). Both use
+ * <code>RevokServer</code> and <code>RemoteObject</code> with the 
+ * <code>SocketOptions.lowLatency()</code> profile, with the 
+ * blocking and the selector acceptors.
+ * <br>Usage: <code>BenchUnixSocket [calls]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchUnixSocket {
+  
+  public static final int PORT = 9990;
+  
+  public static final String UNIX = "unix:/tmp/revok-bench.sock";
+  
+  
+  public static void main(String[] args) throws Exception {
+    int calls = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+    if(!HttpConnector.isUnixDomainSupported()) {
+      System.out.println("* Unix domain sockets not supported (Java 16+)");
+      return;
+    }
+    String tcp = "127.0.0.1:"+ PORT;
+    bench("tcp 127.0.0.1", tcp, false, calls);
+    bench("unix socket", UNIX, false, calls);
+    bench("tcp 127.0.0.1 selector", tcp, true, calls);
+    bench("unix socket selector", UNIX, true, calls);
+  }
+  
+  
+  /**
+   * Sequential remote method calls, after a warm up round.
+   */
+  static void bench(String name, String addr, boolean selector, int calls) throws Exception {
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("calc.ICalculator", new Calculator());
+    RevokServer srv = new RevokServer(cont, new HttpConnector(addr)
+        .setSocketOptions(SocketOptions.lowLatency()))
+        .disableLogging();
+    if(selector) srv.enableSelectorAcceptor();
+    srv.startNewThread();
+    Thread.sleep(500);
+    
+    RemoteObject rob = new RemoteObject(new HttpConnector(addr)
+        .setSocketOptions(SocketOptions.lowLatency()));
+    ICalculator calc = rob.createRemoteObject("calc", ICalculator.class);
+    for(int i = 0; i < calls / 4; i++) {
+      calc.sum(i, 1);
+    }
+    LatencyRecorder lat = new LatencyRecorder();
+    lat.start();
+    for(int i = 0; i < calls; i++) {
+      long t = System.nanoTime();
+      calc.sum(i, 1);
+      lat.record(System.nanoTime() - t);
+    }
+    lat.stop();
+    rob.close();
+    srv.stop();
+    Thread.sleep(1000);
+    System.out.println("* "+ name+ ": "+ lat);
+  }
+  
+}
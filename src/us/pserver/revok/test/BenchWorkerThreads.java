@@ -0,0 +1,104 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import us.pserver.revok.HttpConnector;
+import us.pserver.revok.RemoteObject;
+import us.pserver.revok.container.ObjectContainer;
+import us.pserver.revok.server.RevokServer;
+
+/**
+ * Benchmark comparing the fixed worker thread pool with
+ * the virtual threads execution mode of <code>RevokServer</code>.
+ * Each client keeps a persistent connection for all its calls,
+ * so with the fixed pool only <code>availableThreads</code> 
+ * clients are served at a time.
+ * <br>Usage: <code>BenchWorkerThreads [clients] [calls]</code>
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class BenchWorkerThreads {
+  
+  public static final int PORT = 9996;
+  
+  
+  public static void main(String[] args) throws Exception {
+    int clients = (args.length > 0 ? Integer.parseInt(args[0]) : 50);
+    int calls = (args.length > 1 ? Integer.parseInt(args[1]) : 100);
+    bench("fixed-pool", false, clients, calls);
+    bench("virtual-threads", true, clients, calls);
+  }
+  
+  
+  static void bench(String name, boolean virtual, int clients, int calls) throws Exception {
+    ObjectContainer cont = new ObjectContainer();
+    cont.put("calc.ICalculator", new Calculator());
+    HttpConnector hc = new HttpConnector("127.0.0.1:"+ PORT);
+    RevokServer srv = new RevokServer(cont, hc).disableLogging();
+    if(virtual) srv.enableVirtualThreads();
+    srv.startNewThread();
+    Thread.sleep(500);
+    
+    LatencyRecorder lat = new LatencyRecorder();
+    // Connections which got the first response in less than one second
+    AtomicInteger served = new AtomicInteger(0);
+    CountDownLatch ready = new CountDownLatch(clients);
+    CountDownLatch done = new CountDownLatch(clients);
+    lat.start();
+    for(int i = 0; i < clients; i++) {
+      new Thread(()->{
+        RemoteObject rob = new RemoteObject(
+            new HttpConnector("127.0.0.1:"+ PORT));
+        ICalculator calc = rob.createRemoteObject("calc", ICalculator.class);
+        try {
+          ready.countDown();
+          ready.await();
+          for(int j = 0; j < calls; j++) {
+            long t = System.nanoTime();
+            calc.sum(j, 1);
+            t = System.nanoTime() - t;
+            if(j == 0 && t < TimeUnit.SECONDS.toNanos(1))
+              served.incrementAndGet();
+            lat.record(t);
+          }
+        } catch(Exception e) {
+          e.printStackTrace();
+        } finally {
+          rob.close();
+          done.countDown();
+        }
+      }).start();
+    }
+    done.await();
+    lat.stop();
+    srv.stop();
+    Thread.sleep(1000);
+    
+    System.out.println("* "+ name+ ": clients="+ clients
+        + ", served in 1s="+ served.get()+ ", "+ lat);
+  }
+  
+}
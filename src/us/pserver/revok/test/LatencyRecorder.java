@@ -0,0 +1,123 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.util.Arrays;
+
+/**
+ * Thread safe latency samples recorder for the benchmark classes.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class LatencyRecorder {
+  
+  private long[] samples;
+  
+  private int size;
+  
+  private long start, end;
+  
+  
+  /**
+   * Default constructor without arguments.
+   */
+  public LatencyRecorder() {
+    samples = new long[1024];
+    size = 0;
+    start = end = 0;
+  }
+  
+  
+  /**
+   * Mark the start of the measured period.
+   * @return This modified <code>LatencyRecorder</code> instance.
+   */
+  public synchronized LatencyRecorder start() {
+    start = System.nanoTime();
+    return this;
+  }
+  
+  
+  /**
+   * Mark the end of the measured period.
+   * @return This modified <code>LatencyRecorder</code> instance.
+   */
+  public synchronized LatencyRecorder stop() {
+    end = System.nanoTime();
+    return this;
+  }
+  
+  
+  /**
+   * Record a latency sample in nanoseconds.
+   * @param nanos Latency in nanoseconds.
+   */
+  public synchronized void record(long nanos) {
+    if(size == samples.length)
+      samples = Arrays.copyOf(samples, size * 2);
+    samples[size++] = nanos;
+  }
+  
+  
+  /**
+   * Get the number of recorded samples.
+   * @return The number of recorded samples.
+   */
+  public synchronized int count() {
+    return size;
+  }
+  
+  
+  /**
+   * Get the latency percentile in milliseconds.
+   * @param pct The percentile (0.0 - 100.0).
+   * @return The latency percentile in milliseconds.
+   */
+  public synchronized double percentile(double pct) {
+    if(size == 0) return 0;
+    long[] sorted = Arrays.copyOf(samples, size);
+    Arrays.sort(sorted);
+    int idx = (int) Math.ceil(pct / 100.0 * size) - 1;
+    idx = Math.max(0, Math.min(size-1, idx));
+    return sorted[idx] / 1_000_000.0;
+  }
+  
+  
+  /**
+   * Get the throughput in operations per second 
+   * between <code>start()</code> and <code>stop()</code>.
+   * @return Operations per second.
+   */
+  public synchronized double throughput() {
+    if(end <= start) return 0;
+    return size / ((end - start) / 1_000_000_000.0);
+  }
+  
+  
+  @Override
+  public String toString() {
+    return String.format("count=%d, ops/s=%.1f, p50=%.3fms, p99=%.3fms, max=%.3fms",
+        count(), throughput(), percentile(50), percentile(99), percentile(100));
+  }
+  
+}
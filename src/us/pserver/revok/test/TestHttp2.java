@@ -0,0 +1,268 @@
+/*
+ * Direitos Autorais Reservados (c) 2011 Juno Roesler
+ * Contato: juno.rr@gmail.com
+ * 
+ * Esta biblioteca é software livre; você pode redistribuí-la e/ou modificá-la sob os
+ * termos da Licença Pública Geral Menor do GNU conforme publicada pela Free
+ * Software Foundation; tanto a versão 2.1 da Licença, ou qualquer
+ * versão posterior.
+ * 
+ * Esta biblioteca é distribuída na expectativa de que seja útil, porém, SEM
+ * NENHUMA GARANTIA; nem mesmo a garantia implícita de COMERCIABILIDADE
+ * OU ADEQUAÇÃO A UMA FINALIDADE ESPECÍFICA. Consulte a Licença Pública
+ * Geral Menor do GNU para mais detalhes.
+ * 
+ * Você deve ter recebido uma cópia da Licença Pública Geral Menor do GNU junto
+ * com esta biblioteca; se não, acesse 
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html, 
+ * ou escreva para a Free Software Foundation, Inc., no
+ * endereço 59 Temple Street, Suite 330, Boston, MA 02111-1307 USA.
+ */
+
+package us.pserver.revok.test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import us.pserver.revok.http.Http2Connection;
+import us.pserver.revok.http.Hpack;
+
+/**
+ * Test class for the HTTP/2 implementation. Decodes the HPACK
+ * examples of RFC 7541 (Appendix C), plain and Huffman coded, 
+ * with the dynamic table eviction of the response examples, 
+ * checks the header list size limit, and exchanges concurrent 
+ * messages bigger than the flow control windows over an 
+ * <code>Http2Connection</code> pair, so the SETTINGS and 
+ * WINDOW_UPDATE frames are needed to complete them.
+ * 
+ * @author Juno Roesler - juno@pserver.com
+ * @version 1.1 - 201506
+ */
+public class TestHttp2 {
+  
+  private static int failures = 0;
+  
+  
+  public static void main(String[] args) throws Exception {
+    System.out.println("----- RFC 7541 C.3: Requests without Huffman -----");
+    Hpack dec = new Hpack();
+    Hpack enc = new Hpack();
+    request(dec, enc, "C.3.1", 57, 
+        "828684410f7777772e6578616d706c652e636f6d", 
+        ":method", "GET", ":scheme", "http", ":path", "/", 
+        ":authority", "www.example.com");
+    request(dec, enc, "C.3.2", 110, 
+        "828684be58086e6f2d6361636865", 
+        ":method", "GET", ":scheme", "http", ":path", "/", 
+        ":authority", "www.example.com", "cache-control", "no-cache");
+    request(dec, enc, "C.3.3", 164, 
+        "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565", 
+        ":method", "GET", ":scheme", "https", ":path", "/index.html", 
+        ":authority", "www.example.com", "custom-key", "custom-value");
+    
+    System.out.println("----- RFC 7541 C.4: Requests with Huffman -----");
+    dec = new Hpack();
+    decode(dec, "C.4.1", 57, 
+        "828684418cf1e3c2e5f23a6ba0ab90f4ff", 
+        ":method", "GET", ":scheme", "http", ":path", "/", 
+        ":authority", "www.example.com");
+    decode(dec, "C.4.2", 110, 
+        "828684be5886a8eb10649cbf", 
+        ":method", "GET", ":scheme", "http", ":path", "/", 
+        ":authority", "www.example.com", "cache-control", "no-cache");
+    decode(dec, "C.4.3", 164, 
+        "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", 
+        ":method", "GET", ":scheme", "https", ":path", "/index.html", 
+        ":authority", "www.example.com", "custom-key", "custom-value");
+    
+    System.out.println("----- RFC 7541 C.5: Responses without Huffman -----");
+    dec = new Hpack().setMaxTableSize(256);
+    decode(dec, "C.5.1", 222, 
+        "4803333032580770726976617465611d4d6f6e2c203231204f63742032303133"
+        + "2032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d70"
+        + "6c652e636f6d", 
+        ":status", "302", "cache-control", "private", 
+        "date", "Mon, 21 Oct 2013 20:13:21 GMT", 
+        "location", "https://www.example.com");
+    decode(dec, "C.5.2", 222, 
+        "4803333037c1c0bf", 
+        ":status", "307", "cache-control", "private", 
+        "date", "Mon, 21 Oct 2013 20:13:21 GMT", 
+        "location", "https://www.example.com");
+    decode(dec, "C.5.3", 215, 
+        "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d"
+        + "54c05a04677a69707738666f6f3d4153444a4b48514b425a584f5157454f5049"
+        + "5541585157454f49553b206d61782d6167653d333630303b2076657273696f6e"
+        + "3d31", 
+        ":status", "200", "cache-control", "private", 
+        "date", "Mon, 21 Oct 2013 20:13:22 GMT", 
+        "location", "https://www.example.com", "content-encoding", "gzip",
+        "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+    
+    System.out.println("----- RFC 7541 C.6: Responses with Huffman -----");
+    dec = new Hpack().setMaxTableSize(256);
+    decode(dec, "C.6.1", 222, 
+        "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a6"
+        + "2d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3", 
+        ":status", "302", "cache-control", "private", 
+        "date", "Mon, 21 Oct 2013 20:13:21 GMT", 
+        "location", "https://www.example.com");
+    decode(dec, "C.6.2", 222, 
+        "4883640effc1c0bf", 
+        ":status", "307", "cache-control", "private", 
+        "date", "Mon, 21 Oct 2013 20:13:21 GMT", 
+        "location", "https://www.example.com");
+    decode(dec, "C.6.3", 215, 
+        "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab"
+        + "77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f"
+        + "9587316065c003ed4ee5b1063d5007", 
+        ":status", "200", "cache-control", "private", 
+        "date", "Mon, 21 Oct 2013 20:13:22 GMT", 
+        "location", "https://www.example.com", "content-encoding", "gzip",
+        "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+    
+    System.out.println("----- Header list size limit -----");
+    headerListLimit();
+    
+    System.out.println("----- Framing and flow control -----");
+    exchange(200*1024, 1500*1024, 3*1024*1024);
+    
+    System.out.println("----------------------------------");
+    System.out.println("* failures="+ failures);
+    if(failures > 0) System.exit(1);
+  }
+  
+  
+  /**
+   * Decode the request example, and check that the 
+   * encoder produces the same header block.
+   */
+  private static void request(Hpack dec, Hpack enc, String name, int tableSize, String hex, String ... fields) throws IOException {
+    decode(dec, name, tableSize, hex, fields);
+    String encoded = hex(enc.encode(headers(fields)));
+    check(name+ " encode", hex.equals(encoded), encoded);
+  }
+  
+  
+  /**
+   * Decode the header block and check the header 
+   * fields and the dynamic table size.
+   */
+  private static void decode(Hpack dec, String name, int tableSize, String hex, String ... fields) throws IOException {
+    Map<String,String> headers = dec.decode(bytes(hex));
+    check(name+ " headers", headers.equals(headers(fields)), headers);
+    check(name+ " table size", dec.getTableSize() == tableSize, dec.getTableSize());
+  }
+  
+  
+  /**
+   * A few bytes referencing a large dynamic table entry
+   * decode to a header list bigger than the limit.
+   */
+  private static void headerListLimit() throws IOException {
+    char[] cs = new char[4000];
+    Arrays.fill(cs, 'x');
+    Map<String,String> big = headers("x-big", new String(cs));
+    Hpack enc = new Hpack();
+    byte[] first = enc.encode(big);
+    byte[] refs = enc.encode(big);
+    byte[] block = new byte[refs.length * 8];
+    for(int i = 0; i < 8; i++) 
+      System.arraycopy(refs, 0, block, i * refs.length, refs.length);
+    Hpack dec = new Hpack();
+    dec.decode(first, Http2Connection.MAX_HEAD_SIZE);
+    boolean refused = false;
+    try {
+      dec.decode(block, Http2Connection.MAX_HEAD_SIZE);
+    } catch(IOException e) {
+      refused = true;
+    }
+    check(block.length+ " bytes block refused", refused, null);
+  }
+  
+  
+  /**
+   * Send concurrent requests with the given content sizes to 
+   * an echo server over one connection, and check the responses.
+   */
+  private static void exchange(int ... sizes) throws Exception {
+    try(ServerSocket server = new ServerSocket(0)) {
+      Thread acceptor = new Thread(()->{
+        try {
+          Http2Connection srv = new Http2Connection(server.accept(), false);
+          srv.setRequestHandler(s -> new Thread(()->{
+            Map<String,String> hds = new LinkedHashMap<>();
+            hds.put(":status", "200");
+            try { srv.respond(s, hds, s.getContent()); }
+            catch(IOException e) { e.printStackTrace(); }
+          }).start()).start();
+        } catch(IOException e) {
+          e.printStackTrace();
+        }
+      });
+      acceptor.start();
+      Http2Connection cli = new Http2Connection(
+          new Socket("127.0.0.1", server.getLocalPort()), true).start();
+      Random rnd = new Random(7541);
+      List<byte[]> contents = new ArrayList<>();
+      List<Http2Connection.Stream> streams = new ArrayList<>();
+      for(int size : sizes) {
+        byte[] content = new byte[size];
+        rnd.nextBytes(content);
+        contents.add(content);
+        streams.add(cli.request(headers(":method", "POST", 
+            ":scheme", "http", ":path", "/echo", 
+            ":authority", "localhost"), content));
+      }
+      for(int i = 0; i < sizes.length; i++) {
+        Http2Connection.Stream s = streams.get(i).await();
+        check("stream "+ s.getId()+ " echo "+ sizes[i]+ " bytes", 
+            "200".equals(s.getHeader(":status")) 
+                && Arrays.equals(contents.get(i), s.getContent()), 
+            s.getContent().length);
+      }
+      cli.close();
+    }
+  }
+  
+  
+  private static void check(String name, boolean ok, Object found) {
+    if(ok) {
+      System.out.println("* OK   "+ name);
+    } else {
+      failures++;
+      System.out.println("* FAIL "+ name+ ": "+ found);
+    }
+  }
+  
+  
+  private static Map<String,String> headers(String ... fields) {
+    Map<String,String> map = new LinkedHashMap<>();
+    for(int i = 0; i < fields.length; i += 2) 
+      map.put(fields[i], fields[i+1]);
+    return map;
+  }
+  
+  
+  private static byte[] bytes(String hex) {
+    byte[] bs = new byte[hex.length() / 2];
+    for(int i = 0; i < bs.length; i++) 
+      bs[i] = (byte) Integer.parseInt(hex.substring(i*2, i*2+2), 16);
+    return bs;
+  }
+  
+  
+  private static String hex(byte[] bs) {
+    StringBuilder sb = new StringBuilder();
+    for(byte b : bs) sb.append(String.format("%02x", b & 0xFF));
+    return sb.toString();
+  }
+  
+}